@@ -40,7 +40,12 @@ public class BlackWhiteRaster extends TimeIntensiveOperation implements Greyscal
     ORDERED,
     GRID,
     HALFTONE,
-    BRIGHTENED_HALFTONE
+    BRIGHTENED_HALFTONE,
+    JARVIS_JUDICE_NINKE,
+    STUCKI,
+    ATKINSON,
+    SIERRA,
+    BURKES
   }
 
   public static DitheringAlgorithm getDitheringAlgorithm(DitherAlgorithm alg)
@@ -61,6 +66,16 @@ public class BlackWhiteRaster extends TimeIntensiveOperation implements Greyscal
         return new Halftone();
       case BRIGHTENED_HALFTONE:
         return new BrightenedHalftone();
+      case JARVIS_JUDICE_NINKE:
+        return new JarvisJudiceNinke();
+      case STUCKI:
+        return new Stucki();
+      case ATKINSON:
+        return new Atkinson();
+      case SIERRA:
+        return new Sierra();
+      case BURKES:
+        return new Burkes();
       default:
         throw new IllegalArgumentException("Desired Dithering Algorithm (" + alg + ") does not exist");
     }
@@ -214,6 +229,63 @@ public class BlackWhiteRaster extends TimeIntensiveOperation implements Greyscal
     }
   }
 
+  /**
+   * Sets a whole row at once, which is much faster than calling
+   * setBlack for every pixel.
+   *
+   * @param y the row
+   * @param black for every pixel of the row: is it black?
+   */
+  public void setBlackRow(int y, boolean[] black)
+  {
+    int width = raster.getWidth();
+    if (raster.getBitDepth() == 1 && raster.getSamplesPerPixel() == 1)
+    {
+      for (int x = 0; x < width; x += 8)
+      {
+        int bits = 0;
+        for (int i = x, end = Math.min(width, x + 8); i < end; i++)
+        {
+          if (black[i])
+          {
+            bits |= 0x80 >>> (i - x);
+          }
+        }
+        raster.setByte(x >> 3, y, (byte) bits);
+      }
+    }
+    else
+    {
+      for (int x = 0; x < width; x++)
+      {
+        setBlack(x, y, black[x]);
+      }
+    }
+  }
+
+  /**
+   * Sets a whole row at once from a bitset with 8 pixels per byte,
+   * most significant bit first and 1 for black, i.e. the format of
+   * getRasterLine of a 1 bit raster.
+   *
+   * @param y the row
+   * @param black at least (width + 7) / 8 bytes
+   */
+  public void setBlackRow(int y, byte[] black)
+  {
+    if (raster.getBitDepth() == 1 && raster.getSamplesPerPixel() == 1)
+    {
+      raster.setRasterLine(y, black);
+    }
+    else
+    {
+      for (int x = 0; x < raster.getWidth(); x++)
+      {
+        setBlack(x, y, (black[x >> 3] & (0x80 >>> (x & 7))) != 0);
+      }
+    }
+  }
+
   /**
    * Gets black according to the definitions used in GreyRaster and BlackWhiteRaster
    * In BlackWhiteRaster this is any pixel equal to 1.
@@ -0,0 +1,136 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tells long running operations (optimizers, encoders, drivers) that the job
+ * was aborted. They call {@link #check()} once per line or path, which throws
+ * a CancellationException, so the work stops within milliseconds and all
+ * buffers become garbage.
+ *
+ * Interrupting the thread doing the work has the same effect, so code which
+ * only checks the token also stops on Thread.interrupt() (as the dithering
+ * algorithms do).
+ *
+ * Drivers can register callbacks with {@link #onCancel(Runnable)}, e.g. to
+ * close a socket which is blocked in a read.
+ */
+public class CancellationToken
+{
+  private volatile boolean cancelled = false;
+  private final List<Runnable> callbacks = new LinkedList<>();
+
+  public void cancel()
+  {
+    List<Runnable> toRun;
+    synchronized (callbacks)
+    {
+      if (cancelled)
+      {
+        return;
+      }
+      cancelled = true;
+      toRun = new LinkedList<>(callbacks);
+      callbacks.clear();
+    }
+    for (Runnable r : toRun)
+    {
+      try
+      {
+        r.run();
+      }
+      catch (RuntimeException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * True if cancel() was called or the current thread was interrupted
+   */
+  public boolean isCancelled()
+  {
+    return cancelled || Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * @throws CancellationException if the job was cancelled
+   */
+  public void check()
+  {
+    if (isCancelled())
+    {
+      throw new CancellationException("Job was cancelled");
+    }
+  }
+
+  /**
+   * Run the callback when the token is cancelled, immediately if it already
+   * is. Remove it with {@link #removeOnCancel(Runnable)} when it is no longer
+   * needed.
+   */
+  public void onCancel(Runnable callback)
+  {
+    synchronized (callbacks)
+    {
+      if (!cancelled)
+      {
+        callbacks.add(callback);
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Close the resource when the token is cancelled, which aborts blocking
+   * reads and writes on sockets and serial ports.
+   * @return the callback for {@link #removeOnCancel(Runnable)}
+   */
+  public Runnable closeOnCancel(Closeable resource)
+  {
+    Runnable callback = () -> {
+      try
+      {
+        resource.close();
+      }
+      catch (IOException e)
+      {
+        // the job fails anyway
+      }
+    };
+    onCancel(callback);
+    return callback;
+  }
+
+  public void removeOnCancel(Runnable callback)
+  {
+    synchronized (callbacks)
+    {
+      callbacks.remove(callback);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Idle connections kept open between jobs, see
+ * {@link LaserCutter#resumeSession(String, String, ConnectionSession.Probe)}.
+ *
+ * The pool is shared by all driver instances, because a port can only be
+ * opened once: if a driver is cloned (e.g. when the settings are edited),
+ * the new instance takes over the connection of the old one.
+ */
+public class ConnectionPool
+{
+  /**
+   * Sessions which were not used for this long are closed instead of
+   * being reused (the machine may have been switched off in the meantime)
+   */
+  public static final long MAX_IDLE_MILLIS = 30 * 60 * 1000;
+
+  private static final Map<String, ConnectionSession> idle = new HashMap<>();
+
+  private ConnectionPool()
+  {
+  }
+
+  /**
+   * Remove the idle session for the key from the pool.
+   * @return the session or null if there is none or it can not be reused
+   * with the given parameters (it is closed in this case)
+   */
+  public static ConnectionSession take(String key, String parameters)
+  {
+    ConnectionSession s;
+    synchronized (idle)
+    {
+      s = idle.remove(key);
+    }
+    if (s == null)
+    {
+      return null;
+    }
+    if (!s.isReusable() || !s.getParameters().equals(parameters == null ? "" : parameters) || s.getIdleMillis() > MAX_IDLE_MILLIS)
+    {
+      s.close();
+      return null;
+    }
+    s.markReused();
+    return s;
+  }
+
+  /**
+   * Return a session to the pool. Sessions which are not reusable are
+   * closed, as well as a previous session with the same key.
+   */
+  public static void put(ConnectionSession s)
+  {
+    if (!s.isReusable())
+    {
+      s.close();
+      return;
+    }
+    s.touch();
+    ConnectionSession previous;
+    synchronized (idle)
+    {
+      previous = idle.put(s.getKey(), s);
+    }
+    if (previous != null && previous != s)
+    {
+      previous.close();
+    }
+  }
+
+  /**
+   * Close the idle session for the key, e.g. before opening the port again
+   */
+  public static void close(String key)
+  {
+    ConnectionSession s;
+    synchronized (idle)
+    {
+      s = idle.remove(key);
+    }
+    if (s != null)
+    {
+      s.close();
+    }
+  }
+
+  /**
+   * Close all idle sessions, e.g. when the application exits
+   */
+  public static void closeAll()
+  {
+    List<ConnectionSession> sessions;
+    synchronized (idle)
+    {
+      sessions = new ArrayList<>(idle.values());
+      idle.clear();
+    }
+    for (ConnectionSession s : sessions)
+    {
+      s.close();
+    }
+  }
+
+  public static int getIdleCount()
+  {
+    synchronized (idle)
+    {
+      return idle.size();
+    }
+  }
+}
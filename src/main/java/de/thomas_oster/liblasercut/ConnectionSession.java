@@ -0,0 +1,202 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An open connection to a laser cutter (serial port, TCP socket, ...),
+ * which can be kept in the {@link ConnectionPool} and reused by the next job
+ * instead of connecting again.
+ *
+ * Drivers wrap the raw streams as needed. A session is used by one job at
+ * a time; the pool hands it out exclusively.
+ */
+public class ConnectionSession implements Closeable
+{
+  /**
+   * Cheap check whether the other side still responds,
+   * e.g. a status request
+   */
+  public interface Probe
+  {
+    boolean isAlive(ConnectionSession session) throws Exception;
+  }
+
+  /**
+   * For protocols without answers: only checks that the output can still
+   * be flushed
+   */
+  public static final Probe WRITE_ONLY = s -> {
+    s.getOutputStream().flush();
+    return true;
+  };
+
+  private final String key;
+  private final String parameters;
+  private final Object transport;
+  private final InputStream in;
+  private final OutputStream out;
+  private final Closeable closer;
+  private final long openedAt = System.currentTimeMillis();
+  private long lastUsed = openedAt;
+  private int uses = 0;
+  private boolean valid = true;
+  private boolean closed = false;
+
+  /**
+   * @param key identifies the resource, e.g. "serial://ttyUSB0" or
+   * "tcp://10.0.0.2:23". There is at most one pooled session per key.
+   * @param parameters settings of the connection (e.g. baud rate). A pooled
+   * session is only reused if they match.
+   * @param transport the port or socket, for drivers which need it
+   * @param in input stream or null for write-only connections
+   * @param out output stream
+   * @param closer closes the transport
+   */
+  public ConnectionSession(String key, String parameters, Object transport, InputStream in, OutputStream out, Closeable closer)
+  {
+    this.key = key;
+    this.parameters = parameters == null ? "" : parameters;
+    this.transport = transport;
+    this.in = in;
+    this.out = out;
+    this.closer = closer;
+  }
+
+  public String getKey()
+  {
+    return key;
+  }
+
+  public String getParameters()
+  {
+    return parameters;
+  }
+
+  public Object getTransport()
+  {
+    return transport;
+  }
+
+  public InputStream getInputStream()
+  {
+    return in;
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return out;
+  }
+
+  /**
+   * Run the probe. Exceptions count as a dead connection.
+   */
+  public boolean probe(Probe probe)
+  {
+    try
+    {
+      return !closed && probe.isAlive(this);
+    }
+    catch (Exception e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Mark the session as not reusable, e.g. after an error during a job.
+   * It will be closed instead of being returned to the pool.
+   */
+  public void invalidate()
+  {
+    valid = false;
+  }
+
+  public boolean isReusable()
+  {
+    return valid && !closed;
+  }
+
+  void touch()
+  {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  void markReused()
+  {
+    touch();
+    uses++;
+  }
+
+  /**
+   * Milliseconds since the session was last taken from or returned to the pool
+   */
+  public long getIdleMillis()
+  {
+    return System.currentTimeMillis() - lastUsed;
+  }
+
+  /**
+   * Number of times the session was reused
+   */
+  public int getUses()
+  {
+    return uses;
+  }
+
+  public long getOpenedAt()
+  {
+    return openedAt;
+  }
+
+  @Override
+  public void close()
+  {
+    if (!closed)
+    {
+      closed = true;
+      try
+      {
+        out.flush();
+      }
+      catch (IOException e)
+      {
+        // closing anyway
+      }
+      try
+      {
+        closer.close();
+      }
+      catch (IOException e)
+      {
+        System.err.println("Error closing connection " + key + ": " + e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ConnectionSession " + key + " (" + parameters + "), used " + uses + " times";
+  }
+}
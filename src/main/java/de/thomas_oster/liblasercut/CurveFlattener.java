@@ -0,0 +1,359 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Converts CURVETO and ARCTO commands into commands a driver can handle,
+ * while iterating over them. The input is not modified and the converted
+ * commands of a curve are only generated when the iterator reaches it, so
+ * a VectorPart stays small even if the driver needs short lines.
+ *
+ * @see VectorPart#getCommands(LaserCutter)
+ */
+public final class CurveFlattener
+{
+
+  private CurveFlattener()
+  {
+  }
+
+  /**
+   * Maximum angle of one Bezier curve used for an arc. The error is below
+   * 1e-5 of the radius.
+   */
+  private static final double MAX_CURVE_ANGLE = Math.PI / 4;
+
+  /**
+   * Replaces curves and/or arcs by poly-lines.
+   *
+   * @param keepCurves pass CURVETO commands unchanged
+   * @param keepArcs pass ARCTO commands unchanged
+   * @param tolerance maximum distance between the lines and the curve in px
+   */
+  public static Iterable<VectorCommand> flatten(Iterable<VectorCommand> commands, boolean keepCurves, boolean keepArcs, double tolerance)
+  {
+    if (keepCurves && keepArcs)
+    {
+      return commands;
+    }
+    if (!(tolerance > 0))
+    {
+      throw new IllegalArgumentException("tolerance must be positive");
+    }
+    return () -> new ConvertingIterator(commands.iterator())
+    {
+      @Override
+      boolean convert(double x0, double y0, VectorCommand cmd, ArrayDeque<VectorCommand> out)
+      {
+        if (cmd.getType() == VectorCommand.CmdType.CURVETO && !keepCurves)
+        {
+          flattenCurve(x0, y0, cmd, tolerance, out);
+          return true;
+        }
+        if (cmd.getType() == VectorCommand.CmdType.ARCTO && !keepArcs)
+        {
+          flattenArc(x0, y0, cmd, tolerance, out);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Replaces arcs by Bezier curves, e.g. before transforming them with an
+   * affine transform which would turn them into ellipses
+   */
+  public static Iterable<VectorCommand> arcsToCurves(Iterable<VectorCommand> commands)
+  {
+    return () -> new ConvertingIterator(commands.iterator())
+    {
+      @Override
+      boolean convert(double x0, double y0, VectorCommand cmd, ArrayDeque<VectorCommand> out)
+      {
+        if (cmd.getType() == VectorCommand.CmdType.ARCTO)
+        {
+          arcToCurves(x0, y0, cmd, out);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Keeps track of the current point, which CURVETO and ARCTO start at
+   */
+  private abstract static class ConvertingIterator implements Iterator<VectorCommand>
+  {
+    private final Iterator<VectorCommand> source;
+    private final ArrayDeque<VectorCommand> pending = new ArrayDeque<>();
+    private double x = 0;
+    private double y = 0;
+
+    ConvertingIterator(Iterator<VectorCommand> source)
+    {
+      this.source = source;
+    }
+
+    /**
+     * @return false if cmd is passed unchanged
+     */
+    abstract boolean convert(double x0, double y0, VectorCommand cmd, ArrayDeque<VectorCommand> out);
+
+    @Override
+    public boolean hasNext()
+    {
+      return !pending.isEmpty() || source.hasNext();
+    }
+
+    @Override
+    public VectorCommand next()
+    {
+      if (pending.isEmpty())
+      {
+        if (!source.hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        VectorCommand cmd = source.next();
+        if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+        {
+          return cmd;
+        }
+        double x0 = x;
+        double y0 = y;
+        x = cmd.getX();
+        y = cmd.getY();
+        if (!convert(x0, y0, cmd, pending))
+        {
+          return cmd;
+        }
+      }
+      return pending.poll();
+    }
+  }
+
+  /**
+   * Signed angle of an ARCTO starting at (x0, y0), positive if counter-
+   * clockwise (with the y axis pointing up). If the end point is the start
+   * point, the arc is a full circle.
+   */
+  public static double getSweep(double x0, double y0, VectorCommand arc)
+  {
+    double cx = x0 + arc.getI();
+    double cy = y0 + arc.getJ();
+    double sweep = Math.atan2(arc.getY() - cy, arc.getX() - cx) - Math.atan2(y0 - cy, x0 - cx);
+    if (arc.isClockwise() && sweep >= 0)
+    {
+      sweep -= 2 * Math.PI;
+    }
+    else if (!arc.isClockwise() && sweep <= 0)
+    {
+      sweep += 2 * Math.PI;
+    }
+    return sweep;
+  }
+
+  /**
+   * Point at the given angle from the start of the arc. If the end point is
+   * not exactly on the circle, the radius changes linearly.
+   */
+  private static void arcPoint(double x0, double y0, VectorCommand arc, double sweep, double angle, double[] result)
+  {
+    double cx = x0 + arc.getI();
+    double cy = y0 + arc.getJ();
+    double r0 = Math.hypot(arc.getI(), arc.getJ());
+    double r1 = Math.hypot(arc.getX() - cx, arc.getY() - cy);
+    double r = r0 + (r1 - r0) * angle / sweep;
+    double a = Math.atan2(-arc.getJ(), -arc.getI()) + angle;
+    result[0] = cx + r * Math.cos(a);
+    result[1] = cy + r * Math.sin(a);
+  }
+
+  /**
+   * Add a line to an intermediate point, unless it has length 0 after
+   * converting to integer, so that integer-based drivers have no problems
+   * (see https://github.com/t-oster/LibLaserCut/issues/87)
+   */
+  private static void addLine(ArrayDeque<VectorCommand> out, double x0, double y0, double x, double y)
+  {
+    VectorCommand last = out.peekLast();
+    int lastX = (int) (last == null ? x0 : last.getX());
+    int lastY = (int) (last == null ? y0 : last.getY());
+    if ((int) x != lastX || (int) y != lastY)
+    {
+      out.add(new VectorCommand(VectorCommand.CmdType.LINETO, x, y));
+    }
+  }
+
+  private static void flattenArc(double x0, double y0, VectorCommand arc, double tolerance, ArrayDeque<VectorCommand> out)
+  {
+    double sweep = getSweep(x0, y0, arc);
+    double r = Math.max(Math.hypot(arc.getI(), arc.getJ()), Math.hypot(arc.getX() - x0 - arc.getI(), arc.getY() - y0 - arc.getJ()));
+    int n = 1;
+    if (r > tolerance)
+    {
+      // distance between the chord and the arc is r * (1 - cos(step / 2))
+      double step = 2 * Math.acos(1 - tolerance / r);
+      n = (int) Math.ceil(Math.abs(sweep) / step);
+    }
+    double[] p = new double[2];
+    for (int k = 1; k < n; k++)
+    {
+      arcPoint(x0, y0, arc, sweep, sweep * k / n, p);
+      addLine(out, x0, y0, p[0], p[1]);
+    }
+    out.add(new VectorCommand(VectorCommand.CmdType.LINETO, arc.getX(), arc.getY()));
+  }
+
+  private static void arcToCurves(double x0, double y0, VectorCommand arc, ArrayDeque<VectorCommand> out)
+  {
+    double sweep = getSweep(x0, y0, arc);
+    int n = (int) Math.ceil(Math.abs(sweep) / MAX_CURVE_ANGLE);
+    double step = sweep / n;
+    double k = 4.0 / 3 * Math.tan(step / 4);
+    double cx = x0 + arc.getI();
+    double cy = y0 + arc.getJ();
+    double[] p = {x0, y0};
+    double[] q = new double[2];
+    for (int i = 1; i <= n; i++)
+    {
+      if (i < n)
+      {
+        arcPoint(x0, y0, arc, sweep, step * i, q);
+      }
+      else
+      {
+        q[0] = arc.getX();
+        q[1] = arc.getY();
+      }
+      // the tangent is the radius rotated by 90 degrees
+      out.add(new VectorCommand(VectorCommand.CmdType.CURVETO,
+        p[0] - k * (p[1] - cy), p[1] + k * (p[0] - cx),
+        q[0] + k * (q[1] - cy), q[1] - k * (q[0] - cx),
+        q[0], q[1]));
+      p[0] = q[0];
+      p[1] = q[1];
+    }
+  }
+
+  private static void flattenCurve(double x0, double y0, VectorCommand c, double tolerance, ArrayDeque<VectorCommand> out)
+  {
+    // the distance between the curve and n equally spaced chords is at most
+    // max|B''| / (8 n^2), and |B''| is at most 6 times the largest second
+    // difference of the control points
+    double ddx1 = x0 - 2 * c.getX1() + c.getX2();
+    double ddy1 = y0 - 2 * c.getY1() + c.getY2();
+    double ddx2 = c.getX1() - 2 * c.getX2() + c.getX();
+    double ddy2 = c.getY1() - 2 * c.getY2() + c.getY();
+    double dd = Math.max(Math.hypot(ddx1, ddy1), Math.hypot(ddx2, ddy2));
+    int n = Math.max(1, (int) Math.ceil(Math.sqrt(0.75 * dd / tolerance)));
+    for (int k = 1; k < n; k++)
+    {
+      double t = (double) k / n;
+      double s = 1 - t;
+      double b0 = s * s * s;
+      double b1 = 3 * s * s * t;
+      double b2 = 3 * s * t * t;
+      double b3 = t * t * t;
+      addLine(out, x0, y0,
+        b0 * x0 + b1 * c.getX1() + b2 * c.getX2() + b3 * c.getX(),
+        b0 * y0 + b1 * c.getY1() + b2 * c.getY2() + b3 * c.getY());
+    }
+    out.add(new VectorCommand(VectorCommand.CmdType.LINETO, c.getX(), c.getY()));
+  }
+
+  /**
+   * Bounding box of a CURVETO or ARCTO starting at (x0, y0)
+   *
+   * @return minX, minY, maxX, maxY
+   */
+  public static double[] getBounds(double x0, double y0, VectorCommand cmd)
+  {
+    double[] b = {Math.min(x0, cmd.getX()), Math.min(y0, cmd.getY()), Math.max(x0, cmd.getX()), Math.max(y0, cmd.getY())};
+    if (cmd.getType() == VectorCommand.CmdType.CURVETO)
+    {
+      curveExtrema(x0, cmd.getX1(), cmd.getX2(), cmd.getX(), b, 0);
+      curveExtrema(y0, cmd.getY1(), cmd.getY2(), cmd.getY(), b, 1);
+    }
+    else if (cmd.getType() == VectorCommand.CmdType.ARCTO)
+    {
+      double sweep = getSweep(x0, y0, cmd);
+      double a0 = Math.atan2(-cmd.getJ(), -cmd.getI());
+      double[] p = new double[2];
+      // the arc reaches its extrema at multiples of 90 degrees
+      double first = Math.ceil(Math.min(a0, a0 + sweep) / (Math.PI / 2)) * (Math.PI / 2);
+      for (double a = first; a < Math.max(a0, a0 + sweep); a += Math.PI / 2)
+      {
+        arcPoint(x0, y0, cmd, sweep, a - a0, p);
+        include(b, p[0], p[1]);
+      }
+    }
+    return b;
+  }
+
+  private static void include(double[] b, double x, double y)
+  {
+    b[0] = Math.min(b[0], x);
+    b[1] = Math.min(b[1], y);
+    b[2] = Math.max(b[2], x);
+    b[3] = Math.max(b[3], y);
+  }
+
+  /**
+   * Extend b[axis] and b[axis + 2] by the extrema of a one-dimensional
+   * cubic Bezier curve, where its derivative is zero
+   */
+  private static void curveExtrema(double p0, double p1, double p2, double p3, double[] b, int axis)
+  {
+    double a = -p0 + 3 * p1 - 3 * p2 + p3;
+    double bb = 2 * (p0 - 2 * p1 + p2);
+    double c = p1 - p0;
+    double[] roots;
+    if (Math.abs(a) < 1e-12)
+    {
+      roots = Math.abs(bb) < 1e-12 ? new double[0] : new double[]{-c / bb};
+    }
+    else
+    {
+      double d = bb * bb - 4 * a * c;
+      if (d < 0)
+      {
+        return;
+      }
+      double sq = Math.sqrt(d);
+      roots = new double[]{(-bb + sq) / (2 * a), (-bb - sq) / (2 * a)};
+    }
+    for (double t : roots)
+    {
+      if (t > 0 && t < 1)
+      {
+        double s = 1 - t;
+        double v = s * s * s * p0 + 3 * s * s * t * p1 + 3 * s * t * t * p2 + t * t * t * p3;
+        b[axis] = Math.min(b[axis], v);
+        b[axis + 2] = Math.max(b[axis + 2], v);
+      }
+    }
+  }
+}
@@ -0,0 +1,437 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Step-and-repeat: places copies of a shared geometry at several positions
+ * without duplicating the commands.
+ *
+ * The geometry is a normal VectorPart and must not be modified afterwards.
+ * Each placement is an affine transform (in dots) applied to the geometry.
+ * The commands of all copies are generated one after another while
+ * iterating over {@link #getNativeCommands()}, the bounding box is computed from
+ * the convex hull of the geometry and the placements.
+ *
+ * The part itself cannot be extended with moveto() etc.
+ */
+public class InstancedVectorPart extends VectorPart
+{
+  private final VectorPart geometry;
+  private final List<AffineTransform> placements = new ArrayList<>();
+  // convex hull of the geometry as x0, y0, x1, y1, ...
+  private double[] hull;
+  private double[] bounds;
+
+  public InstancedVectorPart(VectorPart geometry)
+  {
+    super(geometry.getNativeCommands().iterator().next().getProperty(), geometry.getDPI());
+    this.geometry = geometry;
+  }
+
+  public InstancedVectorPart(VectorPart geometry, List<AffineTransform> placements)
+  {
+    this(geometry);
+    for (AffineTransform t : placements)
+    {
+      addPlacement(t);
+    }
+  }
+
+  public VectorPart getGeometry()
+  {
+    return geometry;
+  }
+
+  /**
+   * Add a copy of the geometry. The transform is copied.
+   */
+  public void addPlacement(AffineTransform placement)
+  {
+    placements.add(new AffineTransform(placement));
+    bounds = null;
+  }
+
+  /**
+   * Add a copy of the geometry, moved by (dx, dy) dots
+   */
+  public void addPlacement(double dx, double dy)
+  {
+    addPlacement(AffineTransform.getTranslateInstance(dx, dy));
+  }
+
+  public List<AffineTransform> getPlacements()
+  {
+    return Collections.unmodifiableList(placements);
+  }
+
+  public int getPlacementCount()
+  {
+    return placements.size();
+  }
+
+  /**
+   * True if the copies are only moved, not rotated or scaled.
+   * Then all copies have the same cutting time.
+   */
+  public boolean isTranslationOnly()
+  {
+    for (AffineTransform t : placements)
+    {
+      if ((t.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * First point of the untransformed geometry, (0,0) if it is empty
+   */
+  public Point getGeometryStart()
+  {
+    for (VectorCommand cmd : geometry.getCommands())
+    {
+      if (cmd.getType() != VectorCommand.CmdType.SETPROPERTY)
+      {
+        return new Point(cmd.getX(), cmd.getY());
+      }
+    }
+    return new Point(0, 0);
+  }
+
+  /**
+   * Move all copies by (dx, dy) dots, e.g. for
+   * {@link LaserJob#applyStartPoint()}
+   */
+  @Override
+  public void translate(double dx, double dy)
+  {
+    for (AffineTransform t : placements)
+    {
+      t.preConcatenate(AffineTransform.getTranslateInstance(dx, dy));
+    }
+    bounds = null;
+  }
+
+  /**
+   * True if the transform keeps circles circles, i.e. it only moves,
+   * rotates, mirrors and scales uniformly
+   */
+  private static boolean isConformal(AffineTransform t)
+  {
+    double eps = 1e-9 * (Math.abs(t.getScaleX()) + Math.abs(t.getShearX()));
+    return (Math.abs(t.getScaleX() - t.getScaleY()) <= eps && Math.abs(t.getShearX() + t.getShearY()) <= eps)
+      || (Math.abs(t.getScaleX() + t.getScaleY()) <= eps && Math.abs(t.getShearX() - t.getShearY()) <= eps);
+  }
+
+  /**
+   * Generates the commands of all copies on the fly. A SETPROPERTY at the
+   * start of a copy is skipped if the property is still active.
+   * Arcs are replaced by curves for placements which would distort them.
+   */
+  @Override
+  public Iterable<VectorCommand> getNativeCommands()
+  {
+    return () -> new Iterator<VectorCommand>()
+    {
+      private final Iterator<AffineTransform> nextPlacement = placements.iterator();
+      private AffineTransform placement;
+      private Iterator<VectorCommand> commands = Collections.emptyIterator();
+      private LaserProperty currentProperty;
+      private VectorCommand next;
+      private final double[] point = new double[6];
+
+      private VectorCommand fetch()
+      {
+        while (true)
+        {
+          while (!commands.hasNext())
+          {
+            if (!nextPlacement.hasNext())
+            {
+              return null;
+            }
+            placement = nextPlacement.next();
+            commands = isConformal(placement)
+              ? geometry.getNativeCommands().iterator()
+              : CurveFlattener.arcsToCurves(geometry.getNativeCommands()).iterator();
+          }
+          VectorCommand cmd = commands.next();
+          if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+          {
+            if (cmd.getProperty() == currentProperty)
+            {
+              continue;
+            }
+            currentProperty = cmd.getProperty();
+            return cmd;
+          }
+          point[0] = cmd.getX();
+          point[1] = cmd.getY();
+          placement.transform(point, 0, point, 0, 1);
+          switch (cmd.getType())
+          {
+            case CURVETO:
+              point[2] = cmd.getX1();
+              point[3] = cmd.getY1();
+              point[4] = cmd.getX2();
+              point[5] = cmd.getY2();
+              placement.transform(point, 2, point, 2, 2);
+              return new VectorCommand(cmd.getType(), point[2], point[3], point[4], point[5], point[0], point[1]);
+            case ARCTO:
+              point[2] = cmd.getI();
+              point[3] = cmd.getJ();
+              placement.deltaTransform(point, 2, point, 2, 1);
+              // mirroring reverses the direction
+              boolean clockwise = cmd.isClockwise() != (placement.getDeterminant() < 0);
+              return new VectorCommand(cmd.getType(), point[0], point[1], point[2], point[3], clockwise);
+            default:
+              return new VectorCommand(cmd.getType(), point[0], point[1]);
+          }
+        }
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+        if (next == null)
+        {
+          next = fetch();
+        }
+        return next != null;
+      }
+
+      @Override
+      public VectorCommand next()
+      {
+        if (!hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        VectorCommand result = next;
+        next = null;
+        return result;
+      }
+    };
+  }
+
+  @Override
+  public int getCommandCount()
+  {
+    if (placements.isEmpty())
+    {
+      return 0;
+    }
+    // all copies but the first may start without a SETPROPERTY
+    LaserProperty last = null;
+    for (VectorCommand cmd : geometry.getNativeCommands())
+    {
+      if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+      {
+        last = cmd.getProperty();
+      }
+    }
+    return countCommands(null) + (placements.size() - 1) * countCommands(last);
+  }
+
+  private int countCommands(LaserProperty currentProperty)
+  {
+    int result = 0;
+    for (VectorCommand cmd : geometry.getNativeCommands())
+    {
+      if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+      {
+        if (cmd.getProperty() == currentProperty)
+        {
+          continue;
+        }
+        currentProperty = cmd.getProperty();
+      }
+      result++;
+    }
+    return result;
+  }
+
+  @Override
+  public void setProperty(LaserProperty cp)
+  {
+    throw new UnsupportedOperationException("Modify the geometry instead");
+  }
+
+  @Override
+  public void moveto(double x, double y)
+  {
+    throw new UnsupportedOperationException("Modify the geometry instead");
+  }
+
+  @Override
+  public void lineto(double x, double y)
+  {
+    throw new UnsupportedOperationException("Modify the geometry instead");
+  }
+
+  @Override
+  public void curveto(double x1, double y1, double x2, double y2, double x, double y)
+  {
+    throw new UnsupportedOperationException("Modify the geometry instead");
+  }
+
+  @Override
+  public void arcto(double x, double y, double i, double j, boolean clockwise)
+  {
+    throw new UnsupportedOperationException("Modify the geometry instead");
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return placements.isEmpty() || geometry.isEmpty();
+  }
+
+  private double[] getHull()
+  {
+    if (hull == null)
+    {
+      List<double[]> points = new ArrayList<>();
+      for (VectorCommand cmd : geometry.getCommands())
+      {
+        if (cmd.getType() != VectorCommand.CmdType.SETPROPERTY)
+        {
+          points.add(new double[]{cmd.getX(), cmd.getY()});
+        }
+      }
+      hull = convexHull(points);
+    }
+    return hull;
+  }
+
+  /**
+   * Andrew's monotone chain. The transformed hull has the same extreme
+   * points as the transformed geometry, so only the hull needs to be
+   * transformed for each copy.
+   */
+  private static double[] convexHull(List<double[]> points)
+  {
+    points.sort(Comparator.<double[]>comparingDouble(p -> p[0]).thenComparingDouble(p -> p[1]));
+    int n = points.size();
+    if (n < 3)
+    {
+      double[] result = new double[2 * n];
+      for (int i = 0; i < n; i++)
+      {
+        result[2 * i] = points.get(i)[0];
+        result[2 * i + 1] = points.get(i)[1];
+      }
+      return result;
+    }
+    double[][] h = new double[2 * n][];
+    int k = 0;
+    for (int i = 0; i < n; i++)
+    {
+      while (k >= 2 && cross(h[k - 2], h[k - 1], points.get(i)) <= 0)
+      {
+        k--;
+      }
+      h[k++] = points.get(i);
+    }
+    for (int i = n - 2, lower = k + 1; i >= 0; i--)
+    {
+      while (k >= lower && cross(h[k - 2], h[k - 1], points.get(i)) <= 0)
+      {
+        k--;
+      }
+      h[k++] = points.get(i);
+    }
+    // the last point is the first one
+    k--;
+    double[] result = new double[2 * k];
+    for (int i = 0; i < k; i++)
+    {
+      result[2 * i] = h[i][0];
+      result[2 * i + 1] = h[i][1];
+    }
+    return result;
+  }
+
+  private static double cross(double[] o, double[] a, double[] b)
+  {
+    return (a[0] - o[0]) * (b[1] - o[1]) - (a[1] - o[1]) * (b[0] - o[0]);
+  }
+
+  /**
+   * @return minX, minY, maxX, maxY or null if there is nothing to place
+   */
+  private double[] getBounds()
+  {
+    double[] h = getHull();
+    if (bounds == null && h.length > 0 && !placements.isEmpty())
+    {
+      double[] b = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      double[] transformed = new double[h.length];
+      for (AffineTransform t : placements)
+      {
+        t.transform(h, 0, transformed, 0, h.length / 2);
+        for (int i = 0; i < transformed.length; i += 2)
+        {
+          b[0] = Math.min(b[0], transformed[i]);
+          b[1] = Math.min(b[1], transformed[i + 1]);
+          b[2] = Math.max(b[2], transformed[i]);
+          b[3] = Math.max(b[3], transformed[i + 1]);
+        }
+      }
+      bounds = b;
+    }
+    return bounds;
+  }
+
+  @Override
+  public double getMinX()
+  {
+    return getBounds() == null ? 0 : bounds[0];
+  }
+
+  @Override
+  public double getMinY()
+  {
+    return getBounds() == null ? 0 : bounds[1];
+  }
+
+  @Override
+  public double getMaxX()
+  {
+    return getBounds() == null ? 0 : bounds[2];
+  }
+
+  @Override
+  public double getMaxY()
+  {
+    return getBounds() == null ? 0 : bounds[3];
+  }
+}
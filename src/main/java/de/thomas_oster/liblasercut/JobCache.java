@@ -0,0 +1,425 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache for the results of expensive job processing, keyed by
+ * {@link JobFingerprint}: the data encoded by a driver (including the warnings
+ * produced while encoding) and optimized vector parts.
+ *
+ * Entries are kept in memory up to a given total size, the least recently
+ * used are evicted first. Optionally, encoded jobs are also stored in a
+ * directory (again with a size limit), so they survive a restart.
+ *
+ * To cache encoded jobs, set it on the driver with
+ * {@link LaserCutter#setJobCache(JobCache)}. Drivers which encode the whole
+ * job in memory (see {@link LaserCutter#encodeJob}) then skip encoding when
+ * the same job is sent again. Streaming drivers like GenericGcodeDriver do
+ * not use it.
+ *
+ * Drivers never optimize vector parts, so {@link #optimize} is only used
+ * if the application calls it before building the job.
+ */
+public class JobCache
+{
+  private static final int FILE_MAGIC = 0x4c4a4331; // "LJC1"
+  private static final String FILE_SUFFIX = ".ljc";
+
+  /**
+   * Produces the encoded job, adding warnings to the given list
+   */
+  public interface Encoder
+  {
+    byte[] encode(List<String> warnings) throws IOException, IllegalJobException;
+  }
+
+  private static class Entry
+  {
+    final byte[] data;
+    final List<String> warnings;
+    final VectorPart part;
+    final long size;
+
+    Entry(byte[] data, List<String> warnings)
+    {
+      this.data = data;
+      this.warnings = warnings;
+      this.part = null;
+      long s = data.length;
+      for (String w : warnings)
+      {
+        s += 2L * w.length();
+      }
+      this.size = s;
+    }
+
+    Entry(VectorPart part)
+    {
+      this.data = null;
+      this.warnings = null;
+      this.part = part;
+      // see JobQueue.estimateSize()
+      this.size = 40L * part.getCommandCount();
+    }
+  }
+
+  private final long maxMemoryBytes;
+  private final File directory;
+  private final long maxDiskBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes = 0;
+  private long hits = 0;
+  private long diskHits = 0;
+  private long misses = 0;
+
+  /**
+   * In-memory cache only
+   */
+  public JobCache(long maxMemoryBytes)
+  {
+    this(maxMemoryBytes, null, 0);
+  }
+
+  /**
+   * @param directory encoded jobs are also stored here, may be null
+   * @param maxDiskBytes size limit for the files in the directory
+   */
+  public JobCache(long maxMemoryBytes, File directory, long maxDiskBytes)
+  {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    if (directory != null)
+    {
+      directory.mkdirs();
+    }
+  }
+
+  /**
+   * Returns the cached data for the key (adding the cached warnings to the
+   * list), or encodes and caches it
+   */
+  public byte[] getOrEncode(String key, List<String> warnings, Encoder encoder) throws IOException, IllegalJobException
+  {
+    Entry e = getEntry(key);
+    if (e == null)
+    {
+      List<String> newWarnings = new ArrayList<>();
+      byte[] data = encoder.encode(newWarnings);
+      e = new Entry(data, newWarnings);
+      putEntry(key, e);
+      writeToDisk(key, e);
+    }
+    if (warnings != null)
+    {
+      warnings.addAll(e.warnings);
+    }
+    return e.data;
+  }
+
+  /**
+   * Returns the cached result of the optimizer for this part, or optimizes
+   * and caches it. A copy is returned, because drivers may translate it
+   * (see {@link LaserJob#applyStartPoint()}).
+   */
+  public VectorPart optimize(VectorOptimizer optimizer, VectorPart vp)
+  {
+    return optimize(optimizer, vp, optimizer.getCancellationToken());
+  }
+
+  /**
+   * Same as {@link #optimize(VectorOptimizer, VectorPart)}, the optimizer
+   * stops when the token (usually {@link LaserJob#getCancellationToken()})
+   * is cancelled
+   */
+  public VectorPart optimize(VectorOptimizer optimizer, VectorPart vp, CancellationToken token)
+  {
+    String fingerprint = JobFingerprint.of(vp, optimizer.getClass().getName());
+    if (fingerprint == null)
+    {
+      return optimizer.optimize(vp, token);
+    }
+    String key = "vector:" + fingerprint;
+    synchronized (this)
+    {
+      Entry e = entries.get(key);
+      if (e != null)
+      {
+        hits++;
+        return copy(e.part);
+      }
+      misses++;
+    }
+    VectorPart result = optimizer.optimize(vp, token);
+    putEntry(key, new Entry(copy(result)));
+    return result;
+  }
+
+  private static VectorPart copy(VectorPart vp)
+  {
+    VectorPart result = null;
+    for (VectorCommand cmd : vp.getNativeCommands())
+    {
+      if (result == null)
+      {
+        // the first command is always the initial property
+        result = new VectorPart(cmd.getProperty(), vp.getDPI());
+        continue;
+      }
+      switch (cmd.getType())
+      {
+        case SETPROPERTY:
+          result.setProperty(cmd.getProperty());
+          break;
+        case MOVETO:
+          result.moveto(cmd.getX(), cmd.getY());
+          break;
+        case LINETO:
+          result.lineto(cmd.getX(), cmd.getY());
+          break;
+        case CURVETO:
+          result.curveto(cmd.getX1(), cmd.getY1(), cmd.getX2(), cmd.getY2(), cmd.getX(), cmd.getY());
+          break;
+        case ARCTO:
+          result.arcto(cmd.getX(), cmd.getY(), cmd.getI(), cmd.getJ(), cmd.isClockwise());
+          break;
+      }
+    }
+    return result;
+  }
+
+  private Entry getEntry(String key)
+  {
+    synchronized (this)
+    {
+      Entry e = entries.get(key);
+      if (e != null)
+      {
+        hits++;
+        return e;
+      }
+    }
+    Entry e = readFromDisk(key);
+    synchronized (this)
+    {
+      if (e != null)
+      {
+        diskHits++;
+      }
+      else
+      {
+        misses++;
+      }
+    }
+    if (e != null)
+    {
+      putEntry(key, e);
+    }
+    return e;
+  }
+
+  private synchronized void putEntry(String key, Entry e)
+  {
+    if (e.size > maxMemoryBytes)
+    {
+      return;
+    }
+    Entry old = entries.put(key, e);
+    if (old != null)
+    {
+      memoryBytes -= old.size;
+    }
+    memoryBytes += e.size;
+    Iterator<Entry> it = entries.values().iterator();
+    while (memoryBytes > maxMemoryBytes && it.hasNext())
+    {
+      memoryBytes -= it.next().size;
+      it.remove();
+    }
+  }
+
+  private File getFile(String key)
+  {
+    return new File(directory, key + FILE_SUFFIX);
+  }
+
+  private Entry readFromDisk(String key)
+  {
+    if (directory == null)
+    {
+      return null;
+    }
+    File f = getFile(key);
+    if (!f.isFile())
+    {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+    {
+      if (in.readInt() != FILE_MAGIC)
+      {
+        throw new IOException("not a cache file");
+      }
+      int count = in.readInt();
+      List<String> warnings = new ArrayList<>(count);
+      for (int i = 0; i < count; i++)
+      {
+        warnings.add(in.readUTF());
+      }
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+      // used recently, see evictFromDisk()
+      f.setLastModified(System.currentTimeMillis());
+      return new Entry(data, warnings);
+    }
+    catch (IOException e)
+    {
+      System.err.println("Could not read job cache file " + f + ": " + e.getMessage());
+      f.delete();
+      return null;
+    }
+  }
+
+  private void writeToDisk(String key, Entry e)
+  {
+    if (directory == null || e.size > maxDiskBytes)
+    {
+      return;
+    }
+    File f = getFile(key);
+    try
+    {
+      File tmp = File.createTempFile("tmp-" + key + ".", ".tmp", directory);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+      {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(e.warnings.size());
+        for (String w : e.warnings)
+        {
+          out.writeUTF(w);
+        }
+        out.writeInt(e.data.length);
+        out.write(e.data);
+      }
+      // other processes never see incomplete files
+      Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      evictFromDisk();
+    }
+    catch (IOException ex)
+    {
+      System.err.println("Could not write job cache file " + f + ": " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Delete the least recently used files until the directory is within
+   * the size limit
+   */
+  private synchronized void evictFromDisk()
+  {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+    if (files == null)
+    {
+      return;
+    }
+    long total = 0;
+    for (File f : files)
+    {
+      total += f.length();
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (int i = 0; i < files.length && total > maxDiskBytes; i++)
+    {
+      total -= files[i].length();
+      files[i].delete();
+    }
+  }
+
+  /**
+   * Remove all entries from memory and disk
+   */
+  public void clear()
+  {
+    synchronized (this)
+    {
+      entries.clear();
+      memoryBytes = 0;
+    }
+    if (directory != null)
+    {
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+      if (files != null)
+      {
+        for (File f : files)
+        {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  public synchronized long getMemoryBytes()
+  {
+    return memoryBytes;
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * number of lookups answered from memory
+   */
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  /**
+   * number of lookups answered from the directory
+   */
+  public synchronized long getDiskHits()
+  {
+    return diskHits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+}
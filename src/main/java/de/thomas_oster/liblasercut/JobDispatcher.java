@@ -0,0 +1,323 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes jobs over a pool of identically configured laser cutters.
+ *
+ * Each job is sent to the cutter which is expected to finish it first,
+ * i.e. the one with the least estimated work (see
+ * {@link LaserCutter#estimateJobDuration(LaserJob)}) waiting in its
+ * {@link JobQueue}. If the cutters cannot estimate the duration, every job
+ * counts the same, so the jobs are distributed evenly.
+ *
+ * Estimates are computed in parallel, each thread using its own clone of
+ * the first cutter, and cached per job.
+ */
+public class JobDispatcher
+{
+
+  private class Slot
+  {
+    final LaserCutter cutter;
+    // estimated seconds of all assigned jobs which are not finished yet
+    long pendingSeconds = 0;
+    int pendingJobs = 0;
+    int assigned = 0;
+    int completed = 0;
+    int failed = 0;
+    long estimatedSeconds = 0;
+    long busyMillis = 0;
+
+    Slot(LaserCutter cutter)
+    {
+      this.cutter = cutter;
+    }
+  }
+
+  /**
+   * Snapshot of the statistics of one cutter
+   */
+  public static class CutterStatistics
+  {
+    private final LaserCutter cutter;
+    private final int assigned;
+    private final int completed;
+    private final int failed;
+    private final long estimatedSeconds;
+    private final long pendingSeconds;
+    private final long busyMillis;
+    private final double utilisation;
+
+    private CutterStatistics(Slot s, long elapsedMillis)
+    {
+      cutter = s.cutter;
+      assigned = s.assigned;
+      completed = s.completed;
+      failed = s.failed;
+      estimatedSeconds = s.estimatedSeconds;
+      pendingSeconds = s.pendingSeconds;
+      busyMillis = s.busyMillis;
+      utilisation = elapsedMillis > 0 ? Math.min(1, (double) s.busyMillis / elapsedMillis) : 0;
+    }
+
+    public LaserCutter getCutter()
+    {
+      return cutter;
+    }
+
+    public int getAssignedJobs()
+    {
+      return assigned;
+    }
+
+    public int getCompletedJobs()
+    {
+      return completed;
+    }
+
+    public int getFailedJobs()
+    {
+      return failed;
+    }
+
+    /**
+     * sum of the estimated durations of all assigned jobs
+     */
+    public long getEstimatedSeconds()
+    {
+      return estimatedSeconds;
+    }
+
+    /**
+     * estimated duration of the assigned jobs which are not finished
+     */
+    public long getPendingSeconds()
+    {
+      return pendingSeconds;
+    }
+
+    /**
+     * time spent sending jobs
+     */
+    public long getBusyMillis()
+    {
+      return busyMillis;
+    }
+
+    /**
+     * fraction of the time since the dispatcher was created spent sending jobs
+     */
+    public double getUtilisation()
+    {
+      return utilisation;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format(Locale.US, "%s: %d assigned, %d completed, %d failed, %d s estimated, %d s pending, %.0f%% utilisation",
+        cutter.getModelName(), assigned, completed, failed, estimatedSeconds, pendingSeconds, 100 * utilisation);
+    }
+  }
+
+  private final List<Slot> slots = new ArrayList<>();
+  private final LaserCutter template;
+  private final ThreadLocal<LaserCutter> estimators;
+  private final ExecutorService estimationExecutor;
+  private final Map<LaserJob, CompletableFuture<Integer>> estimates = Collections.synchronizedMap(new WeakHashMap<>());
+  private final long startTime = System.currentTimeMillis();
+
+  /**
+   * @param cutters identically configured cutters
+   */
+  public JobDispatcher(List<? extends LaserCutter> cutters)
+  {
+    if (cutters.isEmpty())
+    {
+      throw new IllegalArgumentException("at least one cutter is needed");
+    }
+    for (LaserCutter c : cutters)
+    {
+      slots.add(new Slot(c));
+    }
+    template = cutters.get(0).clone();
+    estimators = ThreadLocal.withInitial(template::clone);
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    ThreadPoolExecutor e = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "LibLaserCut job estimation");
+      t.setDaemon(true);
+      return t;
+    });
+    e.allowCoreThreadTimeOut(true);
+    estimationExecutor = e;
+  }
+
+  /**
+   * Estimated duration of the job in seconds, or -1 if the cutters cannot
+   * estimate it. The result is cached as long as the job is referenced.
+   * Must be called before the job is sent, because drivers may modify
+   * the job while sending it.
+   */
+  public CompletableFuture<Integer> estimate(LaserJob job)
+  {
+    synchronized (estimates)
+    {
+      return estimates.computeIfAbsent(job, j -> CompletableFuture.supplyAsync(() -> {
+        LaserCutter c = estimators.get();
+        if (!c.canEstimateJobDuration())
+        {
+          return -1;
+        }
+        try
+        {
+          return c.estimateJobDuration(j);
+        }
+        catch (IllegalJobException ex)
+        {
+          // the driver reports this when sending the job
+          return -1;
+        }
+      }, estimationExecutor));
+    }
+  }
+
+  /**
+   * Assign the job to the cutter which is expected to finish it first and
+   * submit it to its queue. Waits until the duration has been estimated.
+   * @param pl receives the progress of the job, may be null
+   * @return see {@link JobQueue#submit(LaserJob, int, ProgressListener)}
+   */
+  public CompletableFuture<List<String>> dispatch(LaserJob job, int priority, ProgressListener pl)
+  {
+    int estimate = estimate(job).join();
+    // jobs which cannot be estimated count the same
+    long cost = estimate >= 0 ? estimate : 1;
+    Slot best = null;
+    synchronized (this)
+    {
+      for (Slot s : slots)
+      {
+        if (best == null || s.pendingSeconds < best.pendingSeconds
+          || (s.pendingSeconds == best.pendingSeconds && s.pendingJobs < best.pendingJobs))
+        {
+          best = s;
+        }
+      }
+      best.pendingSeconds += cost;
+      best.pendingJobs++;
+      best.assigned++;
+      best.estimatedSeconds += Math.max(0, estimate);
+    }
+    Slot slot = best;
+    return slot.cutter.getJobQueue().submit(job, priority, pl, (q, error) -> {
+      synchronized (JobDispatcher.this)
+      {
+        slot.pendingSeconds -= cost;
+        slot.pendingJobs--;
+        if (error == null)
+        {
+          slot.completed++;
+        }
+        else
+        {
+          slot.failed++;
+        }
+        if (q.getStartTime() != 0 && q.getEndTime() != 0)
+        {
+          slot.busyMillis += q.getEndTime() - q.getStartTime();
+        }
+      }
+    });
+  }
+
+  public CompletableFuture<List<String>> dispatch(LaserJob job)
+  {
+    return dispatch(job, 0, null);
+  }
+
+  /**
+   * Dispatch the jobs in the given order. All estimates are started first,
+   * so they are computed in parallel.
+   */
+  public List<CompletableFuture<List<String>>> dispatchAll(Iterable<LaserJob> jobs)
+  {
+    for (LaserJob job : jobs)
+    {
+      estimate(job);
+    }
+    List<CompletableFuture<List<String>>> result = new ArrayList<>();
+    for (LaserJob job : jobs)
+    {
+      result.add(dispatch(job));
+    }
+    return result;
+  }
+
+  public synchronized List<CutterStatistics> getStatistics()
+  {
+    long elapsed = System.currentTimeMillis() - startTime;
+    List<CutterStatistics> result = new ArrayList<>();
+    for (Slot s : slots)
+    {
+      result.add(new CutterStatistics(s, elapsed));
+    }
+    return result;
+  }
+
+  /**
+   * completed jobs per hour since the dispatcher was created
+   */
+  public synchronized double getThroughput()
+  {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    int completed = 0;
+    for (Slot s : slots)
+    {
+      completed += s.completed;
+    }
+    return completed * 3600000.0 / elapsed;
+  }
+
+  /**
+   * average utilisation of all cutters, see {@link CutterStatistics#getUtilisation()}
+   */
+  public double getUtilisation()
+  {
+    List<CutterStatistics> stats = getStatistics();
+    double sum = 0;
+    for (CutterStatistics s : stats)
+    {
+      sum += s.getUtilisation();
+    }
+    return sum / stats.size();
+  }
+}
@@ -0,0 +1,348 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.dithering.ErrorDiffusion;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import java.awt.geom.AffineTransform;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stable hash (SHA-256) of everything which influences the output of a driver:
+ * the job (name, flags, start point, all parts with their geometry, raster
+ * data and laser properties) and the driver (class and settings).
+ *
+ * Two jobs with the same fingerprint produce the same output, so the result
+ * of encoding can be cached, see {@link JobCache}.
+ *
+ * Only content is hashed, never object identities or toString() of arbitrary
+ * objects. If a job contains something whose content is not known (a part
+ * type or a setting value not listed in addValue), there is no fingerprint
+ * and the job must not be cached.
+ */
+public class JobFingerprint
+{
+  /**
+   * Thrown while hashing if the job can't be fingerprinted
+   */
+  private static class Uncacheable extends IOException
+  {
+    Uncacheable(String message)
+    {
+      super(message);
+    }
+  }
+
+  private final MessageDigest digest;
+  private final DataOutputStream out;
+
+  private JobFingerprint()
+  {
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+    out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+  }
+
+  /**
+   * @param cutter the driver settings are included, may be null
+   * @return hex encoded fingerprint, or null if the job can't be
+   * fingerprinted and must not be cached
+   */
+  public static String of(LaserJob job, LaserCutter cutter)
+  {
+    JobFingerprint f = new JobFingerprint();
+    try
+    {
+      f.addCutter(cutter);
+      f.addJob(job);
+      f.out.flush();
+    }
+    catch (Uncacheable e)
+    {
+      return null;
+    }
+    catch (IOException e)
+    {
+      // not possible, the data is not written anywhere
+      throw new IllegalStateException(e);
+    }
+    return f.toHex();
+  }
+
+  /**
+   * Fingerprint of a single vector part, e.g. for caching the result of a
+   * {@link de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer}
+   * @param context additional text included in the fingerprint, e.g. the
+   * name of the optimizer
+   * @return hex encoded fingerprint, or null if the part can't be
+   * fingerprinted and must not be cached
+   */
+  public static String of(VectorPart vp, String context)
+  {
+    JobFingerprint f = new JobFingerprint();
+    try
+    {
+      f.out.writeUTF(context);
+      f.addPart(vp);
+      f.out.flush();
+    }
+    catch (Uncacheable e)
+    {
+      return null;
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    return f.toHex();
+  }
+
+  private String toHex()
+  {
+    StringBuilder result = new StringBuilder();
+    for (byte b : digest.digest())
+    {
+      result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return result.toString();
+  }
+
+  private void addString(String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null)
+    {
+      out.writeUTF(s);
+    }
+  }
+
+  private void addSettings(Customizable c) throws IOException
+  {
+    out.writeUTF(c.getClass().getName());
+    String[] keys = c.getPropertyKeys();
+    out.writeInt(keys.length);
+    for (String key : keys)
+    {
+      out.writeUTF(key);
+      addValue(c.getProperty(key));
+    }
+  }
+
+  /**
+   * Values of immutable types with a well defined content, arrays of them
+   * and laser properties. Anything else makes the job uncacheable.
+   */
+  private void addValue(Object value) throws IOException
+  {
+    if (value == null)
+    {
+      out.writeUTF("null");
+    }
+    else if (value instanceof String || value instanceof Boolean || value instanceof Character
+      || value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long
+      || value instanceof Float || value instanceof Double || value instanceof BigInteger || value instanceof BigDecimal)
+    {
+      // these classes are final and their toString() is fully specified
+      out.writeUTF(value.getClass().getName());
+      out.writeUTF(value.toString());
+    }
+    else if (value instanceof Enum)
+    {
+      out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+      out.writeUTF(((Enum<?>) value).name());
+    }
+    else if (value instanceof File)
+    {
+      out.writeUTF(File.class.getName());
+      out.writeUTF(((File) value).getPath());
+    }
+    else if (value instanceof LaserProperty)
+    {
+      addSettings((LaserProperty) value);
+    }
+    else if (value.getClass().isArray())
+    {
+      out.writeUTF(value.getClass().getName());
+      int length = Array.getLength(value);
+      out.writeInt(length);
+      for (int i = 0; i < length; i++)
+      {
+        addValue(Array.get(value, i));
+      }
+    }
+    else
+    {
+      throw new Uncacheable("unknown setting type " + value.getClass().getName());
+    }
+  }
+
+  private void addProperty(LaserProperty p) throws IOException
+  {
+    out.writeBoolean(p != null);
+    if (p != null)
+    {
+      addSettings(p);
+    }
+  }
+
+  private void addCutter(LaserCutter cutter) throws IOException
+  {
+    out.writeBoolean(cutter != null);
+    if (cutter != null)
+    {
+      addSettings(cutter);
+    }
+  }
+
+  private void addJob(LaserJob job) throws IOException
+  {
+    addString(job.getTitle());
+    addString(job.getName());
+    addString(job.getUser());
+    out.writeDouble(job.getStartX());
+    out.writeDouble(job.getStartY());
+    out.writeDouble(job.getTransformedOriginX());
+    out.writeDouble(job.getTransformedOriginY());
+    out.writeBoolean(job.isAutoFocusEnabled());
+    out.writeBoolean(job.isRotaryAxisEnabled());
+    out.writeDouble(job.getRotaryAxisDiameterMm());
+    out.writeInt(job.getParts().size());
+    for (JobPart p : job.getParts())
+    {
+      addPart(p);
+    }
+  }
+
+  private void addPart(JobPart p) throws IOException
+  {
+    out.writeUTF(p.getClass().getName());
+    out.writeDouble(p.getDPI());
+    if (p instanceof InstancedVectorPart)
+    {
+      // hash the geometry once instead of every copy
+      InstancedVectorPart ip = (InstancedVectorPart) p;
+      addPart(ip.getGeometry());
+      out.writeInt(ip.getPlacementCount());
+      double[] matrix = new double[6];
+      for (AffineTransform t : ip.getPlacements())
+      {
+        t.getMatrix(matrix);
+        for (double d : matrix)
+        {
+          out.writeDouble(d);
+        }
+      }
+    }
+    else if (p instanceof VectorPart)
+    {
+      VectorPart vp = (VectorPart) p;
+      out.writeInt(vp.getCommandCount());
+      for (VectorCommand cmd : vp.getNativeCommands())
+      {
+        out.writeByte(cmd.getType().ordinal());
+        if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+        {
+          addProperty(cmd.getProperty());
+        }
+        else
+        {
+          out.writeDouble(cmd.getX());
+          out.writeDouble(cmd.getY());
+        }
+        if (cmd.getType() == VectorCommand.CmdType.CURVETO)
+        {
+          out.writeDouble(cmd.getX1());
+          out.writeDouble(cmd.getY1());
+          out.writeDouble(cmd.getX2());
+          out.writeDouble(cmd.getY2());
+        }
+        else if (cmd.getType() == VectorCommand.CmdType.ARCTO)
+        {
+          out.writeDouble(cmd.getI());
+          out.writeDouble(cmd.getJ());
+          out.writeBoolean(cmd.isClockwise());
+        }
+      }
+    }
+    else if (p instanceof RasterizableJobPart)
+    {
+      RasterizableJobPart rp = (RasterizableJobPart) p;
+      addProperty(rp.getLaserProperty());
+      out.writeDouble(rp.start.x);
+      out.writeDouble(rp.start.y);
+      out.writeBoolean(rp.cutDirectionleftToRight);
+      out.writeInt(rp.getBitsPerRasterPixel());
+      addImage(rp.getImage());
+    }
+    else
+    {
+      throw new Uncacheable("unknown part type " + p.getClass().getName());
+    }
+  }
+
+  private void addImage(GreyscaleRaster image) throws IOException
+  {
+    out.writeInt(image.getWidth());
+    out.writeInt(image.getHeight());
+    if (image instanceof RasterElement.Provider)
+    {
+      RasterElement raster = ((RasterElement.Provider) image).getRaster();
+      out.writeInt(raster.getBitDepth());
+      out.write(raster.getImageData());
+    }
+    else if (image instanceof LazyDitheredRaster)
+    {
+      // the result is defined by the source and the algorithm,
+      // hashing it would dither the whole image
+      LazyDitheredRaster ldr = (LazyDitheredRaster) image;
+      ErrorDiffusion algorithm = ldr.getAlgorithm();
+      out.writeUTF(algorithm.getKernel().name());
+      out.writeBoolean(algorithm.isClassicArithmetic());
+      addSettings(algorithm);
+      out.writeBoolean(ldr.isBottomUp());
+      addImage(ldr.getSource());
+    }
+    else
+    {
+      for (int y = 0; y < image.getHeight(); y++)
+      {
+        for (int x = 0; x < image.getWidth(); x++)
+        {
+          out.writeByte(image.getGreyScale(x, y));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,376 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Queue of jobs for one laser cutter, see {@link LaserCutter#submitJob}.
+ *
+ * Jobs are sent one after another in the order of their priority (higher
+ * first, equal priorities in the order of submission). Each queue which has
+ * jobs gets its own daemon thread (from a shared pool, idle threads are
+ * stopped after a while), so jobs for different cutters are sent at the same
+ * time and a long job never delays other cutters.
+ *
+ * The memory held by waiting jobs is limited: a job is rejected if the
+ * estimated size of all waiting jobs would exceed
+ * {@link #getMaxQueuedBytes()}. A job is always accepted if nothing else
+ * is waiting, otherwise a single large job could never be sent.
+ */
+public class JobQueue
+{
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private static final ExecutorService executor = createExecutor();
+
+  private static ExecutorService createExecutor()
+  {
+    // one thread per queue with jobs, see processJobs()
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+      Thread t = new Thread(r, "LibLaserCut job queue " + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * A submitted job. Cancelling it removes it from the queue, or cancels
+   * the job's {@link CancellationToken} (and interrupts the driver) if it
+   * is already being sent. In the latter case the future completes with a
+   * CancellationException only when the driver has returned.
+   */
+  public class QueuedJob extends CompletableFuture<List<String>>
+  {
+    private final LaserJob job;
+    private final CancellationToken token;
+    private final int priority;
+    private final long sequence;
+    private final long size;
+    private final ProgressListener listener;
+    private final BiConsumer<QueuedJob, Throwable> finished;
+    private volatile Thread runner;
+    private volatile boolean cancelRequested = false;
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    private QueuedJob(LaserJob job, int priority, long sequence, long size, ProgressListener listener, BiConsumer<QueuedJob, Throwable> finished)
+    {
+      this.finished = finished;
+      this.job = job;
+      // a previous send of the job may have cancelled the old token
+      this.token = job.resetCancellationToken();
+      this.priority = priority;
+      this.sequence = sequence;
+      this.size = size;
+      this.listener = listener;
+    }
+
+    public LaserJob getJob()
+    {
+      return job;
+    }
+
+    public int getPriority()
+    {
+      return priority;
+    }
+
+    /**
+     * estimated memory in bytes, see {@link JobQueue#estimateSize(LaserJob)}
+     */
+    public long getEstimatedSize()
+    {
+      return size;
+    }
+
+    /**
+     * System.currentTimeMillis() when the driver started sending the job,
+     * 0 if it has not been started
+     */
+    public long getStartTime()
+    {
+      return startTime;
+    }
+
+    /**
+     * System.currentTimeMillis() when the driver returned, 0 if the job
+     * has not been sent yet
+     */
+    public long getEndTime()
+    {
+      return endTime;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      synchronized (JobQueue.this)
+      {
+        if (!waiting.remove(this))
+        {
+          if (runner == null || cancelRequested)
+          {
+            // done, or cancelled already
+            return false;
+          }
+          // processJobs() completes the future when the driver has returned
+          cancelRequested = true;
+          token.cancel();
+          if (mayInterruptIfRunning)
+          {
+            runner.interrupt();
+          }
+          return true;
+        }
+        queuedBytes -= size;
+      }
+      finish(this, new CancellationException());
+      return super.cancel(mayInterruptIfRunning);
+    }
+  }
+
+  private final LaserCutter cutter;
+  private final PriorityQueue<QueuedJob> waiting = new PriorityQueue<>((a, b) ->
+    a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a.sequence, b.sequence));
+  private long sequence = 0;
+  private long queuedBytes = 0;
+  private long maxQueuedBytes = 512L * 1024 * 1024;
+  private boolean running = false;
+  private QueuedJob current = null;
+
+  public JobQueue(LaserCutter cutter)
+  {
+    this.cutter = cutter;
+  }
+
+  public LaserCutter getCutter()
+  {
+    return cutter;
+  }
+
+  public synchronized long getMaxQueuedBytes()
+  {
+    return maxQueuedBytes;
+  }
+
+  /**
+   * Limit for the estimated size of all waiting jobs (not counting the job
+   * which is currently being sent)
+   */
+  public synchronized void setMaxQueuedBytes(long maxQueuedBytes)
+  {
+    this.maxQueuedBytes = maxQueuedBytes;
+  }
+
+  /**
+   * estimated size of all waiting jobs in bytes
+   */
+  public synchronized long getQueuedBytes()
+  {
+    return queuedBytes;
+  }
+
+  /**
+   * number of jobs which are waiting or being sent
+   */
+  public synchronized int size()
+  {
+    return waiting.size() + (current != null ? 1 : 0);
+  }
+
+  /**
+   * the waiting jobs in the order they will be sent
+   */
+  public synchronized List<QueuedJob> getWaitingJobs()
+  {
+    List<QueuedJob> result = new ArrayList<>(waiting);
+    result.sort(waiting.comparator());
+    return result;
+  }
+
+  /**
+   * Rough estimate of the memory used by a job: the vector commands and
+   * the raster data
+   */
+  public static long estimateSize(LaserJob job)
+  {
+    long size = 0;
+    for (JobPart p : job.getParts())
+    {
+      if (p instanceof InstancedVectorPart)
+      {
+        // the geometry is shared, each placement is one transform
+        InstancedVectorPart ip = (InstancedVectorPart) p;
+        size += 40L * ip.getGeometry().getCommandCount() + 48L * ip.getPlacementCount();
+      }
+      else if (p instanceof VectorPart)
+      {
+        // object header, type, x, y, property reference
+        size += 40L * ((VectorPart) p).getCommandCount();
+      }
+      else if (p instanceof RasterizableJobPart)
+      {
+        RasterizableJobPart rp = (RasterizableJobPart) p;
+        size += (long) rp.getRasterWidth() * rp.getRasterHeight() * rp.getBitsPerRasterPixel() / 8;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Add a job to the queue.
+   * @param priority jobs with higher priority are sent first
+   * @param pl receives the progress of the job, may be null
+   * @return completes with the warnings of the driver when the job was sent,
+   * or exceptionally with the exception thrown by the driver.
+   * Completes with a RejectedExecutionException if the queue is full.
+   */
+  public QueuedJob submit(LaserJob job, int priority, ProgressListener pl)
+  {
+    return submit(job, priority, pl, null);
+  }
+
+  /**
+   * @param finished called when the job leaves the queue (sent, failed,
+   * cancelled or rejected), before the future completes if possible
+   */
+  QueuedJob submit(LaserJob job, int priority, ProgressListener pl, BiConsumer<QueuedJob, Throwable> finished)
+  {
+    long size = estimateSize(job);
+    QueuedJob q;
+    synchronized (this)
+    {
+      q = new QueuedJob(job, priority, sequence++, size, pl != null ? pl : new ProgressListenerDummy(), finished);
+      if (!waiting.isEmpty() && queuedBytes + size > maxQueuedBytes)
+      {
+        RejectedExecutionException e = new RejectedExecutionException("Too many jobs waiting for " + cutter.getModelName()
+          + " (" + (queuedBytes / 1024 / 1024) + " MB)");
+        finish(q, e);
+        q.completeExceptionally(e);
+        return q;
+      }
+      waiting.add(q);
+      queuedBytes += size;
+      if (!running)
+      {
+        running = true;
+        executor.execute(this::processJobs);
+      }
+    }
+    q.listener.taskChanged(cutter, "waiting");
+    return q;
+  }
+
+  /**
+   * Cancel all waiting jobs and the job which is currently being sent
+   */
+  public void cancelAll()
+  {
+    List<QueuedJob> jobs;
+    synchronized (this)
+    {
+      jobs = new LinkedList<>(waiting);
+      if (current != null)
+      {
+        jobs.add(current);
+      }
+    }
+    for (QueuedJob q : jobs)
+    {
+      q.cancel(true);
+    }
+  }
+
+  private static void finish(QueuedJob q, Throwable error)
+  {
+    if (q.finished != null)
+    {
+      q.finished.accept(q, error);
+    }
+  }
+
+  private synchronized QueuedJob next()
+  {
+    current = waiting.poll();
+    if (current == null)
+    {
+      running = false;
+    }
+    else
+    {
+      queuedBytes -= current.size;
+      current.runner = Thread.currentThread();
+    }
+    return current;
+  }
+
+  private void processJobs()
+  {
+    QueuedJob q;
+    while ((q = next()) != null)
+    {
+      List<String> warnings = new LinkedList<>();
+      Throwable error = null;
+      q.startTime = System.currentTimeMillis();
+      try
+      {
+        cutter.sendJob(q.job, q.listener, warnings);
+      }
+      catch (Throwable e)
+      {
+        error = e;
+      }
+      q.endTime = System.currentTimeMillis();
+      synchronized (this)
+      {
+        q.runner = null;
+        current = null;
+      }
+      // clear a pending interrupt of a cancelled job
+      Thread.interrupted();
+      // the job is no longer counted by size() when the future completes
+      finish(q, error);
+      if (q.cancelRequested)
+      {
+        q.completeExceptionally(new CancellationException("Job was cancelled"));
+      }
+      else if (error == null)
+      {
+        q.complete(warnings);
+      }
+      else
+      {
+        q.completeExceptionally(error);
+      }
+    }
+  }
+}
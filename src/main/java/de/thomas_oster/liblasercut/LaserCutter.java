@@ -27,11 +27,15 @@ import de.thomas_oster.liblasercut.platform.Util;
 import de.thomas_oster.liblasercut.properties.LaserProperty;
 import de.thomas_oster.liblasercut.properties.PowerSpeedFocusFrequencyProperty;
 import de.thomas_oster.liblasercut.properties.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.utils.NetworkMultiplexer;
 
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
 import java.io.OutputStream;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -100,6 +104,68 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         throw new UnsupportedOperationException("Your driver does not implement saveJob(LaserJob job)");
     }
 
+    protected static final String SETTING_KEEP_CONNECTION_OPEN = "Keep connection open between jobs";
+
+    private boolean keepConnectionOpen = false;
+
+    /**
+     * If true, drivers which support it keep the connection to the machine
+     * open after a job (see {@link ConnectionPool}), so the next job can skip
+     * connecting (e.g. waiting for the board reset of a serial connection).
+     */
+    public boolean isKeepConnectionOpen()
+    {
+      return keepConnectionOpen;
+    }
+
+    public void setKeepConnectionOpen(boolean keepConnectionOpen)
+    {
+      this.keepConnectionOpen = keepConnectionOpen;
+    }
+
+    /**
+     * Returns the connection of a previous job, if keeping connections open
+     * is enabled, it was opened with the same parameters and the probe
+     * succeeds. Otherwise it is closed and null is returned, so the driver
+     * has to connect as usual.
+     * @param key see {@link ConnectionSession#getKey()}
+     * @param parameters see {@link ConnectionSession#getParameters()}
+     * @param probe cheap check whether the machine still responds
+     */
+    protected ConnectionSession resumeSession(String key, String parameters, ConnectionSession.Probe probe)
+    {
+      if (!isKeepConnectionOpen())
+      {
+        // the setting may have been switched off after the last job
+        ConnectionPool.close(key);
+        return null;
+      }
+      ConnectionSession s = ConnectionPool.take(key, parameters);
+      if (s != null && !s.probe(probe))
+      {
+        s.close();
+        return null;
+      }
+      return s;
+    }
+
+    /**
+     * Called by the driver at the end of a job instead of closing the
+     * connection. It is kept for the next job if enabled, otherwise closed.
+     * Call {@link ConnectionSession#invalidate()} first if the job failed.
+     */
+    protected void releaseSession(ConnectionSession session)
+    {
+      if (isKeepConnectionOpen())
+      {
+        ConnectionPool.put(session);
+      }
+      else
+      {
+        session.close();
+      }
+    }
+
     /**
      * If you lasercutter supports autofocus, override this method,
      * to let programs like VisiCut know, that they don't need to focus.
@@ -146,6 +212,95 @@ public abstract class LaserCutter implements Cloneable, Customizable {
       }
     }
 
+    private transient JobCache jobCache;
+
+    /**
+     * Cache for encoded jobs, null (the default) disables caching.
+     * It may be shared between drivers, the driver settings are part of the key.
+     *
+     * Only drivers which encode the whole job in memory use it (currently
+     * the Epilog, LaserToolsTechnics and FullSpectrum drivers, see
+     * {@link #encodeJob}). Streaming drivers such as GenericGcodeDriver
+     * ignore it. Drivers do not optimize vector parts, callers which do
+     * can use {@link JobCache#optimize} themselves.
+     */
+    public void setJobCache(JobCache jobCache)
+    {
+      this.jobCache = jobCache;
+    }
+
+    public JobCache getJobCache()
+    {
+      return jobCache;
+    }
+
+    /**
+     * For drivers which encode the whole job before transmitting it:
+     * returns the cached data if the same job was encoded before with
+     * the same settings, otherwise calls the encoder.
+     * Warnings of the encoder are cached as well and added to the list.
+     * Jobs without a {@link JobFingerprint} are always encoded.
+     *
+     * Must be called before the job is modified (e.g. by applyStartPoint()),
+     * because the key is computed from the job.
+     */
+    protected byte[] encodeJob(LaserJob job, List<String> warnings, JobCache.Encoder encoder) throws IOException, IllegalJobException
+    {
+      String fingerprint = jobCache == null ? null : JobFingerprint.of(job, this);
+      if (fingerprint == null)
+      {
+        return encoder.encode(warnings);
+      }
+      return jobCache.getOrEncode(fingerprint, warnings, encoder);
+    }
+
+    private transient JobQueue jobQueue;
+
+    /**
+     * The queue used by submitJob(). Each instance of the driver has its own
+     * queue, so clones (e.g. with different settings) do not wait for each other.
+     */
+    public synchronized JobQueue getJobQueue()
+    {
+      if (jobQueue == null)
+      {
+        jobQueue = new JobQueue(this);
+      }
+      return jobQueue;
+    }
+
+    /**
+     * Sends the job in the background, after all jobs with the same or
+     * higher priority which were submitted before.
+     * @param priority jobs with higher priority are sent first
+     * @param pl receives the progress of the job, may be null
+     * @return completes with the warnings when the job was sent. Cancelling
+     * it removes the job from the queue or interrupts sending.
+     * @see JobQueue
+     */
+    public CompletableFuture<List<String>> submitJob(LaserJob job, int priority, ProgressListener pl)
+    {
+      return getJobQueue().submit(job, priority, pl);
+    }
+
+    public CompletableFuture<List<String>> submitJob(LaserJob job)
+    {
+      return submitJob(job, 0, null);
+    }
+
+    /**
+     * Opens a non-blocking connection to the machine on the given
+     * multiplexer, with the framing of the driver's network protocol. Used to
+     * monitor many machines from one thread. The handler implements the
+     * conversation (handshake, status polling, ...).
+     * @return null if the driver or its current settings do not support
+     * network connections
+     */
+    public NetworkMultiplexer.Connection openConnection(NetworkMultiplexer multiplexer, NetworkMultiplexer.Handler handler) throws IOException
+    {
+      return null;
+    }
+
     /**
      * Returns the available Resolutions in DPI
      */
@@ -178,6 +333,26 @@ public abstract class LaserCutter implements Cloneable, Customizable {
       return 1;
     }
 
+    /**
+     * Override this method and return true if the driver handles
+     * CURVETO commands (cubic Bezier curves) itself.
+     * Otherwise, VectorPart#getCommands(LaserCutter) converts them
+     * to lines within getRequiredCurvePrecision().
+     */
+    public boolean canCutCurves() {
+      return false;
+    }
+
+    /**
+     * Override this method and return true if the driver handles
+     * ARCTO commands (circular arcs) itself.
+     * Otherwise, VectorPart#getCommands(LaserCutter) converts them
+     * to lines within getRequiredCurvePrecision().
+     */
+    public boolean canCutArcs() {
+      return false;
+    }
+
     /**
      * Override this method, return true and override the
      * estimateJobDuration-method to allow Programs to use
@@ -248,6 +423,32 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         currentPointMm = pMm;
         return time;
       }
+
+      /**
+       * Process vector commands, return travel time.
+       * @param px2mm conversion factor from px to mm
+       */
+      public double vectorTime(Iterable<VectorCommand> commands, double px2mm)
+      {
+        double result = 0;
+        double speed = vectorLineSpeed;
+        for (VectorCommand cmd : commands)
+        {
+          switch (cmd.getType())
+          {
+            case SETPROPERTY:
+              speed = vectorLineSpeed * cmd.getProperty().getSpeed() / 100;
+              break;
+            case MOVETO:
+              result += moveTime(new Point(cmd.getX(), cmd.getY()), px2mm);
+              break;
+            case LINETO:
+              result += lineTime(new Point(cmd.getX(), cmd.getY()), px2mm, speed);
+              break;
+          }
+        }
+        return result;
+      }
     }
     
     TimeComputation h = new TimeComputation();
@@ -279,26 +480,26 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         }
         // For simplicity, we neglect the move time from the end of engraving.
       }
-      if (jp instanceof VectorPart)
+      if (jp instanceof InstancedVectorPart && ((InstancedVectorPart) jp).isTranslationOnly())
       {
-        double speed = vectorLineSpeed;
-        VectorPart vp = (VectorPart) jp;
-        for (VectorCommand cmd : vp.getCommandList())
+        // all copies take the same time, only the moves between them differ
+        InstancedVectorPart ip = (InstancedVectorPart) jp;
+        TimeComputation copy = new TimeComputation();
+        Point first = ip.getGeometryStart();
+        copy.currentPointMm = first.scale(px2mm);
+        double copyTime = copy.vectorTime(ip.getGeometry().getCommands(), px2mm);
+        Point last = copy.currentPointMm.scale(1 / px2mm);
+        for (AffineTransform t : ip.getPlacements())
         {
-          switch (cmd.getType())
-          {
-            case SETPROPERTY:
-              speed = vectorLineSpeed * cmd.getProperty().getSpeed() / 100;
-              break;
-            case MOVETO:
-              result += h.moveTime(new Point(cmd.getX(), cmd.getY()), px2mm);
-              break;
-            case LINETO:
-              result += h.lineTime(new Point(cmd.getX(), cmd.getY()), px2mm, speed);
-              break;
-          }
+          result += h.moveTime(new Point(first.x + t.getTranslateX(), first.y + t.getTranslateY()), px2mm);
+          result += copyTime;
+          h.currentPointMm = new Point(last.x + t.getTranslateX(), last.y + t.getTranslateY()).scale(px2mm);
         }
       }
+      else if (jp instanceof VectorPart)
+      {
+        result += h.vectorTime(((VectorPart) jp).getCommands(), px2mm);
+      }
     }
     return (int) result;
   }
@@ -345,6 +546,8 @@ public abstract class LaserCutter implements Cloneable, Customizable {
      *    see preferMoveTo. (Width of the overscan area is set by getRasterPadding()).
      * 
      * @return a VectorPart job of VectorCommands
+     * @throws java.util.concurrent.CancellationException if the job's
+     *    cancellation token is cancelled
      */
     protected VectorPart convertRasterizableToVectorPart(RasterizableJobPart rp, LaserJob job, boolean bidirectional, boolean useMoveToForWhitePixels, boolean useMoveToForPadding)
     {
@@ -365,8 +568,10 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         rightLimitPx = (int) Util.mm2px(job.getTransformedOriginX() + getBedWidth(), resolution);
       }
 
+      CancellationToken cancel = job.getCancellationToken();
       for (int y = 0; y < rp.getRasterHeight(); y++)
       {
+        cancel.check();
         if (rp.lineIsBlank(y)){
           continue;
         }
@@ -383,7 +588,7 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         //move to the first point of the scanline
         if (!useMoveToForPadding)
         {
-          result.setProperty(rp.getPowerSpeedFocusPropertyForColor(255)); 
+          result.setProperty(rp.getSharedPropertyForColor(255)); 
         }
         result.linetoOrMoveto(lineStart.x + x + rp.cutCompensation(), lineStart.y, !useMoveToForPadding);
 
@@ -395,7 +600,7 @@ public abstract class LaserCutter implements Cloneable, Customizable {
           boolean useLineto = color < 255 || !useMoveToForWhitePixels;
           if (useLineto) 
           {
-            result.setProperty(rp.getPowerSpeedFocusPropertyForColor(color));
+            result.setProperty(rp.getSharedPropertyForColor(color));
           }
           x = rp.nextColorChange(x, y);
           result.linetoOrMoveto(lineStart.x + x + rp.cutCompensation(), lineStart.y, useLineto);
@@ -406,7 +611,7 @@ public abstract class LaserCutter implements Cloneable, Customizable {
         postEndX = Math.min(rightLimitPx, Math.max(leftLimitPx, postEndX));
         if (!useMoveToForPadding)
         {
-          result.setProperty(rp.getPowerSpeedFocusPropertyForColor(255));
+          result.setProperty(rp.getSharedPropertyForColor(255));
         }
         result.linetoOrMoveto(postEndX, lineStart.y, !useMoveToForPadding);
 
@@ -47,6 +47,7 @@ public class LaserJob
   private boolean autoFocusEnabled = true;
   private boolean rotaryAxisEnabled = false;
   private double rotaryAxisDiameterMm = Double.NaN;
+  private CancellationToken cancellationToken = new CancellationToken();
 
   public LaserJob(String title, String name, String user)
   {
@@ -101,6 +102,35 @@ public class LaserJob
     return transformedOriginY;
   }
 
+  /**
+   * Cancelling this token aborts processing and sending of the job,
+   * see {@link CancellationToken}
+   */
+  public CancellationToken getCancellationToken()
+  {
+    return cancellationToken;
+  }
+
+  /**
+   * Give the job a new token, so it can be sent again after it was
+   * cancelled. Called by {@link JobQueue#submit}, callers of
+   * {@link LaserCutter#sendJob} have to call it themselves.
+   * @return the new token
+   */
+  public CancellationToken resetCancellationToken()
+  {
+    cancellationToken = new CancellationToken();
+    return cancellationToken;
+  }
+
+  /**
+   * Share the token with another job, e.g. if a driver splits the job
+   */
+  public void setCancellationToken(CancellationToken cancellationToken)
+  {
+    this.cancellationToken = cancellationToken;
+  }
+
   public String getTitle()
   {
     return title;
@@ -147,6 +177,9 @@ public class LaserJob
    * from all parts of the job (in the corresponding resolution)
    * and then set the start-point to 0,0. This way multiple calls
    * to this method won't result in corrupted jobs.
+   * Vector parts only store the offset (see VectorPart.translate()), it is
+   * added while their commands are read, so this does not depend on the
+   * number of commands.
    * 
    * The applied offset is saved in getTransformedOriginX(), getTransformedOriginY().
    */
@@ -158,14 +191,8 @@ public class LaserJob
       {
         if (p instanceof VectorPart)
         {
-          for (VectorCommand c : ((VectorPart) p).getCommandList())
-          {
-            if (c.getType().equals(VectorCommand.CmdType.LINETO) || c.getType().equals(VectorCommand.CmdType.MOVETO))
-            {
-              c.setX((int) (c.getX() - Util.mm2inch(startX)*p.getDPI()));
-              c.setY((int) (c.getY() - Util.mm2inch(startY)*p.getDPI()));
-            }
-          }
+          // the commands are not changed, the offset is added when they are read
+          ((VectorPart) p).translate(-Util.mm2inch(startX)*p.getDPI(), -Util.mm2inch(startY)*p.getDPI());
         }
         else if (p instanceof RasterPart)
         {
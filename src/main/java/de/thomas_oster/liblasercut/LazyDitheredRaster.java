@@ -0,0 +1,270 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.dithering.ErrorDiffusion;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A black and white raster which is dithered row by row when the rows are
+ * requested, e.g. by RasterPart.getRasterLine or a RasterBuilder, instead of
+ * dithering the whole image into a BlackWhiteRaster in advance.
+ *
+ * Rows are dithered in one direction, from top to bottom or (for engraving
+ * bottom up) from bottom to top. Only the packed output of the last
+ * BLOCK rows and the errors for the next rows are kept, so reading the rows
+ * in this direction dithers every row once. Top down, the result is the same
+ * as dithering the whole image with the same algorithm. Bottom up, the
+ * errors are diffused upwards, so the result is the same as dithering the
+ * upside down image and turning the result back. This is not the same as
+ * dithering the image in advance, but it looks the same and allows engraving
+ * bottom up without dithering the whole image first.
+ *
+ * To allow going back, e.g. for a second pass or for reading in the other
+ * direction, the error state is saved at the start of some blocks of BLOCK
+ * rows. At most MAX_CHECKPOINTS are kept, dense near the last row read
+ * and sparse farther away. Going back dithers again from the nearest
+ * checkpoint before the requested row, or from the first row if there is
+ * none.
+ *
+ * Like BlackWhiteRaster, black is 1 in getPixel and getRasterLine.
+ * This class is not thread-safe.
+ */
+public class LazyDitheredRaster implements GreyscaleRaster, RasterBuilder.PixelSource
+{
+
+  private static final int BLOCK = 64;
+  private static final int MAX_CHECKPOINTS = 16;
+
+  private final GreyscaleRaster src;
+  private final ErrorDiffusion algorithm;
+  private final ErrorDiffusion.Diffusion diffusion;
+  private final boolean bottomUp;
+  private final int width;
+  private final int height;
+  private final int stride;
+  /**
+   * checkpoints.get(k) is the state before dithering row k*BLOCK
+   * (rows counted in dithering direction), for some k > 0
+   */
+  private final TreeMap<Integer, int[][]> checkpoints = new TreeMap<>();
+  /**
+   * packed row n is in rows[n % BLOCK]
+   */
+  private final byte[][] rows;
+  /**
+   * rows from here to diffusion.getRowCount() - 1 are in rows
+   */
+  private int firstCached = 0;
+  private final boolean[] decisions;
+  private long rowsDithered = 0;
+
+  /**
+   * @param src the grey image, which must not be changed while this raster is used
+   * @param algorithm the dithering algorithm, which is copied
+   * @param bottomUp dither from the last row to the first, which gives a
+   * different result than dithering from the first row, see above
+   */
+  public LazyDitheredRaster(GreyscaleRaster src, ErrorDiffusion algorithm, boolean bottomUp)
+  {
+    this.src = src;
+    this.bottomUp = bottomUp;
+    this.width = src.getWidth();
+    this.height = src.getHeight();
+    this.stride = (width + 7) / 8;
+    this.algorithm = algorithm.clone();
+    this.diffusion = this.algorithm.new Diffusion(src, bottomUp);
+    this.rows = new byte[Math.min(BLOCK, Math.max(height, 1))][stride];
+    this.decisions = new boolean[width];
+  }
+
+  public LazyDitheredRaster(GreyscaleRaster src, ErrorDiffusion algorithm)
+  {
+    this(src, algorithm, false);
+  }
+
+  public boolean isBottomUp()
+  {
+    return bottomUp;
+  }
+
+  public GreyscaleRaster getSource()
+  {
+    return src;
+  }
+
+  /**
+   * The copy of the algorithm used for dithering, which must not be changed
+   */
+  public ErrorDiffusion getAlgorithm()
+  {
+    return algorithm;
+  }
+
+  /**
+   * Total number of rows dithered so far. Reading every row once in
+   * dithering direction gives the height of the image.
+   */
+  public long getRowsDithered()
+  {
+    return rowsDithered;
+  }
+
+  int getCheckpointCount()
+  {
+    return checkpoints.size();
+  }
+
+  /**
+   * Save the current state, which is the start of the given block.
+   * If there are too many checkpoints, the one which is the closest to its
+   * neighbours compared to its distance from this block is removed, so
+   * the distance between the checkpoints grows with the distance from the
+   * read position.
+   */
+  private void saveCheckpoint(int block)
+  {
+    checkpoints.put(block, diffusion.saveState());
+    if (checkpoints.size() <= MAX_CHECKPOINTS)
+    {
+      return;
+    }
+    int[] keys = checkpoints.keySet().stream().mapToInt(Integer::intValue).toArray();
+    int remove = -1;
+    double smallestGap = Double.MAX_VALUE;
+    for (int i = 0; i < keys.length; i++)
+    {
+      if (keys[i] == block)
+      {
+        continue;
+      }
+      int previous = i > 0 ? keys[i - 1] : 0;
+      int next = i + 1 < keys.length ? keys[i + 1] : (height + BLOCK - 1) / BLOCK;
+      double gap = (double) (next - previous) / Math.abs(keys[i] - block);
+      if (gap < smallestGap)
+      {
+        smallestGap = gap;
+        remove = keys[i];
+      }
+    }
+    checkpoints.remove(remove);
+  }
+
+  /**
+   * The packed row y, dithering it if necessary
+   */
+  private byte[] row(int y)
+  {
+    if (y < 0 || y >= height)
+    {
+      throw new IndexOutOfBoundsException("row " + y + " of " + height);
+    }
+    int n = bottomUp ? height - 1 - y : y;
+    if (n < firstCached || n < diffusion.getRowCount() - rows.length)
+    {
+      // go back to the nearest checkpoint
+      Map.Entry<Integer, int[][]> checkpoint = checkpoints.floorEntry(n / BLOCK);
+      int start = checkpoint == null ? 0 : checkpoint.getKey() * BLOCK;
+      diffusion.restoreState(start, checkpoint == null ? null : checkpoint.getValue());
+      firstCached = start;
+    }
+    while (diffusion.getRowCount() <= n)
+    {
+      int next = diffusion.getRowCount();
+      if (next % BLOCK == 0 && next > 0 && !checkpoints.containsKey(next / BLOCK))
+      {
+        saveCheckpoint(next / BLOCK);
+      }
+      diffusion.next(decisions);
+      pack(decisions, rows[next % rows.length]);
+      rowsDithered++;
+    }
+    return rows[n % rows.length];
+  }
+
+  private static void pack(boolean[] black, byte[] result)
+  {
+    for (int x = 0, i = 0; x < black.length; x += 8, i++)
+    {
+      int bits = 0;
+      for (int b = x, end = Math.min(black.length, x + 8); b < end; b++)
+      {
+        if (black[b])
+        {
+          bits |= 0x80 >>> (b - x);
+        }
+      }
+      result[i] = (byte) bits;
+    }
+  }
+
+  /**
+   * Row y with 8 pixels per byte, most significant bit first, 1 for black
+   * (the same format as BlackWhiteRaster.getRasterLine)
+   * @param bytes buffer to use if it is large enough
+   */
+  public byte[] getRasterLine(int y, byte[] bytes)
+  {
+    if (bytes == null || bytes.length < stride)
+    {
+      bytes = new byte[stride];
+    }
+    System.arraycopy(row(y), 0, bytes, 0, stride);
+    return bytes;
+  }
+
+  public boolean isBlack(int x, int y)
+  {
+    return (row(y)[x >> 3] & (0x80 >>> (x & 7))) != 0;
+  }
+
+  /**
+   * @return 1 for black, 0 for white
+   */
+  @Override
+  public int getPixel(int x, int y)
+  {
+    return isBlack(x, y) ? 1 : 0;
+  }
+
+  @Override
+  public int getGreyScale(int x, int y)
+  {
+    return isBlack(x, y) ? 0 : 255;
+  }
+
+  @Override
+  public void setGreyScale(int x, int y, int grey)
+  {
+    throw new UnsupportedOperationException("LazyDitheredRaster is read-only");
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return width;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return height;
+  }
+}
@@ -20,6 +20,7 @@ package de.thomas_oster.liblasercut;
 
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.properties.LaserProperty;
+import de.thomas_oster.liblasercut.properties.LaserPropertyPool;
 
 import java.util.List;
 
@@ -30,7 +31,7 @@ import java.util.List;
 public class Raster3dPart extends RasterizableJobPart
 {
 
-  private final LaserProperty property;
+  private LaserProperty property;
 
   public Raster3dPart(GreyscaleRaster image, LaserProperty laserProperty, Point offset, double resolution)
   {
@@ -85,6 +86,16 @@ public class Raster3dPart extends RasterizableJobPart
     return this.property;
   }
 
+  /**
+   * Also needed after changing the laser property of this part in place,
+   * so the shared properties (see getSharedPropertyForColor) are computed again
+   */
+  public void setLaserProperty(LaserProperty property)
+  {
+    this.property = property;
+    this.propertyTable = null;
+  }
+
   public List<Byte> getInvertedRasterLine(int line)
   {
     ByteArrayList b = new ByteArrayList(image.getWidth());
@@ -106,8 +117,42 @@ public class Raster3dPart extends RasterizableJobPart
     }
   }
 
+  // see getSharedPropertyForColor()
+  private transient LaserProperty[] propertyTable;
+
+  /**
+   * Returns a new property for the current laser property of this part,
+   * which the caller may modify
+   */
   @Override
   public LaserProperty getPowerSpeedFocusPropertyForColor(int color)
+  {
+    return computePropertyForColor(color);
+  }
+
+  /**
+   * The properties for all 256 colours are computed when first used and
+   * interned (see {@link LaserPropertyPool}), so equal powers share one
+   * object. They are only computed again after
+   * {@link #setLaserProperty(LaserProperty)}.
+   */
+  @Override
+  LaserProperty getSharedPropertyForColor(int color)
+  {
+    LaserProperty[] table = propertyTable;
+    if (table == null)
+    {
+      table = new LaserProperty[256];
+      for (int c = 0; c < table.length; c++)
+      {
+        table[c] = LaserPropertyPool.intern(computePropertyForColor(c));
+      }
+      propertyTable = table;
+    }
+    return table[color];
+  }
+
+  private LaserProperty computePropertyForColor(int color)
   {
     LaserProperty power = getLaserProperty().clone();
     // convert 0-255 into <max power>-0. i.e....
@@ -81,7 +81,7 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
   private int state = STATE_NOT_INITIALIZED;
   private int command_status = COMMAND_UNCALCULATED;
 
-  private final RasterElement image;
+  private final PixelSource image;
   private final int transversal;
   private final int skip_pixel_value;
 
@@ -91,7 +91,19 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
   private ProgressListener progress;
   private double offsetX, offsetY;
 
-  public RasterBuilder(RasterElement image, PropertiesUpdate provider, int transversal, int skipvalue, int overscan)
+  /**
+   * The pixels to build the raster from, e.g. a RasterElement
+   */
+  public interface PixelSource
+  {
+    int getWidth();
+
+    int getHeight();
+
+    int getPixel(int x, int y);
+  }
+
+  public RasterBuilder(PixelSource image, PropertiesUpdate provider, int transversal, int skipvalue, int overscan)
   {
     this.image = image;
     this.provider = provider;
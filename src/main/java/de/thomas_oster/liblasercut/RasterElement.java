@@ -25,7 +25,7 @@ import java.util.Arrays;
  *
  * @author Thomas Oster <thomas.oster@rwth-aachen.de>
  */
-public class RasterElement
+public class RasterElement implements RasterBuilder.PixelSource
 {
 
   private final byte[] imageData;
@@ -97,9 +97,23 @@ public class RasterElement
     return bytes;
  }
  
+ /**
+  * Replace line y with the given bytes (in the format of getRasterLine)
+  */
+ public void setRasterLine(int y, byte[] bytes) {
+    System.arraycopy(bytes, 0, imageData, y * stride, stride);
+ }
+
  public byte getByte(int x, int line) {
     return imageData[(line * stride) + x];
   }
+
+  /**
+   * Set a whole byte of the raster, e.g. 8 pixels of a 1 bit raster
+   */
+  public void setByte(int x, int line, byte value) {
+    imageData[(line * stride) + x] = value;
+  }
  
   public boolean isLineBlank(int y)
   {
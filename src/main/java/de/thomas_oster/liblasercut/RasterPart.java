@@ -59,8 +59,17 @@ public class RasterPart extends RasterizableJobPart
   @Override
   public void getRasterLine(int line, List<Byte> result)
   {
-    RasterElement raster = ((RasterElement.Provider)image).getRaster();
-    byte[] byte_array = raster.getRasterLine(line, null);
+    byte[] byte_array;
+    if (image instanceof LazyDitheredRaster)
+    {
+      // dithered on demand
+      byte_array = ((LazyDitheredRaster) image).getRasterLine(line, null);
+    }
+    else
+    {
+      RasterElement raster = ((RasterElement.Provider)image).getRaster();
+      byte_array = raster.getRasterLine(line, null);
+    }
     if (result instanceof ByteArrayList) {
       ((ByteArrayList)result).clear(byte_array.length);
     } else {
@@ -73,6 +82,10 @@ public class RasterPart extends RasterizableJobPart
 
   public boolean isBlack(int x, int y)
   {
+    if (image instanceof LazyDitheredRaster)
+    {
+      return ((LazyDitheredRaster) image).isBlack(x, y);
+    }
     RasterElement raster = ((RasterElement.Provider)image).getRaster();
     if (raster.getBitDepth() == 1)
     {
@@ -298,6 +298,17 @@ abstract public class RasterizableJobPart extends JobPart
    */
   public abstract LaserProperty getPowerSpeedFocusPropertyForColor(int color);
 
+  /**
+   * Same as {@link #getPowerSpeedFocusPropertyForColor(int)}, but the result
+   * may be shared with other calls and parts and must not be modified.
+   * For loops over all pixels like
+   * {@link LaserCutter#convertRasterizableToVectorPart}.
+   */
+  LaserProperty getSharedPropertyForColor(int color)
+  {
+    return getPowerSpeedFocusPropertyForColor(color);
+  }
+
   @Override
   public boolean isEmpty()
   {
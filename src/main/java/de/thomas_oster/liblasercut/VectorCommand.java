@@ -60,12 +60,27 @@ public class VectorCommand
 
     SETPROPERTY,
     MOVETO,
-    LINETO
+    LINETO,
+    /**
+     * cubic Bezier curve from the current position, see
+     * {@link VectorPart#curveto}
+     */
+    CURVETO,
+    /**
+     * circular arc from the current position, see {@link VectorPart#arcto}
+     */
+    ARCTO
   }
   protected CmdType type;
+  /**
+   * x, y of the end point, followed by
+   * x1, y1, x2, y2 (control points) for CURVETO or
+   * i, j (center relative to the start point) for ARCTO
+   */
   protected double[] operands;
   protected float foperand;
   protected LaserProperty property;
+  protected boolean clockwise;
 
   protected VectorCommand() {
   }
@@ -86,6 +101,45 @@ public class VectorCommand
     }
   }
 
+  /**
+   * A cubic Bezier curve (CURVETO)
+   */
+  public VectorCommand(CmdType type, double x1, double y1, double x2, double y2, double x, double y)
+  {
+    if (type == CmdType.CURVETO)
+    {
+      this.type = type;
+      this.operands = new double[]
+      {
+        x, y, x1, y1, x2, y2
+      };
+    }
+    else
+    {
+      throw new IllegalArgumentException("Wrong number of Parameters for " + type.toString());
+    }
+  }
+
+  /**
+   * A circular arc (ARCTO)
+   */
+  public VectorCommand(CmdType type, double x, double y, double i, double j, boolean clockwise)
+  {
+    if (type == CmdType.ARCTO)
+    {
+      this.type = type;
+      this.operands = new double[]
+      {
+        x, y, i, j
+      };
+      this.clockwise = clockwise;
+    }
+    else
+    {
+      throw new IllegalArgumentException("Wrong number of Parameters for " + type.toString());
+    }
+  }
+
   public VectorCommand(CmdType type, LaserProperty p)
   {
     if (type == CmdType.SETPROPERTY)
@@ -104,9 +158,12 @@ public class VectorCommand
     return type;
   }
 
+  /**
+   * x coordinate of the (end) point, for all commands except SETPROPERTY
+   */
   public double getX()
   {
-    if (this.type == CmdType.MOVETO || this.type == CmdType.LINETO)
+    if (this.type != CmdType.SETPROPERTY)
     {
       return operands[0];
     }
@@ -115,11 +172,123 @@ public class VectorCommand
 
   public double getY()
   {
-    if (this.type == CmdType.MOVETO || this.type == CmdType.LINETO)
+    if (this.type != CmdType.SETPROPERTY)
     {
       return operands[1];
     }
-    throw new UnsupportedOperationException("getX not supported for " + type.toString());
+    throw new UnsupportedOperationException("getY not supported for " + type.toString());
+  }
+
+  private double getCurveOperand(int index, String name)
+  {
+    if (this.type == CmdType.CURVETO)
+    {
+      return operands[index];
+    }
+    throw new UnsupportedOperationException(name + " not supported for " + type.toString());
+  }
+
+  /**
+   * first control point of a CURVETO
+   */
+  public double getX1()
+  {
+    return getCurveOperand(2, "getX1");
+  }
+
+  public double getY1()
+  {
+    return getCurveOperand(3, "getY1");
+  }
+
+  /**
+   * second control point of a CURVETO
+   */
+  public double getX2()
+  {
+    return getCurveOperand(4, "getX2");
+  }
+
+  public double getY2()
+  {
+    return getCurveOperand(5, "getY2");
+  }
+
+  private double getArcOperand(int index, String name)
+  {
+    if (this.type == CmdType.ARCTO)
+    {
+      return operands[index];
+    }
+    throw new UnsupportedOperationException(name + " not supported for " + type.toString());
+  }
+
+  /**
+   * x coordinate of the center of an ARCTO, relative to the start point
+   */
+  public double getI()
+  {
+    return getArcOperand(2, "getI");
+  }
+
+  /**
+   * y coordinate of the center of an ARCTO, relative to the start point
+   */
+  public double getJ()
+  {
+    return getArcOperand(3, "getJ");
+  }
+
+  /**
+   * direction of an ARCTO in a coordinate system with the y axis pointing
+   * up (i.e. G2 if true, G3 if false)
+   */
+  public boolean isClockwise()
+  {
+    if (this.type == CmdType.ARCTO)
+    {
+      return clockwise;
+    }
+    throw new UnsupportedOperationException("isClockwise not supported for " + type.toString());
+  }
+
+  /**
+   * The same command moved by (dx, dy)
+   */
+  public VectorCommand translate(double dx, double dy)
+  {
+    switch (type)
+    {
+      case SETPROPERTY:
+        return this;
+      case CURVETO:
+        return new VectorCommand(type, operands[2] + dx, operands[3] + dy, operands[4] + dx, operands[5] + dy, operands[0] + dx, operands[1] + dy);
+      case ARCTO:
+        // the center is relative to the start point, which is moved as well
+        return new VectorCommand(type, operands[0] + dx, operands[1] + dy, operands[2], operands[3], clockwise);
+      default:
+        return new VectorCommand(type, operands[0] + dx, operands[1] + dy);
+    }
+  }
+
+  /**
+   * The same segment in the opposite direction, i.e. from the end point of
+   * this command to (startX, startY), the point before this command.
+   * Only valid for LINETO, CURVETO and ARCTO.
+   */
+  public VectorCommand reverse(double startX, double startY)
+  {
+    switch (type)
+    {
+      case LINETO:
+        return new VectorCommand(type, startX, startY);
+      case CURVETO:
+        return new VectorCommand(type, operands[4], operands[5], operands[2], operands[3], startX, startY);
+      case ARCTO:
+        return new VectorCommand(type, startX, startY, startX + operands[2] - operands[0], startY + operands[3] - operands[1], !clockwise);
+      default:
+        throw new UnsupportedOperationException("reverse not supported for " + type.toString());
+    }
   }
 
   public LaserProperty getProperty()
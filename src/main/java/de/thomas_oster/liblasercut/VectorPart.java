@@ -20,6 +20,9 @@ package de.thomas_oster.liblasercut;
 
 import de.thomas_oster.liblasercut.properties.LaserProperty;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -37,6 +40,13 @@ public class VectorPart extends JobPart
   private double minY = Double.POSITIVE_INFINITY;
   private final double resolution;
   private final List<VectorCommand> commands;
+  // see translate(): {number of commands moved, dx, dy}
+  private final List<double[]> translations = new ArrayList<>();
+  // end of the last command, NaN before the first moveto()
+  private double currentX = Double.NaN;
+  private double currentY = Double.NaN;
+
+  private static final double DEFAULT_CURVE_PRECISION = 1;
 
   public VectorPart(LaserProperty initialProperty, double resolution)
   {
@@ -68,9 +78,137 @@ public class VectorPart extends JobPart
     commands.add(new VectorCommand(VectorCommand.CmdType.SETPROPERTY, cp));
   }
 
+  /**
+   * All commands, with curves converted to lines, see {@link #getCommands()}
+   */
   public VectorCommand[] getCommandList()
   {
-    return commands.toArray(new VectorCommand[0]);
+    List<VectorCommand> result = new ArrayList<>();
+    getCommands().forEach(result::add);
+    return result.toArray(new VectorCommand[0]);
+  }
+
+  /**
+   * The commands as SETPROPERTY, MOVETO and LINETO, without copying them
+   * into an array. Curves and arcs are converted to lines within the
+   * default precision of {@link LaserCutter#getRequiredCurvePrecision()}
+   * while iterating.
+   * Subclasses may generate them while iterating (see
+   * {@link InstancedVectorPart}), so drivers should prefer this over
+   * getCommandList() when they process the commands only once.
+   */
+  public Iterable<VectorCommand> getCommands()
+  {
+    return getCommands(false, false, DEFAULT_CURVE_PRECISION);
+  }
+
+  /**
+   * The commands for the given driver: curves and arcs are only passed
+   * if the driver can handle them, otherwise they are converted to lines
+   * within its required precision.
+   */
+  public Iterable<VectorCommand> getCommands(LaserCutter cutter)
+  {
+    return getCommands(cutter.canCutCurves(), cutter.canCutArcs(), cutter.getRequiredCurvePrecision());
+  }
+
+  /**
+   * @param curves pass CURVETO commands
+   * @param arcs pass ARCTO commands
+   * @param precision maximum deviation in px when converting curves and arcs to lines
+   */
+  public Iterable<VectorCommand> getCommands(boolean curves, boolean arcs, double precision)
+  {
+    return CurveFlattener.flatten(getNativeCommands(), curves, arcs, precision);
+  }
+
+  /**
+   * The commands as they were added, including CURVETO and ARCTO
+   */
+  public Iterable<VectorCommand> getNativeCommands()
+  {
+    if (translations.isEmpty())
+    {
+      return Collections.unmodifiableList(commands);
+    }
+    // copy, so translating while iterating has no effect
+    double[][] t = translations.toArray(new double[0][]);
+    return () -> new Iterator<VectorCommand>()
+    {
+      private final Iterator<VectorCommand> it = commands.iterator();
+      private int index = 0;
+      // next entry of t which still applies
+      private int next = 0;
+      private double dx = sum(t, 1);
+      private double dy = sum(t, 2);
+
+      @Override
+      public boolean hasNext()
+      {
+        return it.hasNext();
+      }
+
+      @Override
+      public VectorCommand next()
+      {
+        while (next < t.length && t[next][0] <= index)
+        {
+          // the command was added after this translation
+          dx -= t[next][1];
+          dy -= t[next][2];
+          next++;
+        }
+        index++;
+        VectorCommand cmd = it.next();
+        return dx == 0 && dy == 0 ? cmd : cmd.translate(dx, dy);
+      }
+    };
+  }
+
+  private static double sum(double[][] translations, int column)
+  {
+    double result = 0;
+    for (double[] t : translations)
+    {
+      result += t[column];
+    }
+    return result;
+  }
+
+  /**
+   * Move the existing commands by (dx, dy) dots. Commands added afterwards
+   * are not moved.
+   * The stored commands are not changed, the offset is added while
+   * iterating over them, so this does not depend on the number of commands.
+   */
+  public void translate(double dx, double dy)
+  {
+    int count = commands.size();
+    double[] last = translations.isEmpty() ? null : translations.get(translations.size() - 1);
+    if (last != null && last[0] == count)
+    {
+      // replaced, not changed, running iterators keep the old one
+      translations.set(translations.size() - 1, new double[]{count, last[1] + dx, last[2] + dy});
+    }
+    else
+    {
+      translations.add(new double[]{count, dx, dy});
+    }
+    // the bounding box and the current point are kept in moved coordinates
+    minX += dx;
+    maxX += dx;
+    minY += dy;
+    maxY += dy;
+    currentX += dx;
+    currentY += dy;
+  }
+
+  /**
+   * Number of commands returned by getNativeCommands()
+   */
+  public int getCommandCount()
+  {
+    return commands.size();
   }
 
   private void checkMin(double x, double y)
@@ -106,6 +244,8 @@ public class VectorPart extends JobPart
     commands.add(new VectorCommand(VectorCommand.CmdType.MOVETO, x, y));
     checkMin(x, y);
     checkMax(x, y);
+    currentX = x;
+    currentY = y;
   }
 
   /**
@@ -117,13 +257,67 @@ public class VectorPart extends JobPart
   {
     // ensure that lineto() is only called after moveto(), so that the
     // VectorPart does not depend on the previous state.
-    if (!commands.stream().anyMatch(cmd -> cmd.getType() == VectorCommand.CmdType.MOVETO))
-    {
-      throw new IllegalStateException("lineto() may only be called after moveto().");
-    }
+    checkCurrentPoint("lineto");
     commands.add(new VectorCommand(VectorCommand.CmdType.LINETO, x, y));
     checkMin(x, y);
     checkMax(x, y);
+    currentX = x;
+    currentY = y;
+  }
+
+  private void checkCurrentPoint(String command)
+  {
+    if (Double.isNaN(currentX))
+    {
+      throw new IllegalStateException(command + "() may only be called after moveto().");
+    }
+  }
+
+  private void addSegment(VectorCommand cmd)
+  {
+    double[] b = CurveFlattener.getBounds(currentX, currentY, cmd);
+    commands.add(cmd);
+    checkMin(b[0], b[1]);
+    checkMax(b[2], b[3]);
+    currentX = cmd.getX();
+    currentY = cmd.getY();
+  }
+
+  /**
+   * cut a cubic Bezier curve from the current position to (x,y).
+   * Drivers which cannot cut curves get lines instead, see
+   * {@link LaserCutter#canCutCurves()}.
+   * All coordinates are in dots (according to getDPI()).
+   * @param x1 first control point
+   * @param y1 first control point
+   * @param x2 second control point
+   * @param y2 second control point
+   * @param x end point
+   * @param y end point
+   */
+  public void curveto(double x1, double y1, double x2, double y2, double x, double y)
+  {
+    checkCurrentPoint("curveto");
+    addSegment(new VectorCommand(VectorCommand.CmdType.CURVETO, x1, y1, x2, y2, x, y));
+  }
+
+  /**
+   * cut a circular arc from the current position to (x,y). If (x,y) is the
+   * current position, a full circle is cut.
+   * Drivers which cannot cut arcs get lines instead, see
+   * {@link LaserCutter#canCutArcs()}.
+   * All coordinates are in dots (according to getDPI()).
+   * @param x end point
+   * @param y end point
+   * @param i center x, relative to the current position
+   * @param j center y, relative to the current position
+   * @param clockwise direction in a coordinate system with the y axis
+   * pointing up (i.e. G2 if true, G3 if false)
+   */
+  public void arcto(double x, double y, double i, double j, boolean clockwise)
+  {
+    checkCurrentPoint("arcto");
+    addSegment(new VectorCommand(VectorCommand.CmdType.ARCTO, x, y, i, j, clockwise));
   }
   
   /**
@@ -197,7 +391,7 @@ public class VectorPart extends JobPart
   @Override
   public boolean isEmpty()
   {
-    // VectorPart is empty if it contains no LINETO commands
-    return !commands.stream().anyMatch(cmd -> cmd.getType() == VectorCommand.CmdType.LINETO);
+    // VectorPart is empty if it contains nothing to cut
+    return !commands.stream().anyMatch(cmd -> cmd.getType() != VectorCommand.CmdType.SETPROPERTY && cmd.getType() != VectorCommand.CmdType.MOVETO);
   }
 }
@@ -49,12 +49,14 @@ public class Average extends  DitheringAlgorithm
     }
 
     int thresh = (int) (lumTotal / height / width);
+    boolean[] row = new boolean[width];
     for (int y = 0; y < height; y++)
     {
       for (int x = 0; x < width; x++)
       {
-        this.setBlack(src, target, x, y, src.getGreyScale(x, y) < thresh);
+        row[x] = src.getGreyScale(x, y) < thresh;
       }
+      this.setBlackRow(src, target, y, row);
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
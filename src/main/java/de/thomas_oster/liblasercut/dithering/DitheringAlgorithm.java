@@ -44,6 +44,25 @@ public abstract class DitheringAlgorithm extends TimeIntensiveOperation implemen
     }
   }
 
+  /**
+   * Output a whole row of decisions. Algorithms should prefer this over
+   * setBlack, because it writes 8 pixels at a time into the target.
+   */
+  protected void setBlackRow(GreyscaleRaster src, BlackWhiteRaster target, int y, boolean[] black)
+  {
+    if (target != null)
+    {
+      target.setBlackRow(y, black);
+    }
+    else
+    {
+      for (int x = 0; x < black.length; x++)
+      {
+        src.setGreyScale(x, y, black[x] ? 0 : 255);
+      }
+    }
+  }
+
   public BlackWhiteRaster dither(GreyscaleRaster input) throws InterruptedException
   {
     BlackWhiteRaster target = new BlackWhiteRaster(input.getWidth(), input.getHeight());
@@ -102,7 +121,7 @@ public abstract class DitheringAlgorithm extends TimeIntensiveOperation implemen
       return false;
     }
     for (String key : own) {
-      if (!Util.differ(getProperty(key), other.getProperty(key))) {
+      if (Util.differ(getProperty(key), other.getProperty(key))) {
         return false;
       }
     }
@@ -0,0 +1,376 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.dithering;
+
+import de.thomas_oster.liblasercut.BlackWhiteRaster;
+import de.thomas_oster.liblasercut.GreyscaleRaster;
+import java.util.Arrays;
+
+/**
+ * Error diffusion dithering with a configurable kernel.
+ *
+ * The quantization error of each pixel is distributed to its not yet
+ * processed neighbours according to the weights of the {@link Kernel}.
+ * Only one error row per kernel row is kept, and the weights are applied
+ * as 16 bit fixed-point factors on errors with 4 fractional bits.
+ * {@link FloydSteinberg} instead uses the integer arithmetic of its original
+ * implementation, so its output is unchanged.
+ * With serpentine scanning every second row is processed from right to
+ * left (with the kernel mirrored), which avoids the diagonal artifacts of
+ * always scanning in the same direction. It is off unless a subclass
+ * enables it (all kernels except Floyd-Steinberg do).
+ */
+public class ErrorDiffusion extends DitheringAlgorithm
+{
+
+  /**
+   * Weights for the neighbours, relative to the current pixel
+   * (dx to the right in scanning direction, dy downwards)
+   */
+  public enum Kernel
+  {
+    FLOYD_STEINBERG("Floyd-Steinberg", 16, new int[]{
+      1, 0, 7,
+      -1, 1, 3, 0, 1, 5, 1, 1, 1
+    }),
+    JARVIS_JUDICE_NINKE("Jarvis-Judice-Ninke", 48, new int[]{
+      1, 0, 7, 2, 0, 5,
+      -2, 1, 3, -1, 1, 5, 0, 1, 7, 1, 1, 5, 2, 1, 3,
+      -2, 2, 1, -1, 2, 3, 0, 2, 5, 1, 2, 3, 2, 2, 1
+    }),
+    STUCKI("Stucki", 42, new int[]{
+      1, 0, 8, 2, 0, 4,
+      -2, 1, 2, -1, 1, 4, 0, 1, 8, 1, 1, 4, 2, 1, 2,
+      -2, 2, 1, -1, 2, 2, 0, 2, 4, 1, 2, 2, 2, 2, 1
+    }),
+    // distributes only 6/8 of the error, which gives more contrast
+    ATKINSON("Atkinson", 8, new int[]{
+      1, 0, 1, 2, 0, 1,
+      -1, 1, 1, 0, 1, 1, 1, 1, 1,
+      0, 2, 1
+    }),
+    SIERRA("Sierra", 32, new int[]{
+      1, 0, 5, 2, 0, 3,
+      -2, 1, 2, -1, 1, 4, 0, 1, 5, 1, 1, 4, 2, 1, 2,
+      -1, 2, 2, 0, 2, 3, 1, 2, 2
+    }),
+    BURKES("Burkes", 32, new int[]{
+      1, 0, 8, 2, 0, 4,
+      -2, 1, 2, -1, 1, 4, 0, 1, 8, 1, 1, 4, 2, 1, 2
+    });
+
+    private final String name;
+    final int divisor;
+    final int[] dx;
+    final int[] dy;
+    final int[] weights;
+    /**
+     * weight / divisor as fixed-point number with 16 fractional bits
+     */
+    final int[] factors;
+    /**
+     * number of rows with errors (including the current one)
+     */
+    final int rows;
+    /**
+     * maximum |dx|
+     */
+    final int margin;
+
+    Kernel(String name, int divisor, int[] table)
+    {
+      this.name = name;
+      this.divisor = divisor;
+      int n = table.length / 3;
+      dx = new int[n];
+      dy = new int[n];
+      weights = new int[n];
+      factors = new int[n];
+      int maxDy = 0;
+      int maxDx = 0;
+      for (int i = 0; i < n; i++)
+      {
+        dx[i] = table[3 * i];
+        dy[i] = table[3 * i + 1];
+        weights[i] = table[3 * i + 2];
+        factors[i] = Math.round(table[3 * i + 2] * 65536f / divisor);
+        maxDy = Math.max(maxDy, dy[i]);
+        maxDx = Math.max(maxDx, Math.abs(dx[i]));
+      }
+      rows = maxDy + 1;
+      margin = maxDx;
+    }
+
+    @Override
+    public String toString()
+    {
+      return name;
+    }
+  }
+
+  private static final int FRACTION_BITS = 4;
+  private static final int WHITE = 255 << FRACTION_BITS;
+  // pixels up to 127 become black
+  private static final int THRESHOLD = (128 << FRACTION_BITS) - 1;
+  private static final int ROUND = 1 << 15;
+
+  private static final String SERPENTINE = "Serpentine scanning";
+  private static final String[] properties = new String[]{SERPENTINE};
+
+  private final Kernel kernel;
+  private final boolean classicArithmetic;
+  protected boolean serpentine = false;
+
+  public ErrorDiffusion(Kernel kernel)
+  {
+    this(kernel, false);
+  }
+
+  /**
+   * @param classicArithmetic diffuse whole numbers with weight * error / divisor
+   * (rounded towards zero) like the original Floyd-Steinberg implementation,
+   * instead of fixed-point errors
+   */
+  protected ErrorDiffusion(Kernel kernel, boolean classicArithmetic)
+  {
+    this.kernel = kernel;
+    this.classicArithmetic = classicArithmetic;
+  }
+
+  public Kernel getKernel()
+  {
+    return kernel;
+  }
+
+  public boolean isClassicArithmetic()
+  {
+    return classicArithmetic;
+  }
+
+  @Override
+  public String[] getPropertyKeys()
+  {
+    return properties;
+  }
+
+  @Override
+  public void setProperty(String key, Object value)
+  {
+    if (SERPENTINE.equals(key))
+    {
+      this.serpentine = (Boolean) value;
+    }
+    else
+    {
+      throw new IllegalArgumentException("No such key "+key);
+    }
+  }
+
+  @Override
+  public Object getProperty(String key)
+  {
+    if (SERPENTINE.equals(key))
+    {
+      return this.serpentine;
+    }
+    throw new IllegalArgumentException("No such key "+key);
+  }
+
+  /**
+   * An error diffusion in progress. Rows are dithered one after the other,
+   * either from top to bottom or from bottom to top, and only the errors
+   * for the next rows are kept.
+   * The state can be saved and restored to continue at an earlier row.
+   */
+  public class Diffusion
+  {
+    private final GreyscaleRaster src;
+    private final boolean bottomUp;
+    private final int width;
+    private final int height;
+    // errors of the current and the next rows, padded so that errors
+    // diffused across the left and right edge need no bounds checks
+    private final int[][] errors;
+    private final int[][] targetRows;
+    private final int[] offsets;
+    // number of rows dithered so far
+    private int row = 0;
+
+    /**
+     * @param src the image
+     * @param bottomUp start with the last row
+     */
+    public Diffusion(GreyscaleRaster src, boolean bottomUp)
+    {
+      this.src = src;
+      this.bottomUp = bottomUp;
+      this.width = src.getWidth();
+      this.height = src.getHeight();
+      this.errors = new int[kernel.rows][width + 2 * kernel.margin];
+      this.targetRows = new int[kernel.factors.length][];
+      this.offsets = new int[kernel.factors.length];
+    }
+
+    /**
+     * Number of rows dithered so far
+     */
+    public int getRowCount()
+    {
+      return row;
+    }
+
+    public boolean hasNext()
+    {
+      return row < height;
+    }
+
+    /**
+     * The y coordinate of the n-th dithered row
+     */
+    public int getY(int n)
+    {
+      return bottomUp ? height - 1 - n : n;
+    }
+
+    /**
+     * Dither the next row
+     * @param black receives the decision for every pixel of the row
+     * @return the y coordinate of the row
+     */
+    public int next(boolean[] black)
+    {
+      int y = getY(row);
+      int n = targetRows.length;
+      int margin = kernel.margin;
+      int[] factors = kernel.factors;
+      int[] weights = kernel.weights;
+      int divisor = kernel.divisor;
+      int shift = classicArithmetic ? 0 : FRACTION_BITS;
+      int threshold = classicArithmetic ? 127 : THRESHOLD;
+      int white = classicArithmetic ? 255 : WHITE;
+      boolean reverse = serpentine && (row & 1) == 1;
+      int[] current = errors[row % kernel.rows];
+      for (int k = 0; k < n; k++)
+      {
+        targetRows[k] = errors[(row + kernel.dy[k]) % kernel.rows];
+        offsets[k] = margin + (reverse ? -kernel.dx[k] : kernel.dx[k]);
+      }
+      int step = reverse ? -1 : 1;
+      int x = reverse ? width - 1 : 0;
+      for (int i = 0; i < width; i++, x += step)
+      {
+        int value = (src.getGreyScale(x, y) << shift) + current[x + margin];
+        // the row is reused for row + rows
+        current[x + margin] = 0;
+        boolean isBlack = value <= threshold;
+        int error = isBlack ? value : value - white;
+        if (error == 0)
+        {
+          // nothing to diffuse
+        }
+        else if (classicArithmetic)
+        {
+          for (int k = 0; k < n; k++)
+          {
+            targetRows[k][x + offsets[k]] += weights[k] * error / divisor;
+          }
+        }
+        else
+        {
+          for (int k = 0; k < n; k++)
+          {
+            targetRows[k][x + offsets[k]] += (error * factors[k] + ROUND) >> 16;
+          }
+        }
+        black[x] = isBlack;
+      }
+      // errors diffused beyond the edges are dropped
+      Arrays.fill(current, 0, margin, 0);
+      Arrays.fill(current, margin + width, current.length, 0);
+      row++;
+      return y;
+    }
+
+    /**
+     * A copy of the errors collected for the next rows
+     */
+    public int[][] saveState()
+    {
+      int[][] state = new int[kernel.rows - 1][];
+      for (int i = 0; i < state.length; i++)
+      {
+        state[i] = errors[(row + i) % kernel.rows].clone();
+      }
+      return state;
+    }
+
+    /**
+     * Continue at an earlier (or later) row
+     * @param rowCount the row count when the state was saved
+     * @param state the result of saveState(), or null for the first row
+     */
+    public void restoreState(int rowCount, int[][] state)
+    {
+      for (int[] e : errors)
+      {
+        Arrays.fill(e, 0);
+      }
+      row = rowCount;
+      if (state != null)
+      {
+        for (int i = 0; i < state.length; i++)
+        {
+          System.arraycopy(state[i], 0, errors[(row + i) % kernel.rows], 0, state[i].length);
+        }
+      }
+    }
+  }
+
+  @Override
+  protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
+  {
+    int height = src.getHeight();
+    boolean[] decisions = new boolean[src.getWidth()];
+    Diffusion diffusion = new Diffusion(src, false);
+    while (diffusion.hasNext())
+    {
+      int y = diffusion.next(decisions);
+      this.setBlackRow(src, target, y, decisions);
+      setProgress((100 * y) / height);
+      if (Thread.interrupted())
+      {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  @Override
+  public ErrorDiffusion clone()
+  {
+    ErrorDiffusion clone = new ErrorDiffusion(kernel, classicArithmetic);
+    clone.serpentine = serpentine;
+    return clone;
+  }
+
+  @Override
+  public String toString()
+  {
+    return kernel.toString();
+  }
+}
@@ -91,15 +91,16 @@ public class Grid extends DitheringAlgorithm
     }
 
     int thresh = (int) (lumTotal / height / width);
+    boolean[] row = new boolean[width];
     for (int y = 0; y < height; y++)
     {
       for (int x = 0; x < width; x++)
       {
-        boolean isBlack = (y % (blocksize + blockdistance) <= blocksize
+        row[x] = (y % (blocksize + blockdistance) <= blocksize
           && x % (blocksize + blockdistance) <= blocksize
           && src.getGreyScale(x, y) < thresh);
-          this.setBlack(src, target, x, y, isBlack);
       }
+      this.setBlackRow(src, target, y, row);
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
@@ -52,57 +52,20 @@ public class Ordered extends DitheringAlgorithm
     int height = src.getHeight();
     int[][] filter = getThresholdMatrix();
     int nPatWid = filter.length;
+    boolean[] row = new boolean[width];
 
-
-    int x;
-    int y;
-    int pixelcount = 0;
-
-    for (y = 0; y < (height - nPatWid); y = y + nPatWid)
+    for (int y = 0; y < height; y++)
     {
-
-      for (x = 0; x < (width - nPatWid); x = x + nPatWid)
+      int ydelta = y % nPatWid;
+      for (int x = 0; x < width; x++)
       {
-
-        for (int xdelta = 0; xdelta < nPatWid; xdelta++)
-        {
-          for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
-        }
-      }
-      for (int xdelta = 0; xdelta < nPatWid; xdelta++)
-      {
-        for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-        {
-
-          if (((x + xdelta) < width) && ((y + ydelta) < height))
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
-        }
+        row[x] = src.getGreyScale(x, y) < filter[x % nPatWid][ydelta];
       }
+      this.setBlackRow(src, target, y, row);
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
-      setProgress((100 * pixelcount++) / (height));
-    }
-
-    // y is at max; loop through x
-    for (x = 0; x < (width); x = x + nPatWid)
-    {
-      for (int xdelta = 0; xdelta < nPatWid; xdelta++)
-      {
-        for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-        {
-
-          if (((x + xdelta) < width) && ((y + ydelta) < height))
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
-        }
-      }
+      setProgress((100 * y) / (height));
     }
   }
 
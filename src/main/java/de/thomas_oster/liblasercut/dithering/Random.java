@@ -35,13 +35,15 @@ public class Random extends DitheringAlgorithm
     int height = src.getHeight();
     int pixelcount = 0;
     java.util.Random r = new java.util.Random();
+    boolean[] row = new boolean[width];
 
     for (int y = 0; y < height; y++)
     {
       for (int x = 0; x < width; x++)
       {
-        this.setBlack(src, target, x, y, src.getGreyScale(x, y) < r.nextInt(256));
+        row[x] = src.getGreyScale(x, y) < r.nextInt(256);
       }
+      this.setBlackRow(src, target, y, row);
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
@@ -236,7 +236,7 @@ public class Dummy extends LaserCutter {
           if (p instanceof VectorPart)
           {
             System.out.println("VectorPart");
-            for (VectorCommand cmd : ((VectorPart) p).getCommandList())
+            for (VectorCommand cmd : ((VectorPart) p).getCommands(this))
             {
               if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
               {
@@ -25,6 +25,7 @@
 package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.*;
+import de.thomas_oster.liblasercut.utils.NetworkMultiplexer;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.properties.LaserProperty;
 import de.thomas_oster.liblasercut.properties.PowerSpeedFocusFrequencyProperty;
@@ -61,6 +62,7 @@ abstract class EpilogCutter extends LaserCutter
   private boolean hideSoftwareFocus = false;
   private transient InputStream in;
   private transient OutputStream out;
+  private transient Socket connection;
 
   private int mm2focus(float mm)
   {
@@ -258,7 +260,7 @@ abstract class EpilogCutter extends LaserCutter
     }
     else
     {
-      Socket connection = new Socket();
+      connection = new Socket();
       connection.connect(new InetSocketAddress(hostname, port), NETWORK_TIMEOUT);
       in = new BufferedInputStream(connection.getInputStream());
       out = new BufferedOutputStream(connection.getOutputStream());
@@ -271,6 +273,7 @@ abstract class EpilogCutter extends LaserCutter
     {
       in.close();
       out.close();
+      connection.close();
     }
   }
 
@@ -291,7 +294,7 @@ abstract class EpilogCutter extends LaserCutter
     {
       if (p instanceof VectorPart)
       {
-        for (VectorCommand cmd : ((VectorPart) p).getCommandList())
+        for (VectorCommand cmd : ((VectorPart) p).getCommands(this))
         {
           if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
           {
@@ -362,18 +365,27 @@ abstract class EpilogCutter extends LaserCutter
     String nb = count > 1 ? "("+number+"/"+count+")" : "";
     pl.taskChanged(this, "generating"+nb);
     //Generate all the data
-    byte[] pjlData = generatePjlData(job);
+    byte[] pjlData = encodeJob(job, new LinkedList<>(), w -> generatePjlData(job));
     pl.progressChanged(this, (int) ((double) 40*number/count));
     //connect to lasercutter
     pl.taskChanged(this, "connecting"+nb);
     connect();
-    pl.progressChanged(this, (int) ((double) 60*number/count));
-    //send job
-    pl.taskChanged(this, "sending"+nb);
-    sendPjlJob(job, pjlData);
-    pl.progressChanged(this, (int) ((double) 90*number/count));
-    //disconnect
-    disconnect();
+    // closing the socket aborts waiting for the lasercutter
+    Runnable abort = SIMULATE_COMMUNICATION ? null : job.getCancellationToken().closeOnCancel(connection);
+    try
+    {
+      pl.progressChanged(this, (int) ((double) 60*number/count));
+      //send job
+      pl.taskChanged(this, "sending"+nb);
+      sendPjlJob(job, pjlData);
+      pl.progressChanged(this, (int) ((double) 90*number/count));
+    }
+    finally
+    {
+      job.getCancellationToken().removeOnCancel(abort);
+      //disconnect
+      disconnect();
+    }
   }
 
   @Override
@@ -425,6 +437,7 @@ abstract class EpilogCutter extends LaserCutter
       LaserJob j = new LaserJob((size > 1 ? "("+number+"/"+size+")" : "" )+job.getTitle(), job.getName(), job.getUser());
       j.setStartPoint(job.getStartX(), job.getStartY());
       j.setAutoFocusEnabled(job.isAutoFocusEnabled());
+      j.setCancellationToken(job.getCancellationToken());
       for (JobPart p:current)
       {
         j.addPart(p);
@@ -477,7 +490,7 @@ abstract class EpilogCutter extends LaserCutter
     }
   }
 
-  private byte[] generateRaster3dPCL(Raster3dPart rp) throws UnsupportedEncodingException, IOException
+  private byte[] generateRaster3dPCL(Raster3dPart rp, CancellationToken cancel) throws UnsupportedEncodingException, IOException
   {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
@@ -517,6 +530,7 @@ abstract class EpilogCutter extends LaserCutter
       ByteArrayList encoded = new ByteArrayList(rp.getRasterWidth());
       for (int y = bu ? rp.getRasterHeight()-1 : 0; bu ? y >= 0 : y < rp.getRasterHeight(); y += bu ? -1 : 1)
       {
+        cancel.check();
         rp.getInvertedRasterLine(y, line);
         for (int n = 0; n < line.size(); n++)
         {//Apperantly the other power settings are ignored, so we have to scale
@@ -612,7 +626,7 @@ abstract class EpilogCutter extends LaserCutter
     return result.toByteArray();
   }
 
-  private byte[] generateRasterPCL(RasterPart rp) throws UnsupportedEncodingException, IOException
+  private byte[] generateRasterPCL(RasterPart rp, CancellationToken cancel) throws UnsupportedEncodingException, IOException
   {
     EpilogEngraveProperty prop = (EpilogEngraveProperty) rp.getLaserProperty();
     boolean bu = prop.isEngraveBottomUp();
@@ -653,6 +667,7 @@ abstract class EpilogCutter extends LaserCutter
       ByteArrayList encoded = new ByteArrayList(rp.getRasterWidth());
       for (int y = bu ? rp.getRasterHeight()-1 : 0; bu ? y >= 0 : y < rp.getRasterHeight(); y += bu ? -1 : 1)
       {
+        cancel.check();
         rp.getRasterLine(y, line);
         //Remove leading zeroes, but keep track of the offset
         int jump = 0;
@@ -720,7 +735,7 @@ abstract class EpilogCutter extends LaserCutter
     return result.toByteArray();
   }
 
-  private byte[] generateVectorPCL(VectorPart vp) throws UnsupportedEncodingException
+  private byte[] generateVectorPCL(VectorPart vp, CancellationToken cancel) throws UnsupportedEncodingException
   {
     //TODO: Test if the resolution settings have an effect
     ByteArrayOutputStream result = new ByteArrayOutputStream();
@@ -736,7 +751,7 @@ abstract class EpilogCutter extends LaserCutter
       Integer currentFrequency = null;
       Float currentFocus = null;
       VectorCommand.CmdType lastType = null;
-      for (VectorCommand cmd : vp.getCommandList())
+      for (VectorCommand cmd : vp.getCommands(this))
       {
         if (lastType == VectorCommand.CmdType.LINETO && cmd.getType() != VectorCommand.CmdType.LINETO)
         {
@@ -771,6 +786,7 @@ abstract class EpilogCutter extends LaserCutter
           }
           case MOVETO:
           {
+            cancel.check();
             out.printf("PU%d,%d;", (int) cmd.getX(), (int) cmd.getY());
             break;
           }
@@ -810,15 +826,15 @@ abstract class EpilogCutter extends LaserCutter
     {
       if (p instanceof VectorPart)
       {
-        wrt.write(generateVectorPCL((VectorPart) p));
+        wrt.write(generateVectorPCL((VectorPart) p, job.getCancellationToken()));
       }
       else if (p instanceof RasterPart)
       {
-        wrt.write(generateRasterPCL((RasterPart) p));
+        wrt.write(generateRasterPCL((RasterPart) p, job.getCancellationToken()));
       }
       else if (p instanceof Raster3dPart)
       {
-        wrt.write(generateRaster3dPCL((Raster3dPart) p));
+        wrt.write(generateRaster3dPCL((Raster3dPart) p, job.getCancellationToken()));
       }
     }
     if (! (job.getParts().get(job.getParts().size()-1) instanceof VectorPart))
@@ -845,6 +861,15 @@ abstract class EpilogCutter extends LaserCutter
     this.port = Port;
   }
 
+  /**
+   * LPD connection. Every command is acknowledged with a 0 byte.
+   */
+  @Override
+  public NetworkMultiplexer.Connection openConnection(NetworkMultiplexer multiplexer, NetworkMultiplexer.Handler handler) throws IOException
+  {
+    return multiplexer.connectTcp(getHostname(), getPort(), NETWORK_TIMEOUT, NetworkMultiplexer.RAW, handler);
+  }
+
   @Override
   public Object getProperty(String attribute)
   {
@@ -972,7 +997,7 @@ abstract class EpilogCutter extends LaserCutter
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws UnsupportedOperationException, IllegalJobException, Exception {
     // TODO: there is currently no way to report warnings with saveJob().
     checkJobAndApplyStartPoint(job, new LinkedList<>());
-    byte[] pjlData = generatePjlData(job);
+    byte[] pjlData = encodeJob(job, new LinkedList<>(), w -> generatePjlData(job));
     fileOutputStream.write(pjlData);
   }
 }
@@ -19,6 +19,7 @@
 
 package de.thomas_oster.liblasercut.drivers;
 
+import de.thomas_oster.liblasercut.CancellationToken;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
 import de.thomas_oster.liblasercut.LaserCutter;
@@ -41,6 +42,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.Deflater;
 
 
@@ -92,16 +97,203 @@ public class FullSpectrumCutter extends LaserCutter
     
   }
   
+  /**
+   * A line of the job, start and destination in inches
+   */
+  static final class Segment
+  {
+    final double xStart, xDest, yStart, yDest, power, speed;
+
+    Segment(double xStart, double xDest, double yStart, double yDest, double power, double speed)
+    {
+      this.xStart = xStart;
+      this.xDest = xDest;
+      this.yStart = yStart;
+      this.yDest = yDest;
+      this.power = power;
+      this.speed = speed;
+    }
+  }
+
+  /**
+   * Growable buffer for the 4-byte machine commands
+   */
+  static final class CommandBuffer
+  {
+    byte[] data;
+    int size = 0;
+
+    CommandBuffer(int capacity)
+    {
+      data = new byte[Math.max(capacity, 16)];
+    }
+
+    void ensureCapacity(int capacity)
+    {
+      if (capacity > data.length)
+      {
+        data = Arrays.copyOf(data, Math.max(capacity, 2 * data.length));
+      }
+    }
+
+    void put(byte b0, byte b1, byte b2, byte b3)
+    {
+      ensureCapacity(size + 4);
+      data[size] = b0;
+      data[size + 1] = b1;
+      data[size + 2] = b2;
+      data[size + 3] = b3;
+      size += 4;
+    }
+
+    void append(CommandBuffer other)
+    {
+      ensureCapacity(size + other.size);
+      System.arraycopy(other.data, 0, data, size, other.size);
+      size += other.size;
+    }
+  }
+
+  /**
+   * The packet sent to the machine. The header and the compressed subpackets
+   * are kept in separate buffers and written one after the other, so the
+   * packet is never copied into one large array.
+   */
+  static final class Packet
+  {
+    private final List<ByteBuffer> parts = new ArrayList<>();
+    private long length = 0;
+
+    static Packet of(byte[] data)
+    {
+      Packet result = new Packet();
+      result.add(ByteBuffer.wrap(data));
+      return result;
+    }
+
+    void add(ByteBuffer part)
+    {
+      parts.add(part);
+      length += part.remaining();
+    }
+
+    long length()
+    {
+      return length;
+    }
+
+    void writeTo(OutputStream out) throws IOException
+    {
+      for (ByteBuffer part : parts)
+      {
+        out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+      }
+    }
+
+    byte[] toByteArray() throws IOException
+    {
+      ByteArrayOutputStream result = new ByteArrayOutputStream((int) length);
+      writeTo(result);
+      return result.toByteArray();
+    }
+  }
+
+  // number of Deflaters whose native memory has not been released yet
+  static final AtomicInteger openDeflaters = new AtomicInteger();
+
+  /**
+   * Compresses subpackets with zlib. A Deflater is reset and reused for the
+   * next subpacket, so a job needs one Deflater per thread instead of one
+   * per subpacket. close() releases their native memory, which would
+   * otherwise only be freed when the garbage collector runs.
+   */
+  static final class SubpacketCompressor implements AutoCloseable
+  {
+    private final ConcurrentLinkedDeque<Deflater> idle = new ConcurrentLinkedDeque<>();
+    private boolean closed = false;
+
+    /**
+     * Compresses a subpacket with zlib and removes the first two bytes of the result
+     * @return zlib_string.length + 00 00 + zlib_string
+     */
+    ByteBuffer compress(byte[] data, int offset, int length)
+    {
+      Deflater deflater = idle.poll();
+      if (deflater == null)
+      {
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        openDeflaters.incrementAndGet();
+      }
+      try
+      {
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        // the zlib string is written at offset 2, so its first two bytes
+        // are replaced by the size and 00 00
+        byte[] result = new byte[length / 8 + 64];
+        int end = 2;
+        while (!deflater.finished())
+        {
+          if (end == result.length)
+          {
+            result = Arrays.copyOf(result, 2 * result.length);
+          }
+          end += deflater.deflate(result, end, result.length - end);
+        }
+        ByteBuffer size = ByteBuffer.wrap(result, 0, 4);
+        size.order(ByteOrder.LITTLE_ENDIAN);
+        size.putShort((short)(end - 4));
+        size.putShort((short)0);
+        return ByteBuffer.wrap(result, 0, end);
+      }
+      finally
+      {
+        release(deflater);
+      }
+    }
+
+    private synchronized void release(Deflater deflater)
+    {
+      if (closed)
+      {
+        // a failed job may still be compressing another subpacket
+        deflater.end();
+        openDeflaters.decrementAndGet();
+      }
+      else
+      {
+        deflater.reset();
+        idle.push(deflater);
+      }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+      closed = true;
+      Deflater deflater;
+      while ((deflater = idle.poll()) != null)
+      {
+        deflater.end();
+        openDeflaters.decrementAndGet();
+      }
+    }
+  }
+
+  // segments interpolated by one task
+  private static final int SEGMENTS_PER_CHUNK = 1024;
+  // bytes reserved for the raw header in front of the commands, see jobContents()
+  private static final int RAW_HEADER_SIZE = 8;
+
   /**
    * convert LaserJob to "Full Spectrum" network packet
    */
-  private ByteArrayOutputStream jobToFullPacket(LaserJob job, List<String> warnings) throws IllegalJobException, IOException
+  private Packet jobToFullPacket(LaserJob job, List<String> warnings) throws IllegalJobException, IOException
   {
     if (warnings == null)
     {
       warnings = new ArrayList<>();
     }
-    ByteArrayOutputStream bosRawCmds = new ByteArrayOutputStream();
     float power = 0;
     float speed = 100;
     float moving_speed = getMaxVectorMoveSpeed();
@@ -110,6 +302,13 @@ public class FullSpectrumCutter extends LaserCutter
     
     checkJob(job);
     job.applyStartPoint();
+    CancellationToken cancel = job.getCancellationToken();
+
+    // The start of each line only depends on the previous coordinates,
+    // not on the generated steps. So the lines are collected first and
+    // then interpolated in parallel.
+    List<List<Segment>> chunks = new ArrayList<>();
+    List<Segment> chunk = new ArrayList<>(SEGMENTS_PER_CHUNK);
     
     for (JobPart p : job.getParts())
     {
@@ -123,35 +322,35 @@ public class FullSpectrumCutter extends LaserCutter
         //get the real interface
         VectorPart vp = (VectorPart) p;
         //iterate over command list
-        for (VectorCommand cmd : vp.getCommandList())
+        for (VectorCommand cmd : vp.getCommands(this))
         {
+          cancel.check();
           //There are three types of commands: MOVETO, LINETO and SETPROPERTY
           switch (cmd.getType())
           {
             case LINETO:
-            {
-              /*
-                Move the laserhead (laser on) from the current position to the x/y position of this command.
-               */
-              // x/y in inches
-              double x = Util.px2mm(cmd.getX(), p.getDPI())*0.0393701;
-              double y = Util.px2mm(cmd.getY(), p.getDPI())*0.0393701;
-              bosRawCmds.write(line(xsim,x,ysim,y,power,speed));
-              
-              // estimate the new real position
-              xsim += Math.round((x-xsim)*1000)/1000f;
-              ysim += Math.round((y-ysim)*1000)/1000f;
-              break;
-            }
             case MOVETO:
             {
               /*
-                Move the laserhead (laser off) from the current position to the x/y position of this command.
+                Move the laserhead from the current position to the x/y position of this command,
+                with the laser off for MOVETO.
                */
               // x/y in inches
               double x = Util.px2mm(cmd.getX(), p.getDPI())*0.0393701;
               double y = Util.px2mm(cmd.getY(), p.getDPI())*0.0393701;
-              bosRawCmds.write(line(xsim,x,ysim,y,0,moving_speed));
+              if (cmd.getType() == VectorCommand.CmdType.LINETO)
+              {
+                chunk.add(new Segment(xsim, x, ysim, y, power, speed));
+              }
+              else
+              {
+                chunk.add(new Segment(xsim, x, ysim, y, 0, moving_speed));
+              }
+              if (chunk.size() == SEGMENTS_PER_CHUNK)
+              {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(SEGMENTS_PER_CHUNK);
+              }
               
               // estimate the new real position
               xsim += Math.round((x-xsim)*1000)/1000f;
@@ -167,27 +366,62 @@ public class FullSpectrumCutter extends LaserCutter
               System.out.println("Changing Device Parameters:");
               for (String key : prop.getPropertyKeys())
               {
-                String value = prop.getProperty(key).toString();
-                System.out.println("  "+key+"="+value);
-                if(key.equals("power"))
-                  power=Float.parseFloat(value);
-                if(key.equals("speed"))
-                {
-                  speed=Float.parseFloat(value);
-                  speed=getMaxVectorCutSpeed()*speed/100f; // to steps per sec
-                }
+                System.out.println("  "+key+"="+prop.getProperty(key));
               }
+              // typed getters, the values are not parsed from strings
+              power=prop.getPower();
+              speed=getMaxVectorCutSpeed()*prop.getSpeed()/100f; // to steps per sec
               break;
             }
           }
         }
       }
     }
+    chunks.add(chunk);
+
+    // the order of the results is kept
+    List<CommandBuffer> results = (chunks.size() > 1 ? chunks.parallelStream() : chunks.stream())
+      .map(c -> {
+        CommandBuffer b = new CommandBuffer(64 * c.size());
+        for (Segment seg : c)
+        {
+          // a single line may take several thousand commands
+          cancel.check();
+          line(seg.xStart, seg.xDest, seg.yStart, seg.yDest, seg.power, seg.speed, b);
+        }
+        return b;
+      })
+      .collect(Collectors.toList());
+    int total = RAW_HEADER_SIZE;
+    for (CommandBuffer b : results)
+    {
+      total += b.size;
+    }
+    CommandBuffer rawJob = new CommandBuffer(total);
+    rawJob.size = RAW_HEADER_SIZE;
+    for (CommandBuffer b : results)
+    {
+      rawJob.append(b);
+    }
+    results = null;
         
     // feeds the commands into packet generator
-    ByteArrayOutputStream bosFullPacket = new ByteArrayOutputStream();
-    bosFullPacket.write(generatePacket(bosRawCmds.toByteArray()));
-    return bosFullPacket;
+    Packet fullPacket = new Packet();
+    generatePacket(rawJob, fullPacket, cancel);
+    return fullPacket;
+  }
+
+  /**
+   * The packet from the job cache if there is one, otherwise the packet is
+   * generated without copying it into one array
+   */
+  private Packet encodePacket(LaserJob job, List<String> warnings) throws IllegalJobException, IOException
+  {
+    if (getJobCache() == null)
+    {
+      return jobToFullPacket(job, warnings);
+    }
+    return Packet.of(encodeJob(job, warnings, w -> jobToFullPacket(job, w).toByteArray()));
   }
   
   /**
@@ -202,7 +436,7 @@ public class FullSpectrumCutter extends LaserCutter
   {
     pl.progressChanged(this, 0);
     pl.taskChanged(this, "processing job");
-    ByteArrayOutputStream bosFullPacket = jobToFullPacket(job, warnings);
+    Packet fullPacket = encodePacket(job, warnings);
     
     BufferedOutputStream italkout;
     BufferedOutputStream jobout;
@@ -212,56 +446,78 @@ public class FullSpectrumCutter extends LaserCutter
     pl.taskChanged(this, "connecting");
     System.out.println("begin connection");
     
-    Socket connection=new Socket();
-    connection.connect(new InetSocketAddress(hostname, 12345), 3000);
-    italkout = new BufferedOutputStream(connection.getOutputStream());
-    italkin = new BufferedInputStream(connection.getInputStream()); 
-    receiveResponse(italkin);
-    pl.taskChanged(this, "sending");
-    
-    // sending protocol
-    sendTextCmd("xjob\n",italkout);
-    receiveResponse(italkin);
-    
-    // send: "immediate <size packet>\n"
-    String msgSize = "immediate " +
-            bosFullPacket.toByteArray().length +
-            "\n";
-    sendTextCmd(msgSize,italkout);
-    receiveResponse(italkin);
-    
-    sendTextCmd("data\n",italkout);
-    receiveResponse(italkin);
-    
-    // connect and send packet to port 12346
-    Socket jobconn = new Socket();
-    jobconn.connect(new InetSocketAddress(hostname, 12346), 3000);
-    
-    sendTextCmd("sending\n",italkout);
-    receiveResponse(italkin);
-    
-    jobout = new BufferedOutputStream(jobconn.getOutputStream());
-    jobout.write(bosFullPacket.toByteArray());
-    jobout.flush();
-    jobout.close();
-    jobconn.close();
-    
-    receiveResponse(italkin);
-    
-    // begin job execution
-    sendTextCmd("run\n",italkout);
-    receiveResponse(italkin);
-    
-    waitjobend();
-    
-    System.out.println("End job");
-    
-    sendTextCmd("bye\n",italkout);
-    receiveResponse(italkin);
-    
-    italkout.close();
-    italkin.close();
-    connection.close();
+    // the sockets are closed if the job is cancelled, which aborts waiting for the machine
+    CancellationToken cancel = job.getCancellationToken();
+    try (Socket connection = new Socket())
+    {
+      Runnable abort = cancel.closeOnCancel(connection);
+      try
+      {
+        connection.connect(new InetSocketAddress(hostname, 12345), 3000);
+        italkout = new BufferedOutputStream(connection.getOutputStream());
+        italkin = new BufferedInputStream(connection.getInputStream()); 
+        receiveResponse(italkin);
+        pl.taskChanged(this, "sending");
+
+        // sending protocol
+        sendTextCmd("xjob\n",italkout);
+        receiveResponse(italkin);
+
+        // send: "immediate <size packet>\n"
+        String msgSize = "immediate " +
+                fullPacket.length() +
+                "\n";
+        sendTextCmd(msgSize,italkout);
+        receiveResponse(italkin);
+
+        sendTextCmd("data\n",italkout);
+        receiveResponse(italkin);
+
+        // connect and send packet to port 12346
+        try (Socket jobconn = new Socket())
+        {
+          Runnable abortJobconn = cancel.closeOnCancel(jobconn);
+          try
+          {
+            jobconn.connect(new InetSocketAddress(hostname, 12346), 3000);
+
+            sendTextCmd("sending\n",italkout);
+            receiveResponse(italkin);
+
+            jobout = new BufferedOutputStream(jobconn.getOutputStream());
+            fullPacket.writeTo(jobout);
+            jobout.flush();
+            jobout.close();
+          }
+          finally
+          {
+            cancel.removeOnCancel(abortJobconn);
+          }
+        }
+        // the packet is no longer needed
+        fullPacket = null;
+
+        receiveResponse(italkin);
+
+        // begin job execution
+        sendTextCmd("run\n",italkout);
+        receiveResponse(italkin);
+
+        waitjobend(cancel);
+
+        System.out.println("End job");
+
+        sendTextCmd("bye\n",italkout);
+        receiveResponse(italkin);
+
+        italkout.close();
+        italkin.close();
+      }
+      finally
+      {
+        cancel.removeOnCancel(abort);
+      }
+    }
     
     pl.progressChanged(this, 100);
   }
@@ -269,7 +525,7 @@ public class FullSpectrumCutter extends LaserCutter
   @Override
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IOException, IllegalJobException
   {
-    fileOutputStream.write(jobToFullPacket(job, null).toByteArray());
+    encodePacket(job, new ArrayList<>()).writeTo(fileOutputStream);
   }
   
   
@@ -277,56 +533,65 @@ public class FullSpectrumCutter extends LaserCutter
   /**
    * Loops until the machine finish cutting
    */
-  private void waitjobend() throws IOException
+  private void waitjobend(CancellationToken cancel) throws IOException
   {
     BufferedInputStream status_in;
 
     // conect to status port
-    Socket status=new Socket();
-    status.connect(new InetSocketAddress(hostname, 12347), 3000);
-    status_in = new BufferedInputStream(status.getInputStream()); 
-    
-    byte countAction=0;
-    byte[] statusPacket=new byte[68];
-    
-    // there must be 4 consecutive status packets with the same info to make sure the machine finish cutting
-    while(countAction<4)
+    try (Socket status = new Socket())
     {
-      status_in.read(statusPacket, 0, 68);
-      if (statusPacket[4]!=1) // 1 means cutting
-      {
-        countAction++;
-      }
-      else
+      Runnable abort = cancel.closeOnCancel(status);
+      try
       {
-        countAction=0;
+        status.connect(new InetSocketAddress(hostname, 12347), 3000);
+        status_in = new BufferedInputStream(status.getInputStream()); 
+
+        byte countAction=0;
+        byte[] statusPacket=new byte[68];
+
+        // there must be 4 consecutive status packets with the same info to make sure the machine finish cutting
+        while(countAction<4)
+        {
+          cancel.check();
+          if (status_in.read(statusPacket, 0, 68) < 0)
+          {
+            throw new IOException("Connection to the status port was closed");
+          }
+          if (statusPacket[4]!=1) // 1 means cutting
+          {
+            countAction++;
+          }
+          else
+          {
+            countAction=0;
+          }
+          //clear queue
+          while(status_in.available()!=0)
+          {
+            status_in.read();
+          }
+        }
       }
-      //clear queue
-      while(status_in.available()!=0)
+      finally
       {
-        status_in.read();
+        cancel.removeOnCancel(abort);
       }
-    }    
+    }
   }
   
   
   /**
    * Generates the full packet to send, given a set of raw machine commands.
-   * @return the packet as a byte array
+   * @param rawJob the commands, after RAW_HEADER_SIZE bytes reserved for the raw header
+   * @param packet the packet is written here
    */
-  private byte[] generatePacket(byte[] rawCmds)throws IOException
+  private void generatePacket(CommandBuffer rawJob, Packet packet, CancellationToken cancel)throws IOException
   {
-    byte[] header;
-    ByteArrayOutputStream packet = new ByteArrayOutputStream();
-
     // header
-    header = generateHeader();
-    packet.write(header);
+    packet.add(ByteBuffer.wrap(generateHeader()));
     
     // job compressed contents
-    packet.write(jobContents(rawCmds));
-    
-    return packet.toByteArray();
+    jobContents(rawJob, packet, cancel);
   }
   
   
@@ -415,17 +680,17 @@ public class FullSpectrumCutter extends LaserCutter
   
   /**
    * Generates the load of the packet(packet=header+load) given a set of raw machine commands.
+   * @param rawJob the commands, after RAW_HEADER_SIZE bytes reserved for the raw header
+   * @param jobload the load is added here
    */
-  private byte[] jobContents(byte[] rawCmds)throws IOException
+  private void jobContents(CommandBuffer rawJob, Packet jobload, CancellationToken cancel)
   {
     byte numberSubpackets; // number of additional subpackets
     int remainder; // remainder of commands
-    
-    ByteArrayOutputStream jobrawload = new ByteArrayOutputStream();
-    ByteArrayOutputStream jobload = new ByteArrayOutputStream();
+    int rawCmdsLength = rawJob.size - RAW_HEADER_SIZE;
 
-    numberSubpackets=(byte)((rawCmds.length+8)/0x40000);
-    remainder=((rawCmds.length %0x40000)/4);
+    numberSubpackets=(byte)((rawCmdsLength+8)/0x40000);
+    remainder=((rawCmdsLength %0x40000)/4);
 
     /* 
     The first step is to add a little header(raw_header) to the raw machine commands
@@ -440,19 +705,13 @@ public class FullSpectrumCutter extends LaserCutter
     must be true
     Where each command consists of 4 bytes
     */
-    // add raw_header
-    ByteBuffer bb = ByteBuffer.allocate(8);
+    // add raw_header in the reserved space in front of the commands
+    ByteBuffer bb = ByteBuffer.wrap(rawJob.data, 0, RAW_HEADER_SIZE);
     bb.order(ByteOrder.LITTLE_ENDIAN);
     bb.put(new byte[] {2,0,0,0});
     bb.putShort((short)(remainder));
     bb.put(numberSubpackets);
     bb.put((byte)0);
-    jobrawload.write(bb.array());
-    
-    // add raw commands
-    jobrawload.write(rawCmds);
-    
-    byte[] raw_job = jobrawload.toByteArray(); // uncompressed raw_header and commands
     
     /* the final packet has the form 
     header + (number of subpackets = numberSubpackets+1) + 00 00
@@ -467,72 +726,37 @@ public class FullSpectrumCutter extends LaserCutter
     bb1.order(ByteOrder.LITTLE_ENDIAN);
     bb1.putShort((short)(numberSubpackets+1));
     bb1.put(new byte[] {0,0}); 
-    jobload.write(bb1.array());
+    jobload.add(ByteBuffer.wrap(bb1.array()));
     
+    // the range of the last portion may exceed the commands by a few bytes,
+    // they are zero (like Arrays.copyOfRange() pads)
+    int end = numberSubpackets*0x40000+(remainder+2)*4;
+    if (end > rawJob.size)
+    {
+      rawJob.ensureCapacity(end);
+      Arrays.fill(rawJob.data, rawJob.size, end, (byte) 0);
+    }
+    byte[] raw_job = rawJob.data; // uncompressed raw_header and commands
+
     // Then add the zlib strings one by one
     // "<size> 00 00 <zlib_string>"
-    for(int kk=0; kk<numberSubpackets;kk++)
+    // The subpackets are compressed in parallel, the order is kept.
+    int subpackets = Math.max(0, numberSubpackets) + 1;
+    try (SubpacketCompressor compressor = new SubpacketCompressor())
     {
-      // first portion to compress
-      byte[] tmpsub = Arrays.copyOfRange(raw_job, kk*0x40000, (kk+1)*0x40000); 
-      
-      compress_sub(tmpsub, jobload);
+      List<ByteBuffer> zlibStrings = (subpackets > 1 ? IntStream.range(0, subpackets).parallel() : IntStream.range(0, subpackets))
+        .mapToObj(kk -> {
+          cancel.check();
+          // the last portion contains the remaining bytes
+          int from = kk*0x40000;
+          int to = kk == subpackets - 1 ? end : (kk+1)*0x40000;
+          return compressor.compress(raw_job, from, to - from);
+        })
+        .collect(Collectors.toList());
+      zlibStrings.forEach(jobload::add);
     }
-    
-    // last portion to compress (remaining bytes)
-    byte[] tmpsub = Arrays.copyOfRange(raw_job, numberSubpackets*0x40000,numberSubpackets*0x40000+(remainder+2)*4 ); 
-    
-    compress_sub(tmpsub, jobload);
-    
-    return jobload.toByteArray();
   }
   
-  /**
-   * Compresses a byte array/subpacket with zlib, removes the first two bytes of the result
-   * writes the new size and the resulting zlib string
-   * zlib_string.length + 00 00 + zlib_string
-   * to a ByteArrayOutputStream
-   * @param tmpsub Array to compress
-   * @param jobload ByteArrayOutputStream where the result will be written
-   */
-  
-  private void compress_sub(byte [] tmpsub, ByteArrayOutputStream jobload) throws IOException
-  {
-    // begin compression
-      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
-      deflater.setInput(tmpsub);
-      deflater.finish();
-      ByteArrayOutputStream bos = new ByteArrayOutputStream(tmpsub.length);
-      byte[] buffer = new byte[1024];
-      while(!deflater.finished())
-      {
-                    int bytesCompressed = deflater.deflate(buffer);
-                    bos.write(buffer,0,bytesCompressed);
-      }
-      try
-      {
-        bos.close();
-      }
-      catch(IOException ioe)
-      {
-        System.out.println("Error while closing the stream : " + ioe);
-      }
-
-      //get the compressed byte array from output stream
-      byte[] zlibString = bos.toByteArray();
-      
-      // add the size of the zlib string and 00 00
-      ByteBuffer bb2 = ByteBuffer.allocate(4);
-      bb2.order(ByteOrder.LITTLE_ENDIAN);
-      bb2.putShort((short)(zlibString.length-2));
-      bb2.putShort((short)0);
-
-      // "<size of zlib string>  00 00"
-      jobload.write(bb2.array());
-
-      // write the result without the first two bytes
-      jobload.write(Arrays.copyOfRange(zlibString,2,zlibString.length));
-  }
   
   /**
    * Interpolator, given an initial point (x_start,y_start) and a destination point (x_dest,y_dest)
@@ -544,11 +768,10 @@ public class FullSpectrumCutter extends LaserCutter
    * @param y_dest destination y coordinate
    * @param power as a percentage
    * @param speed in steps/sec
-   * @return array of bytes with the machine commands, each command consist of 4 bytes
+   * @param out the machine commands are appended here, each command consist of 4 bytes
    */
-  private byte[] line(double x_start,double x_dest,double y_start,double y_dest,double power, double speed)throws IOException
+  static void line(double x_start,double x_dest,double y_start,double y_dest,double power, double speed, CommandBuffer out)
   { 
-    ByteArrayOutputStream lineCmds = new ByteArrayOutputStream();
     double d; // distance of movement
     double speed_x; // average speed on x axis, signed
     double speed_y; // average speed on y axis, signed
@@ -559,9 +782,9 @@ public class FullSpectrumCutter extends LaserCutter
     double t_increment = 1d/2000d; // time increments, the machine card executes 2000 commands per sec
     byte steps_x; // steps to do on x axis, in one command, may be more than 1
     byte steps_y; // steps to do on y axis, in one command, may be more than 1
-    byte[] tempCmd = new byte[4]; // temporal byte array to build commands
     
     power = power * 255d / 100d;  // from percentage to byte value
+    byte powerByte = (byte) power; // the fourth byte sets power of laser
     
     // to relative movement in steps
     x_dest = Math.round((x_dest-x_start)*1000);
@@ -572,22 +795,32 @@ public class FullSpectrumCutter extends LaserCutter
     
     if(d==0d)
     {
-      return new byte[] {}; // no line no commands
+      return; // no line no commands
     }
     
     //speed components
     speed_x = x_dest * speed/d;
     speed_y = y_dest * speed/d;
+
+    // the steps are integers, so compare them as integers in the loop
+    int x_target = (int) x_dest;
+    int y_target = (int) y_dest;
+    double x_limit = Math.abs(x_dest);
+    double y_limit = Math.abs(y_dest);
+    // the number of commands is about the duration times 2000
+    out.ensureCapacity(out.size + 4 * (int) Math.min(1 << 20, d / Math.max(speed, 1e-9) * 2000 + 2));
     
     // the machine executes commands at a rate of 2000 commands per second
     // so the actual speed of the laser is modified by adding more or less
     // no move commands {0,0,0,ff}
-    while(!((x_dest==x)&(y_dest==y)))
+    // The positions are accumulated in double precision exactly as the
+    // original implementation, so the generated steps do not change.
+    while(x != x_target || y != y_target)
     {
       // if one coordinate reaches its end, then there is no move on that component
-      if(y==y_dest)
+      if(y==y_target)
         speed_y=0d;
-      if(x==x_dest)
+      if(x==x_target)
         speed_x=0d;
       
       // theorical position, real position x y should be very close
@@ -595,9 +828,9 @@ public class FullSpectrumCutter extends LaserCutter
       y_expected = y_expected + t_increment*speed_y;
       
       // dont go further check
-      if(Math.abs(x_expected)>Math.abs(x_dest)) 
+      if(Math.abs(x_expected)>x_limit) 
         x_expected = x_dest;
-      if(Math.abs(y_expected)>Math.abs(y_dest))
+      if(Math.abs(y_expected)>y_limit)
         y_expected = y_dest;
       
       // amount of steps to do in this cycle
@@ -605,23 +838,19 @@ public class FullSpectrumCutter extends LaserCutter
       steps_y = (byte)(y_expected-y);
       
       // the first two bits of the first byte, indicate direction on x y
-      tempCmd[0]=0;
+      byte direction = 0;
       if(steps_x>0)
-        tempCmd[0]+=1;
+        direction+=1;
       if(steps_y>0)
-        tempCmd[0]+=2;
-      
-      tempCmd[1]=(byte)Math.abs(steps_x); // the second byte sets the magnitude of movement in x axis
-      tempCmd[2]=(byte)Math.abs(steps_y); // the third byte sets the magnitude of movement in y axis
-      tempCmd[3]=(byte)power; // the fourth byte sets power of laser
+        direction+=2;
       
-      lineCmds.write(tempCmd.clone()); 
+      // the second and third byte set the magnitude of movement in x and y axis
+      out.put(direction, (byte)Math.abs(steps_x), (byte)Math.abs(steps_y), powerByte);
       
       //update real relative position
       x += steps_x;
       y += steps_y;
     }
-    return lineCmds.toByteArray();
   }
   
   
@@ -19,6 +19,7 @@
 package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.properties.FloatPowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.ConnectionSession;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
 import de.thomas_oster.liblasercut.LaserCutter;
@@ -29,24 +30,29 @@ import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.ProgressListenerDummy;
 import de.thomas_oster.liblasercut.RasterizableJobPart;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
+import de.thomas_oster.liblasercut.utils.PathCompressor;
 import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.AsyncLineWriter;
+import de.thomas_oster.liblasercut.utils.ChunkPipe;
+import de.thomas_oster.liblasercut.utils.GCodeLineBuilder;
+import de.thomas_oster.liblasercut.utils.NetworkMultiplexer;
+import de.thomas_oster.liblasercut.utils.SerialTransport;
 import net.sf.corn.httpclient.HttpClient;
 import net.sf.corn.httpclient.HttpResponse;
-import purejavacomm.CommPort;
 import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
 import purejavacomm.PortInUseException;
 import purejavacomm.PureJavaIllegalStateException;
-import purejavacomm.SerialPort;
 import purejavacomm.UnsupportedCommOperationException;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -64,16 +70,23 @@ import java.util.List;
 import java.util.Locale;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -116,6 +129,11 @@ public class GenericGcodeDriver extends LaserCutter {
   protected static final String SETTING_GCODE_DIGITS = "Decimal places used for XY coordinates";
   protected static final String SETTING_SCODE_DIGITS = "Decimal places used for power (S) value";
   protected static final String SETTING_STATIC_JOBNAME = "Static job (file) name";
+  protected static final String SETTING_SEND_BUFFER_LINES = "Lines generated ahead of the machine (Serial/IP, 0 = off)";
+  protected static final String SETTING_COMPRESS_PATHS = "Merge collinear lines and fit arcs (G2/G3)";
+  protected static final String SETTING_OMIT_MODAL_WORDS = "Omit repeated G-code words (G1, X, Y)";
+  protected static final String SETTING_STREAM_HTTP_UPLOAD = "Stream HTTP/Octoprint upload while generating (chunked)";
+  protected static final String SETTING_COMPRESS_HTTP_UPLOAD = "Compress HTTP upload (gzip, server must support it)";
 
   protected static final Locale FORMAT_LOCALE = Locale.US;
 
@@ -140,13 +158,22 @@ public class GenericGcodeDriver extends LaserCutter {
     this.lineend = lineend;
   }
 
+  private transient String lineendSetting;
+  private transient String lineendCache;
+
   protected String LINEEND()
   {
-    return getLineend()
-      .replace("LF", "\n")
-      .replace("CR", "\r")
-      .replace("\\r", "\r")
-      .replace("\\n", "\n");
+    String setting = getLineend();
+    if (setting != lineendSetting || lineendCache == null)
+    {
+      lineendCache = setting
+        .replace("LF", "\n")
+        .replace("CR", "\r")
+        .replace("\\r", "\r")
+        .replace("\\n", "\n");
+      lineendSetting = setting;
+    }
+    return lineendCache;
   }
 
   protected int baudRate = 115200;
@@ -472,28 +499,68 @@ public class GenericGcodeDriver extends LaserCutter {
 
   protected String formatDouble(double value, int decimalPlaces)
   {
-    Locale locale  = new Locale("en", "US");
-    DecimalFormat coordinateFormat = (DecimalFormat)NumberFormat.getNumberInstance(locale);
-    coordinateFormat.applyPattern("###.##");
-    coordinateFormat.setMaximumFractionDigits(decimalPlaces);
-    return coordinateFormat.format(value); 
+    return GCodeLineBuilder.formatDecimal(value, decimalPlaces);
   }
 
   protected void writeVectorGCode(VectorPart vp, double resolution) throws UnsupportedEncodingException, IOException {
-    for (VectorCommand cmd : vp.getCommandList()) {
+    pathResolution = resolution;
+    if (pathCompressor != null)
+    {
+      pathCompressor.setTolerance(getRequiredCurvePrecision());
+      pathCompressor.setMaxRadius(Util.mm2px(Math.max(getBedWidth(), getBedHeight()), resolution));
+    }
+    // end of the previous command before rounding, which ARCTO starts at
+    double exactX = Double.NaN;
+    double exactY = Double.NaN;
+    for (VectorCommand cmd : vp.getCommands(this)) {
       switch (cmd.getType()) {
         // TODO: x,y should be changed to double because GCode has infinite vector resolution anyway
         case MOVETO:
+          flushPath();
+          exactX = cmd.getX();
+          exactY = cmd.getY();
           int x = (int) cmd.getX();
           int y = (int) cmd.getY();
           move(out, x, y, resolution);
+          pathX = x;
+          pathY = y;
           break;
         case LINETO:
+          exactX = cmd.getX();
+          exactY = cmd.getY();
+          if (pathCompressor != null && !Double.isNaN(pathX))
+          {
+            // the compressor works on the exact coordinates
+            if (!pathCompressor.isActive())
+            {
+              pathCompressor.begin(pathX, pathY);
+            }
+            pathCompressor.lineTo(cmd.getX(), cmd.getY());
+            pathX = cmd.getX();
+            pathY = cmd.getY();
+            break;
+          }
           x = (int) cmd.getX();
           y = (int) cmd.getY();
           line(out, x, y, resolution);
+          pathX = x;
+          pathY = y;
+          break;
+        case ARCTO:
+          flushPath();
+          if (pathX != exactX || pathY != exactY)
+          {
+            // the machine is at the rounded position, but the radius must match at both ends
+            line(out, exactX, exactY, resolution);
+          }
+          arc(out, cmd.getX(), cmd.getY(), cmd.getI(), cmd.getJ(), cmd.isClockwise(), resolution);
+          exactX = cmd.getX();
+          exactY = cmd.getY();
+          pathX = exactX;
+          pathY = exactY;
           break;
         case SETPROPERTY:
+          flushPath();
           FloatPowerSpeedFocusProperty p = (FloatPowerSpeedFocusProperty) cmd.getProperty();
           setPower(p.getPower());
           setSpeed(p.getSpeed());
@@ -501,6 +568,47 @@ public class GenericGcodeDriver extends LaserCutter {
           break;
       }
     }
+    flushPath();
+  }
+
+  /**
+   * Arcs are sent as G2/G3, curves are converted to lines (and compressed
+   * into arcs if {@link #isCompressPaths()}).
+   * With few digits, the rounded end point does not match the arc radius.
+   */
+  @Override
+  public boolean canCutArcs()
+  {
+    return getGCodeDigits() >= 3;
+  }
+
+  /**
+   * Compresses flattened curves into fewer lines and arcs, if enabled
+   */
+  private transient PathCompressor pathCompressor;
+  private transient PathCompressor lastPathCompressor;
+  /**
+   * Current position in px as sent to move() or line(), NaN if unknown
+   */
+  private transient double pathX = Double.NaN;
+  private transient double pathY = Double.NaN;
+  private transient double pathResolution;
+
+  private void flushPath() throws IOException
+  {
+    if (pathCompressor != null)
+    {
+      pathCompressor.flush();
+    }
+  }
+
+  /**
+   * Statistics about the compression of the last job, e.g. the compression
+   * ratio. Null if path compression was disabled.
+   */
+  public PathCompressor getLastPathCompressor()
+  {
+    return lastPathCompressor;
   }
   protected double currentPower = -1;
   protected double currentSpeed = -1;
@@ -519,12 +627,12 @@ public class GenericGcodeDriver extends LaserCutter {
   protected void setFocus(PrintStream out, double focus) throws IOException {
 
     if (currentFocus != focus) {
-        String append = "";
+        GCodeLineBuilder line = beginLine("G0").word('Z', focus, getGCodeDigits());
         if (blankLaserDuringRapids) {
-           append = " S0";
+           line.word('S', 0);
            currentPower = -1; // set to invalid value to force new S-value at next G1
         }
-        sendLine("G0 Z%s" + append, formatDouble(focus, getGCodeDigits()));
+        sendLine(line);
         currentFocus = focus;
     }
   }
@@ -534,33 +642,78 @@ public class GenericGcodeDriver extends LaserCutter {
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
     currentSpeed = getTravel_speed();
 
+    GCodeLineBuilder line = beginLine("G0")
+      .word('X', x, getGCodeDigits())
+      .word('Y', y, getGCodeDigits())
+      .word('F', (int) (travel_speed));
     if (blankLaserDuringRapids)
     {
       currentPower = -1; // set to invalid value to force new S-value at next G1
-      sendLine("G0 X%s Y%s F%d S0", formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()), (int) (travel_speed));
+      line.word('S', 0);
     }
-    else
+    sendLine(line);
+  }
+
+  protected void line(PrintStream out, double x, double y, double resolution) throws IOException {
+    x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
+    y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
+    GCodeLineBuilder line = beginLine("G1");
+    if (!(isOmitModalWords() && x == lastLineX))
     {
-      sendLine("G0 X%s Y%s F%d", formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()), (int) (travel_speed));
+      line.word('X', x, getGCodeDigits());
+    }
+    if (!(isOmitModalWords() && y == lastLineY))
+    {
+      line.word('Y', y, getGCodeDigits());
+    }
+    appendPowerAndSpeed(line);
+    lastLineX = x;
+    lastLineY = y;
+    if (line.length() > 0)
+    {
+      sendLine(line);
     }
   }
 
-  protected void line(PrintStream out, double x, double y, double resolution) throws IOException {
+  /**
+   * Send a G2 (clockwise) or G3 arc. All coordinates are in px, the
+   * direction refers to the px coordinate system with the y axis pointing up.
+   * @param i center x, relative to the current position
+   * @param j center y, relative to the current position
+   */
+  protected void arc(PrintStream out, double x, double y, double i, double j, boolean clockwise, double resolution) throws IOException {
     x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
-    String append = "";
+    i = isFlipXaxis() ? -Util.px2mm(i, resolution) : Util.px2mm(i, resolution);
+    j = isFlipYaxis() ? -Util.px2mm(j, resolution) : Util.px2mm(j, resolution);
+    // mirroring an axis reverses the direction
+    if (isFlipXaxis() != isFlipYaxis())
+    {
+      clockwise = !clockwise;
+    }
+    GCodeLineBuilder line = beginLine(clockwise ? "G2" : "G3")
+      .word('X', x, getGCodeDigits())
+      .word('Y', y, getGCodeDigits())
+      .word('I', i, getGCodeDigits())
+      .word('J', j, getGCodeDigits());
+    appendPowerAndSpeed(line);
+    lastLineX = x;
+    lastLineY = y;
+    sendLine(line);
+  }
 
+  private void appendPowerAndSpeed(GCodeLineBuilder line)
+  {
     if (nextPower != currentPower)
     {
-      append += String.format(FORMAT_LOCALE, " S%s", formatDouble(nextPower, getSCodeDigits()));
+      line.word('S', nextPower, getSCodeDigits());
       currentPower = nextPower;
     }
     if (nextSpeed != currentSpeed)
     {
-      append += String.format(FORMAT_LOCALE, " F%d", (int) (max_speed*nextSpeed/100.0));
+      line.word('F', (int) (max_speed*nextSpeed/100.0));
       currentSpeed = nextSpeed;
     }
-    sendLine("G1 X%s Y%s" + append, formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()));
   }
 
   private void writeInitializationCode() throws IOException {
@@ -587,57 +740,254 @@ public class GenericGcodeDriver extends LaserCutter {
   protected transient BufferedReader in;
   protected transient PrintStream out;
   private transient Socket socket;
-  private transient CommPort port;
+  private transient SerialTransport port;
   private transient CommPortIdentifier portIdentifier;
+  /**
+   * Connection which is kept open between jobs, if enabled
+   */
+  private transient ConnectionSession session;
+  /**
+   * If not null, lines are handed to this writer and transmitted by its
+   * background thread instead of blocking the thread generating the job.
+   */
+  private transient AsyncLineWriter lineWriter;
+  private transient AsyncLineWriter lastLineWriter;
+  private transient GCodeLineBuilder lineBuilder;
+  /**
+   * Last motion command (G0-G3) and end point of the last G1-G3 in mm,
+   * for omitting repeated words. Null/NaN if unknown.
+   */
+  private transient String lastMotion;
+  private transient double lastLineX = Double.NaN;
+  private transient double lastLineY = Double.NaN;
+
+  private static boolean isMotionCommand(String command)
+  {
+    return "G0".equals(command) || "G1".equals(command) || "G2".equals(command) || "G3".equals(command);
+  }
+
+  /**
+   * If true, G-Code words are not separated by spaces (e.g. "G1X1Y2")
+   */
+  protected boolean isCompactGCode()
+  {
+    return false;
+  }
+
+  /**
+   * Start a new line in the reusable line buffer.
+   * Add words to it and send it with {@link #sendLine(GCodeLineBuilder)}.
+   * This avoids String.format and DecimalFormat for every line.
+   */
+  protected GCodeLineBuilder beginLine(String command)
+  {
+    if (lineBuilder == null)
+    {
+      lineBuilder = new GCodeLineBuilder();
+    }
+    lineBuilder.setCompact(isCompactGCode());
+    if (!"G1".equals(command))
+    {
+      // e.g. a G0 moves the machine, so the next G1 must send both axes
+      lastLineX = Double.NaN;
+      lastLineY = Double.NaN;
+    }
+    if (isMotionCommand(command))
+    {
+      if (isOmitModalWords() && command.equals(lastMotion))
+      {
+        return lineBuilder.begin("");
+      }
+      lastMotion = command;
+    }
+    return lineBuilder.begin(command);
+  }
+
+  protected void sendLine(GCodeLineBuilder line) throws IOException
+  {
+    line.end(LINEEND());
+    if (lineWriter != null)
+    {
+      lineWriter.write(line.getBuffer(), 0, line.length(), isWaitForOKafterEachLine());
+      return;
+    }
+    line.writeTo(out);
+    checkWriteError();
+    if (isWaitForOKafterEachLine())
+    {
+      waitForOK();
+    }
+  }
+
+  /**
+   * Flushes out and throws if writing failed. PrintStream does not throw,
+   * so e.g. a failed streaming upload would otherwise only be noticed after
+   * the whole job has been generated.
+   */
+  private void checkWriteError() throws IOException
+  {
+    if (out.checkError())
+    {
+      throw new IOException("Error while writing to "+uploadMethod+" connection");
+    }
+  }
 
   protected void sendLine(String text, Object... parameters) throws IOException
   {
+    // the line may change the modal state or position
+    lastMotion = null;
+    lastLineX = Double.NaN;
+    lastLineY = Double.NaN;
+    if (lineWriter != null)
+    {
+      // Serial and IP transports are always US_ASCII, see connect()
+      byte[] line = String.format(FORMAT_LOCALE, text+LINEEND(), parameters).getBytes(StandardCharsets.US_ASCII);
+      lineWriter.write(line, 0, line.length, isWaitForOKafterEachLine());
+      return;
+    }
     out.format(FORMAT_LOCALE, text+LINEEND(), parameters);
-    out.flush();
+    checkWriteError();
     if (isWaitForOKafterEachLine())
     {
-      String line = waitForLine();
-      if (!"ok".equals(line))
+      waitForOK();
+    }
+  }
+
+  protected void waitForOK() throws IOException
+  {
+    String line = waitForLine();
+    if (!"ok".equals(line))
+    {
+      throw new IOException("Lasercutter did not respond 'ok', but '"+line+"'instead.");
+    }
+  }
+
+  /**
+   * Called from the background thread of the line writer
+   */
+  private void transmitLine(byte[] line, int length, boolean waitForOK) throws IOException
+  {
+    out.write(line, 0, length);
+    checkWriteError();
+    if (waitForOK)
+    {
+      waitForOK();
+    }
+  }
+
+  /**
+   * Start generating lines ahead of the machine, if enabled and useful
+   * for the current upload method.
+   */
+  private void startLineWriter()
+  {
+    lineWriter = null;
+    if (getSendBufferLines() > 0 && (UPLOAD_METHOD_IP.equals(uploadMethod) || UPLOAD_METHOD_SERIAL.equals(uploadMethod)))
+    {
+      lineWriter = new AsyncLineWriter(getSendBufferLines(), this::transmitLine);
+      lineWriter.start(getModelName()+" sender");
+      lastLineWriter = lineWriter;
+    }
+  }
+
+  /**
+   * Wait until the machine has received all lines
+   */
+  private void finishLineWriter() throws IOException
+  {
+    if (lineWriter != null)
+    {
+      try
+      {
+        lineWriter.finish();
+      }
+      finally
+      {
+        lineWriter = null;
+      }
+    }
+  }
+
+  /**
+   * Maximum time to wait for the sender thread after an abort. If it is
+   * blocked on I/O for longer, it is released by closing the connection.
+   */
+  private static final long LINE_WRITER_JOIN_MILLIS = 5000;
+
+  /**
+   * Stop the sender thread and wait for it, so that it does not write to
+   * the connection while it is being closed
+   */
+  private void abortLineWriter()
+  {
+    if (lineWriter != null)
+    {
+      lineWriter.abort();
+      try
       {
-        throw new IOException("Lasercutter did not respond 'ok', but '"+line+"'instead.");
+        lineWriter.join(LINE_WRITER_JOIN_MILLIS);
       }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      lineWriter = null;
     }
   }
 
+  /**
+   * Statistics of the line writer used by the last sendJob() call,
+   * e.g. to find out whether the machine or the job generation is the
+   * bottleneck. Null if no line writer was used.
+   */
+  public AsyncLineWriter getLastLineWriter()
+  {
+    return lastLineWriter;
+  }
+
   protected void http_upload(URI url, String data, String filename) throws IOException
   {
-    HttpClient client = new HttpClient(url);
-    client.putAdditionalRequestProperty("X-Filename", filename);
-    HttpResponse response = client.sendData(HttpClient.HTTP_METHOD.POST, data);
-    if (response == null || response.hasError())
+    http_upload(url, new StringEntity(data, ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8)), filename);
+  }
+
+  /**
+   * POST the job to the HTTP upload URL.
+   * If the length of the data is unknown (-1), chunked transfer encoding is used.
+   */
+  protected void http_upload(URI url, HttpEntity data, String filename) throws IOException
+  {
+    HttpPost uploadFile = new HttpPost(url);
+    uploadFile.addHeader("X-Filename", filename);
+    uploadFile.setEntity(isCompressHttpUpload() ? new GzipCompressingEntity(data) : data);
+    try (CloseableHttpClient httpClient = HttpClients.createDefault();
+      CloseableHttpResponse response = httpClient.execute(uploadFile))
     {
-      throw new IOException("Error during POST Request");
+      if (response.getStatusLine().getStatusCode() >= 400)
+      {
+        throw new IOException("Error during POST Request: "+response.getStatusLine().getReasonPhrase());
+      }
     }
   }
 
-  private void http_upload_grblhal(String baseUri, byte[] data, String jobname) throws IOException {
+  private void http_upload_grblhal(String baseUri, File data, String jobname) throws IOException {
     // Implement https://github.com/grblHAL/Plugin_networking/blob/master/http_upload.c
     // see also https://esp3d.io/esp3d-webui/v3.x/documentation/api/fileupload/index.html
 
     String filename = jobname;
-    CloseableHttpClient httpClient = HttpClients.createDefault();
     HttpPost uploadFile = new HttpPost(baseUri + "?t=" + Long.toString(System.currentTimeMillis()));
     MultipartEntityBuilder builder = MultipartEntityBuilder.create();
 
     builder.addTextBody("path", "/");
-    builder.addTextBody(filename + "S", Integer.toString(data.length));
+    // the size has to be sent before the file, so grblHAL uploads can not be streamed
+    builder.addTextBody(filename + "S", Long.toString(data.length()));
     builder.addTextBody(filename + "T", DateTimeFormatter.ofPattern("yyyy-MM-hh'T'hh:mm:ss").format(LocalDateTime.now()));
 
-    builder.addBinaryBody(
-            "myfiles",
-            data,
-            ContentType.create("text/x.gcode"),
-            filename
-    );
+    builder.addPart("myfiles", new FileBody(data, ContentType.create("text/x.gcode"), filename));
 
     HttpEntity multipart = builder.build();
     uploadFile.setEntity(multipart);
-    try (CloseableHttpResponse response = httpClient.execute(uploadFile))
+    try (CloseableHttpClient httpClient = HttpClients.createDefault();
+      CloseableHttpResponse response = httpClient.execute(uploadFile))
     {
       if (response.getStatusLine().getStatusCode() != 200) {
         throw new IOException("Error: grblHAL returned "+response.getStatusLine().getReasonPhrase());
@@ -673,26 +1023,30 @@ public class GenericGcodeDriver extends LaserCutter {
   }
   
   protected void octoprint_upload(String host, String apikey, byte[] data, String filename, boolean startPrinting) throws IOException
+  {
+    octoprint_upload(host, apikey, new ByteArrayBody(data, ContentType.APPLICATION_OCTET_STREAM, filename), startPrinting);
+  }
+
+  /**
+   * Upload the job to Octoprint. If the length of the data is unknown
+   * (e.g. InputStreamBody), chunked transfer encoding is used.
+   */
+  protected void octoprint_upload(String host, String apikey, ContentBody data, boolean startPrinting) throws IOException
   {
     //TODO: implement https://docs.octoprint.org/en/master/api/files.html#upload-file-or-create-folder
-    CloseableHttpClient httpClient = HttpClients.createDefault();
     HttpPost uploadFile = new HttpPost("http://"+host+"/api/files/local");
     MultipartEntityBuilder builder = MultipartEntityBuilder.create();
     if (startPrinting) {
       builder.addTextBody("print", "true", ContentType.TEXT_PLAIN);
     }
     
-    builder.addBinaryBody(
-        "file",
-        data,
-        ContentType.APPLICATION_OCTET_STREAM,
-        filename
-    );
+    builder.addPart("file", data);
 
     HttpEntity multipart = builder.build();
     uploadFile.setEntity(multipart);
     uploadFile.addHeader("X-Api-Key", apikey);
-    try (CloseableHttpResponse response = httpClient.execute(uploadFile))
+    try (CloseableHttpClient httpClient = HttpClients.createDefault();
+      CloseableHttpResponse response = httpClient.execute(uploadFile))
     {
       if (response.getStatusLine().getStatusCode() != 201) {
         throw new IOException("Error: Octoprint returned "+response.getStatusLine().getReasonPhrase());
@@ -740,21 +1094,8 @@ public class GenericGcodeDriver extends LaserCutter {
     {
       try
       {
-        port = i.open("VisiCut", 1000);
-        try
-        {
-          port.enableReceiveTimeout(getSerialTimeout());
-        }
-        catch (UnsupportedCommOperationException e)
-        {
-          System.err.println("Serial timeout not supported. Driver may hang if device does not respond properly.");
-        }
-        if (this.getBaudRate() > 0 && port instanceof SerialPort)
-        {
-          SerialPort sp = (SerialPort) port;
-          sp.setSerialPortParams(getBaudRate(), 8, 1, 0);
-          sp.setDTR(true);
-        }
+        port = SerialTransport.open(i, getBaudRate());
+        port.setReadTimeout(getSerialTimeout());
         out = new PrintStream(port.getOutputStream(), true, StandardCharsets.US_ASCII);
         in = new BufferedReader(new InputStreamReader(port.getInputStream()));
         // Wait 5 seconds since GRBL is long to wake up..
@@ -771,9 +1112,8 @@ public class GenericGcodeDriver extends LaserCutter {
         }
         if (waitForIdentificationLine(pl) != null)
         {
-          in.close();
-          out.close();
           port.close();
+          port = null;
           return "Does not seem to be a "+getModelName()+" on "+i.getName();
         }
         portIdentifier = i;
@@ -804,17 +1144,274 @@ public class GenericGcodeDriver extends LaserCutter {
   /**
    * Used to buffer the file before uploading via http
    */
-  private transient ByteArrayOutputStream outputBuffer;
+  private transient File uploadSpoolFile;
+  /**
+   * Used to pass the file to the running upload when streaming
+   */
+  private transient ChunkPipe uploadPipe;
+  private transient CompletableFuture<Void> streamingUpload;
+  private transient boolean uploadAborted;
   private transient String jobName;
+
+  /**
+   * Returns the stream for the job when uploading via HTTP, Octoprint or
+   * grblHAL. Either the job is written to a temporary file, which is
+   * uploaded in disconnect(), or the upload is started right away and the
+   * job is sent with chunked transfer encoding while it is generated.
+   */
+  private PrintStream openUpload() throws IOException
+  {
+    // grblHAL needs the file size before the file
+    if (isStreamHttpUpload() && !UPLOAD_METHOD_GRBLHAL.equals(uploadMethod))
+    {
+      ChunkPipe pipe = new ChunkPipe();
+      String jobname = this.jobName;
+      uploadPipe = pipe;
+      streamingUpload = CompletableFuture.runAsync(() -> {
+        try
+        {
+          upload(jobname, null, pipe.getInputStream());
+        }
+        catch (IOException | URISyntaxException e)
+        {
+          pipe.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+          throw new CompletionException(e);
+        }
+        finally
+        {
+          // the job can not be sent anymore
+          pipe.fail(new IOException("Upload has ended"));
+        }
+      }, r -> {
+        Thread t = new Thread(r, getModelName()+" upload");
+        t.setDaemon(true);
+        t.start();
+      });
+      return new PrintStream(pipe.getOutputStream());
+    }
+    uploadSpoolFile = File.createTempFile("liblasercut", ".gcode");
+    uploadSpoolFile.deleteOnExit();
+    return new PrintStream(new BufferedOutputStream(new FileOutputStream(uploadSpoolFile), 64 * 1024));
+  }
+
+  /**
+   * Upload the job either from the spool file or from the stream
+   */
+  private void upload(String jobname, File spooled, InputStream streamed) throws IOException, URISyntaxException
+  {
+    if (UPLOAD_METHOD_HTTP.equals(uploadMethod))
+    {
+      ContentType type = ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8);
+      HttpEntity data = spooled != null ? new FileEntity(spooled, type) : new InputStreamEntity(streamed, -1, type);
+      http_upload(new URI(getHttpUploadUrl()), data, jobname);
+    }
+    else if (UPLOAD_METHOD_OCTOPRINT.equals(uploadMethod))
+    {
+      ContentBody data = spooled != null
+        ? new FileBody(spooled, ContentType.APPLICATION_OCTET_STREAM, jobname)
+        : new InputStreamBody(streamed, ContentType.APPLICATION_OCTET_STREAM, jobname);
+      octoprint_upload(getHost(), getApiKey(), data, this.isAutoPlay());
+    }
+    else if (UPLOAD_METHOD_GRBLHAL.equals(uploadMethod))
+    {
+      http_upload_grblhal(getHttpUploadUrl(), spooled, jobname);
+    }
+  }
+
+  /**
+   * Finish the upload started in openUpload(). Must be called after out
+   * has been closed.
+   * @return false if the upload was aborted
+   */
+  private boolean finishUpload(String jobname) throws IOException, URISyntaxException
+  {
+    try
+    {
+      if (streamingUpload != null)
+      {
+        try
+        {
+          streamingUpload.join();
+        }
+        catch (CompletionException e)
+        {
+          if (uploadAborted)
+          {
+            return false;
+          }
+          if (e.getCause() instanceof IOException)
+          {
+            throw (IOException) e.getCause();
+          }
+          if (e.getCause() instanceof URISyntaxException)
+          {
+            throw (URISyntaxException) e.getCause();
+          }
+          throw e;
+        }
+        return !uploadAborted;
+      }
+      if (uploadSpoolFile != null && !uploadAborted)
+      {
+        if (out.checkError())
+        {
+          throw new IOException("Could not write temporary file "+uploadSpoolFile);
+        }
+        upload(jobname, uploadSpoolFile, null);
+        return true;
+      }
+      return false;
+    }
+    finally
+    {
+      closeUpload();
+    }
+  }
+
+  /**
+   * Make sure that an incomplete job is not uploaded
+   */
+  private void abortUpload(IOException cause)
+  {
+    uploadAborted = true;
+    if (uploadPipe != null)
+    {
+      uploadPipe.fail(cause);
+    }
+  }
+
+  private void closeUpload()
+  {
+    uploadPipe = null;
+    streamingUpload = null;
+    if (uploadSpoolFile != null)
+    {
+      uploadSpoolFile.delete();
+      uploadSpoolFile = null;
+    }
+  }
+
+  /**
+   * Identifies the machine for reusing connections, see {@link ConnectionSession#getKey()}
+   */
+  protected String getSessionKey()
+  {
+    if (UPLOAD_METHOD_IP.equals(uploadMethod))
+    {
+      return "tcp://"+getHost()+":23";
+    }
+    return "serial://"+getComport();
+  }
+
+  protected String getSessionParameters()
+  {
+    return UPLOAD_METHOD_SERIAL.equals(uploadMethod) ? "baud="+getBaudRate() : "";
+  }
+
+  /**
+   * Use the connection of the previous job if it is still open and the
+   * machine responds to {@link #isConnectionAlive()}.
+   * @return false if a new connection has to be opened
+   */
+  private boolean resumeConnection(ProgressListener pl)
+  {
+    ConnectionSession s = resumeSession(getSessionKey(), getSessionParameters(), this::attachSession);
+    if (s == null)
+    {
+      session = null;
+      socket = null;
+      port = null;
+      return false;
+    }
+    pl.taskChanged(this, "Connected (reused)");
+    return true;
+  }
+
+  private boolean attachSession(ConnectionSession s) throws IOException
+  {
+    session = s;
+    socket = s.getTransport() instanceof Socket ? (Socket) s.getTransport() : null;
+    port = s.getTransport() instanceof SerialTransport ? (SerialTransport) s.getTransport() : null;
+    in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+    out = new PrintStream(s.getOutputStream(), true, StandardCharsets.US_ASCII);
+    // a dead connection should not block for the full serial timeout
+    setReadTimeout(Math.min(getSerialTimeout(), PROBE_TIMEOUT));
+    try
+    {
+      return isConnectionAlive();
+    }
+    finally
+    {
+      setReadTimeout(socket != null ? 0 : getSerialTimeout());
+    }
+  }
+
+  private static final int PROBE_TIMEOUT = 2000;
+
+  private void setReadTimeout(int millis) throws IOException
+  {
+    if (socket != null)
+    {
+      socket.setSoTimeout(millis);
+    }
+    else if (port != null)
+    {
+      port.setReadTimeout(millis);
+    }
+  }
+
+  /**
+   * Called before the connection of a previous job is reused. Subclasses
+   * should send a cheap command which does not change the machine state and
+   * check the answer. The default only checks that the connection can still
+   * be written to.
+   */
+  protected boolean isConnectionAlive() throws IOException
+  {
+    out.flush();
+    return !out.checkError();
+  }
+
+  /**
+   * Skip unread answers of the previous job, e.g. before sending a command
+   * in {@link #isConnectionAlive()}
+   */
+  protected void discardInput() throws IOException
+  {
+    while (in.ready())
+    {
+      in.read();
+    }
+  }
+
+  /**
+   * Line based connection (commands and "ok" answers) for the IP upload
+   * method
+   */
+  @Override
+  public NetworkMultiplexer.Connection openConnection(NetworkMultiplexer multiplexer, NetworkMultiplexer.Handler handler) throws IOException
+  {
+    if (!UPLOAD_METHOD_IP.equals(getUploadMethod().getSelectedItem()))
+    {
+      return null;
+    }
+    return multiplexer.connectTcp(getHost(), 23, 1000, NetworkMultiplexer.LINES, handler);
+  }
+
   protected void connect(ProgressListener pl) throws IOException, PortInUseException, NoSuchPortException, UnsupportedCommOperationException
   {
-    outputBuffer = null;
+    closeUpload();
+    uploadAborted = false;
     if (UPLOAD_METHOD_IP.equals(uploadMethod))
     {
       if (getHost() == null || getHost().equals(""))
       {
         throw new IOException("IP/Hostname must be set to upload via IP method");
       }
+      if (resumeConnection(pl))
+      {
+        return;
+      }
       socket = new Socket();
       socket.connect(new InetSocketAddress(getHost(), 23), 1000);
       in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -826,9 +1423,17 @@ public class GenericGcodeDriver extends LaserCutter {
         out.close();
         throw new IOException("Wrong identification Line: "+line+"\n instead of "+getIdentificationLine());
       }
+      if (isKeepConnectionOpen())
+      {
+        session = new ConnectionSession(getSessionKey(), getSessionParameters(), socket, socket.getInputStream(), socket.getOutputStream(), socket);
+      }
     }
     else if (UPLOAD_METHOD_SERIAL.equals(uploadMethod))
     {
+      if (resumeConnection(pl))
+      {
+        return;
+      }
       String error = "No serial port found";
       if (portIdentifier == null && !getComport().equals("auto") && !getComport().equals(""))
       {
@@ -864,6 +1469,10 @@ public class GenericGcodeDriver extends LaserCutter {
       {
         throw new IOException(error);
       }
+      if (isKeepConnectionOpen())
+      {
+        session = new ConnectionSession(getSessionKey(), getSessionParameters(), port, port.getInputStream(), port.getOutputStream(), port);
+      }
     }
     else if (UPLOAD_METHOD_HTTP.equals(uploadMethod) || UPLOAD_METHOD_GRBLHAL.equals(uploadMethod))
     {
@@ -871,8 +1480,7 @@ public class GenericGcodeDriver extends LaserCutter {
       {
         throw new IOException("HTTP Upload URL must be set to upload via HTTP method");
       }
-      outputBuffer = new ByteArrayOutputStream();
-      out = new PrintStream(outputBuffer);
+      out = openUpload();
       setWaitForOKafterEachLine(false);
       in = null;
     }
@@ -895,8 +1503,7 @@ public class GenericGcodeDriver extends LaserCutter {
       if (StringUtils.isAllBlank(getHost())) {
         throw new IOException("HOST/IP must be set to upload via Octoprint method.");
       }
-      outputBuffer = new ByteArrayOutputStream();
-      out = new PrintStream(outputBuffer);
+      out = openUpload();
       setWaitForOKafterEachLine(false);
       in = null;
     }
@@ -911,7 +1518,10 @@ public class GenericGcodeDriver extends LaserCutter {
     if (UPLOAD_METHOD_HTTP.equals(uploadMethod))
     {
       out.close();
-      http_upload(new URI(getHttpUploadUrl()), outputBuffer.toString(StandardCharsets.UTF_8), jobname);
+      if (!finishUpload(jobname))
+      {
+        return;
+      }
       if (this.getPostHttpUploadGcode() != null && !this.getPostHttpUploadGcode().equals(""))
       {
         http_commands(this.getPostHttpUploadGcode(), jobname);
@@ -921,14 +1531,20 @@ public class GenericGcodeDriver extends LaserCutter {
         http_play(jobname);
       }
     }
-    else if (UPLOAD_METHOD_OCTOPRINT.equals(uploadMethod)) {
+    else if (UPLOAD_METHOD_OCTOPRINT.equals(uploadMethod) || UPLOAD_METHOD_GRBLHAL.equals(uploadMethod))
+    {
       out.close();
-      octoprint_upload(getHost(), getApiKey(), outputBuffer.toByteArray(), jobname, this.isAutoPlay());
+      finishUpload(jobname);
     }
-    else if (UPLOAD_METHOD_GRBLHAL.equals(uploadMethod))
+    else if (session != null)
     {
-      out.close();
-      http_upload_grblhal(getHttpUploadUrl(), outputBuffer.toByteArray(), jobname);
+      // keep the connection open for the next job
+      out.flush();
+      ConnectionSession s = session;
+      session = null;
+      socket = null;
+      port = null;
+      releaseSession(s);
     }
     else
     {
@@ -969,19 +1585,61 @@ public class GenericGcodeDriver extends LaserCutter {
     connect(pl);
     pl.taskChanged(this, "sending");
     try {
+      startLineWriter();
       writeJobCode(job, pl);
+      finishLineWriter();
       disconnect(this.jobName);
     }
-    catch (IOException e) {
+    catch (IOException | RuntimeException e) {
+      // also e.g. a CancellationException, which must release the connection
       pl.taskChanged(this, "disconnecting");
+      abortLineWriter();
+      abortUpload(e instanceof IOException ? (IOException) e : new IOException("Job was not sent completely", e));
+      if (session != null)
+      {
+        // the machine may be in an unknown state
+        session.invalidate();
+      }
       disconnect(this.jobName);
       throw e;
     }
+    finally {
+      abortLineWriter();
+      // only has an effect if the job was not sent, e.g. after an Error
+      abortUpload(new IOException("Job was not sent completely"));
+      closeUpload();
+    }
     pl.taskChanged(this, "sent.");
     pl.progressChanged(this, 100);
   }
   
   public void writeJobCode(LaserJob job, ProgressListener pl) throws IOException {
+    lastMotion = null;
+    lastLineX = Double.NaN;
+    lastLineY = Double.NaN;
+    pathX = Double.NaN;
+    pathY = Double.NaN;
+    pathCompressor = null;
+    if (isCompressPaths())
+    {
+      pathCompressor = new PathCompressor(new PathCompressor.Sink()
+      {
+        @Override
+        public void lineTo(double x, double y) throws IOException
+        {
+          line(out, x, y, pathResolution);
+        }
+
+        @Override
+        public void arcTo(double x, double y, double i, double j, boolean clockwise) throws IOException
+        {
+          arc(out, x, y, i, j, clockwise, pathResolution);
+        }
+      }, getRequiredCurvePrecision());
+      // with few digits, the rounded end point does not match the arc radius
+      pathCompressor.setFitArcs(getGCodeDigits() >= 3);
+      lastPathCompressor = pathCompressor;
+    }
     writeInitializationCode();
     pl.progressChanged(this, 20);
     int i = 0;
@@ -1164,6 +1822,89 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
     this.sCodeDigits = sCodeDigits;
   }
 
+  private Integer sendBufferLines = 0;
+
+  /**
+   * Number of lines which are generated ahead of the machine in a background
+   * thread when sending via serial or IP. 0 (the default) sends every line
+   * synchronously.
+   */
+  public Integer getSendBufferLines()
+  {
+    if (sendBufferLines == null) sendBufferLines = 0;
+    return sendBufferLines;
+  }
+
+  public void setSendBufferLines(Integer sendBufferLines)
+  {
+    this.sendBufferLines = sendBufferLines;
+  }
+
+  private boolean compressPaths = false;
+
+  /**
+   * If true, flattened curves are sent as fewer G1 lines and G2/G3 arcs,
+   * within the tolerance of getRequiredCurvePrecision()
+   */
+  public boolean isCompressPaths()
+  {
+    return compressPaths;
+  }
+
+  public void setCompressPaths(boolean compressPaths)
+  {
+    this.compressPaths = compressPaths;
+  }
+
+  private boolean omitModalWords = false;
+
+  /**
+   * If true, G0/G1/G2/G3 and unchanged X/Y words are only sent when they change
+   */
+  public boolean isOmitModalWords()
+  {
+    return omitModalWords;
+  }
+
+  public void setOmitModalWords(boolean omitModalWords)
+  {
+    this.omitModalWords = omitModalWords;
+  }
+
+  private boolean streamHttpUpload = false;
+
+  /**
+   * If true, HTTP and Octoprint uploads start right away and the job is
+   * sent with chunked transfer encoding while it is generated. Otherwise
+   * the job is written to a temporary file first and uploaded with a
+   * known length. grblHAL uploads are never streamed.
+   */
+  public boolean isStreamHttpUpload()
+  {
+    return streamHttpUpload;
+  }
+
+  public void setStreamHttpUpload(boolean streamHttpUpload)
+  {
+    this.streamHttpUpload = streamHttpUpload;
+  }
+
+  private boolean compressHttpUpload = false;
+
+  /**
+   * If true, the body of HTTP uploads is gzip compressed
+   * (Content-Encoding: gzip)
+   */
+  public boolean isCompressHttpUpload()
+  {
+    return compressHttpUpload;
+  }
+
+  public void setCompressHttpUpload(boolean compressHttpUpload)
+  {
+    this.compressHttpUpload = compressHttpUpload;
+  }
+
   private String staticJobName;
 
   public String getStaticJobName()
@@ -1206,7 +1947,13 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
     SETTING_API_KEY,
     SETTING_GCODE_DIGITS,
     SETTING_SCODE_DIGITS,
-    SETTING_STATIC_JOBNAME
+    SETTING_STATIC_JOBNAME,
+    SETTING_SEND_BUFFER_LINES,
+    SETTING_COMPRESS_PATHS,
+    SETTING_OMIT_MODAL_WORDS,
+    SETTING_STREAM_HTTP_UPLOAD,
+    SETTING_COMPRESS_HTTP_UPLOAD,
+    SETTING_KEEP_CONNECTION_OPEN
   };
 
   @Override
@@ -1278,6 +2025,18 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
       return this.getSCodeDigits();
     } else if (SETTING_STATIC_JOBNAME.equals(attribute)) {
       return this.getStaticJobName();
+    } else if (SETTING_SEND_BUFFER_LINES.equals(attribute)) {
+      return this.getSendBufferLines();
+    } else if (SETTING_COMPRESS_PATHS.equals(attribute)) {
+      return this.isCompressPaths();
+    } else if (SETTING_OMIT_MODAL_WORDS.equals(attribute)) {
+      return this.isOmitModalWords();
+    } else if (SETTING_STREAM_HTTP_UPLOAD.equals(attribute)) {
+      return this.isStreamHttpUpload();
+    } else if (SETTING_COMPRESS_HTTP_UPLOAD.equals(attribute)) {
+      return this.isCompressHttpUpload();
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      return this.isKeepConnectionOpen();
     }
 
     return null;
@@ -1347,6 +2106,18 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
       this.setSCodeDigits((Integer) value);
     } else if (SETTING_STATIC_JOBNAME.equals(attribute)) {
       this.setStaticJobName((String) value);
+    } else if (SETTING_SEND_BUFFER_LINES.equals(attribute)) {
+      this.setSendBufferLines((Integer) value);
+    } else if (SETTING_COMPRESS_PATHS.equals(attribute)) {
+      this.setCompressPaths((Boolean) value);
+    } else if (SETTING_OMIT_MODAL_WORDS.equals(attribute)) {
+      this.setOmitModalWords((Boolean) value);
+    } else if (SETTING_STREAM_HTTP_UPLOAD.equals(attribute)) {
+      this.setStreamHttpUpload((Boolean) value);
+    } else if (SETTING_COMPRESS_HTTP_UPLOAD.equals(attribute)) {
+      this.setCompressHttpUpload((Boolean) value);
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      this.setKeepConnectionOpen((Boolean) value);
     }
   }
 
@@ -21,6 +21,8 @@
  */
 package de.thomas_oster.liblasercut.drivers;
 
+import de.thomas_oster.liblasercut.ConnectionSession;
+import de.thomas_oster.liblasercut.CurveFlattener;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
 import de.thomas_oster.liblasercut.LaserCutter;
@@ -33,9 +35,7 @@ import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
-import purejavacomm.CommPort;
-import purejavacomm.CommPortIdentifier;
-import purejavacomm.SerialPort;
+import de.thomas_oster.liblasercut.utils.SerialTransport;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -47,7 +47,6 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 
@@ -143,17 +142,29 @@ public class GoldCutHPGL extends LaserCutter {
   private byte[] generateVectorGCode(VectorPart vp, double resolution) throws UnsupportedEncodingException {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new LinefeedPrintStream(result);
-    for (VectorCommand cmd : vp.getCommandList()) {
+    // current position in px, where ARCTO starts
+    double x0 = 0;
+    double y0 = 0;
+    for (VectorCommand cmd : vp.getCommands(this)) {
       switch (cmd.getType()) {
         case MOVETO:
           double x = cmd.getX();
           double y = cmd.getY();
           move(out, x, y, resolution);
+          x0 = x;
+          y0 = y;
           break;
         case LINETO:
           x = cmd.getX();
           y = cmd.getY();
           line(out, x, y, resolution);
+          x0 = x;
+          y0 = y;
+          break;
+        case ARCTO:
+          arc(out, x0, y0, cmd, resolution);
+          x0 = cmd.getX();
+          y0 = cmd.getY();
           break;
         case SETPROPERTY:
           LaserProperty p = cmd.getProperty();
@@ -205,6 +216,38 @@ public class GoldCutHPGL extends LaserCutter {
     out.printf(Locale.US, command + "%d,%d;", hw_x, hw_y);
   }
 
+  /**
+   * send an AA (arc absolute) command with the pen down
+   * @param x0 start point (in pixels)
+   * @param y0 start point (in pixels)
+   * @param arc ARCTO command
+   * @param resolution dpi (coordinate pixels per inch)
+   */
+  private void arc(PrintStream out, double x0, double y0, VectorCommand arc, double resolution) {
+    double hw_scale = this.getHwDPI()/resolution;
+    double cx = x0 + arc.getI();
+    double cy = y0 + arc.getJ();
+    int hw_cx = (int)(hw_scale * (isFlipXaxis() ? Util.mm2px(this.bedWidth, resolution) - cy : cy));
+    int hw_cy = (int)(hw_scale * (isFlipYaxis() ?  Util.mm2px(getBedHeight(), resolution) - cx : cx));
+    // swapping X and Y reverses the direction, and so does each mirrored axis
+    double sweep = -Math.toDegrees(CurveFlattener.getSweep(x0, y0, arc));
+    if (isFlipXaxis() != isFlipYaxis())
+    {
+      sweep = -sweep;
+    }
+    out.printf(Locale.US, "PD;AA%d,%d,%.3f;", hw_cx, hw_cy, sweep);
+    hw_x = (int)(hw_scale * (isFlipXaxis() ? Util.mm2px(this.bedWidth, resolution) - arc.getY() : arc.getY()));
+    hw_y = (int)(hw_scale * (isFlipYaxis() ?  Util.mm2px(getBedHeight(), resolution) - arc.getX() : arc.getX()));
+  }
+
+  /**
+   * HPGL plotters draw arcs with AA
+   */
+  @Override
+  public boolean canCutArcs() {
+    return true;
+  }
+
   private byte[] generateInitializationCode() throws UnsupportedEncodingException {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
@@ -242,54 +285,58 @@ public class GoldCutHPGL extends LaserCutter {
     job.applyStartPoint();
 
     pl.taskChanged(this, "connecting");
-    SerialPort port = null;
+    ConnectionSession session = null;
     if (!writeToFile)
     {
       if (this.getComPort().startsWith("file://"))
       {
         out = new BufferedOutputStream(new FileOutputStream(new File(new URI(this.getComPort()))));
       }
+      else if ((session = resumeSession("serial://"+this.getComPort(), "9600", ConnectionSession.WRITE_ONLY)) != null)
+      {
+        out = new BufferedOutputStream(session.getOutputStream());
+      }
       else
       {
-        String ComPortName = this.getComPort();
-        if (ComPortName.startsWith("/dev/"))
-        {
-          // allow "/dev/ttyUSB0", although we need only "ttyUSB0"
-          ComPortName = ComPortName.substring(5);
-        }
-        CommPortIdentifier cpi = null;
-        //since the CommPortIdentifier.getPortIdentifier(String name) method
-        //is not working as expected, we have to manually find our port.
-        Enumeration<CommPortIdentifier> en = CommPortIdentifier.getPortIdentifiers();
-        while (en.hasMoreElements())
-        {
-          CommPortIdentifier o = en.nextElement();
-          if (o.getName().equals(ComPortName))
-          {
-            cpi = o;
-            break;
-          }
-        }
-        if (cpi == null)
-        {
-          throw new Exception("Error: No such COM-Port '" + this.getComPort() + "'");
-        }
-        CommPort tmp = cpi.open("VisiCut", 10000);
-        if (tmp == null)
-        {
-          throw new Exception("Error: Could not Open COM-Port '" + this.getComPort() + "'");
-        }
-        if (!(tmp instanceof SerialPort))
-        {
-          throw new Exception("Port '" + this.getComPort() + "' is not a serial port.");
-        }
-        port = (SerialPort) tmp;
-        port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-        port.setSerialPortParams(9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-        out = new BufferedOutputStream(port.getOutputStream());
+        SerialTransport port = SerialTransport.open(this.getComPort(), 9600);
+        session = new ConnectionSession("serial://"+this.getComPort(), "9600", port, null, port.getOutputStream(), port);
+        out = new BufferedOutputStream(session.getOutputStream());
+      }
+    }
+
+    try
+    {
+      writeJobCode(out, job, pl);
+      if (session != null)
+      {
+        out.flush();
+        // report transmission errors now, not when the port is closed
+        ((SerialTransport) session.getTransport()).drain();
       }
     }
+    catch (Exception e)
+    {
+      if (session != null)
+      {
+        session.invalidate();
+        releaseSession(session);
+      }
+      throw e;
+    }
+    if (session != null)
+    {
+      // closes the port unless it is kept open for the next job
+      releaseSession(session);
+    }
+    else
+    {
+      out.close();
+    }
+    pl.taskChanged(this, "sent.");
+    pl.progressChanged(this, 100);
+  }
 
+  private void writeJobCode(BufferedOutputStream out, LaserJob job, ProgressListener pl) throws IllegalJobException, Exception {
     pl.taskChanged(this, "sending");
     out.write(this.generateInitializationCode());
     pl.progressChanged(this, 20);
@@ -307,13 +354,6 @@ public class GoldCutHPGL extends LaserCutter {
       pl.progressChanged(this, 20 + (int) (i*(double) 60/max));
     }
     out.write(this.generateShutdownCode());
-    out.close();
-    if (port != null)
-    {
-      port.close();
-    }
-    pl.taskChanged(this, "sent.");
-    pl.progressChanged(this, 100);
   }
 
   @Override
@@ -379,6 +419,7 @@ public class GoldCutHPGL extends LaserCutter {
     SETTING_RASTER_WHITESPACE,
     SETTING_INITSTRING,
     SETTING_FINISTRING,
+    SETTING_KEEP_CONNECTION_OPEN,
   };
 
   @Override
@@ -404,6 +445,8 @@ public class GoldCutHPGL extends LaserCutter {
       return this.getInitString();
     } else if (SETTING_FINISTRING.equals(attribute)) {
       return this.getFiniString();
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      return this.isKeepConnectionOpen();
     }
     return null;
   }
@@ -426,6 +469,8 @@ public class GoldCutHPGL extends LaserCutter {
       this.setInitString((String) value);
     } else if (SETTING_FINISTRING.equals(attribute)) {
       this.setFiniString((String) value);
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      this.setKeepConnectionOpen((Boolean) value);
     }
   }
 
@@ -438,6 +483,7 @@ public class GoldCutHPGL extends LaserCutter {
     clone.flipXaxis = flipXaxis;
     clone.flipYaxis = flipYaxis;
     clone.addSpacePerRasterLine = addSpacePerRasterLine;
+    clone.setKeepConnectionOpen(isKeepConnectionOpen());
     return clone;
   }
 
@@ -20,6 +20,7 @@ package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.GCodeLineBuilder;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
@@ -64,6 +65,8 @@ public class Grbl extends GenericGcodeDriver
     result.remove(GenericGcodeDriver.SETTING_HOST);
     result.remove(GenericGcodeDriver.SETTING_HTTP_UPLOAD_URL);
     result.remove(GenericGcodeDriver.SETTING_AUTOPLAY);
+    result.remove(GenericGcodeDriver.SETTING_STREAM_HTTP_UPLOAD);
+    result.remove(GenericGcodeDriver.SETTING_COMPRESS_HTTP_UPLOAD);
     result.remove(GenericGcodeDriver.SETTING_IDENTIFICATION_STRING);
     result.remove(GenericGcodeDriver.SETTING_WAIT_FOR_OK);
     result.remove(GenericGcodeDriver.SETTING_TRAVEL_SPEED);
@@ -158,6 +161,32 @@ public class Grbl extends GenericGcodeDriver
     return null;
   }
   
+  /**
+   * Request a status report ("?"). It is handled by Grbl immediately,
+   * without a line end and without changing the machine state.
+   * Note that a reused connection skips the soft reset and homing.
+   */
+  @Override
+  protected boolean isConnectionAlive() throws IOException
+  {
+    discardInput();
+    out.write('?');
+    out.flush();
+    for (int i = 0; i < 5; i++)
+    {
+      String line = in.readLine();
+      if (line == null)
+      {
+        return false;
+      }
+      if (line.startsWith("<"))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Send a G0 rapid move to Grbl.
    * Doesn't include travel speed since grbl ignores that anyway.
@@ -167,34 +196,33 @@ public class Grbl extends GenericGcodeDriver
     x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
     currentSpeed = getTravel_speed();
+    GCodeLineBuilder line = beginLine("G0")
+      .wordFixed('X', x, 6)
+      .wordFixed('Y', y, 6);
     if (blankLaserDuringRapids)
     {
       currentPower = -1; // set to invalid value to force new S-value at next G1
-      sendLine("G0 X%f Y%f S0", x, y);
-    }
-    else
-    {
-      sendLine("G0 X%f Y%f", x, y);
+      line.word('S', 0);
     }
+    sendLine(line);
   }
   
+  /**
+   * Grbl does not need whitespace between the words
+   */
+  @Override
+  protected boolean isCompactGCode()
+  {
+    return true;
+  }
+
   /**
    * Send a line of gcode to the cutter, stripping out any whitespace in the process
    */
   @Override
   protected void sendLine(String text, Object... parameters) throws IOException
   {
-    out.format(FORMAT_LOCALE, text.replace(" ", "")+LINEEND(), parameters);
-    // System.out.println(String.format(FORMAT_LOCALE, "> "+text+LINEEND(), parameters));
-    out.flush();
-    if (isWaitForOKafterEachLine())
-    {
-      String line = waitForLine();
-      if (!"ok".equals(line))
-      {
-        throw new IOException("Lasercutter did not respond 'ok', but '"+line+"'instead.");
-      }
-    }
+    super.sendLine(text.replace(" ", ""), parameters);
   }
 
   @Override
@@ -306,7 +306,7 @@ public class IModelaMill extends LaserCutter
   private void writeVectorCode(VectorPart p, PrintStream out)
   {
     double dpi = p.getDPI();
-    for (VectorCommand c : p.getCommandList())
+    for (VectorCommand c : p.getCommands(this))
     {
       switch (c.getType())
       {
@@ -21,6 +21,7 @@
 package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.ByteArrayList;
+import de.thomas_oster.liblasercut.ConnectionSession;
 import de.thomas_oster.liblasercut.properties.FloatPowerSpeedFocusProperty;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
@@ -34,12 +35,11 @@ import de.thomas_oster.liblasercut.Raster3dPart;
 import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.RasterPart;
+import de.thomas_oster.liblasercut.utils.SerialTransport;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
@@ -50,7 +50,6 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 
-import purejavacomm.CommPort;
 import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
 import purejavacomm.PortInUseException;
@@ -97,6 +96,7 @@ public class K3EngraverDriver extends LaserCutter
     SETTING_BED_WIDTH,
     SETTING_BED_HEIGHT,
     SETTING_PREVIEW_CYCLES,
+    SETTING_KEEP_CONNECTION_OPEN,
 
   };
 
@@ -193,9 +193,14 @@ public class K3EngraverDriver extends LaserCutter
 
   protected transient BufferedReader in;
   protected transient PrintStream out;
-  protected transient InputStreamReader inStream;
-  private transient CommPort port;
+  private transient SerialTransport port;
   private transient CommPortIdentifier portIdentifier;
+  /**
+   * Connection which is kept open between jobs, if enabled
+   */
+  private transient ConnectionSession session;
+  /// True if the last waitForACK() received the ACK
+  private transient boolean ackReceived;
   private transient ByteArrayOutputStream outputBuffer;
   /// True while writing to file (instead of sending to machine). Ugly hack, should be a function parameter instead.
   private transient boolean writingToFile;
@@ -207,26 +212,13 @@ public class K3EngraverDriver extends LaserCutter
     {
       try
       {
-        port = i.open("VisiCut", 1000);
-
-        try
-        {
-          port.enableReceiveTimeout(getSerialTimeout());
-        }
-        catch (UnsupportedCommOperationException e)
+        port = SerialTransport.open(i, getBaudRate());
+        if (this.getBaudRate() > 0 && port.getPort() instanceof SerialPort)
         {
-          System.err.println("Serial timeout not supported. Driver may hang if device does not respond properly.");
-        }
-
-        if (this.getBaudRate() > 0 && port instanceof SerialPort)
-        {
-          SerialPort sp = (SerialPort) port;
-          sp.disableReceiveFraming();
-          sp.setSerialPortParams(getBaudRate(), 8, 1, 0);
-          sp.setDTR(true);
+          ((SerialPort) port.getPort()).disableReceiveFraming();
         }
+        port.setReadTimeout(getSerialTimeout());
         out = new PrintStream(port.getOutputStream(), true, StandardCharsets.US_ASCII);
-        inStream = new InputStreamReader(port.getInputStream());
 
         portIdentifier = i;
         pl.taskChanged(this, "Connected");
@@ -295,17 +287,22 @@ public class K3EngraverDriver extends LaserCutter
       return 0x09;
     }
     int rec = 0;
-    char[] inBuf = new char[128];
-    int trys = 0;
+    byte[] inBuf = new byte[128];
+    ackReceived = false;
 
-    while (trys < WAIT_FOR_ACK_RETRIES)
+    // returns as soon as the answer arrives
+    long deadline = System.currentTimeMillis() + (long) WAIT_FOR_ACK_RETRIES * WAIT_FOR_ACK_TIME;
+    long rest;
+    while ((rest = deadline - System.currentTimeMillis()) > 0)
     {
-      Thread.sleep(WAIT_FOR_ACK_TIME);
-      trys++;
-
-      rec = inStream.read(inBuf);
-      if (inBuf[0] == (byte) 0x09)
+      rec = port.read(inBuf, 0, inBuf.length, rest);
+      if (rec < 0)
       {
+        throw new IOException("Connection closed while waiting for ACK");
+      }
+      if (rec > 0 && inBuf[0] == (byte) 0x09)
+      {
+        ackReceived = true;
         return rec;
       }
     }
@@ -490,10 +487,17 @@ public class K3EngraverDriver extends LaserCutter
     {
       // writing to file -- create fake connection
       out = new PrintStream(fileOutputStream, true, StandardCharsets.US_ASCII);
-      inStream = new InputStreamReader(InputStream.nullInputStream());
       return;
     }
 
+    session = resumeSession("serial://" + getComport(), "baud=" + getBaudRate(), this::attachSession);
+    if (session != null)
+    {
+      pl.taskChanged(this, "Connected (reused)");
+      return;
+    }
+    port = null;
+
     String error = "No serial port found";
     if (portIdentifier == null && !getComport().equals("auto") && !getComport().equals(""))
     {
@@ -531,11 +535,39 @@ public class K3EngraverDriver extends LaserCutter
     {
       throw new IOException(error);
     }
+    if (isKeepConnectionOpen())
+    {
+      session = new ConnectionSession("serial://" + getComport(), "baud=" + getBaudRate(), port, port.getInputStream(), port.getOutputStream(), port);
+    }
 
   }
 
+  /**
+   * Use the port of the previous job, if the engraver still acknowledges
+   * the connect sequence
+   */
+  private boolean attachSession(ConnectionSession s) throws Exception
+  {
+    port = (SerialTransport) s.getTransport();
+    out = new PrintStream(s.getOutputStream(), true, StandardCharsets.US_ASCII);
+    port.discardInput();
+    sendConnectSequence();
+    return ackReceived;
+  }
+
   protected void disconnect(String jobname) throws IOException, URISyntaxException
   {
+    if (session != null)
+    {
+      // keep the port open for the next job
+      out.flush();
+      ConnectionSession s = session;
+      session = null;
+      port = null;
+      releaseSession(s);
+      return;
+    }
+
     if (outputBuffer != null)
     {
       out.close();
@@ -565,7 +597,20 @@ public class K3EngraverDriver extends LaserCutter
   @Override
   public void sendJob(LaserJob job, ProgressListener pl, List<String> warnings) throws IllegalJobException, Exception
   {
-    sendOrWriteJob(job, pl, warnings, null);
+    try
+    {
+      sendOrWriteJob(job, pl, warnings, null);
+    }
+    catch (Exception e)
+    {
+      if (session != null)
+      {
+        // the engraver may be in an unknown state
+        session.invalidate();
+        disconnect("");
+      }
+      throw e;
+    }
   }
 
   @Override
@@ -607,7 +652,7 @@ public class K3EngraverDriver extends LaserCutter
       {
         VectorPart vp = ((VectorPart) p);
 
-        for (VectorCommand cmd : vp.getCommandList())
+        for (VectorCommand cmd : vp.getCommands(this))
         {
 
           if (cmd.getType() == VectorCommand.CmdType.MOVETO)
@@ -807,6 +852,10 @@ public class K3EngraverDriver extends LaserCutter
     {
       return this.getPreviewCycles();
     }
+    if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute))
+    {
+      return this.isKeepConnectionOpen();
+    }
     return null;
   }
 
@@ -841,6 +890,10 @@ public class K3EngraverDriver extends LaserCutter
     {
       this.setPreviewCycles((int) value);
     }
+    if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute))
+    {
+      this.setKeepConnectionOpen((Boolean) value);
+    }
 
   }
 
@@ -33,14 +33,22 @@ import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 
 import java.io.PrintStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.usb4java.Context;
@@ -53,6 +61,8 @@ import org.usb4java.InterfaceDescriptor;
 import org.usb4java.DeviceList;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
 
 public class K40NanoDriver extends LaserCutter
 {
@@ -64,10 +74,14 @@ public class K40NanoDriver extends LaserCutter
   private static final String SETTING_BEDHEIGHT = "Laserbed Height";
   private static final String SETTING_BOARD = "M2, M1, M, B2, B1, B, A, board selection";
   private static final String SETTING_MOCK = "Use mock usb channel";
+  private static final String SETTING_PACKETS_IN_FLIGHT = "USB packets per status check";
+
+  // minimum time between two progress updates
+  private static final long PROGRESS_INTERVAL_MILLIS = 100;
 
   private static final String[] settingAttributes = new String[]
   {
-    SETTING_BEDWIDTH, SETTING_BEDHEIGHT, SETTING_BOARD, SETTING_MOCK
+    SETTING_BEDWIDTH, SETTING_BEDHEIGHT, SETTING_BOARD, SETTING_MOCK, SETTING_PACKETS_IN_FLIGHT
   };
 
   //310mm by 220mm
@@ -75,6 +89,7 @@ public class K40NanoDriver extends LaserCutter
   double bedHeight = 220;
   String board = "M2";
   boolean mock = false;
+  int packetsInFlight = 1;
   PrintStream saveJob = null;
   List<String> warnings = null;
   ProgressListener progress = null;
@@ -118,9 +133,10 @@ public class K40NanoDriver extends LaserCutter
         }
 
         @Override
-        public void add(String element)
+        public void add(byte[] element)
         {
-          saveJob.println(element);
+          saveJob.write(element, 0, element.length);
+          saveJob.println();
         }
 
         @Override
@@ -149,8 +165,10 @@ public class K40NanoDriver extends LaserCutter
         device.move_absolute(sx, sy);
         int step_size = (int) (1000.0 / p.getDPI());
         device.setRaster_step(step_size);
-        RasterElement element = ((RasterElement.Provider) rp.getImage()).getRaster();
-        RasterBuilder rasterbuild = new RasterBuilder(element, (properties, pixel) -> properties.setProperty("pixel", pixel), 0, 0, 0);
+        RasterBuilder.PixelSource element = rp.getImage() instanceof RasterBuilder.PixelSource
+          ? (RasterBuilder.PixelSource) rp.getImage()
+          : ((RasterElement.Provider) rp.getImage()).getRaster();
+        RasterBuilder rasterbuild = new RasterBuilder(element, (properties, pixel) -> properties.setInt("pixel", pixel), 0, 0, 0);
         rasterbuild.setOffsetPosition(rp.getMinX(), rp.getMinY());
 
         int pixel = 0;
@@ -195,7 +213,7 @@ public class K40NanoDriver extends LaserCutter
               case SETPROPERTY:
               {
                 AbstractLaserProperty prop = (AbstractLaserProperty) cmd.getProperty();
-                pixel = prop.getInteger("pixel", pixel);
+                pixel = prop.getInt("pixel", pixel);
                 break;
               }
             }
@@ -206,11 +224,18 @@ public class K40NanoDriver extends LaserCutter
       {
         VectorPart vp = (VectorPart) p;
         int i = 0;
-        int total = vp.getCommandList().length;
-        for (VectorCommand cmd : vp.getCommandList())
+        int total = vp.getCommandCount();
+        long nextProgress = 0;
+        pl.taskChanged(this, "Vector Part");
+        for (VectorCommand cmd : vp.getCommands(this))
         {
-          pl.taskChanged(this, "Vector Part");
-          pl.progressChanged(this, (100 * i++) / total);
+          long now = System.currentTimeMillis();
+          if (now >= nextProgress)
+          {
+            pl.progressChanged(this, (100 * i) / total);
+            nextProgress = now + PROGRESS_INTERVAL_MILLIS;
+          }
+          i++;
           switch (cmd.getType())
           {
             case LINETO:
@@ -335,6 +360,23 @@ public class K40NanoDriver extends LaserCutter
     this.mock = mock;
   }
 
+  public int getPacketsInFlight()
+  {
+    return packetsInFlight;
+  }
+
+  /**
+   * Number of packets which are sent before the status of the device is
+   * checked. 1 checks the status after every packet.
+   * Larger values are faster, but need a board which reports how many
+   * packets of a rejected batch it accepted (see PipelinedUsb), otherwise
+   * a rejected packet aborts the job.
+   */
+  public void setPacketsInFlight(int packetsInFlight)
+  {
+    this.packetsInFlight = Math.max(1, packetsInFlight);
+  }
+
   public void setBedWidth(double bedWidth)
   {
     this.bedWidth = bedWidth;
@@ -371,6 +413,7 @@ public class K40NanoDriver extends LaserCutter
     clone.bedWidth = this.bedWidth;
     clone.board = this.board;
     clone.mock = this.mock;
+    clone.packetsInFlight = this.packetsInFlight;
     return clone;
   }
 
@@ -399,6 +442,10 @@ public class K40NanoDriver extends LaserCutter
     {
       this.setMock((Boolean) value);
     }
+    else if (SETTING_PACKETS_IN_FLIGHT.equals(attribute))
+    {
+      this.setPacketsInFlight((Integer) value);
+    }
   }
 
   @Override
@@ -420,9 +467,218 @@ public class K40NanoDriver extends LaserCutter
     {
       return this.isMock();
     }
+    else if (SETTING_PACKETS_IN_FLIGHT.equals(attribute))
+    {
+      return this.getPacketsInFlight();
+    }
     return null;
   }
 
+  /**
+   * Growable buffer for the ASCII EGV commands. The commands are encoded
+   * as bytes directly, so they are not converted from chars for every
+   * USB packet.
+   */
+  static final class EgvBuilder
+  {
+    private byte[] data = new byte[64];
+    private int length = 0;
+
+    // the last direction and distance code, which is extended by the next
+    // one in the same direction if nothing was appended in between
+    private int runStart = -1;
+    private int runEnd = -1;
+    private char runDirection;
+    private int runDistance;
+
+    private void ensureCapacity(int capacity)
+    {
+      if (capacity > data.length)
+      {
+        data = Arrays.copyOf(data, Math.max(capacity, 2 * data.length));
+      }
+    }
+
+    EgvBuilder append(char c)
+    {
+      ensureCapacity(length + 1);
+      data[length++] = (byte) c;
+      return this;
+    }
+
+    EgvBuilder append(CharSequence s)
+    {
+      ensureCapacity(length + s.length());
+      for (int i = 0; i < s.length(); i++)
+      {
+        data[length++] = (byte) s.charAt(i);
+      }
+      return this;
+    }
+
+    EgvBuilder append(byte[] b, int offset, int count)
+    {
+      ensureCapacity(length + count);
+      System.arraycopy(b, offset, data, length, count);
+      length += count;
+      return this;
+    }
+
+    EgvBuilder appendRepeated(char c, int count)
+    {
+      ensureCapacity(length + count);
+      Arrays.fill(data, length, length + count, (byte) c);
+      length += count;
+      return this;
+    }
+
+    /**
+     * Decimal number, zero padded to the given number of digits
+     * (like String.format("%03d") for 3 digits)
+     */
+    EgvBuilder appendNumber(int value, int digits)
+    {
+      String s = Integer.toString(value);
+      if (s.length() < digits)
+      {
+        appendRepeated('0', digits - s.length());
+      }
+      return append(s);
+    }
+
+    /**
+     * Appends a direction followed by a distance. Consecutive moves in the
+     * same direction are merged into one distance, e.g. "BaBc" becomes "Bd".
+     */
+    EgvBuilder appendRun(char direction, int distance)
+    {
+      if (runEnd == length && runDirection == direction)
+      {
+        distance += runDistance;
+        length = runStart;
+      }
+      runStart = length;
+      runDirection = direction;
+      runDistance = distance;
+      append(direction);
+      appendDistance(distance);
+      runEnd = length;
+      return this;
+    }
+
+    /**
+     * Length of the direction and distance code at the end, which may still
+     * be merged with the next move, 0 if the last code is something else
+     */
+    int trailingRunLength()
+    {
+      return runEnd == length && runStart >= 0 ? length - runStart : 0;
+    }
+
+    EgvBuilder appendDistance(int v)
+    {
+      if (v >= 255)
+      {
+        int z_count = v / 255;
+        v %= 255;
+        appendRepeated('z', z_count);
+      }
+      if (v > 51)
+      {
+        appendNumber(v, 3);
+        return this;
+      }
+      else if (v > 25)
+      {
+        append('|');
+        v -= 25;
+      }
+      if (v > 0)
+      {
+        append((char) ('a' + (v - 1)));
+      }
+      return this;
+    }
+
+    int length()
+    {
+      return length;
+    }
+
+    byte[] array()
+    {
+      return data;
+    }
+
+    /**
+     * Removes the first count bytes
+     */
+    void remove(int count)
+    {
+      System.arraycopy(data, count, data, 0, length - count);
+      length -= count;
+      runStart -= count;
+      runEnd -= count;
+    }
+
+    void clear()
+    {
+      length = 0;
+      runStart = -1;
+      runEnd = -1;
+    }
+
+    byte[] toByteArray()
+    {
+      return Arrays.copyOf(data, length);
+    }
+
+    @Override
+    public String toString()
+    {
+      return new String(data, 0, length, StandardCharsets.US_ASCII);
+    }
+  }
+
+  private static final class SpeedKey
+  {
+    final String board;
+    final double speed;
+    final boolean raster;
+    final int rasterStep;
+    final double dRatio;
+
+    SpeedKey(String board, double speed, boolean raster, int rasterStep, double dRatio)
+    {
+      this.board = board;
+      this.speed = speed;
+      this.raster = raster;
+      this.rasterStep = rasterStep;
+      this.dRatio = dRatio;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof SpeedKey))
+      {
+        return false;
+      }
+      SpeedKey k = (SpeedKey) o;
+      return speed == k.speed && raster == k.raster && rasterStep == k.rasterStep
+        && dRatio == k.dRatio && Objects.equals(board, k.board);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash(board, speed, raster, rasterStep, dRatio);
+    }
+  }
+
+  private static final int MAX_SPEED_CODES = 4096;
+  private static final Map<SpeedKey, byte[]> speedCodes = new ConcurrentHashMap<>();
+
   public class K40Device
   {
 
@@ -440,7 +696,7 @@ public class K40NanoDriver extends LaserCutter
     static final char DIAGONAL = 'M';
 
     K40Queue queue;
-    private final StringBuilder builder = new StringBuilder();
+    private final EgvBuilder builder = new EgvBuilder();
 
     private int mode = UNINIT;
 
@@ -474,8 +730,9 @@ public class K40NanoDriver extends LaserCutter
       if (mode == COMPACT)
       {
         exit_compact_mode();
-        execute();
       }
+      flush();
+      execute();
       queue.close();
       queue = null;
     }
@@ -532,10 +789,30 @@ public class K40NanoDriver extends LaserCutter
       this.d_ratio = d_ratio;
     }
 
+    /**
+     * Queues the commands. A move at the end is kept back, so it can be
+     * merged with a move in the same direction by the next command.
+     */
     void send()
     {
-      queue.add(builder.toString());
-      builder.delete(0, builder.length());
+      int length = builder.length() - builder.trailingRunLength();
+      if (length > 0)
+      {
+        queue.add(Arrays.copyOf(builder.array(), length));
+        builder.remove(length);
+      }
+    }
+
+    /**
+     * Queues all commands
+     */
+    void flush()
+    {
+      if (builder.length() > 0)
+      {
+        queue.add(builder.toByteArray());
+        builder.clear();
+      }
     }
 
     void home()
@@ -622,7 +899,7 @@ public class K40NanoDriver extends LaserCutter
       {
         exit_compact_mode();
       }
-      builder.append(getSpeed(speed, true));
+      encodeSpeed(builder, speed, true);
       builder.append('N');
       builder.append(BOTTOM);
       builder.append(RIGHT);
@@ -704,22 +981,21 @@ public class K40NanoDriver extends LaserCutter
 
     void encode_speed(double speed)
     {
-      builder.append(getSpeed(speed));
+      encodeSpeed(builder, speed, false);
     }
 
     void move_x(int dx)
     {
       if (0 < dx)
       {
-        builder.append(RIGHT);
+        builder.appendRun(RIGHT, Math.abs(dx));
         is_left = false;
       }
       else
       {
-        builder.append(LEFT);
+        builder.appendRun(LEFT, Math.abs(dx));
         is_left = true;
       }
-      distance(Math.abs(dx));
       this.x += dx;
     }
 
@@ -727,15 +1003,14 @@ public class K40NanoDriver extends LaserCutter
     {
       if (0 < dy)
       {
-        builder.append(BOTTOM);
+        builder.appendRun(BOTTOM, Math.abs(dy));
         is_top = false;
       }
       else
       {
-        builder.append(TOP);
+        builder.appendRun(TOP, Math.abs(dy));
         is_top = true;
       }
-      distance(Math.abs(dy));
       this.y += dy;
     }
 
@@ -774,16 +1049,14 @@ public class K40NanoDriver extends LaserCutter
         }
         is_top = true;
       }
-      builder.append(DIAGONAL);
-      distance(Math.abs(dx));
+      builder.appendRun(DIAGONAL, Math.abs(dx));
       this.x += dx;
       this.y += dy;
     }
 
     void move_diagonal(int v)
     {
-      builder.append(DIAGONAL);
-      distance(Math.abs(v));
+      builder.appendRun(DIAGONAL, Math.abs(v));
       if (is_top)
       {
         this.y -= v;
@@ -1006,26 +1279,7 @@ public class K40NanoDriver extends LaserCutter
 
     public void distance(int v)
     {
-      if (v >= 255)
-      {
-        int z_count = v / 255;
-        v %= 255;
-        builder.append("z".repeat(z_count));
-      }
-      if (v > 51)
-      {
-        builder.append(String.format("%03d", v));
-        return;
-      }
-      else if (v > 25)
-      {
-        builder.append('|');
-        v -= 25;
-      }
-      if (v > 0)
-      {
-        builder.append((char) ('a' + (v - 1)));
-      }
+      builder.appendDistance(v);
     }
 
     public int getGear(double mm_per_second)
@@ -1072,6 +1326,35 @@ public class K40NanoDriver extends LaserCutter
     }
 
     public String getSpeed(double mm_per_second, boolean raster)
+    {
+      EgvBuilder result = new EgvBuilder();
+      encodeSpeed(result, mm_per_second, raster);
+      return result.toString();
+    }
+
+    /**
+     * Appends the speed code. The codes are computed once per board, speed
+     * and raster step or diagonal ratio, and then taken from a cache.
+     */
+    void encodeSpeed(EgvBuilder out, double mm_per_second, boolean raster)
+    {
+      SpeedKey key = new SpeedKey(board, mm_per_second, raster, raster ? raster_step : 0, raster ? 0 : d_ratio);
+      byte[] code = speedCodes.get(key);
+      if (code == null)
+      {
+        EgvBuilder result = new EgvBuilder();
+        computeSpeed(result, mm_per_second, raster);
+        code = result.toByteArray();
+        if (speedCodes.size() >= MAX_SPEED_CODES)
+        {
+          speedCodes.clear();
+        }
+        speedCodes.put(key, code);
+      }
+      out.append(code, 0, code.length);
+    }
+
+    private void computeSpeed(EgvBuilder out, double mm_per_second, boolean raster)
     {
       int gear;
       if (raster)
@@ -1110,7 +1393,8 @@ public class K40NanoDriver extends LaserCutter
             b = 6144.0;
             break;
         }
-        return getSpeed(mm_per_second, m, b, gear, true, raster);
+        encodeSpeed(out, mm_per_second, m, b, gear, true, raster);
+        return;
       }
       if ("M".equals(board) || "M1".equals(board))
       {
@@ -1131,7 +1415,8 @@ public class K40NanoDriver extends LaserCutter
             b = 6144.0;
             break;
         }
-        return getSpeed(mm_per_second, m, b, gear, "M1".equals(board), raster);
+        encodeSpeed(out, mm_per_second, m, b, gear, "M1".equals(board), raster);
+        return;
       }
       if ("A".equals(board) || "B".equals(board) || "B1".equals(board))
       {
@@ -1152,7 +1437,8 @@ public class K40NanoDriver extends LaserCutter
             b = 6144.0;
             break;
         }
-        return getSpeed(mm_per_second, m, b, gear, true, raster);
+        encodeSpeed(out, mm_per_second, m, b, gear, true, raster);
+        return;
       }
       if ("B2".equals(board))
       {
@@ -1173,12 +1459,13 @@ public class K40NanoDriver extends LaserCutter
             b = 1024.0;
             break;
         }
-        return getSpeed(mm_per_second, m, b, gear, true, raster);
+        encodeSpeed(out, mm_per_second, m, b, gear, true, raster);
+        return;
       }
       throw new UnsupportedOperationException("Board is not known.");
     }
 
-    String getSpeed(double mm_per_second, double m, double b, int gear, boolean diagonal_code_required, boolean raster)
+    void encodeSpeed(EgvBuilder out, double mm_per_second, double m, double b, int gear, boolean diagonal_code_required, boolean raster)
     {
       boolean suffix_c = false;
       if (gear == 0)
@@ -1200,27 +1487,23 @@ public class K40NanoDriver extends LaserCutter
       }
       if (raster)
       {
-        return String.format(
-          "V%03d%03d%1dG%03d",
-          (speed_value >> 8) & 0xFF, (speed_value & 0xFF),
-          gear, raster_step);
+        // V%03d%03d%1dG%03d
+        out.append('V');
+        out.appendNumber((speed_value >> 8) & 0xFF, 3).appendNumber(speed_value & 0xFF, 3);
+        out.appendNumber(gear, 1).append('G').appendNumber(raster_step, 3);
+        return;
       }
+      // CV%03d%03d%1d
+      out.append("CV");
+      out.appendNumber((speed_value >> 8) & 0xFF, 3).appendNumber(speed_value & 0xFF, 3);
+      out.appendNumber(gear, 1);
       if (!diagonal_code_required)
       {
         if (suffix_c)
         {
-          return String.format(
-            "CV%03d%03d%1dC",
-            (speed_value >> 8) & 0xFF, (speed_value & 0xFF),
-            gear);
-        }
-        else
-        {
-          return String.format(
-            "CV%03d%03d%1d",
-            (speed_value >> 8) & 0xFF, (speed_value & 0xFF),
-            gear);
+          out.append('C');
         }
+        return;
       }
       int step_value = (int) mm_per_second;
       double d_value = d_ratio * (m * period_in_ms) / (double) step_value;
@@ -1233,21 +1516,13 @@ public class K40NanoDriver extends LaserCutter
       {
         diag_add = 65535;
       }
+      // %03d%03d%03d
+      out.appendNumber(step_value, 3);
+      out.appendNumber((diag_add >> 8) & 0xFF, 3).appendNumber(diag_add & 0xFF, 3);
       if (suffix_c)
       {
-        return String.format(
-          "CV%03d%03d%1d%03d%03d%03dC",
-          (speed_value >> 8) & 0xFF, (speed_value & 0xFF),
-          gear,
-          step_value,
-          (diag_add >> 8) & 0xFF, (diag_add & 0xFF));
+        out.append('C');
       }
-      return String.format(
-        "CV%03d%03d%1d%03d%03d%03d",
-        (speed_value >> 8) & 0xFF, (speed_value & 0xFF),
-        gear,
-        step_value,
-        (diag_add >> 8) & 0xFF, (diag_add & 0xFF));
     }
 
   }
@@ -1255,20 +1530,23 @@ public class K40NanoDriver extends LaserCutter
   public class K40Queue
   {
 
-    final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
-    private final StringBuilder buffer = new StringBuilder();
+    final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final EgvBuilder buffer = new EgvBuilder();
     BaseUsb usb;
 
     public void open()
     {
+      PipelinedUsb pipelinedUsb;
       if (mock)
       {
-        usb = new MockUsb();
+        pipelinedUsb = new MockUsb();
       }
       else
       {
-        usb = new K40Usb();
+        pipelinedUsb = new K40Usb();
       }
+      pipelinedUsb.setPacketsInFlight(packetsInFlight);
+      usb = pipelinedUsb;
       usb.open();
     }
 
@@ -1282,14 +1560,19 @@ public class K40NanoDriver extends LaserCutter
     {
       int len = K40Usb.PAYLOAD_LENGTH;
       int pad = (len - (buffer.length() % len)) % len;
-      buffer.append("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFF".subSequence(0, pad));
+      buffer.appendRepeated('F', pad);
     }
 
-    public void add(String element)
+    public void add(byte[] element)
     {
       queue.add(element);
     }
 
+    public void add(String element)
+    {
+      add(element.getBytes(StandardCharsets.US_ASCII));
+    }
+
     void add_wait()
     {
       add("-\n");
@@ -1302,32 +1585,30 @@ public class K40NanoDriver extends LaserCutter
         boolean wait = false;
         while (!queue.isEmpty())
         {
-          String element = queue.poll();
-          if (element.endsWith("-\n"))
+          byte[] element = queue.poll();
+          int length = element.length;
+          if (length >= 2 && element[length - 2] == '-' && element[length - 1] == '\n')
           {
-            buffer.append(element.subSequence(0, element.length() - 2));
+            buffer.append(element, 0, length - 2);
             pad_buffer();
             wait = true;
             break;
           }
-          else if (element.endsWith("\n"))
+          else if (length >= 1 && element[length - 1] == '\n')
           {
-            buffer.append(element.subSequence(0, element.length() - 1));
+            buffer.append(element, 0, length - 1);
             pad_buffer();
           }
           else
           {
-            buffer.append(element);
+            buffer.append(element, 0, length);
           }
         } //moved as much of the queue to the buffer as we could.
-        while (buffer.length() >= K40Usb.PAYLOAD_LENGTH)
+        int packets = buffer.length() / K40Usb.PAYLOAD_LENGTH;
+        if (packets > 0 && usb != null)
         {
-          if (usb != null)
-          {
-            usb.wait_for_ok();
-            usb.send_packet(buffer.subSequence(0, K40Usb.PAYLOAD_LENGTH));
-            buffer.delete(0, K40Usb.PAYLOAD_LENGTH);
-          }
+          usb.send_packets(buffer.array(), 0, packets);
+          buffer.remove(packets * K40Usb.PAYLOAD_LENGTH);
         } //all sendable packets sent.
         if (wait)
         {
@@ -1352,31 +1633,41 @@ public class K40NanoDriver extends LaserCutter
 
     void wait_for_finish();
 
-    void send_packet(CharSequence s);
+    /**
+     * Sends one packet and waits until the device accepted it
+     * @param payload contains PAYLOAD_LENGTH bytes at the offset
+     */
+    void send_packet(byte[] payload, int offset);
+
+    /**
+     * Sends count packets of PAYLOAD_LENGTH bytes, waiting for the device
+     * before every packet
+     */
+    default void send_packets(byte[] payloads, int offset, int count)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        wait_for_ok();
+        send_packet(payloads, offset + i * K40Usb.PAYLOAD_LENGTH);
+      }
+    }
   }
 
-  public class K40Usb implements BaseUsb
+  /**
+   * Sends packets in batches: the packets of a batch are transmitted
+   * without waiting for each other and the status is requested once after
+   * the batch. A batch size of 1 waits for the device before every packet.
+   *
+   * A rejected packet is assumed to make the device drop all following
+   * packets until its status is read, so the status after a batch reports
+   * a rejection anywhere in the batch. Then the packets from the first one
+   * which was not accepted (see {@link #accepted_packets()}) are sent again
+   * and the rest of the job is sent with a batch size of 1. If the device
+   * cannot tell how many packets it accepted, the job is aborted instead of
+   * cutting with missing packets.
+   */
+  public abstract static class PipelinedUsb implements BaseUsb
   {
-
-    public static final int K40VENDERID = 0x1A86;
-    public static final int K40PRODUCTID = 0x5512;
-
-    public static final byte K40_ENDPOINT_WRITE = (byte) 0x02; //0x02  EP 2 OUT
-    public static final byte K40_ENDPOINT_READ = (byte) 0x82; //0x82  EP 2 IN
-    public static final byte K40_ENDPOINT_READ_I = (byte) 0x81; //0x81  EP 1 IN
-
-    public static final int PAYLOAD_LENGTH = 30;
-
-    private final IntBuffer transfered = IntBuffer.allocate(1);
-    private final ByteBuffer request_status = ByteBuffer.allocateDirect(1);
-    private final ByteBuffer packet = ByteBuffer.allocateDirect(34);
-
-    private Context context = null;
-    private Device device = null;
-    private DeviceHandle handle = null;
-    private boolean kernel_detached = false;
-    private int interface_number = 0;
-
     public static final int STATUS_OK = 206;
     public static final int STATUS_PACKET_REJECTED = 207;
 
@@ -1386,45 +1677,219 @@ public class K40NanoDriver extends LaserCutter
 
     public static final int STATUS_DEVICE_ERROR = -1;
 
-    public int byte_0 = 0;
-    public int status = 0;
-    public int byte_2 = 0;
-    public int byte_3 = 0;
-    public int byte_4 = 0;
-    public int byte_5 = 0;
+    private int packetsInFlight = 1;
+    private boolean fallback = false;
 
-    public int recovery = 0;
+    public int getPacketsInFlight()
+    {
+      return packetsInFlight;
+    }
+
+    public void setPacketsInFlight(int packetsInFlight)
+    {
+      this.packetsInFlight = Math.max(1, packetsInFlight);
+    }
 
     /**
-     * ******************
-     * CRC function via: License: 2-clause "simplified" BSD license Copyright
-     * (C) 1992-2017 Arjen Lentz
-     * https://lentz.com.au/blog/calculating-crc-with-a-tiny-32-entry-lookup-table
-     * *******************
+     * True if a packet was rejected and packets are sent one by one
      */
-    final int[] CRC_TABLE = new int[]
+    public boolean isFallback()
     {
-      0x00, 0x5E, 0xBC, 0xE2, 0x61, 0x3F, 0xDD, 0x83,
-      0xC2, 0x9C, 0x7E, 0x20, 0xA3, 0xFD, 0x1F, 0x41,
-      0x00, 0x9D, 0x23, 0xBE, 0x46, 0xDB, 0x65, 0xF8,
-      0x8C, 0x11, 0xAF, 0x32, 0xCA, 0x57, 0xE9, 0x74
-    };
+      return fallback;
+    }
 
-    private byte crc(ByteBuffer line)
+    /**
+     * Transmits the packets without waiting for the status, returns when
+     * all of them were transferred
+     */
+    protected abstract void transmit(byte[] payloads, int offset, int count);
+
+    /**
+     * Requests and reads the status of the device
+     */
+    protected abstract int read_status();
+
+    /**
+     * After a batch was rejected: the number of packets at the start of the
+     * last transmit() which the device accepted, -1 if it cannot tell
+     */
+    protected int accepted_packets()
     {
-      int crc = 0;
-      for (int i = 2; i < 32; i++)
+      return -1;
+    }
+
+    /**
+     * Waits between two status requests
+     */
+    protected void pause(long millis)
+    {
+      try
       {
-        crc = line.get(i) ^ crc;
-        crc = CRC_TABLE[crc & 0x0f] ^ CRC_TABLE[16 + ((crc >> 4) & 0x0f)];
+        Thread.sleep(millis);
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new LibUsbException("Interrupted while waiting for the device.", LibUsb.ERROR_INTERRUPTED);
       }
-      return (byte) crc;
     }
-    //*//
 
     @Override
-    public void open() throws LibUsbException
+    public void open()
     {
+      fallback = false;
+    }
+
+    @Override
+    public void send_packet(byte[] payload, int offset)
+    {
+      int count = 0;
+      do
+      {
+        if (count >= 50)
+        {
+          throw new LibUsbException("All packets are being rejected.", 0);
+        }
+        transmit(payload, offset, 1);
+        count++;
+      }
+      while (read_status() == STATUS_PACKET_REJECTED);
+    }
+
+    @Override
+    public void send_packets(byte[] payloads, int offset, int count)
+    {
+      int sent = 0;
+      while (sent < count)
+      {
+        int batch = fallback ? 1 : Math.min(packetsInFlight, count - sent);
+        int batchOffset = offset + sent * K40Usb.PAYLOAD_LENGTH;
+        wait_for_ok();
+        if (batch == 1)
+        {
+          send_packet(payloads, batchOffset);
+        }
+        else
+        {
+          transmit(payloads, batchOffset, batch);
+          if (read_status() == STATUS_PACKET_REJECTED)
+          {
+            int accepted = accepted_packets();
+            if (accepted < 0 || accepted >= batch)
+            {
+              throw new LibUsbException("A packet was rejected, but the device does not report which one.", 0);
+            }
+            // continue one by one with the first packet which was dropped
+            fallback = true;
+            sent += accepted;
+            continue;
+          }
+        }
+        sent += batch;
+      }
+    }
+
+    @Override
+    public void wait_for_finish()
+    {
+      wait(STATUS_FINISH);
+    }
+
+    @Override
+    public void wait_for_ok()
+    {
+      wait(STATUS_OK);
+    }
+
+    public void wait(int state)
+    {
+      while (read_status() != state)
+      {
+        pause(100);
+      }
+    }
+  }
+
+  public class K40Usb extends PipelinedUsb
+  {
+
+    public static final int K40VENDERID = 0x1A86;
+    public static final int K40PRODUCTID = 0x5512;
+
+    public static final byte K40_ENDPOINT_WRITE = (byte) 0x02; //0x02  EP 2 OUT
+    public static final byte K40_ENDPOINT_READ = (byte) 0x82; //0x82  EP 2 IN
+    public static final byte K40_ENDPOINT_READ_I = (byte) 0x81; //0x81  EP 1 IN
+
+    public static final int PAYLOAD_LENGTH = 30;
+    public static final int PACKET_LENGTH = PAYLOAD_LENGTH + 4;
+
+    private final IntBuffer transfered = IntBuffer.allocate(1);
+    private final ByteBuffer request_status = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(6);
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(PACKET_LENGTH);
+
+    // asynchronous transfers, one per packet of a batch
+    private Transfer[] transfers = new Transfer[0];
+    private ByteBuffer[] transferPackets = new ByteBuffer[0];
+    private int transfersCompleted = 0;
+    private int transferError = LibUsb.SUCCESS;
+    private final TransferCallback transferCallback = transfer ->
+    {
+      transfersCompleted++;
+      if (transfer.status() != LibUsb.TRANSFER_COMPLETED && transferError == LibUsb.SUCCESS)
+      {
+        transferError = transfer.status() == LibUsb.TRANSFER_NO_DEVICE ? LibUsb.ERROR_NO_DEVICE
+          : transfer.status() == LibUsb.TRANSFER_TIMED_OUT ? LibUsb.ERROR_TIMEOUT
+          : LibUsb.ERROR_IO;
+      }
+    };
+
+    private Context context = null;
+    private Device device = null;
+    private DeviceHandle handle = null;
+    private boolean kernel_detached = false;
+    private int interface_number = 0;
+
+    public int byte_0 = 0;
+    public int status = 0;
+    public int byte_2 = 0;
+    public int byte_3 = 0;
+    public int byte_4 = 0;
+    public int byte_5 = 0;
+
+    public int recovery = 0;
+
+    /**
+     * ******************
+     * CRC function via: License: 2-clause "simplified" BSD license Copyright
+     * (C) 1992-2017 Arjen Lentz
+     * https://lentz.com.au/blog/calculating-crc-with-a-tiny-32-entry-lookup-table
+     * *******************
+     */
+    final int[] CRC_TABLE = new int[]
+    {
+      0x00, 0x5E, 0xBC, 0xE2, 0x61, 0x3F, 0xDD, 0x83,
+      0xC2, 0x9C, 0x7E, 0x20, 0xA3, 0xFD, 0x1F, 0x41,
+      0x00, 0x9D, 0x23, 0xBE, 0x46, 0xDB, 0x65, 0xF8,
+      0x8C, 0x11, 0xAF, 0x32, 0xCA, 0x57, 0xE9, 0x74
+    };
+
+    private byte crc(ByteBuffer line)
+    {
+      int crc = 0;
+      for (int i = 2; i < 32; i++)
+      {
+        crc = line.get(i) ^ crc;
+        crc = CRC_TABLE[crc & 0x0f] ^ CRC_TABLE[16 + ((crc >> 4) & 0x0f)];
+      }
+      return (byte) crc;
+    }
+    //*//
+
+    @Override
+    public void open() throws LibUsbException
+    {
+      super.open();
       openContext();
       findK40();
       openHandle();
@@ -1437,6 +1902,7 @@ public class K40NanoDriver extends LaserCutter
     @Override
     public void close() throws LibUsbException
     {
+      freeTransfers();
       releaseInterface();
       closeHandle();
       if (kernel_detached)
@@ -1453,144 +1919,174 @@ public class K40NanoDriver extends LaserCutter
       System.out.println(error);
     }
 
+    private void create_packet(ByteBuffer packet, byte[] payload, int offset)
+    {
+      ((Buffer) packet).clear(); // Explicit cast for cross compatibility with JDK9
+      packet.put((byte) 166);
+      packet.put((byte) 0);
+      packet.put(payload, offset, PAYLOAD_LENGTH);
+      packet.put((byte) 166);
+      packet.put(crc(packet));
+    }
+
     @Override
-    public void send_packet(CharSequence cs)
+    protected void transmit(byte[] payloads, int offset, int count)
     {
-      if (cs.length() != PAYLOAD_LENGTH)
+      if (count == 1)
       {
-        throw new LibUsbException("Packets must be exactly " + PAYLOAD_LENGTH + " bytes.", 0);
+        create_packet(packet, payloads, offset);
+        transmit_packet();
       }
-      create_packet(cs);
-      int count = 0;
-      do
+      else
       {
-        transmit_packet();
-        update_status();
-        if (count >= 50)
-        {
-          throw new LibUsbException("All packets are being rejected.", 0);
-        }
-        count++;
+        transmit_async(payloads, offset, count);
       }
-      while (status == STATUS_PACKET_REJECTED);
     }
 
-    private void create_packet(CharSequence cs)
+    private void transmit_packet()
     {
-      ((Buffer) packet).clear(); // Explicit cast for cross compatibility with JDK9
-      packet.put((byte) 166);
-      packet.put((byte) 0);
-      for (int i = 0; i < cs.length(); i++)
+      ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
+      int results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, packet, transfered, 5000L);
+      if (results < LibUsb.SUCCESS)
       {
-        packet.put((byte) cs.charAt(i));
+        throw new LibUsbException("Packet Send Failed.", results);
       }
-      packet.put((byte) 166);
-      packet.put(crc(packet));
-
     }
 
-    private void transmit_packet()
+    /**
+     * Submits all packets as asynchronous bulk transfers, which the host
+     * controller sends in order, and waits until all of them completed
+     */
+    private void transmit_async(byte[] payloads, int offset, int count)
     {
-      ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
-      int results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, packet, transfered, 5000L);
+      if (transfers.length < count)
+      {
+        freeTransfers();
+        transfers = new Transfer[count];
+        transferPackets = new ByteBuffer[count];
+        for (int i = 0; i < count; i++)
+        {
+          transfers[i] = LibUsb.allocTransfer();
+          transferPackets[i] = ByteBuffer.allocateDirect(PACKET_LENGTH);
+        }
+      }
+      transfersCompleted = 0;
+      transferError = LibUsb.SUCCESS;
+      int submitted = 0;
+      int results = LibUsb.SUCCESS;
+      for (; submitted < count; submitted++)
+      {
+        ByteBuffer p = transferPackets[submitted];
+        create_packet(p, payloads, offset + submitted * PAYLOAD_LENGTH);
+        LibUsb.fillBulkTransfer(transfers[submitted], handle, K40_ENDPOINT_WRITE, p, transferCallback, null, 5000L);
+        results = LibUsb.submitTransfer(transfers[submitted]);
+        if (results < LibUsb.SUCCESS)
+        {
+          break;
+        }
+      }
+      // the callbacks are called from handleEvents on this thread
+      while (transfersCompleted < submitted)
+      {
+        int r = LibUsb.handleEventsTimeout(context, 1000000);
+        if (r < LibUsb.SUCCESS && r != LibUsb.ERROR_INTERRUPTED)
+        {
+          throw new LibUsbException("Handling USB events failed.", r);
+        }
+      }
       if (results < LibUsb.SUCCESS)
       {
         throw new LibUsbException("Packet Send Failed.", results);
       }
+      if (transferError < LibUsb.SUCCESS)
+      {
+        throw new LibUsbException("Packet Send Failed.", transferError);
+      }
     }
 
-    private boolean waitForStatus()
+    private void freeTransfers()
     {
-      recovery += 1;
-      Thread waitForStatusThread = new Thread()
+      for (Transfer t : transfers)
       {
-        int count = 0;
+        LibUsb.freeTransfer(t);
+      }
+      transfers = new Transfer[0];
+      transferPackets = new ByteBuffer[0];
+    }
 
-        @Override
-        public void run()
+    /**
+     * Requests the status until the device answers, waiting longer after
+     * every failed attempt, and tries to reopen the device if it was lost
+     */
+    private void waitForStatus()
+    {
+      recovery += 1;
+      error("A problem getting status was detected. We will wait for the device.");
+      if (progress != null)
+      {
+        progress.taskChanged(K40NanoDriver.this, "Waiting for USB");
+      }
+      long delay = 250;
+      for (int count = 1;; count++)
+      {
+        pause(delay);
+        delay = Math.min(2 * delay, 2000);
+        int results;
+        ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
+        request_status.put(0, (byte) 160);
+        if (handle == null)
         {
-          if (progress != null)
-          {
-            progress.taskChanged(this, "Waiting for USB");
-          }
-          int results = -1;
-          synchronized (this)
-          {
-            while (results != LibUsb.SUCCESS)
+          //If device not found and restart fails there might no longer be a handle.
+          //If this is the case, our state is ERROR_NO_DEVICE.
+          results = LibUsb.ERROR_NO_DEVICE;
+        }
+        else
+        {
+          results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, request_status, transfered, 5000L);
+        }
+        switch (results)
+        {
+          case LibUsb.ERROR_NO_DEVICE:
+            error("Device was not found. Attempting restart.");
+            try
             {
-              try
-              {
-                Thread.sleep(2000);
-              }
-              catch (InterruptedException ex)
-              {
-              }
-              ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
-              request_status.put(0, (byte) 160);
-              if (handle == null)
-              {
-                //If device not found and restart fails there might no longer be a handle.
-                //If this is the case, our state is ERROR_NO_DEVICE.
-                results = LibUsb.ERROR_NO_DEVICE;
-              }
-              else
-              {
-                results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, request_status, transfered, 5000L);
-              }
-              switch (results)
-              {
-                case LibUsb.ERROR_NO_DEVICE:
-                  error("Device was not found. Attempting restart.");
-                  try
-                  {
-                    close();
-                    open();
-                  }
-                  catch (LibUsbException e)
-                  {
-                    error("Restart failed because: " + e.getLocalizedMessage());
-                  }
-                  break;
-                case LibUsb.ERROR_PIPE:
-                  error("USB pipe failed.");
-                  break;
-                case LibUsb.ERROR_TIMEOUT:
-                  error("USB timedout.");
-                  break;
-                case LibUsb.SUCCESS:
-                  notify();
-                  progress.taskChanged(this, "Sending Job");
-
-                  return;// Okay, we're back on track.
-                }
-              count++;
-              if (count >= 15)
-              {
-                throw new LibUsbException("Failed to recover from USB errors.", LibUsb.ERROR_TIMEOUT);
-              }
-              if (progress != null)
-              {
-                progress.progressChanged(this, (100 * count) / 15);
-              }
+              close();
+              open();
             }
-          }
+            catch (LibUsbException e)
+            {
+              error("Restart failed because: " + e.getLocalizedMessage());
+            }
+            break;
+          case LibUsb.ERROR_PIPE:
+            error("USB pipe failed.");
+            break;
+          case LibUsb.ERROR_TIMEOUT:
+            error("USB timedout.");
+            break;
+          case LibUsb.SUCCESS:
+            if (progress != null)
+            {
+              progress.taskChanged(K40NanoDriver.this, "Sending Job");
+            }
+            return;// Okay, we're back on track.
         }
-      };
-      waitForStatusThread.start();
-      synchronized (waitForStatusThread)
-      {
-        try
+        if (count >= 15)
         {
-          error("A problem getting status was detected. We will wait for the device.");
-          waitForStatusThread.wait();
+          throw new LibUsbException("Failed to recover from USB errors.", LibUsb.ERROR_TIMEOUT);
         }
-        catch (Exception e)
+        if (progress != null)
         {
-          return false;
+          progress.progressChanged(K40NanoDriver.this, (100 * count) / 15);
         }
       }
-      //Status must have been successful.
-      return true;
+    }
+
+    @Override
+    protected int read_status()
+    {
+      update_status();
+      return status;
     }
 
     private void update_status()
@@ -1604,17 +2100,14 @@ public class K40NanoDriver extends LaserCutter
 
       if (results < LibUsb.SUCCESS)
       {
-        boolean recoverable = waitForStatus(); //put in holding pattern.
-        if (!recoverable)
-        {
-          throw new LibUsbException("Status Request Failed.", results);
-        }
+        waitForStatus(); //put in holding pattern.
       }
       if (handle == null)
       {
         throw new LibUsbException("Status Request Failed.", results);
       }
-      ByteBuffer read_buffer = ByteBuffer.allocateDirect(6);
+      ((Buffer) read_buffer).clear(); // Explicit cast for cross compatibility with JDK9
+      ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
       results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_READ, read_buffer, transfered, 5000L);
       if (results < LibUsb.SUCCESS)
       {
@@ -1647,37 +2140,6 @@ public class K40NanoDriver extends LaserCutter
       }
     }
 
-    @Override
-    public void wait_for_finish()
-    {
-      wait(STATUS_FINISH);
-    }
-
-    @Override
-    public void wait_for_ok()
-    {
-      wait(STATUS_OK);
-    }
-
-    public void wait(int state)
-    {
-      while (true)
-      {
-        update_status();
-        if (status == state)
-        {
-          break;
-        }
-        try
-        {
-          Thread.sleep(100);
-        }
-        catch (InterruptedException ex)
-        {
-        }
-      }
-    }
-
     //************************
     //USB Functions.
     //************************
@@ -1811,54 +2273,232 @@ public class K40NanoDriver extends LaserCutter
 
   }
 
-  public static class MockUsb implements BaseUsb
+  /**
+   * Simulates the device without hardware. The device answers busy and
+   * rejects packets at the given rates, and the time the USB transfers
+   * would take is added up, so the packet rate can be measured.
+   */
+  public static class MockUsb extends PipelinedUsb
   {
+    private final Random random;
+    private double busyRate = 0;
+    private double rejectRate = 0;
+    private long roundTripMicros = 1000;
+    private long packetMicros = 100;
+    private boolean realTime = true;
+    private boolean verbose = true;
 
-    private void sleep(int time)
+    private boolean lastRejected = false;
+    private int lastAccepted = 0;
+    private long transmitted = 0;
+    private final Set<Long> rejectAt = new HashSet<>();
+    private long simulatedMicros = 0;
+    private long packets = 0;
+    private long rejected = 0;
+    private long busy = 0;
+    private long statusRequests = 0;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    public MockUsb()
     {
-      try
+      this(new Random());
+    }
+
+    public MockUsb(Random random)
+    {
+      this.random = random;
+    }
+
+    /**
+     * @param busyRate probability that a status request answers busy
+     * @param rejectRate probability that a packet is rejected
+     */
+    public void setRates(double busyRate, double rejectRate)
+    {
+      this.busyRate = busyRate;
+      this.rejectRate = rejectRate;
+    }
+
+    /**
+     * Rejects the packet with the given number (counting all transmitted
+     * packets from 0, including dropped ones)
+     */
+    public void rejectPacket(long number)
+    {
+      rejectAt.add(number);
+    }
+
+    /**
+     * @param roundTripMicros duration of a transfer or status request
+     * @param packetMicros additional duration for every packet of a batch
+     */
+    public void setLatency(long roundTripMicros, long packetMicros)
+    {
+      this.roundTripMicros = roundTripMicros;
+      this.packetMicros = packetMicros;
+    }
+
+    /**
+     * If false, the simulated time is only added up and not waited for
+     */
+    public void setRealTime(boolean realTime)
+    {
+      this.realTime = realTime;
+    }
+
+    public void setVerbose(boolean verbose)
+    {
+      this.verbose = verbose;
+    }
+
+    private void elapse(long micros)
+    {
+      simulatedMicros += micros;
+      if (realTime && micros >= 1000)
       {
-        Thread.sleep(time);
+        super.pause(micros / 1000);
       }
-      catch (InterruptedException ex)
+    }
+
+    /**
+     * Time which does not count as USB traffic
+     */
+    private void idle(long millis)
+    {
+      if (realTime)
       {
+        super.pause(millis);
       }
     }
 
+    @Override
+    protected void pause(long millis)
+    {
+      elapse(millis * 1000);
+    }
+
     @Override
     public void open()
     {
-      sleep(1000);
-      System.out.println("Mock Usb Connected.");
+      super.open();
+      idle(1000);
+      if (verbose)
+      {
+        System.out.println("Mock Usb Connected.");
+      }
     }
 
     @Override
     public void close()
     {
-      sleep(1000);
-      System.out.println("Mock Usb Disconnected.");
+      idle(1000);
+      if (verbose)
+      {
+        System.out.println("Mock Usb Disconnected.");
+      }
     }
 
     @Override
-    public void wait_for_ok()
+    protected void transmit(byte[] payloads, int offset, int count)
+    {
+      elapse(roundTripMicros + (count - 1) * packetMicros);
+      lastAccepted = 0;
+      for (int i = 0; i < count; i++)
+      {
+        int o = offset + i * K40Usb.PAYLOAD_LENGTH;
+        boolean reject = random.nextDouble() < rejectRate | rejectAt.remove(transmitted++);
+        if (lastRejected || reject)
+        {
+          // dropped until the status is read
+          lastRejected = true;
+          rejected++;
+        }
+        else
+        {
+          lastAccepted++;
+          packets++;
+          received.write(payloads, o, K40Usb.PAYLOAD_LENGTH);
+          if (verbose)
+          {
+            System.out.println("Mock Packet Sent:" + new String(payloads, o, K40Usb.PAYLOAD_LENGTH, StandardCharsets.US_ASCII));
+          }
+        }
+      }
+    }
+
+    @Override
+    protected int read_status()
     {
-      sleep(20);
-      System.out.println("Mock Usb: OKAY!");
+      statusRequests++;
+      elapse(roundTripMicros);
+      if (lastRejected)
+      {
+        lastRejected = false;
+        return STATUS_PACKET_REJECTED;
+      }
+      if (random.nextDouble() < busyRate)
+      {
+        busy++;
+        return STATUS_BUSY;
+      }
+      return STATUS_OK;
     }
 
     @Override
-    public void send_packet(CharSequence subSequence)
+    protected int accepted_packets()
     {
-      sleep(100);
-      System.out.println("Mock Packet Sent:" + subSequence);
+      return lastAccepted;
     }
 
     @Override
     public void wait_for_finish()
     {
-      sleep(4000);
-      System.out.println("Mock Usb: Finished");
+      idle(4000);
+      if (verbose)
+      {
+        System.out.println("Mock Usb: Finished");
+      }
     }
 
+    /**
+     * Payloads of all accepted packets
+     */
+    public byte[] getReceived()
+    {
+      return received.toByteArray();
+    }
+
+    public long getPackets()
+    {
+      return packets;
+    }
+
+    public long getRejected()
+    {
+      return rejected;
+    }
+
+    public long getBusy()
+    {
+      return busy;
+    }
+
+    public long getStatusRequests()
+    {
+      return statusRequests;
+    }
+
+    public long getSimulatedMicros()
+    {
+      return simulatedMicros;
+    }
+
+    /**
+     * Accepted packets per second of simulated time
+     */
+    public double getPacketsPerSecond()
+    {
+      return simulatedMicros == 0 ? 0 : packets * 1e6 / simulatedMicros;
+    }
   }
 }
@@ -316,7 +316,7 @@ public class LaosCutter extends LaserCutter
   {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
-    for (VectorCommand cmd : vp.getCommandList())
+    for (VectorCommand cmd : vp.getCommands(this))
     {
       switch (cmd.getType())
       {
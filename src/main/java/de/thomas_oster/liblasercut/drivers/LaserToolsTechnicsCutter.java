@@ -19,6 +19,7 @@
 package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.ByteArrayList;
+import de.thomas_oster.liblasercut.CancellationToken;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
 import de.thomas_oster.liblasercut.LaserCutter;
@@ -37,6 +38,7 @@ import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Rectangle;
 import de.thomas_oster.liblasercut.platform.Tuple;
 import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.NetworkMultiplexer;
 
 import java.io.*;
 import java.net.InetSocketAddress;
@@ -284,6 +286,12 @@ public class LaserToolsTechnicsCutter extends LaserCutter
   {
     this.port = port;
   }
+
+  @Override
+  public NetworkMultiplexer.Connection openConnection(NetworkMultiplexer multiplexer, NetworkMultiplexer.Handler handler) throws IOException
+  {
+    return multiplexer.connectTcp(getHostname(), getPort(), 3000, NetworkMultiplexer.RAW, handler);
+  }
   protected double maxDPI = 4000;
 
   /**
@@ -448,7 +456,7 @@ public class LaserToolsTechnicsCutter extends LaserCutter
     writeU32(out, value);
   }
 
-  private double generateVectorCode(ByteArrayOutputStream outputstream, VectorPart vp, double resolution) throws UnsupportedEncodingException, IOException, IllegalJobException
+  private double generateVectorCode(ByteArrayOutputStream outputstream, VectorPart vp, double resolution, CancellationToken cancel) throws UnsupportedEncodingException, IOException, IllegalJobException
   {
     PrintStream out = new PrintStream(outputstream, true, StandardCharsets.US_ASCII);
 
@@ -476,7 +484,7 @@ public class LaserToolsTechnicsCutter extends LaserCutter
       prescalingY = Math.abs((double) yPxToDeviceCoordinate(10, 1, 1, true, true, true) / yPxToDeviceCoordinate(10, 1, 1, true, true, false));
     }
     double cuttingTime = 0;
-    for (VectorCommand cmd : vp.getCommandList())
+    for (VectorCommand cmd : vp.getCommands(this))
     {
       if (cmd.getType() == CmdType.LINETO)
       {
@@ -485,6 +493,7 @@ public class LaserToolsTechnicsCutter extends LaserCutter
       }
       else
       {
+        cancel.check();
         cuttingTime += curveOrLine(out, x.toArray(new Double[0]), y.toArray(new Double[0]), resolution, prescalingY);
         x = new ArrayList<>();
         y = new ArrayList<>();
@@ -1754,7 +1763,7 @@ public class LaserToolsTechnicsCutter extends LaserCutter
     }
   }
 
-  private double generateRasterCode(ByteArrayOutputStream outputstream, RasterizableJobPart rp, double resolution) throws UnsupportedEncodingException, IOException
+  private double generateRasterCode(ByteArrayOutputStream outputstream, RasterizableJobPart rp, double resolution, CancellationToken cancel) throws UnsupportedEncodingException, IOException
   {
     double laserTime = 0;
     PrintStream out = new PrintStream(outputstream, true, StandardCharsets.US_ASCII);
@@ -1788,6 +1797,7 @@ public class LaserToolsTechnicsCutter extends LaserCutter
     ByteArrayList bytes = new ByteArrayList(rp.getRasterWidth());
     for (int line = bu ? rp.getRasterHeight() - 1 : 0; bu ? line >= 0 : line < rp.getRasterHeight(); line += bu ? -1 : 1)
     {
+      cancel.check();
       Point lineStart = rasterStart.clone();
       lineStart.y += line;
       rp.getRasterLine(line, bytes);
@@ -2230,11 +2240,11 @@ public class LaserToolsTechnicsCutter extends LaserCutter
     {
       if (p instanceof Raster3dPart || p instanceof RasterPart)
       {
-        duration += this.generateRasterCode(out, (RasterizableJobPart) p, p.getDPI());
+        duration += this.generateRasterCode(out, (RasterizableJobPart) p, p.getDPI(), job.getCancellationToken());
       }
       else if (p instanceof VectorPart)
       {
-        duration += this.generateVectorCode(out, (VectorPart) p, p.getDPI());
+        duration += this.generateVectorCode(out, (VectorPart) p, p.getDPI(), job.getCancellationToken());
       }
       i++;
       pl.progressChanged(this, 20 + (int) (i * (double) 60 / max));
@@ -2262,19 +2272,42 @@ public class LaserToolsTechnicsCutter extends LaserCutter
   @Override
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws UnsupportedOperationException, IllegalJobException, IOException
   {
-    this.writeJobCode(job, fileOutputStream, null, null);
+    fileOutputStream.write(encodeJobCode(job, null, null));
+  }
+
+  /**
+   * Generates the job code in memory, or takes it from the job cache
+   */
+  private byte[] encodeJobCode(LaserJob job, ProgressListener pl, List<String> warnings) throws IOException, IllegalJobException
+  {
+    return encodeJob(job, warnings == null ? new LinkedList<>() : warnings, w -> {
+      ByteArrayOutputStream result = new ByteArrayOutputStream();
+      this.writeJobCode(job, result, pl, w);
+      return result.toByteArray();
+    });
   }
 
   @Override
   public void sendJob(LaserJob job, ProgressListener pl, List<String> warnings) throws IllegalJobException, IOException
   {
+    byte[] data = encodeJobCode(job, pl, warnings);
     pl.taskChanged(this, "connecting");
     try (Socket connection = new Socket())
     {
-      connection.connect(new InetSocketAddress(hostname, port), 3000);
-      try (BufferedOutputStream out = new BufferedOutputStream(connection.getOutputStream()))
+      // closing the socket aborts a blocking connect or write
+      Runnable abort = job.getCancellationToken().closeOnCancel(connection);
+      try
+      {
+        connection.connect(new InetSocketAddress(hostname, port), 3000);
+        try (BufferedOutputStream out = new BufferedOutputStream(connection.getOutputStream()))
+        {
+          pl.taskChanged(this, "sending");
+          out.write(data);
+        }
+      }
+      finally
       {
-        this.writeJobCode(job, out, pl, warnings);
+        job.getCancellationToken().removeOnCancel(abort);
       }
     }
     pl.progressChanged(this, 100);
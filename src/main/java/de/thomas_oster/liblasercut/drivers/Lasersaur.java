@@ -18,6 +18,7 @@
  */
 package de.thomas_oster.liblasercut.drivers;
 
+import de.thomas_oster.liblasercut.ConnectionSession;
 import de.thomas_oster.liblasercut.IllegalJobException;
 import de.thomas_oster.liblasercut.JobPart;
 import de.thomas_oster.liblasercut.LaserCutter;
@@ -29,9 +30,7 @@ import de.thomas_oster.liblasercut.RasterizableJobPart;
 import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
-import purejavacomm.CommPort;
-import purejavacomm.CommPortIdentifier;
-import purejavacomm.SerialPort;
+import de.thomas_oster.liblasercut.utils.SerialTransport;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -162,7 +161,7 @@ public class Lasersaur extends LaserCutter {
   private byte[] generateVectorGCode(VectorPart vp, double resolution) throws UnsupportedEncodingException {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
-    for (VectorCommand cmd : vp.getCommandList()) {
+    for (VectorCommand cmd : vp.getCommands(this)) {
       switch (cmd.getType()) {
         case MOVETO:
           double x = cmd.getX();
@@ -236,28 +235,38 @@ public class Lasersaur extends LaserCutter {
   public void sendJob(LaserJob job, ProgressListener pl, List<String> warnings) throws IllegalJobException, Exception {
     pl.progressChanged(this, 0);
 
-    BufferedOutputStream out;
-
     pl.taskChanged(this, "connecting");
-    CommPortIdentifier cpi = CommPortIdentifier.getPortIdentifier(this.getComPort());
-    CommPort tmp = cpi.open("VisiCut", 10000);
-    if (tmp == null)
+    String key = "serial://"+this.getComPort();
+    ConnectionSession session = resumeSession(key, "9600", ConnectionSession.WRITE_ONLY);
+    if (session == null)
     {
-      throw new Exception("Error: Could not Open COM-Port '"+this.getComPort()+"'");
+      SerialTransport port = SerialTransport.open(this.getComPort(), 9600);
+      session = new ConnectionSession(key, "9600", port, null, port.getOutputStream(), port);
     }
-    if (!(tmp instanceof SerialPort))
+
+    try
     {
-      throw new Exception("Port '"+this.getComPort()+"' is not a serial port.");
+      BufferedOutputStream out = new BufferedOutputStream(session.getOutputStream());
+      writeJob(out, job, pl);
+      out.flush();
+      // report transmission errors now, not when the port is closed
+      ((SerialTransport) session.getTransport()).drain();
     }
-    SerialPort port = (SerialPort) tmp;
-    port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-    port.setSerialPortParams(9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-    out = new BufferedOutputStream(port.getOutputStream());
-
-    writeJob(out, job, pl, port);
+    catch (Exception e)
+    {
+      session.invalidate();
+      throw e;
+    }
+    finally
+    {
+      // closes the port unless it is kept open for the next job
+      releaseSession(session);
+    }
+    pl.taskChanged(this, "sent.");
+    pl.progressChanged(this, 100);
   }
 
-  private void writeJob(BufferedOutputStream out, LaserJob job, ProgressListener pl, SerialPort port) throws IllegalJobException, Exception {
+  private void writeJob(BufferedOutputStream out, LaserJob job, ProgressListener pl) throws IllegalJobException, Exception {
     this.currentPower = -1;
     this.currentSpeed = -1;
     pl.taskChanged(this, "checking job");
@@ -281,13 +290,6 @@ public class Lasersaur extends LaserCutter {
       if (pl!= null) pl.progressChanged(this, 20 + (int) (i*(double) 60/max));
     }
     out.write(this.generateShutdownCode());
-    out.close();
-    if (port != null) port.close();
-    if (pl != null)
-    {
-      pl.taskChanged(this, "sent.");
-      pl.progressChanged(this, 100);
-    }
   }
   private List<Double> resolutions;
 
@@ -346,6 +348,7 @@ public class Lasersaur extends LaserCutter {
     SETTING_LASER_RATE,
     SETTING_SEEK_RATE,
     SETTING_RASTER_WHITESPACE,
+    SETTING_KEEP_CONNECTION_OPEN,
   };
 
   @Override
@@ -369,6 +372,8 @@ public class Lasersaur extends LaserCutter {
       return this.getBedWidth();
     } else if (SETTING_BEDHEIGHT.equals(attribute)) {
       return this.getBedHeight();
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      return this.isKeepConnectionOpen();
     }
     return null;
   }
@@ -389,6 +394,8 @@ public class Lasersaur extends LaserCutter {
       this.setBedWidth((Double) value);
     } else if (SETTING_BEDHEIGHT.equals(attribute)) {
       this.setBedHeight((Double) value);
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      this.setKeepConnectionOpen((Boolean) value);
     }
   }
 
@@ -402,11 +409,14 @@ public class Lasersaur extends LaserCutter {
     clone.bedWidth = bedWidth;
     clone.flipXaxis = flipXaxis;
     clone.addSpacePerRasterLine = addSpacePerRasterLine;
+    clone.setKeepConnectionOpen(isKeepConnectionOpen());
     return clone;
   }
 
   @Override
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws UnsupportedOperationException, IllegalJobException, Exception {
-      writeJob(new BufferedOutputStream(fileOutputStream), job, new ProgressListenerDummy(), null);
+      BufferedOutputStream out = new BufferedOutputStream(fileOutputStream);
+      writeJob(out, job, new ProgressListenerDummy());
+      out.close();
   }
 }
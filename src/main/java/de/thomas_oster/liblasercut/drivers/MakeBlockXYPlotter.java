@@ -25,6 +25,7 @@ package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.*;
 import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.SerialTransport;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
@@ -38,10 +39,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
 import purejavacomm.PortInUseException;
-import purejavacomm.SerialPort;
 
 /**
  *
@@ -59,6 +58,11 @@ public class MakeBlockXYPlotter extends LaserCutter
   */
   private final boolean debug = false; // print to command line
   private static final String MODELNAME = "MakeBlockXYPlotter";
+  /**
+   * Opening the port resets the firmware, which then takes about 2 seconds
+   * to answer the wake up sequence
+   */
+  private static final int WAKE_UP_TIMEOUT = 5000;
   private double addSpacePerRasterLine = 0.5;
   private String hostname = ""; 
   private double bedWidth = 300;
@@ -76,7 +80,8 @@ public class MakeBlockXYPlotter extends LaserCutter
   private transient PrintWriter w = null;
   private transient BufferedReader portReader = null;
   private transient BufferedOutputStream out = null;
-  private transient SerialPort port = null;
+  private transient SerialTransport port = null;
+  private transient ConnectionSession session = null;
     
   /*
    * Global Settings
@@ -95,7 +100,8 @@ public class MakeBlockXYPlotter extends LaserCutter
     SETTING_BEDHEIGHT,
     SETTING_DELAY_RATE,
     SETTING_POWER_RATE,
-    SETTING_TOOL
+    SETTING_TOOL,
+    SETTING_KEEP_CONNECTION_OPEN
   };
   
   
@@ -232,8 +238,8 @@ public class MakeBlockXYPlotter extends LaserCutter
   private void generateVectorGCode(VectorPart vp, double resolution, ProgressListener pl, int startProgress, int maxProgress) throws UnsupportedEncodingException, Exception {
     int i = 0;
     int progress;
-    int max = vp.getCommandList().length;
-    for (VectorCommand cmd : vp.getCommandList()) {
+    int max = vp.getCommandCount();
+    for (VectorCommand cmd : vp.getCommands(this)) {
       switch (cmd.getType()) {
         case MOVETO:
           double x = cmd.getX();
@@ -271,35 +277,38 @@ public class MakeBlockXYPlotter extends LaserCutter
       if (this.hostname.startsWith("port://")) {
         String portString = this.hostname.replace("port://", "");
         
+        session = resumeSession(this.hostname, "115200", this::attachSession);
+        if (session != null) {
+          return;
+        }
+        port = null;
+        
         try{
-          CommPortIdentifier cpi = CommPortIdentifier.getPortIdentifier(portString);
-          port = (SerialPort) cpi.open("VisiCut", 2000);
+          port = SerialTransport.open(portString, 115200);
         }
         catch(Exception e) {
           throw new Exception("Port '"+portString+"' is not available.");
         }
-        
-        if (port == null)
-        {
-          throw new Exception("Error: Could not Open COM-Port '"+portString+"'");
-        }
-        if (!(port instanceof SerialPort))
-        {
-          throw new Exception("Port '"+portString+"' is not a serial port.");
-        }
-        port.setSerialPortParams(115200, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
         out = new BufferedOutputStream(port.getOutputStream());
-        portReader = new BufferedReader(new InputStreamReader(port.getInputStream()));
+        portReader = new BufferedReader(new InputStreamReader(port.getInputStream(), StandardCharsets.US_ASCII));
         
-        // wake up firmware
+        // wake up firmware, continue as soon as it answers
         String command = "\r\n\r\n";
         out.write(command.getBytes(StandardCharsets.US_ASCII));
         out.flush();
-        Thread.sleep(2000);
-        portReader.readLine(); // "ok"
-        portReader.readLine(); // "ok"
+        port.setReadTimeout(WAKE_UP_TIMEOUT);
+        try {
+          portReader.readLine(); // "ok"
+          portReader.readLine(); // "ok"
+        }
+        finally {
+          port.setReadTimeout(0);
+        }
         
         this.checkVersion();
+        if (isKeepConnectionOpen()) {
+          session = new ConnectionSession(this.hostname, "115200", port, port.getInputStream(), port.getOutputStream(), port);
+        }
       }
       else if (hostname.startsWith("file://")) {
         String filename = this.hostname.replace("file://", "");
@@ -316,7 +325,37 @@ public class MakeBlockXYPlotter extends LaserCutter
     }
   }
   
+  /**
+   * Use the port of the previous job, if the firmware still answers M115
+   * (skips the wake up delay)
+   */
+  private boolean attachSession(ConnectionSession s) throws Exception {
+    port = (SerialTransport) s.getTransport();
+    out = new BufferedOutputStream(s.getOutputStream());
+    portReader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+    port.setReadTimeout(2000);
+    try {
+      port.discardInput();
+      this.checkVersion();
+      return true;
+    }
+    finally {
+      port.setReadTimeout(0);
+    }
+  }
+  
   private void disconnect() throws Exception{
+    if(session != null) {
+      // keep the port open for the next job
+      out.flush();
+      ConnectionSession s = session;
+      session = null;
+      out = null;
+      port = null;
+      releaseSession(s);
+      return;
+    }
+    
     if(w != null) {
       w.close();
       w = null;
@@ -436,7 +475,16 @@ public class MakeBlockXYPlotter extends LaserCutter
     pl.taskChanged(this, "connecting");
     this.connect();
     pl.taskChanged(this, "sending");
-    this.sendGCode(job, pl);
+    try {
+      this.sendGCode(job, pl);
+    }
+    catch (Exception e) {
+      if (session != null) {
+        session.invalidate();
+        this.disconnect();
+      }
+      throw e;
+    }
     pl.taskChanged(this, "disconnecting");
     this.disconnect();
     pl.taskChanged(this, "sent");
@@ -473,6 +521,7 @@ public class MakeBlockXYPlotter extends LaserCutter
     clone.delayRate = delayRate;
     clone.powerRate = powerRate;
     clone.usedTool = usedTool;
+    clone.setKeepConnectionOpen(isKeepConnectionOpen());
     return clone;
   }
 
@@ -497,7 +546,9 @@ public class MakeBlockXYPlotter extends LaserCutter
       return this.powerRate;
     } else if (SETTING_TOOL.equals(attribute)) {
       return this.usedTool;
-    } 
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      return this.isKeepConnectionOpen();
+    }
     return null;
   }
 
@@ -517,7 +568,9 @@ public class MakeBlockXYPlotter extends LaserCutter
       this.powerRate = (Integer) value;
     } else if (SETTING_TOOL.equals(attribute)) {
       this.usedTool = (String) value;
-    }  
+    } else if (SETTING_KEEP_CONNECTION_OPEN.equals(attribute)) {
+      this.setKeepConnectionOpen((Boolean) value);
+    }
   }
   
 }
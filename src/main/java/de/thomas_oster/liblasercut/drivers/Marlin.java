@@ -78,6 +78,8 @@ public class Marlin extends GenericGcodeDriver {
     result.remove(GenericGcodeDriver.SETTING_INIT_DELAY);
     result.remove(GenericGcodeDriver.SETTING_HTTP_UPLOAD_URL);
     result.remove(GenericGcodeDriver.SETTING_HOST);
+    result.remove(GenericGcodeDriver.SETTING_STREAM_HTTP_UPLOAD);
+    result.remove(GenericGcodeDriver.SETTING_COMPRESS_HTTP_UPLOAD);
     result.remove(GenericGcodeDriver.SETTING_SPINDLE_MAX);
     result.remove(GenericGcodeDriver.SETTING_BLANK_LASER_DURING_RAPIDS);
     return result.toArray(new String[0]);
@@ -105,6 +107,30 @@ public class Marlin extends GenericGcodeDriver {
     return null;
   }
 
+  /**
+   * Request the firmware info (M115) and wait for the "ok"
+   */
+  @Override
+  protected boolean isConnectionAlive() throws IOException
+  {
+    discardInput();
+    out.print("M115"+LINEEND());
+    out.flush();
+    for (int i = 0; i < 50; i++)
+    {
+      String line = in.readLine();
+      if (line == null)
+      {
+        return false;
+      }
+      if (line.startsWith("ok"))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public String getModelName()
   {
@@ -27,6 +27,7 @@ package de.thomas_oster.liblasercut.drivers;
 import de.thomas_oster.liblasercut.*;
 import de.thomas_oster.liblasercut.platform.Util;
 import de.thomas_oster.liblasercut.VectorCommand.CmdType;
+import de.thomas_oster.liblasercut.utils.NetworkMultiplexer;
 
 import java.io.InputStreamReader;
 import java.io.File;
@@ -50,8 +51,11 @@ import java.net.DatagramSocket;
 import java.net.SocketTimeoutException;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
 /* for serial/usb i/o */
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 import de.thomas_oster.liblasercut.properties.FloatMinMaxPowerSpeedFrequencyProperty;
@@ -606,7 +610,7 @@ public class Ruida extends LaserCutter
         VectorPart vp = (VectorPart) p;
           
         //iterate over command list
-        for (VectorCommand cmd : vp.getCommandList())
+        for (VectorCommand cmd : vp.getCommands(this))
         {
           //There are three types of commands: MOVETO, LINETO and SETPROPERTY
           switch (cmd.getType())
@@ -911,6 +915,66 @@ public class Ruida extends LaserCutter
     return new OptionSelector(uploadMethodList, uploadMethod);
   }
 
+  /**
+   * Datagrams with the checksum of UdpStream. Messages must not exceed
+   * {@link UdpStream#MTU} bytes. Received datagrams are passed unchanged
+   * (0xc6 is the acknowledgement, 0x46 a checksum error).
+   */
+  public static final NetworkMultiplexer.Framing DATAGRAM_FRAMING = new NetworkMultiplexer.Framing()
+  {
+    @Override
+    public ByteBuffer encode(byte[] message) throws IOException
+    {
+      if (message.length > UdpStream.MTU)
+      {
+        throw new IOException("Message exceeds " + UdpStream.MTU + " bytes");
+      }
+      return ByteBuffer.wrap(UdpStream.frame(message, 0, message.length));
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer received) throws IOException
+    {
+      return NetworkMultiplexer.RAW.decode(received);
+    }
+  };
+
+  @Override
+  public NetworkMultiplexer.Connection openConnection(NetworkMultiplexer multiplexer, NetworkMultiplexer.Handler handler) throws IOException
+  {
+    if (!UPLOAD_METHOD_IP.equals(getUploadMethod().getSelectedItem()))
+    {
+      return null;
+    }
+    return multiplexer.openUdp(getHost(), UdpStream.DEST_PORT, UdpStream.SOURCE_PORT, DATAGRAM_FRAMING, handler);
+  }
+
+  /**
+   * Send data (e.g. the output of saveJob()) over a connection from
+   * {@link #openConnection}, one datagram at a time, waiting for the
+   * acknowledgement of each like UdpStream does
+   */
+  public static CompletableFuture<Void> upload(NetworkMultiplexer.Connection c, byte[] data)
+  {
+    return upload(c, data, 0);
+  }
+
+  private static CompletableFuture<Void> upload(NetworkMultiplexer.Connection c, byte[] data, int start)
+  {
+    if (start >= data.length)
+    {
+      return CompletableFuture.completedFuture(null);
+    }
+    int end = Math.min(data.length, start + UdpStream.MTU);
+    return c.request(Arrays.copyOfRange(data, start, end), UdpStream.NETWORK_TIMEOUT).thenCompose(answer -> {
+      if (answer.length == 1 && answer[0] == (byte) 0x46)
+      {
+        throw new CompletionException(new IOException("checksum error"));
+      }
+      return upload(c, data, end);
+    });
+  }
+
 
   /* ---------------------------------------------------------------- */
   /* device properties  */
@@ -1153,7 +1217,7 @@ class UdpStream extends OutputStream
   byte[] buffer = new byte[BUFLEN];
   int bsize = 0;
 
-  private int checksum(byte[] data, int start, int length)
+  private static int checksum(byte[] data, int start, int length)
   {
     int sum = 0;
     for (int i = start; i < start+length; i++) {
@@ -1162,6 +1226,19 @@ class UdpStream extends OutputStream
     return sum;
   }
 
+  /**
+   * @return the datagram for the given data: checksum (2 bytes) and data
+   */
+  static byte[] frame(byte[] data, int start, int length)
+  {
+    int chksum = checksum(data, start, length);
+    byte[] buf = new byte[2 + length];
+    buf[0] = (byte)((chksum & 0xff00) >> 8);
+    buf[1] = (byte)(chksum & 0xff);
+    System.arraycopy(data, start, buf, 2, length);
+    return buf;
+  }
+
   public UdpStream(String hostname) throws IOException
   {
     this.hostname = hostname;
@@ -1205,11 +1282,7 @@ class UdpStream extends OutputStream
       if (chunk > MTU) {
         chunk = MTU;
       }
-      int chksum = checksum(data, start, chunk);
-      byte[] buf = new byte[2 + chunk];
-      buf[0] = (byte)((chksum & 0xff00) >> 8);
-      buf[1] = (byte)(chksum & 0xff);
-      System.arraycopy(data, start, buf, 2, chunk);
+      byte[] buf = frame(data, start, chunk);
 //    System.out.println("UdpStream.write(buf " + buf.length + " bytes)");
       send(buf);
       start += chunk;
@@ -77,7 +77,7 @@ public class SampleDriver extends LaserCutter
         //so, we know it's a VectorPart. We cast it, so we get the real interface
         VectorPart vp = (VectorPart) p;
         //A VectorPart consists of a command List. So let's iterate over this list
-        for (VectorCommand cmd : vp.getCommandList())
+        for (VectorCommand cmd : vp.getCommands(this))
         {
           //There are three types of commands: MOVETO, LINETO and SETPROPERTY
           switch (cmd.getType())
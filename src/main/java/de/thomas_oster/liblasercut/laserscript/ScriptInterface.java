@@ -28,6 +28,23 @@ public interface ScriptInterface
   void move(double x, double y);
   
   void line(double x, double y);
+
+  /**
+   * Lines through all points, the same as calling line() for every point,
+   * but with a single call from the script.
+   * @param xy x and y coordinate of each point
+   */
+  default void polyline(double[] xy)
+  {
+    if (xy.length % 2 != 0)
+    {
+      throw new IllegalArgumentException("polyline needs pairs of coordinates");
+    }
+    for (int i = 0; i < xy.length; i += 2)
+    {
+      line(xy[i], xy[i + 1]);
+    }
+  }
   
   void set(String property, Object value);
   
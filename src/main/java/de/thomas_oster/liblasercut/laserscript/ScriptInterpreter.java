@@ -22,17 +22,27 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.script.ScriptException;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.WrapFactory;
 
 /**
  * This class provides a JavaScript interpreter which is pretty sandboxed.
  * The only accessible stuff are the methods "move/line/get/set from the provided
  * ScriptInterface object).
+ *
+ * Scripts are compiled once and cached by their content, and all scripts
+ * share one sealed scope with the JavaScript standard objects.
  * 
  * The sandboxing code is taken from:
  * http://codeutopia.net/blog/2009/01/02/sandboxing-rhino-in-java/
@@ -74,6 +84,145 @@ public class ScriptInterpreter
     }
   }
   
+  private static final String BOOTSTRAP = "LaserScriptBootstrap.js";
+  private static final int CACHE_SIZE = 64;
+
+  /**
+   * Compiled scripts by optimization level, name and hash of the source
+   */
+  private static final Map<String, Script> compiledScripts = new LinkedHashMap<String, Script>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Script> eldest)
+    {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  /**
+   * The standard objects, created once and sealed, so that a script cannot
+   * change them for the following scripts. There is one scope for sandboxed
+   * and one for unsandboxed scripts, because Java classes are cached in
+   * the package objects once they have been looked up.
+   */
+  private static final ScriptableObject[] sharedScopes = new ScriptableObject[2];
+
+  private static String bootstrapSource;
+
+  private int optimizationLevel = -1;
+
+  /**
+   * Rhino optimization level: -1 (default) interprets the scripts,
+   * 0 to 9 compile them to Java bytecode, which takes longer for the first
+   * run but is faster for long-running scripts
+   */
+  public void setOptimizationLevel(int optimizationLevel)
+  {
+    if (!Context.isValidOptimizationLevel(optimizationLevel))
+    {
+      throw new IllegalArgumentException("Invalid optimization level " + optimizationLevel);
+    }
+    this.optimizationLevel = optimizationLevel;
+  }
+
+  public int getOptimizationLevel()
+  {
+    return optimizationLevel;
+  }
+
+  /**
+   * Number of compiled scripts in the cache
+   */
+  public static int getCacheSize()
+  {
+    synchronized (compiledScripts)
+    {
+      return compiledScripts.size();
+    }
+  }
+
+  public static void clearCache()
+  {
+    synchronized (compiledScripts)
+    {
+      compiledScripts.clear();
+    }
+  }
+
+  private static String readFully(Reader reader) throws IOException
+  {
+    StringBuilder result = new StringBuilder();
+    char[] buffer = new char[8192];
+    int len;
+    while ((len = reader.read(buffer)) != -1)
+    {
+      result.append(buffer, 0, len);
+    }
+    return result.toString();
+  }
+
+  private static String hash(String source)
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+      StringBuilder result = new StringBuilder();
+      for (byte b : digest)
+      {
+        result.append(String.format("%02x", b));
+      }
+      return result.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Script compile(Context cx, String source, String name)
+  {
+    String key = optimizationLevel + ":" + name + ":" + hash(source);
+    Script result;
+    synchronized (compiledScripts)
+    {
+      result = compiledScripts.get(key);
+    }
+    if (result == null)
+    {
+      result = cx.compileString(source, name, 1, null);
+      synchronized (compiledScripts)
+      {
+        compiledScripts.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  private static synchronized String getBootstrapSource() throws IOException
+  {
+    if (bootstrapSource == null)
+    {
+      try (Reader r = new InputStreamReader(ScriptInterpreter.class.getResourceAsStream(BOOTSTRAP), StandardCharsets.UTF_8))
+      {
+        bootstrapSource = readFully(r);
+      }
+    }
+    return bootstrapSource;
+  }
+
+  private static synchronized ScriptableObject getSharedScope(Context cx, boolean sandbox)
+  {
+    int i = sandbox ? 1 : 0;
+    if (sharedScopes[i] == null)
+    {
+      ScriptableObject scope = cx.initStandardObjects(null, true);
+      scope.sealObject();
+      sharedScopes[i] = scope;
+    }
+    return sharedScopes[i];
+  }
+
   public void execute(String script, ScriptInterface si) throws ScriptException, IOException
   {
     this.execute(new StringReader(script), si, true);
@@ -91,6 +240,7 @@ public class ScriptInterpreter
 
   public void execute(final Reader script, final ScriptInterface si, boolean sandbox) throws ScriptException, IOException
   {
+    String source = readFully(script);
     if (!ContextFactory.hasExplicitGlobal())
     {
       ContextFactory.initGlobal(new SandboxContextFactory());
@@ -98,32 +248,45 @@ public class ScriptInterpreter
     Context cx = ContextFactory.getGlobal().enterContext();
     try
     {
-      cx.setClassShutter(ScriptingSecurity.getInstance());
-    }
-    catch (SecurityException e)
-    {
-      //already registered for the current thread....
-    }
-    // Scriptable represents the script environment
-    Scriptable scope = cx.initStandardObjects(null);
-    scope.put("_instance", scope, Context.toObject(si, scope));
-    ScriptingSecurity.getInstance().setLocked(false);
-    cx.evaluateReader(scope, new InputStreamReader(this.getClass().getResourceAsStream("LaserScriptBootstrap.js")), "LaserScriptBootstrap.js", -1, null);
-    ScriptingSecurity.getInstance().setLocked(sandbox);
-    try
-    {
-      cx.evaluateReader(scope, script, "laserscript", -1, null);
-    }
-    catch (Exception e)
-    {
-      if (e instanceof ScriptException)
+      try
+      {
+        cx.setClassShutter(ScriptingSecurity.getInstance());
+      }
+      catch (SecurityException e)
       {
-        throw (ScriptException) e;
+        //already registered for the current thread....
       }
-      else
+      cx.setOptimizationLevel(optimizationLevel);
+      // Scriptable represents the script environment.
+      // Global variables of the script end up here, the standard objects
+      // are inherited from the shared scope
+      ScriptableObject shared = getSharedScope(cx, sandbox);
+      Scriptable scope = cx.newObject(shared);
+      scope.setPrototype(shared);
+      scope.setParentScope(null);
+      scope.put("_instance", scope, Context.toObject(si, scope));
+      ScriptingSecurity.getInstance().setLocked(false);
+      compile(cx, getBootstrapSource(), BOOTSTRAP).exec(cx, scope);
+      ScriptingSecurity.getInstance().setLocked(sandbox);
+      try
       {
-        throw new ScriptException(e);
+        compile(cx, source, "laserscript").exec(cx, scope);
       }
+      catch (Exception e)
+      {
+        if (e instanceof ScriptException)
+        {
+          throw (ScriptException) e;
+        }
+        else
+        {
+          throw new ScriptException(e);
+        }
+      }
+    }
+    finally
+    {
+      Context.exit();
     }
   }
 }
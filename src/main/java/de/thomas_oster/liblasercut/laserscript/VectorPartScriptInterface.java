@@ -51,6 +51,21 @@ public class VectorPartScriptInterface implements ScriptInterface
     objectTrans.transform(new double[]{x,y}, 0, p, 0, 1);
     vp.lineto((int) p[0],(int) p[1]);
   }
+
+  @Override
+  public void polyline(double[] xy)
+  {
+    if (xy.length % 2 != 0)
+    {
+      throw new IllegalArgumentException("polyline needs pairs of coordinates");
+    }
+    double[] p = new double[xy.length];
+    objectTrans.transform(xy, 0, p, 0, xy.length / 2);
+    for (int i = 0; i < p.length; i += 2)
+    {
+      vp.lineto((int) p[i],(int) p[i + 1]);
+    }
+  }
   
   public void set(String property, Object value)
   {
@@ -16,12 +16,12 @@
   along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
 
  */
-
 package de.thomas_oster.liblasercut.properties;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -29,8 +29,19 @@ import java.util.logging.Logger;
 
 /**
  *
- * Delegates all the LaserProperties to a map. The minimum and maximum and
- * possible values elements are stored and masked behind suffixes in the map.
+ * Generic LaserProperty with arbitrary keys. The keys and their minimum,
+ * maximum and possible values are described by a shared
+ * {@link PropertySchema}, which maps every key to a slot. Numbers and
+ * booleans are stored unboxed in a double array, other values in an
+ * object array.
+ *
+ * For compatibility, getProperty() also returns the minimum, maximum and
+ * possible values for the key with the suffix _minimum, _maximum or
+ * _values.
+ *
+ * Settings are saved (e.g. with XStream) in the same form as before the
+ * schema was introduced: a map of the keys and the suffixed keys to their
+ * values, see {@link #writeReplace()} and {@link #readResolve()}.
  */
 public class AbstractLaserProperty implements LaserProperty
 {
@@ -38,7 +49,16 @@ public class AbstractLaserProperty implements LaserProperty
   static final String MAX_SUFFIX = "_maximum";
   static final String MIN_SUFFIX = "_minimum";
   static final String VALUES_SUFFIX = "_values";
-  Map<String, Object> properties = new HashMap<>();
+  private transient PropertySchema schema = PropertySchema.EMPTY;
+  // indexed by slot, numeric and boolean values
+  private transient double[] numbers = new double[0];
+  // indexed by slot, values of type OBJECT, null if there are none
+  private transient Object[] objects;
+  // cached hashCode(), 0 if not computed yet
+  private transient int hash;
+  // the saved form, only set in the copy returned by writeReplace() and
+  // until readResolve() has converted it
+  private Map<String, Object> properties;
 
   public AbstractLaserProperty()
   {
@@ -47,56 +67,190 @@ public class AbstractLaserProperty implements LaserProperty
 
   public AbstractLaserProperty(AbstractLaserProperty p)
   {
-    properties = new HashMap<>(p.properties);
+    schema = p.schema;
+    numbers = p.numbers.clone();
+    objects = p.objects == null ? null : p.objects.clone();
+    hash = p.hash;
+  }
+
+  public PropertySchema getSchema()
+  {
+    return schema;
+  }
+
+  /**
+   * Called when saving: returns a copy which only holds the values as a
+   * map of keys (and suffixed keys for the minimum, maximum and possible
+   * values) to values, the format used before the schema was introduced.
+   * Subclasses have to override clone().
+   */
+  protected Object writeReplace()
+  {
+    AbstractLaserProperty copy = (AbstractLaserProperty) clone();
+    Map<String, Object> map = new HashMap<>();
+    for (Map.Entry<String, Object> e : entrySet())
+    {
+      map.put(e.getKey(), e.getValue());
+    }
+    copy.properties = map;
+    return copy;
+  }
+
+  /**
+   * Called after loading: converts the saved map (see writeReplace()),
+   * also from files written by older versions
+   */
+  protected Object readResolve()
+  {
+    // XStream does not call the constructor
+    if (schema == null)
+    {
+      schema = PropertySchema.EMPTY;
+      numbers = new double[0];
+    }
+    Map<String, Object> saved = properties;
+    properties = null;
+    if (saved != null)
+    {
+      for (Map.Entry<String, Object> e : saved.entrySet())
+      {
+        String key = e.getKey();
+        if (isSuffixedKey(key, saved))
+        {
+          continue;
+        }
+        Object values = saved.get(key + VALUES_SUFFIX);
+        setSchema(schema.define(key, PropertySchema.Type.of(e.getValue()), saved.get(key + MIN_SUFFIX),
+          saved.get(key + MAX_SUFFIX), values instanceof Object[] ? (Object[]) values : null));
+        store(schema.indexOf(key), e.getValue());
+      }
+    }
+    return this;
+  }
+
+  private static boolean isSuffixedKey(String key, Map<String, Object> saved)
+  {
+    for (String suffix : new String[]{MIN_SUFFIX, MAX_SUFFIX, VALUES_SUFFIX})
+    {
+      if (key.endsWith(suffix) && saved.containsKey(key.substring(0, key.length() - suffix.length())))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Switch to the given schema, keeping the existing slots
+   */
+  private void setSchema(PropertySchema s)
+  {
+    if (s != schema)
+    {
+      schema = s;
+      if (numbers.length < s.size())
+      {
+        numbers = Arrays.copyOf(numbers, s.size());
+        if (objects != null)
+        {
+          objects = Arrays.copyOf(objects, s.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * Store the value in the slot, the schema must already have the right type
+   */
+  private void store(int slot, Object value)
+  {
+    hash = 0;
+    // the unused array is cleared, equals() compares both
+    switch (schema.getType(slot))
+    {
+      case INTEGER:
+      case FLOAT:
+      case DOUBLE:
+        numbers[slot] = ((Number) value).doubleValue();
+        clearObject(slot);
+        break;
+      case BOOLEAN:
+        numbers[slot] = ((Boolean) value) ? 1 : 0;
+        clearObject(slot);
+        break;
+      default:
+        if (objects == null)
+        {
+          objects = new Object[numbers.length];
+        }
+        objects[slot] = value;
+        numbers[slot] = 0;
+    }
+  }
+
+  private void clearObject(int slot)
+  {
+    if (objects != null)
+    {
+      objects[slot] = null;
+    }
+  }
+
+  private Object load(int slot)
+  {
+    switch (schema.getType(slot))
+    {
+      case INTEGER:
+        return (int) numbers[slot];
+      case FLOAT:
+        return (float) numbers[slot];
+      case DOUBLE:
+        return numbers[slot];
+      case BOOLEAN:
+        return numbers[slot] != 0;
+      default:
+        return objects == null ? null : objects[slot];
+    }
   }
 
   final public void addPropertyRanged(String name, Object value, Object min, Object max)
   {
-    properties.put(name, value);
-    properties.put(name + MIN_SUFFIX, min);
-    properties.put(name + MAX_SUFFIX, max);
+    int slot = schema.indexOf(name);
+    setSchema(schema.define(name, PropertySchema.Type.of(value), min, max, slot < 0 ? null : schema.getPossibleValues(slot)));
+    store(schema.indexOf(name), value);
   }
   
   final public void addProperty(String name, Object value)
   {
-    properties.put(name, value);
+    setProperty(name, value);
   }
 
   final public void addPropertySpecific(String name, Object... values) {
-    properties.put(name, values[0]);
-    properties.put(name + VALUES_SUFFIX, values);
+    int slot = schema.indexOf(name);
+    setSchema(schema.define(name, PropertySchema.Type.of(values[0]),
+      slot < 0 ? null : schema.getMinimum(slot), slot < 0 ? null : schema.getMaximum(slot), values));
+    store(schema.indexOf(name), values[0]);
   }
 
   @Override
   public Object getMinimumValue(String name)
   {
-    return properties.getOrDefault(name + MIN_SUFFIX, null);
+    int slot = schema.indexOf(name);
+    return slot < 0 ? null : schema.getMinimum(slot);
   }
 
   @Override
   public Object getMaximumValue(String name)
   {
-    return properties.getOrDefault(name + MAX_SUFFIX, null);
+    int slot = schema.indexOf(name);
+    return slot < 0 ? null : schema.getMaximum(slot);
   }
 
   @Override
   public Object[] getPossibleValues(String name)
   {
-    Object values = properties.getOrDefault(name + VALUES_SUFFIX, null);
-    if (values == null)
-    {
-      return null;
-    }
-    if (values instanceof Object[])
-    {
-      return (Object[]) values;
-    }
-    if (values instanceof List)
-    {
-      List<Object> list = (List<Object>) values;
-      return list.toArray();
-    }
-    return null;
+    int slot = schema.indexOf(name);
+    return slot < 0 ? null : schema.getPossibleValues(slot);
   }
 
   @Override
@@ -108,51 +262,84 @@ public class AbstractLaserProperty implements LaserProperty
   @Override
   public String[] getPropertyKeys()
   {
-    Set<String> keys = properties.keySet();
-    ArrayList<String> list = new ArrayList<>();
-    for (String key : keys)
-    {
-      if ((!key.endsWith(MIN_SUFFIX))
-        && (!key.endsWith(MAX_SUFFIX))
-        && (!key.endsWith(VALUES_SUFFIX)))
-      {
-        list.add(key);
-      }
-    }
-    String[] k = new String[list.size()];
-    k = list.toArray(k);
-    return k;
+    return schema.getKeys();
   }
 
   @Override
   public void setProperty(String key, Object value)
   {
-    properties.put(key, value);
+    setSchema(schema.withType(key, PropertySchema.Type.of(value)));
+    store(schema.indexOf(key), value);
   }
 
   @Override
   public Object getProperty(String key)
   {
-    return properties.get(key);
+    int slot = schema.indexOf(key);
+    if (slot >= 0)
+    {
+      return load(slot);
+    }
+    if (key.endsWith(MIN_SUFFIX))
+    {
+      return getMinimumValue(key.substring(0, key.length() - MIN_SUFFIX.length()));
+    }
+    if (key.endsWith(MAX_SUFFIX))
+    {
+      return getMaximumValue(key.substring(0, key.length() - MAX_SUFFIX.length()));
+    }
+    if (key.endsWith(VALUES_SUFFIX))
+    {
+      return getPossibleValues(key.substring(0, key.length() - VALUES_SUFFIX.length()));
+    }
+    return null;
   }
   
   public boolean hasProperty(String key) {
-    return properties.containsKey(key);
+    return schema.indexOf(key) >= 0;
   }
 
   public boolean containsKey(Object key)
   {
-    return properties.containsKey(key);
+    return key instanceof String && getProperty((String) key) != null;
   }
 
+  /**
+   * Read-only copy of all values, including the minimum, maximum and
+   * possible values with their suffixes
+   */
   public Set<Map.Entry<String, Object>> entrySet()
   {
-    return properties.entrySet();
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (int i = 0; i < schema.size(); i++)
+    {
+      String key = schema.getKey(i);
+      result.put(key, load(i));
+      if (schema.getMinimum(i) != null)
+      {
+        result.put(key + MIN_SUFFIX, schema.getMinimum(i));
+      }
+      if (schema.getMaximum(i) != null)
+      {
+        result.put(key + MAX_SUFFIX, schema.getMaximum(i));
+      }
+      if (schema.getPossibleValues(i) != null)
+      {
+        result.put(key + VALUES_SUFFIX, schema.getPossibleValues(i));
+      }
+    }
+    return Collections.unmodifiableMap(result).entrySet();
   }
 
   public Object getOrDefault(Object key, Object defaultValue)
   {
-    return properties.getOrDefault(key, defaultValue);
+    Object value = key instanceof String ? getProperty((String) key) : null;
+    return value != null ? value : defaultValue;
+  }
+
+  private boolean isType(int slot, PropertySchema.Type type)
+  {
+    return slot >= 0 && schema.getType(slot) == type;
   }
 
   public Double getDouble(String key)
@@ -162,12 +349,8 @@ public class AbstractLaserProperty implements LaserProperty
 
   public Double getDouble(String key, Double def)
   {
-    Object obj = properties.getOrDefault(key, def);
-    if (obj instanceof Double)
-    {
-      return (Double) obj;
-    }
-    return def;
+    int slot = schema.indexOf(key);
+    return isType(slot, PropertySchema.Type.DOUBLE) ? Double.valueOf(numbers[slot]) : def;
   }
 
   public Float getFloat(String key)
@@ -177,12 +360,8 @@ public class AbstractLaserProperty implements LaserProperty
 
   public Float getFloat(String key, Float def)
   {
-    Object obj = properties.getOrDefault(key, def);
-    if (obj instanceof Float)
-    {
-      return (Float) obj;
-    }
-    return def;
+    int slot = schema.indexOf(key);
+    return isType(slot, PropertySchema.Type.FLOAT) ? Float.valueOf((float) numbers[slot]) : def;
   }
 
   public Integer getInteger(String key)
@@ -192,28 +371,53 @@ public class AbstractLaserProperty implements LaserProperty
 
   public Integer getInteger(String key, Integer def)
   {
-    Object obj = properties.getOrDefault(key, def);
-    if (obj instanceof Integer)
+    int slot = schema.indexOf(key);
+    return isType(slot, PropertySchema.Type.INTEGER) ? Integer.valueOf((int) numbers[slot]) : def;
+  }
+
+  /**
+   * Like getInteger(), without boxing
+   */
+  public int getInt(String key, int def)
+  {
+    int slot = schema.indexOf(key);
+    return isType(slot, PropertySchema.Type.INTEGER) ? (int) numbers[slot] : def;
+  }
+
+  /**
+   * Set an Integer property without boxing
+   */
+  public void setInt(String key, int value)
+  {
+    int slot = schema.indexOf(key);
+    if (!isType(slot, PropertySchema.Type.INTEGER))
     {
-      return (Integer) obj;
+      setSchema(schema.withType(key, PropertySchema.Type.INTEGER));
+      slot = schema.indexOf(key);
     }
-    return def;
+    hash = 0;
+    numbers[slot] = value;
+    clearObject(slot);
   }
-  
+
   /**
    * get value in numeric datatype, if available
    * @return numeric value converted to Double; 0 if not present or a non-numeric datatype
    */
   public double getNumeric(String key)
   {
-    if (getDouble(key) != null) {
-      return getDouble(key);
-    }
-    if (getFloat(key) != null) {
-      return getFloat(key);
-    }
-    if (getInteger(key) != null) {
-      return getInteger(key);
+    return getNumeric(schema.indexOf(key));
+  }
+
+  /**
+   * @param slot see {@link PropertySchema#indexOf(String)}
+   * @return numeric value of the slot; 0 if the slot is -1 or not numeric
+   */
+  public double getNumeric(int slot)
+  {
+    if (slot >= 0 && schema.getType(slot).isNumeric())
+    {
+      return numbers[slot];
     }
     return 0;
   }
@@ -224,19 +428,37 @@ public class AbstractLaserProperty implements LaserProperty
    */
   public void setNumeric(String key, double value)
   {
-    if (getDouble(key) != null) {
-      this.setProperty(key, value);
-      return;
+    if (!setNumeric(schema.indexOf(key), value))
+    {
+      Logger.getLogger(this.getClass().getName()).warning("tried to set nonexistent property " + key);
     }
-    if (getFloat(key) != null) {
-      this.setProperty(key, (float) value);
-      return;
+  }
+
+  /**
+   * @return false if the slot is -1 or not numeric
+   */
+  private boolean setNumeric(int slot, double value)
+  {
+    if (slot < 0)
+    {
+      return false;
     }
-    if (getInteger(key) != null) {
-      this.setProperty(key, (int) value);
-      return;
+    switch (schema.getType(slot))
+    {
+      case INTEGER:
+        numbers[slot] = (int) value;
+        break;
+      case FLOAT:
+        numbers[slot] = (float) value;
+        break;
+      case DOUBLE:
+        numbers[slot] = value;
+        break;
+      default:
+        return false;
     }
-    Logger.getLogger(this.getClass().getName()).warning("tried to set nonexistent property " + key);
+    hash = 0;
+    return true;
   }
   
   public Boolean getBoolean(String key)
@@ -246,12 +468,8 @@ public class AbstractLaserProperty implements LaserProperty
 
   public Boolean getBoolean(String key, Boolean def)
   {
-    Object obj = properties.getOrDefault(key, def);
-    if (obj instanceof Boolean)
-    {
-      return (Boolean) obj;
-    }
-    return def;
+    int slot = schema.indexOf(key);
+    return isType(slot, PropertySchema.Type.BOOLEAN) ? Boolean.valueOf(numbers[slot] != 0) : def;
   }
 
   public String getString(String key)
@@ -261,7 +479,7 @@ public class AbstractLaserProperty implements LaserProperty
 
   public String getString(String key, String def)
   {
-    Object obj = properties.getOrDefault(key, def);
+    Object obj = getOrDefault(key, def);
     if (obj instanceof String)
     {
       return (String) obj;
@@ -272,7 +490,19 @@ public class AbstractLaserProperty implements LaserProperty
   @Override
   public int hashCode()
   {
-    return properties.hashCode();
+    // properties are compared very often when optimizing, but rarely changed
+    int h = hash;
+    if (h == 0)
+    {
+      // independent of the order of the slots, like Map.hashCode()
+      h = schema.getDefinitionHash();
+      for (int i = 0; i < schema.size(); i++)
+      {
+        h += schema.getKey(i).hashCode() ^ Objects.hashCode(load(i));
+      }
+      hash = h;
+    }
+    return h;
   }
 
   @Override
@@ -291,25 +521,76 @@ public class AbstractLaserProperty implements LaserProperty
       return false;
     }
     AbstractLaserProperty other = (AbstractLaserProperty) obj;
-    return Objects.equals(this.properties, other.properties);
+    if (hashCode() != other.hashCode())
+    {
+      return false;
+    }
+    if (schema == other.schema)
+    {
+      // same slots and types, compare the arrays
+      int n = schema.size();
+      for (int i = 0; i < n; i++)
+      {
+        if (Double.doubleToLongBits(numbers[i]) != Double.doubleToLongBits(other.numbers[i]))
+        {
+          return false;
+        }
+        if (schema.getType(i) == PropertySchema.Type.OBJECT && !Objects.equals(load(i), other.load(i)))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (!schema.isEquivalent(other.schema))
+    {
+      return false;
+    }
+    for (int i = 0; i < schema.size(); i++)
+    {
+      if (!Objects.equals(load(i), other.getProperty(schema.getKey(i))))
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public float getPower()
   {
-    return (float) getNumeric("power");
+    return (float) getNumeric(schema.getPowerSlot());
   }
 
   @Override
   public void setPower(float p)
   {
-    setNumeric("power", p);
+    if (!setNumeric(schema.getPowerSlot(), p))
+    {
+      Logger.getLogger(this.getClass().getName()).warning("tried to set nonexistent property power");
+    }
   }
 
   @Override
   public float getSpeed()
   {
-    return (float) getNumeric("speed");
+    return (float) getNumeric(schema.getSpeedSlot());
+  }
+
+  /**
+   * @return focus or 0 if there is no numeric "focus" property
+   */
+  public float getFocus()
+  {
+    return (float) getNumeric(schema.getFocusSlot());
+  }
+
+  /**
+   * @return frequency or 0 if there is no numeric "frequency" property
+   */
+  public float getFrequency()
+  {
+    return (float) getNumeric(schema.getFrequencySlot());
   }
 
 }
@@ -0,0 +1,70 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.properties;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns laser properties, so equal properties created in different
+ * places (e.g. per colour of several raster parts) are the same object.
+ * Optimizers and drivers comparing properties then mostly hit the
+ * reference check at the start of equals().
+ *
+ * Interned properties are shared and must not be modified, so they are
+ * meant for internal loops only. Return a clone of them from public methods.
+ * Unused properties are garbage collected.
+ */
+public class LaserPropertyPool
+{
+  private static final Map<LaserProperty, WeakReference<LaserProperty>> pool = new WeakHashMap<>();
+
+  private LaserPropertyPool()
+  {
+  }
+
+  /**
+   * @return an equal property from the pool, or a copy of the given one,
+   * which is added to the pool. The given property is never shared, so the
+   * caller may still modify it.
+   */
+  public static LaserProperty intern(LaserProperty p)
+  {
+    synchronized (pool)
+    {
+      WeakReference<LaserProperty> ref = pool.get(p);
+      LaserProperty result = ref == null ? null : ref.get();
+      if (result == null)
+      {
+        result = p.clone();
+        pool.put(result, new WeakReference<>(result));
+      }
+      return result;
+    }
+  }
+
+  static int size()
+  {
+    synchronized (pool)
+    {
+      return pool.size();
+    }
+  }
+}
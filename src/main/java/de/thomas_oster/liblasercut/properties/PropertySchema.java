@@ -0,0 +1,326 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.properties;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The keys of an {@link AbstractLaserProperty}, resolved to slots, with their
+ * type and minimum, maximum and possible values.
+ *
+ * Schemas are immutable and shared: adding a key or changing its definition
+ * derives a new schema, and the derived schemas are cached, so all
+ * properties built the same way (e.g. by one driver) use the same schema
+ * and the keys are only resolved once. The cache only holds weak
+ * references, a schema which is no longer used by any property (e.g. for a
+ * range computed from old device settings) is garbage collected.
+ */
+public final class PropertySchema
+{
+  public enum Type
+  {
+    INTEGER, FLOAT, DOUBLE, BOOLEAN, OBJECT;
+
+    /**
+     * True for the types stored in the numeric slots
+     */
+    public boolean isNumeric()
+    {
+      return this == INTEGER || this == FLOAT || this == DOUBLE;
+    }
+
+    public static Type of(Object value)
+    {
+      if (value instanceof Integer)
+      {
+        return INTEGER;
+      }
+      if (value instanceof Float)
+      {
+        return FLOAT;
+      }
+      if (value instanceof Double)
+      {
+        return DOUBLE;
+      }
+      if (value instanceof Boolean)
+      {
+        return BOOLEAN;
+      }
+      return OBJECT;
+    }
+  }
+
+  public static final PropertySchema EMPTY = new PropertySchema(new String[0], new Type[0], new Object[0], new Object[0], new Object[0][]);
+
+  private final String[] keys;
+  private final Type[] types;
+  private final Object[] minimum;
+  private final Object[] maximum;
+  private final Object[][] possibleValues;
+  private final Map<String, Integer> slots = new HashMap<>();
+  private final int powerSlot;
+  private final int speedSlot;
+  private final int focusSlot;
+  private final int frequencySlot;
+  private final int definitionHash;
+  // see define(), guarded by itself
+  private final Map<Definition, WeakReference<PropertySchema>> derived = new HashMap<>();
+  // derived is cleaned up when it grows beyond this size
+  private int purgeSize = 16;
+
+  private PropertySchema(String[] keys, Type[] types, Object[] minimum, Object[] maximum, Object[][] possibleValues)
+  {
+    this.keys = keys;
+    this.types = types;
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.possibleValues = possibleValues;
+    int h = 0;
+    for (int i = 0; i < keys.length; i++)
+    {
+      slots.put(keys[i], i);
+      // independent of the order of the keys, see AbstractLaserProperty.hashCode()
+      h += keys[i].hashCode() ^ Objects.hashCode(minimum[i]) ^ 31 * Objects.hashCode(maximum[i]) ^ 961 * Arrays.hashCode(possibleValues[i]);
+    }
+    definitionHash = h;
+    powerSlot = indexOf("power");
+    speedSlot = indexOf("speed");
+    focusSlot = indexOf("focus");
+    frequencySlot = indexOf("frequency");
+  }
+
+  /**
+   * Key of a derived schema
+   */
+  private static class Definition
+  {
+    final String key;
+    final Type type;
+    final Object minimum;
+    final Object maximum;
+    final Object[] possibleValues;
+
+    Definition(String key, Type type, Object minimum, Object maximum, Object[] possibleValues)
+    {
+      this.key = key;
+      this.type = type;
+      this.minimum = minimum;
+      this.maximum = maximum;
+      this.possibleValues = possibleValues;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash(key, type, minimum, maximum) * 31 + Arrays.hashCode(possibleValues);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof Definition))
+      {
+        return false;
+      }
+      Definition o = (Definition) obj;
+      return key.equals(o.key) && type == o.type && Objects.equals(minimum, o.minimum)
+        && Objects.equals(maximum, o.maximum) && Arrays.equals(possibleValues, o.possibleValues);
+    }
+  }
+
+  /**
+   * @return the schema with the given key added or redefined. Existing
+   * keys keep their slot.
+   */
+  public PropertySchema define(String key, Type type, Object minimum, Object maximum, Object[] possibleValues)
+  {
+    int slot = indexOf(key);
+    if (slot >= 0 && types[slot] == type && Objects.equals(this.minimum[slot], minimum)
+      && Objects.equals(this.maximum[slot], maximum) && Arrays.equals(this.possibleValues[slot], possibleValues))
+    {
+      return this;
+    }
+    Definition d = new Definition(key, type, minimum, maximum, possibleValues);
+    synchronized (derived)
+    {
+      WeakReference<PropertySchema> ref = derived.get(d);
+      PropertySchema result = ref == null ? null : ref.get();
+      if (result == null)
+      {
+        int n = slot >= 0 ? keys.length : keys.length + 1;
+        int s = slot >= 0 ? slot : keys.length;
+        String[] k = Arrays.copyOf(keys, n);
+        Type[] t = Arrays.copyOf(types, n);
+        Object[] min = Arrays.copyOf(this.minimum, n);
+        Object[] max = Arrays.copyOf(this.maximum, n);
+        Object[][] values = Arrays.copyOf(this.possibleValues, n);
+        k[s] = key;
+        t[s] = type;
+        min[s] = minimum;
+        max[s] = maximum;
+        values[s] = possibleValues;
+        result = new PropertySchema(k, t, min, max, values);
+        derived.put(d, new WeakReference<>(result));
+        if (derived.size() > purgeSize)
+        {
+          derived.values().removeIf(r -> r.get() == null);
+          purgeSize = Math.max(16, 2 * derived.size());
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Number of cached derived schemas, including collected ones which were
+   * not removed yet
+   */
+  int getDerivedCount()
+  {
+    synchronized (derived)
+    {
+      return derived.size();
+    }
+  }
+
+  /**
+   * @return the schema with the type of an existing key changed, or the
+   * key added without minimum, maximum or possible values
+   */
+  public PropertySchema withType(String key, Type type)
+  {
+    int slot = indexOf(key);
+    if (slot < 0)
+    {
+      return define(key, type, null, null, null);
+    }
+    if (types[slot] == type)
+    {
+      return this;
+    }
+    return define(key, type, minimum[slot], maximum[slot], possibleValues[slot]);
+  }
+
+  /**
+   * @return slot of the key or -1
+   */
+  public int indexOf(String key)
+  {
+    Integer slot = slots.get(key);
+    return slot == null ? -1 : slot;
+  }
+
+  public int size()
+  {
+    return keys.length;
+  }
+
+  public String getKey(int slot)
+  {
+    return keys[slot];
+  }
+
+  public String[] getKeys()
+  {
+    return keys.clone();
+  }
+
+  public Type getType(int slot)
+  {
+    return types[slot];
+  }
+
+  public Object getMinimum(int slot)
+  {
+    return minimum[slot];
+  }
+
+  public Object getMaximum(int slot)
+  {
+    return maximum[slot];
+  }
+
+  public Object[] getPossibleValues(int slot)
+  {
+    return possibleValues[slot];
+  }
+
+  /**
+   * Slot of "power", -1 if not defined. Resolved when the schema is created.
+   */
+  public int getPowerSlot()
+  {
+    return powerSlot;
+  }
+
+  public int getSpeedSlot()
+  {
+    return speedSlot;
+  }
+
+  public int getFocusSlot()
+  {
+    return focusSlot;
+  }
+
+  public int getFrequencySlot()
+  {
+    return frequencySlot;
+  }
+
+  /**
+   * Hash of the keys and their minimum, maximum and possible values,
+   * independent of their order
+   */
+  int getDefinitionHash()
+  {
+    return definitionHash;
+  }
+
+  /**
+   * True if both schemas define the same keys in the same way, possibly
+   * in a different order
+   */
+  boolean isEquivalent(PropertySchema other)
+  {
+    if (this == other)
+    {
+      return true;
+    }
+    if (keys.length != other.keys.length || definitionHash != other.definitionHash)
+    {
+      return false;
+    }
+    for (int i = 0; i < keys.length; i++)
+    {
+      int j = other.indexOf(keys[i]);
+      if (j < 0 || !Objects.equals(minimum[i], other.minimum[j]) || !Objects.equals(maximum[i], other.maximum[j])
+        || !Objects.deepEquals(possibleValues[i], other.possibleValues[j]))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
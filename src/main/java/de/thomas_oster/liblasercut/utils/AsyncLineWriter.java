@@ -0,0 +1,377 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decouples the generation of encoded lines (e.g. G-Code) from the
+ * transmission to the machine.
+ *
+ * The producer (the thread that generates the job) copies each line into a
+ * bounded ring of pre-allocated byte slots; a background thread drains the
+ * ring into a {@link LineSink}. This way the producer keeps generating while
+ * the machine is slow to acknowledge, and the machine keeps receiving while
+ * the producer is busy (e.g. converting raster data).
+ *
+ * Exactly one producer thread is supported. Both sides count how often they
+ * had to wait for the other one ("stalls"), which tells whether the
+ * generation or the transmission is the bottleneck.
+ */
+public class AsyncLineWriter
+{
+
+  /**
+   * Receives the lines in the background thread
+   */
+  public interface LineSink
+  {
+    /**
+     * Transmit one line.
+     * @param line buffer containing the line. Only valid during this call.
+     * @param length number of valid bytes in line
+     * @param awaitAck flag which was given to {@link AsyncLineWriter#write}
+     * (e.g. wait for "ok" after this line)
+     */
+    void writeLine(byte[] line, int length, boolean awaitAck) throws IOException;
+  }
+
+  private static final int INITIAL_SLOT_SIZE = 64;
+
+  private final byte[][] slots;
+  private final int[] lengths;
+  private final boolean[] awaitAck;
+  private final LineSink sink;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Condition notEmpty = lock.newCondition();
+
+  // guarded by lock
+  private int head = 0;
+  private int tail = 0;
+  private int count = 0;
+  private boolean closed = false;
+  private boolean aborted = false;
+  private IOException failure = null;
+
+  private Thread thread;
+
+  private volatile long producerStalls = 0;
+  private volatile long producerStallNanos = 0;
+  private volatile long consumerStalls = 0;
+  private volatile long consumerStallNanos = 0;
+  private volatile long linesWritten = 0;
+
+  /**
+   * @param capacity maximum number of lines buffered ahead of the sink
+   * @param sink target for the lines, called from the background thread
+   */
+  public AsyncLineWriter(int capacity, LineSink sink)
+  {
+    if (capacity < 1)
+    {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    this.slots = new byte[capacity][INITIAL_SLOT_SIZE];
+    this.lengths = new int[capacity];
+    this.awaitAck = new boolean[capacity];
+    this.sink = sink;
+  }
+
+  /**
+   * Start the background thread
+   * @param name name of the thread, useful for debugging
+   */
+  public synchronized void start(String name)
+  {
+    if (thread != null)
+    {
+      throw new IllegalStateException("already started");
+    }
+    thread = new Thread(this::drain, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Append a line. Blocks while the buffer is full.
+   * @throws IOException if the sink failed on an earlier line
+   */
+  public void write(byte[] line, int offset, int length, boolean ack) throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if (count == slots.length && failure == null && !closed)
+      {
+        producerStalls++;
+        long start = System.nanoTime();
+        while (count == slots.length && failure == null && !closed)
+        {
+          notFull.await();
+        }
+        producerStallNanos += System.nanoTime() - start;
+      }
+      if (failure != null)
+      {
+        throw new IOException(failure.getMessage(), failure);
+      }
+      if (closed)
+      {
+        throw new IOException("Line writer is already closed");
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the machine");
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    // the slot at head is owned by the producer until count is increased
+    if (slots[head].length < length)
+    {
+      slots[head] = new byte[Math.max(length, 2 * slots[head].length)];
+    }
+    System.arraycopy(line, offset, slots[head], 0, length);
+    lengths[head] = length;
+    awaitAck[head] = ack;
+    lock.lock();
+    try
+    {
+      head = (head + 1) % slots.length;
+      count++;
+      notEmpty.signal();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void drain()
+  {
+    while (true)
+    {
+      lock.lock();
+      try
+      {
+        if (count == 0 && !closed)
+        {
+          // nothing to send: the producer is the bottleneck
+          consumerStalls++;
+          long start = System.nanoTime();
+          while (count == 0 && !closed)
+          {
+            notEmpty.await();
+          }
+          consumerStallNanos += System.nanoTime() - start;
+        }
+        if (count == 0 || aborted)
+        {
+          // closed and drained, or aborted
+          return;
+        }
+      }
+      catch (InterruptedException e)
+      {
+        fail(new InterruptedIOException("Line writer was interrupted"));
+        return;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      // the slot at tail is owned by the consumer until count is decreased
+      try
+      {
+        sink.writeLine(slots[tail], lengths[tail], awaitAck[tail]);
+      }
+      catch (IOException e)
+      {
+        fail(e);
+        return;
+      }
+      catch (RuntimeException e)
+      {
+        fail(new IOException(e));
+        return;
+      }
+      linesWritten++;
+      lock.lock();
+      try
+      {
+        tail = (tail + 1) % slots.length;
+        count--;
+        notFull.signal();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void fail(IOException e)
+  {
+    lock.lock();
+    try
+    {
+      failure = e;
+      notFull.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until all lines have been passed to the sink and stop the
+   * background thread.
+   * @throws IOException if the sink failed
+   */
+  public void finish() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      closed = true;
+      notEmpty.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    try
+    {
+      if (thread != null)
+      {
+        thread.join();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      abort();
+      throw new InterruptedIOException("Interrupted while waiting for the machine");
+    }
+    if (failure != null)
+    {
+      throw new IOException(failure.getMessage(), failure);
+    }
+  }
+
+  /**
+   * Stop the background thread as soon as possible, discarding pending lines.
+   * Does nothing if the writer has already finished.
+   */
+  public void abort()
+  {
+    lock.lock();
+    try
+    {
+      closed = true;
+      aborted = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    if (thread != null && thread.isAlive())
+    {
+      // a sink blocked on I/O is released when the caller closes the transport
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Wait until the background thread has stopped, e.g. after abort().
+   * @param millis maximum time to wait, 0 waits forever
+   * @return false if the thread is still running, e.g. blocked on I/O
+   */
+  public boolean join(long millis) throws InterruptedException
+  {
+    Thread t;
+    synchronized (this)
+    {
+      t = thread;
+    }
+    if (t == null)
+    {
+      return true;
+    }
+    t.join(millis);
+    return !t.isAlive();
+  }
+
+  /**
+   * Number of times the producer had to wait because the buffer was full,
+   * i.e. the transmission (machine) was the bottleneck.
+   */
+  public long getProducerStalls()
+  {
+    return producerStalls;
+  }
+
+  public long getProducerStallMillis()
+  {
+    return producerStallNanos / 1000000;
+  }
+
+  /**
+   * Number of times the background thread had to wait because the buffer was
+   * empty, i.e. the generation of the job was the bottleneck.
+   */
+  public long getConsumerStalls()
+  {
+    return consumerStalls;
+  }
+
+  public long getConsumerStallMillis()
+  {
+    return consumerStallNanos / 1000000;
+  }
+
+  public long getLinesWritten()
+  {
+    return linesWritten;
+  }
+
+  public int getCapacity()
+  {
+    return slots.length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "AsyncLineWriter: " + linesWritten + " lines, "
+      + producerStalls + " producer stalls (" + getProducerStallMillis() + " ms), "
+      + consumerStalls + " consumer stalls (" + getConsumerStallMillis() + " ms)";
+  }
+}
@@ -0,0 +1,275 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pipe between two threads, e.g. the thread generating a job and
+ * the thread uploading it. Data is passed in chunks, which are recycled,
+ * so at most (capacity + 2) chunks are allocated.
+ *
+ * Unlike java.io.PipedInputStream, flush() does not hand over partial chunks
+ * (PrintStream flushes after every line), and either side can abort the
+ * transfer with {@link #fail(IOException)}, which makes the other side
+ * throw instead of blocking forever.
+ */
+public class ChunkPipe
+{
+  private static final long POLL_MILLIS = 100;
+
+  private static class Chunk
+  {
+    final byte[] data;
+    int length = 0;
+
+    Chunk(int size)
+    {
+      data = new byte[size];
+    }
+  }
+
+  private static final Chunk EOF = new Chunk(0);
+
+  private final int chunkSize;
+  private final ArrayBlockingQueue<Chunk> filled;
+  private final ArrayBlockingQueue<Chunk> free;
+  private volatile IOException failure;
+
+  /**
+   * @param chunkSize size of one chunk in bytes
+   * @param capacity number of chunks which can be buffered
+   */
+  public ChunkPipe(int chunkSize, int capacity)
+  {
+    this.chunkSize = chunkSize;
+    // one more slot for EOF
+    this.filled = new ArrayBlockingQueue<>(capacity + 1);
+    this.free = new ArrayBlockingQueue<>(capacity + 2);
+  }
+
+  public ChunkPipe()
+  {
+    this(64 * 1024, 16);
+  }
+
+  /**
+   * Abort the transfer. Pending and future reads and writes throw the given
+   * exception. The first failure wins.
+   */
+  public void fail(IOException e)
+  {
+    if (failure == null)
+    {
+      failure = e;
+    }
+    filled.clear();
+  }
+
+  private void checkFailure() throws IOException
+  {
+    if (failure != null)
+    {
+      throw new IOException(failure.getMessage(), failure);
+    }
+  }
+
+  private void put(Chunk chunk) throws IOException
+  {
+    try
+    {
+      while (!filled.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS))
+      {
+        checkFailure();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private final OutputStream outputStream = new OutputStream()
+  {
+    private Chunk chunk;
+    private boolean closed = false;
+
+    private void ensureChunk()
+    {
+      if (chunk == null)
+      {
+        chunk = free.poll();
+        if (chunk == null)
+        {
+          chunk = new Chunk(chunkSize);
+        }
+        chunk.length = 0;
+      }
+    }
+
+    private void pushChunk() throws IOException
+    {
+      if (chunk != null && chunk.length > 0)
+      {
+        Chunk c = chunk;
+        chunk = null;
+        put(c);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      checkFailure();
+      ensureChunk();
+      chunk.data[chunk.length++] = (byte) b;
+      if (chunk.length == chunkSize)
+      {
+        pushChunk();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      checkFailure();
+      while (len > 0)
+      {
+        ensureChunk();
+        int n = Math.min(len, chunkSize - chunk.length);
+        System.arraycopy(b, off, chunk.data, chunk.length, n);
+        chunk.length += n;
+        off += n;
+        len -= n;
+        if (chunk.length == chunkSize)
+        {
+          pushChunk();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (!closed)
+      {
+        closed = true;
+        pushChunk();
+        put(EOF);
+      }
+    }
+  };
+
+  private final InputStream inputStream = new InputStream()
+  {
+    private Chunk chunk;
+    private int pos = 0;
+    private boolean eof = false;
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException
+    {
+      while (!eof && (chunk == null || pos == chunk.length))
+      {
+        if (chunk != null)
+        {
+          free.offer(chunk);
+          chunk = null;
+        }
+        try
+        {
+          Chunk c;
+          while ((c = filled.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null)
+          {
+            checkFailure();
+          }
+          checkFailure();
+          if (c == EOF)
+          {
+            eof = true;
+          }
+          else
+          {
+            chunk = c;
+            pos = 0;
+          }
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      return !eof;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      return fill() ? chunk.data[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+      {
+        return 0;
+      }
+      if (!fill())
+      {
+        return -1;
+      }
+      int n = Math.min(len, chunk.length - pos);
+      System.arraycopy(chunk.data, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available()
+    {
+      return chunk == null ? 0 : chunk.length - pos;
+    }
+  };
+
+  /**
+   * The writing end. close() signals the end of the data.
+   */
+  public OutputStream getOutputStream()
+  {
+    return outputStream;
+  }
+
+  /**
+   * The reading end
+   */
+  public InputStream getInputStream()
+  {
+    return inputStream;
+  }
+}
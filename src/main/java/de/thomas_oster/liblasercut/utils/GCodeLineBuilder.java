@@ -0,0 +1,371 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Reusable buffer for assembling one line of G-Code as ASCII bytes.
+ *
+ * Numbers are written directly into the buffer, without going through
+ * String.format, DecimalFormat or boxing. The output is identical to the
+ * formatting previously used by the G-Code drivers:
+ * <ul>
+ * <li>{@link #word(char, double, int)} matches a DecimalFormat with pattern
+ * "###.##" and the given maximum fraction digits (HALF_EVEN rounding of the
+ * exact binary value, trailing zeros removed, "-0" for negative values that
+ * round to zero)</li>
+ * <li>{@link #wordFixed(char, double, int)} matches String.format("%.nf")</li>
+ * <li>{@link #word(char, long)} matches String.format("%d")</li>
+ * </ul>
+ * Values which can not be handled exactly by the fast path (very large
+ * numbers, NaN, rare exact ties for %f) fall back to the original formatting.
+ *
+ * A builder is not thread safe; the bytes must be copied or written
+ * before the next line is started.
+ */
+public class GCodeLineBuilder
+{
+  private static final Locale FORMAT_LOCALE = Locale.US;
+
+  private static final long[] POW10 = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+    1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+    100000000000000L
+  };
+
+  /**
+   * Scaled values must stay below this so that floor() and the conversion
+   * to long are exact
+   */
+  private static final double MAX_FAST_SCALED = 1e15;
+
+  private byte[] buf = new byte[128];
+  private int length = 0;
+  private boolean compact = false;
+
+  /**
+   * @param compact if true, words are not separated by spaces
+   * (e.g. "G1X1Y2" instead of "G1 X1 Y2")
+   */
+  public void setCompact(boolean compact)
+  {
+    this.compact = compact;
+  }
+
+  public boolean isCompact()
+  {
+    return compact;
+  }
+
+  /**
+   * Start a new line with the given command, e.g. "G1"
+   */
+  public GCodeLineBuilder begin(String command)
+  {
+    length = 0;
+    return append(command);
+  }
+
+  /**
+   * Append a word with a decimal value, using at most maxDecimals
+   * fraction digits and no trailing zeros.
+   */
+  public GCodeLineBuilder word(char letter, double value, int maxDecimals)
+  {
+    separator();
+    appendChar(letter);
+    return appendDecimal(value, maxDecimals);
+  }
+
+  /**
+   * Append a word with a decimal value with exactly the given number of
+   * fraction digits (like %f)
+   */
+  public GCodeLineBuilder wordFixed(char letter, double value, int decimals)
+  {
+    separator();
+    appendChar(letter);
+    return appendFixed(value, decimals);
+  }
+
+  /**
+   * Append a word with an integer value
+   */
+  public GCodeLineBuilder word(char letter, long value)
+  {
+    separator();
+    appendChar(letter);
+    return appendLong(value);
+  }
+
+  /**
+   * Append text unchanged (in compact mode, spaces are removed)
+   */
+  public GCodeLineBuilder append(String text)
+  {
+    for (int i = 0; i < text.length(); i++)
+    {
+      char c = text.charAt(i);
+      if (!(compact && c == ' '))
+      {
+        appendChar(c);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Finish the line with the given line ending
+   */
+  public GCodeLineBuilder end(String lineEnd)
+  {
+    for (int i = 0; i < lineEnd.length(); i++)
+    {
+      appendChar(lineEnd.charAt(i));
+    }
+    return this;
+  }
+
+  private void separator()
+  {
+    if (!compact && length > 0)
+    {
+      appendChar(' ');
+    }
+  }
+
+  private void appendChar(char c)
+  {
+    ensureCapacity(1);
+    buf[length++] = (byte) (c < 128 ? c : '?');
+  }
+
+  private void ensureCapacity(int additional)
+  {
+    if (length + additional > buf.length)
+    {
+      byte[] newbuf = new byte[Math.max(length + additional, 2 * buf.length)];
+      System.arraycopy(buf, 0, newbuf, 0, length);
+      buf = newbuf;
+    }
+  }
+
+  /**
+   * Append a decimal number formatted like a DecimalFormat("###.##")
+   * with the given maximum fraction digits.
+   */
+  public GCodeLineBuilder appendDecimal(double value, int maxDecimals)
+  {
+    if (maxDecimals < 0)
+    {
+      maxDecimals = 0;
+    }
+    long scaled = roundScaled(value, maxDecimals, false);
+    if (scaled < 0)
+    {
+      return append(formatDecimalSlow(value, maxDecimals));
+    }
+    appendSign(value);
+    long pow = POW10[maxDecimals];
+    appendUnsigned(scaled / pow);
+    long fraction = scaled % pow;
+    if (fraction != 0)
+    {
+      int digits = maxDecimals;
+      while (fraction % 10 == 0)
+      {
+        fraction /= 10;
+        digits--;
+      }
+      appendChar('.');
+      appendPadded(fraction, digits);
+    }
+    return this;
+  }
+
+  /**
+   * Append a decimal number formatted like String.format("%.nf")
+   */
+  public GCodeLineBuilder appendFixed(double value, int decimals)
+  {
+    if (decimals < 0)
+    {
+      decimals = 0;
+    }
+    long scaled = roundScaled(value, decimals, true);
+    if (scaled < 0)
+    {
+      return append(String.format(FORMAT_LOCALE, "%." + decimals + "f", value));
+    }
+    appendSign(value);
+    long pow = POW10[decimals];
+    appendUnsigned(scaled / pow);
+    if (decimals > 0)
+    {
+      appendChar('.');
+      appendPadded(scaled % pow, decimals);
+    }
+    return this;
+  }
+
+  /**
+   * Append an integer like String.format("%d")
+   */
+  public GCodeLineBuilder appendLong(long value)
+  {
+    if (value < 0)
+    {
+      if (value == Long.MIN_VALUE)
+      {
+        return append(Long.toString(value));
+      }
+      appendChar('-');
+      value = -value;
+    }
+    appendUnsigned(value);
+    return this;
+  }
+
+  private void appendSign(double value)
+  {
+    // both DecimalFormat and %f keep the sign of -0.0 and of
+    // negative values that are rounded to zero
+    if (value < 0 || (value == 0 && Double.doubleToRawLongBits(value) != 0))
+    {
+      appendChar('-');
+    }
+  }
+
+  private void appendUnsigned(long value)
+  {
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10)
+    {
+      digits++;
+    }
+    appendPadded(value, digits);
+  }
+
+  private void appendPadded(long value, int digits)
+  {
+    ensureCapacity(digits);
+    for (int i = length + digits - 1; i >= length; i--)
+    {
+      buf[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    length += digits;
+  }
+
+  /**
+   * Returns |value| * 10^decimals rounded to an integer, or -1 if this
+   * can not be done exactly and the slow path has to be used.
+   *
+   * The exact product is p + e, where e is the rounding error of the
+   * floating point multiplication (computed exactly by fma). This allows
+   * deciding on the rounding direction with respect to the exact binary
+   * value, like DecimalFormat does.
+   * @param shortestHalfUp if true, round like Formatter (%f), which rounds
+   * half-up based on the shortest decimal representation of the value. This
+   * only differs from exact rounding very close to a tie, so those cases are
+   * delegated to the slow path.
+   */
+  private static long roundScaled(double value, int decimals, boolean shortestHalfUp)
+  {
+    if (decimals >= POW10.length || !Double.isFinite(value))
+    {
+      return -1;
+    }
+    double a = Math.abs(value);
+    double pow = POW10[decimals];
+    double p = a * pow;
+    if (p >= MAX_FAST_SCALED)
+    {
+      return -1;
+    }
+    double e = Math.fma(a, pow, -p);
+    double f = Math.floor(p);
+    // sign of (exact fraction - 0.5); p - f and the subtraction of 0.5 are exact
+    // whenever the result is close to zero
+    double diff = (p - f - 0.5) + e;
+    long n = (long) f;
+    if (shortestHalfUp)
+    {
+      if (Math.abs(diff) <= 2 * Math.ulp(p))
+      {
+        return -1;
+      }
+      return diff > 0 ? n + 1 : n;
+    }
+    if (diff > 0 || (diff == 0 && (n & 1) == 1))
+    {
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * The formatting used by the G-Code drivers before this class existed
+   */
+  private static String formatDecimalSlow(double value, int decimalPlaces)
+  {
+    DecimalFormat coordinateFormat = (DecimalFormat) NumberFormat.getNumberInstance(FORMAT_LOCALE);
+    coordinateFormat.applyPattern("###.##");
+    coordinateFormat.setMaximumFractionDigits(decimalPlaces);
+    return coordinateFormat.format(value);
+  }
+
+  /**
+   * Format a number like {@link #appendDecimal(double, int)}, as a String
+   */
+  public static String formatDecimal(double value, int maxDecimals)
+  {
+    return new GCodeLineBuilder().appendDecimal(value, maxDecimals).toString();
+  }
+
+  /**
+   * Direct access to the internal buffer, valid up to {@link #length()}
+   */
+  public byte[] getBuffer()
+  {
+    return buf;
+  }
+
+  public int length()
+  {
+    return length;
+  }
+
+  public void writeTo(OutputStream out) throws IOException
+  {
+    out.write(buf, 0, length);
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(buf, 0, length, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,939 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the network connections to many machines (connect, handshake,
+ * upload, status polling) on one thread, using non-blocking channels and a
+ * {@link Selector}, instead of one thread per machine with blocking sockets.
+ *
+ * Each {@link Connection} has a {@link Framing}, which splits the received
+ * bytes into messages (e.g. lines or datagrams), and a {@link Handler},
+ * which is called on the event loop thread and must not block.
+ * {@link Connection#request(byte[], long)} sends a message and returns the
+ * next message received as a future, so stop-and-wait protocols (one
+ * acknowledgement per command) can be written as chains of futures.
+ * Futures are completed on the event loop thread as well.
+ *
+ * All methods of this class and of Connection may be called from any thread.
+ * After {@link #close()}, connections can't be opened anymore, requests fail
+ * with a ClosedChannelException and {@link #execute(Runnable)} rejects tasks.
+ */
+public class NetworkMultiplexer implements Closeable
+{
+
+  /**
+   * Protocol specific splitting of the byte stream into messages
+   */
+  public interface Framing
+  {
+    /**
+     * @return the bytes to send for one message. For datagram connections
+     * this is one datagram.
+     */
+    ByteBuffer encode(byte[] message) throws IOException;
+
+    /**
+     * Remove one message from the received data
+     * @param received buffer in read mode. For datagram connections it
+     * contains exactly one datagram.
+     * @return the message or null if more data is needed
+     */
+    byte[] decode(ByteBuffer received) throws IOException;
+  }
+
+  /**
+   * Messages are passed through unchanged. Everything received at once is
+   * one message.
+   */
+  public static final Framing RAW = new Framing()
+  {
+    @Override
+    public ByteBuffer encode(byte[] message)
+    {
+      return ByteBuffer.wrap(message);
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer received)
+    {
+      if (!received.hasRemaining())
+      {
+        return null;
+      }
+      byte[] result = new byte[received.remaining()];
+      received.get(result);
+      return result;
+    }
+  };
+
+  /**
+   * Text lines (e.g. G-Code and "ok" answers). Sent messages get a "\n",
+   * received lines are returned without line end. Empty lines are skipped.
+   */
+  public static final Framing LINES = new Framing()
+  {
+    @Override
+    public ByteBuffer encode(byte[] message)
+    {
+      ByteBuffer result = ByteBuffer.allocate(message.length + 1);
+      result.put(message).put((byte) '\n').flip();
+      return result;
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer received)
+    {
+      while (true)
+      {
+        int start = received.position();
+        int end = start;
+        while (end < received.limit() && received.get(end) != '\n')
+        {
+          end++;
+        }
+        if (end == received.limit())
+        {
+          return null;
+        }
+        received.position(end + 1);
+        int length = end - start;
+        if (length > 0 && received.get(end - 1) == '\r')
+        {
+          length--;
+        }
+        if (length > 0)
+        {
+          byte[] result = new byte[length];
+          ByteBuffer line = received.duplicate();
+          line.position(start);
+          line.get(result);
+          return result;
+        }
+      }
+    }
+  };
+
+  /**
+   * Callbacks of a connection, called on the event loop thread
+   */
+  public interface Handler
+  {
+    /**
+     * The connection is established, e.g. send a handshake
+     */
+    default void connected(Connection c) throws IOException
+    {
+    }
+
+    /**
+     * A message which is not the answer to a request
+     */
+    default void received(Connection c, byte[] message) throws IOException
+    {
+    }
+
+    /**
+     * Called every {@link Connection#setPollInterval(long)} milliseconds,
+     * e.g. to request the machine status
+     */
+    default void poll(Connection c) throws IOException
+    {
+    }
+
+    /**
+     * @param cause null if closed by {@link Connection#close()}
+     */
+    default void closed(Connection c, IOException cause)
+    {
+    }
+  }
+
+  private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+  private static IOException asIOException(Exception e)
+  {
+    return e instanceof IOException ? (IOException) e : new IOException(e);
+  }
+
+  private static class Timer implements Comparable<Timer>
+  {
+    final long at;
+    final Runnable action;
+    boolean cancelled = false;
+
+    Timer(long at, Runnable action)
+    {
+      this.at = at;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Timer o)
+    {
+      return Long.compare(at, o.at);
+    }
+  }
+
+  private static class Task
+  {
+    final Runnable action;
+    // called instead of action if the multiplexer is closed first, may be null
+    final Runnable rejected;
+
+    Task(Runnable action, Runnable rejected)
+    {
+      this.action = action;
+      this.rejected = rejected;
+    }
+  }
+
+  private static class Request
+  {
+    final CompletableFuture<byte[]> answer = new CompletableFuture<>();
+    Timer timeout;
+  }
+
+  /**
+   * A TCP or UDP connection to one machine
+   */
+  public class Connection
+  {
+    private final String name;
+    private final SelectableChannel channel;
+    private final boolean datagram;
+    private final Framing framing;
+    private final Handler handler;
+    private final CompletableFuture<Connection> ready = new CompletableFuture<>();
+    // only used on the event loop thread
+    private SelectionKey key;
+    private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+    private final ArrayDeque<Request> requests = new ArrayDeque<>();
+    private final ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+    private Timer connectTimeout;
+    private Timer pollTimer;
+    private long pollInterval = 0;
+    private volatile boolean open = false;
+    private volatile boolean closed = false;
+    private volatile Object attachment;
+    private volatile long bytesSent = 0;
+    private volatile long bytesReceived = 0;
+    private volatile long messagesReceived = 0;
+
+    private Connection(String name, SelectableChannel channel, Framing framing, Handler handler)
+    {
+      this.name = name;
+      this.channel = channel;
+      this.datagram = channel instanceof DatagramChannel;
+      this.framing = framing;
+      this.handler = handler;
+    }
+
+    /**
+     * Completed when the connection is established, or failed if it could
+     * not be established
+     */
+    public CompletableFuture<Connection> whenConnected()
+    {
+      return ready;
+    }
+
+    /**
+     * Queue a message for sending. Errors close the connection.
+     */
+    public void send(byte[] message)
+    {
+      // dropped like on any closed connection if the multiplexer is closed
+      submit(() -> enqueue(message), null);
+    }
+
+    /**
+     * Send a message and wait for the answer, which is the next message
+     * received after all earlier requests have been answered. If there is
+     * no answer within the timeout, the connection is closed, because later
+     * answers could not be matched to their requests anymore.
+     * @param timeoutMillis maximum waiting time, 0 waits forever
+     */
+    public CompletableFuture<byte[]> request(byte[] message, long timeoutMillis)
+    {
+      Request r = new Request();
+      Runnable rejected = () -> r.answer.completeExceptionally(new ClosedChannelException());
+      boolean accepted = submit(() -> {
+        if (closed)
+        {
+          r.answer.completeExceptionally(new ClosedChannelException());
+          return;
+        }
+        requests.add(r);
+        if (timeoutMillis > 0)
+        {
+          r.timeout = schedule(timeoutMillis, () -> close(new SocketTimeoutException("No answer from " + name)));
+        }
+        enqueue(message);
+      }, rejected);
+      if (!accepted)
+      {
+        rejected.run();
+      }
+      return r.answer;
+    }
+
+    /**
+     * Call {@link Handler#poll(Connection)} periodically while the
+     * connection is open
+     * @param millis interval, 0 to stop
+     */
+    public void setPollInterval(long millis)
+    {
+      submit(() -> {
+        pollInterval = millis;
+        if (pollTimer != null)
+        {
+          pollTimer.cancelled = true;
+          pollTimer = null;
+        }
+        if (open)
+        {
+          schedulePoll();
+        }
+      }, null);
+    }
+
+    private void schedulePoll()
+    {
+      if (pollInterval > 0 && !closed)
+      {
+        pollTimer = schedule(pollInterval, () -> {
+          pollTimer = null;
+          try
+          {
+            handler.poll(this);
+          }
+          catch (IOException | RuntimeException e)
+          {
+            close(asIOException(e));
+            return;
+          }
+          schedulePoll();
+        });
+      }
+    }
+
+    private void enqueue(byte[] message)
+    {
+      if (closed)
+      {
+        return;
+      }
+      try
+      {
+        ByteBuffer frame = framing.encode(message);
+        outgoing.add(frame);
+        if (open)
+        {
+          write();
+        }
+      }
+      catch (IOException | RuntimeException e)
+      {
+        close(asIOException(e));
+      }
+    }
+
+    private void register() throws IOException
+    {
+      if (datagram)
+      {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        established();
+      }
+      else
+      {
+        SocketChannel sc = (SocketChannel) channel;
+        if (sc.isConnected())
+        {
+          key = channel.register(selector, SelectionKey.OP_READ, this);
+          established();
+        }
+        else
+        {
+          key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+      }
+    }
+
+    private void established() throws IOException
+    {
+      open = true;
+      if (connectTimeout != null)
+      {
+        connectTimeout.cancelled = true;
+        connectTimeout = null;
+      }
+      handler.connected(this);
+      ready.complete(this);
+      schedulePoll();
+      write();
+    }
+
+    private void finishConnect() throws IOException
+    {
+      if (((SocketChannel) channel).finishConnect())
+      {
+        key.interestOps(SelectionKey.OP_READ);
+        established();
+      }
+    }
+
+    private void write() throws IOException
+    {
+      while (!outgoing.isEmpty())
+      {
+        ByteBuffer head = outgoing.peek();
+        int n = datagram ? ((DatagramChannel) channel).write(head) : ((SocketChannel) channel).write(head);
+        bytesSent += n;
+        if (head.hasRemaining())
+        {
+          // socket buffer is full, continue when writable
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        outgoing.poll();
+      }
+      if (key != null && key.isValid())
+      {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    private void read() throws IOException
+    {
+      if (datagram)
+      {
+        DatagramChannel dc = (DatagramChannel) channel;
+        while (!closed)
+        {
+          received.clear();
+          int n = dc.read(received);
+          if (n <= 0)
+          {
+            return;
+          }
+          bytesReceived += n;
+          received.flip();
+          dispatch();
+        }
+        return;
+      }
+      int n;
+      while (!closed && (n = ((SocketChannel) channel).read(received)) != 0)
+      {
+        if (n < 0)
+        {
+          close(new IOException("Connection closed by " + name));
+          return;
+        }
+        bytesReceived += n;
+        received.flip();
+        dispatch();
+        received.compact();
+        if (!received.hasRemaining())
+        {
+          close(new IOException("Message from " + name + " exceeds " + RECEIVE_BUFFER_SIZE + " bytes"));
+          return;
+        }
+      }
+    }
+
+    private void dispatch() throws IOException
+    {
+      byte[] message;
+      while (!closed && (message = framing.decode(received)) != null)
+      {
+        messagesReceived++;
+        Request r = requests.poll();
+        if (r != null)
+        {
+          if (r.timeout != null)
+          {
+            r.timeout.cancelled = true;
+          }
+          r.answer.complete(message);
+        }
+        else
+        {
+          handler.received(this, message);
+        }
+      }
+    }
+
+    private void close(IOException cause)
+    {
+      if (closed)
+      {
+        return;
+      }
+      closed = true;
+      open = false;
+      connections.remove(this);
+      if (key != null)
+      {
+        key.cancel();
+      }
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e)
+      {
+        // closing anyway
+      }
+      if (pollTimer != null)
+      {
+        pollTimer.cancelled = true;
+      }
+      if (connectTimeout != null)
+      {
+        connectTimeout.cancelled = true;
+      }
+      IOException failure = cause != null ? cause : new ClosedChannelException();
+      for (Request r : requests)
+      {
+        if (r.timeout != null)
+        {
+          r.timeout.cancelled = true;
+        }
+        r.answer.completeExceptionally(failure);
+      }
+      requests.clear();
+      outgoing.clear();
+      ready.completeExceptionally(failure);
+      try
+      {
+        handler.closed(this, cause);
+      }
+      catch (RuntimeException e)
+      {
+        e.printStackTrace();
+      }
+    }
+
+    /**
+     * Close the connection. Queued messages are discarded.
+     */
+    public void close()
+    {
+      submit(() -> close(null), null);
+    }
+
+    public boolean isOpen()
+    {
+      return open;
+    }
+
+    public boolean isClosed()
+    {
+      return closed;
+    }
+
+    /**
+     * Driver specific state, e.g. the last status of the machine
+     */
+    public Object getAttachment()
+    {
+      return attachment;
+    }
+
+    public void setAttachment(Object attachment)
+    {
+      this.attachment = attachment;
+    }
+
+    public long getBytesSent()
+    {
+      return bytesSent;
+    }
+
+    public long getBytesReceived()
+    {
+      return bytesReceived;
+    }
+
+    public long getMessagesReceived()
+    {
+      return messagesReceived;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Connection " + name + (closed ? " (closed)" : open ? "" : " (connecting)");
+    }
+  }
+
+  private final Selector selector;
+  private final Thread thread;
+  // new tasks are only added while holding the lock on tasks and not stopped
+  private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+  // only used on the event loop thread
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+  private final List<Connection> connections = new ArrayList<>();
+  private volatile boolean running = true;
+  // set by the event loop thread when it has finished
+  private boolean stopped = false;
+
+  /**
+   * Open the selector and start the event loop thread
+   */
+  public NetworkMultiplexer() throws IOException
+  {
+    selector = Selector.open();
+    thread = new Thread(this::loop, "NetworkMultiplexer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Run the task on the event loop thread. Runs it directly if called
+   * from that thread.
+   * @return completed when the task has run. If the multiplexer is closed
+   * before, the task is not run and the future fails with a
+   * RejectedExecutionException.
+   * @throws RejectedExecutionException if the multiplexer is closed
+   */
+  public CompletableFuture<Void> execute(Runnable task)
+  {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    Runnable rejected = () -> result.completeExceptionally(new RejectedExecutionException("NetworkMultiplexer is closed"));
+    boolean accepted = submit(() -> {
+      try
+      {
+        task.run();
+        result.complete(null);
+      }
+      catch (RuntimeException e)
+      {
+        result.completeExceptionally(e);
+        throw e;
+      }
+    }, rejected);
+    if (!accepted)
+    {
+      throw new RejectedExecutionException("NetworkMultiplexer is closed");
+    }
+    return result;
+  }
+
+  /**
+   * Run the action on the event loop thread, or queue it. If the multiplexer
+   * is closed before it runs, rejected is called on the event loop thread
+   * instead.
+   * @return false if the multiplexer is already closed. Then neither action
+   * nor rejected are called.
+   */
+  private boolean submit(Runnable action, Runnable rejected)
+  {
+    if (Thread.currentThread() == thread)
+    {
+      if (stopped)
+      {
+        return false;
+      }
+      action.run();
+      return true;
+    }
+    synchronized (tasks)
+    {
+      if (stopped)
+      {
+        return false;
+      }
+      tasks.add(new Task(action, rejected));
+    }
+    selector.wakeup();
+    return true;
+  }
+
+  /**
+   * Open a TCP connection. Messages sent before the connection is
+   * established are queued.
+   * @param connectTimeoutMillis 0 waits forever
+   */
+  public Connection connectTcp(String host, int port, int connectTimeoutMillis, Framing framing, Handler handler) throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Connection c = new Connection("tcp://" + host + ":" + port, channel, framing, handler);
+    try
+    {
+      channel.connect(new InetSocketAddress(host, port));
+      add(c, connectTimeoutMillis);
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    return c;
+  }
+
+  /**
+   * Open a UDP "connection", i.e. a datagram channel which only exchanges
+   * datagrams with the given address
+   * @param localPort source port, 0 for any. Several connections can
+   * use the same source port (SO_REUSEADDR) with different destinations.
+   */
+  public Connection openUdp(String host, int port, int localPort, Framing framing, Handler handler) throws IOException
+  {
+    DatagramChannel channel = DatagramChannel.open();
+    try
+    {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(localPort == 0 ? null : new InetSocketAddress(localPort));
+      channel.connect(new InetSocketAddress(host, port));
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    Connection c = new Connection("udp://" + host + ":" + port, channel, framing, handler);
+    try
+    {
+      add(c, 0);
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    return c;
+  }
+
+  /**
+   * @throws ClosedChannelException if the multiplexer is closed
+   */
+  private void add(Connection c, int connectTimeoutMillis) throws ClosedChannelException
+  {
+    boolean accepted = submit(() -> {
+      if (!running)
+      {
+        c.close(new ClosedChannelException());
+        return;
+      }
+      connections.add(c);
+      if (connectTimeoutMillis > 0)
+      {
+        c.connectTimeout = schedule(connectTimeoutMillis, () -> c.close(new SocketTimeoutException("Timeout connecting to " + c.name)));
+      }
+      try
+      {
+        c.register();
+      }
+      catch (IOException | RuntimeException e)
+      {
+        c.close(asIOException(e));
+      }
+    }, () -> c.close(new ClosedChannelException()));
+    if (!accepted)
+    {
+      throw new ClosedChannelException();
+    }
+  }
+
+  // only on the event loop thread
+  private Timer schedule(long delayMillis, Runnable action)
+  {
+    Timer t = new Timer(System.nanoTime() + delayMillis * 1000000, action);
+    timers.add(t);
+    return t;
+  }
+
+  private void loop()
+  {
+    while (running)
+    {
+      try
+      {
+        Task task;
+        while (running && (task = tasks.poll()) != null)
+        {
+          task.action.run();
+        }
+        long now = System.nanoTime();
+        Timer t;
+        while ((t = timers.peek()) != null && (t.cancelled || t.at <= now))
+        {
+          timers.poll();
+          if (!t.cancelled)
+          {
+            t.action.run();
+          }
+        }
+        if (!tasks.isEmpty())
+        {
+          continue;
+        }
+        t = timers.peek();
+        if (t == null)
+        {
+          selector.select();
+        }
+        else
+        {
+          selector.select(Math.max(1, (t.at - now + 999999) / 1000000));
+        }
+        for (SelectionKey key : selector.selectedKeys())
+        {
+          Connection c = (Connection) key.attachment();
+          try
+          {
+            if (!key.isValid())
+            {
+              continue;
+            }
+            if (key.isConnectable())
+            {
+              c.finishConnect();
+            }
+            if (key.isValid() && key.isReadable())
+            {
+              c.read();
+            }
+            if (key.isValid() && !c.closed && key.isWritable())
+            {
+              c.write();
+            }
+          }
+          catch (IOException e)
+          {
+            c.close(e);
+          }
+          catch (RuntimeException e)
+          {
+            c.close(new IOException(e));
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+      catch (IOException e)
+      {
+        // the selector itself failed
+        e.printStackTrace();
+        running = false;
+      }
+      catch (RuntimeException e)
+      {
+        // thrown by a task or timer, e.g. a future callback
+        e.printStackTrace();
+      }
+    }
+    synchronized (tasks)
+    {
+      stopped = true;
+    }
+    for (Connection c : new ArrayList<>(connections))
+    {
+      c.close(null);
+    }
+    // no new tasks are added anymore
+    Task task;
+    while ((task = tasks.poll()) != null)
+    {
+      if (task.rejected != null)
+      {
+        try
+        {
+          task.rejected.run();
+        }
+        catch (RuntimeException e)
+        {
+          e.printStackTrace();
+        }
+      }
+    }
+    try
+    {
+      selector.close();
+    }
+    catch (IOException e)
+    {
+      // closing anyway
+    }
+  }
+
+  /**
+   * Number of open or connecting connections, 0 after close
+   */
+  public int getConnectionCount()
+  {
+    CompletableFuture<Integer> count = new CompletableFuture<>();
+    if (!submit(() -> count.complete(connections.size()), () -> count.complete(0)))
+    {
+      return 0;
+    }
+    return count.join();
+  }
+
+  /**
+   * Close all connections and stop the event loop thread. Tasks which have
+   * not run yet are not run anymore: pending requests fail and futures
+   * returned by {@link #execute(Runnable)} fail with a
+   * RejectedExecutionException.
+   */
+  @Override
+  public void close()
+  {
+    running = false;
+    selector.wakeup();
+    if (Thread.currentThread() != thread)
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
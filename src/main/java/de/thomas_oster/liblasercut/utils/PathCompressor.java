@@ -0,0 +1,361 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Reduces the number of commands for a poly-line, e.g. a flattened curve.
+ *
+ * Consecutive segments are replaced by a single line if all intermediate
+ * points are within the tolerance of that line, or by a circular arc if all
+ * points and all segment midpoints are within the tolerance of the arc.
+ * The search is greedy: from the current point, the longest run that can be
+ * replaced by a line or arc is chosen.
+ *
+ * Usage: {@link #begin(double, double)} with the current position, then
+ * {@link #lineTo(double, double)} for every segment, then {@link #flush()}.
+ * The result is passed to the {@link Sink}.
+ */
+public class PathCompressor
+{
+
+  public interface Sink
+  {
+    void lineTo(double x, double y) throws IOException;
+
+    /**
+     * @param x end point
+     * @param y end point
+     * @param i center x, relative to the start point
+     * @param j center y, relative to the start point
+     * @param clockwise direction in a coordinate system with the y axis
+     * pointing up (i.e. G2 if true, G3 if false)
+     */
+    void arcTo(double x, double y, double i, double j, boolean clockwise) throws IOException;
+  }
+
+  /**
+   * Maximum number of input segments replaced by one command.
+   * Limits the quadratic cost of the greedy search.
+   */
+  private static final int MAX_RUN = 256;
+  private static final int CAPACITY = 4 * MAX_RUN;
+
+  private final Sink sink;
+  private double tolerance;
+  private boolean fitArcs = true;
+  private double maxRadius = Double.POSITIVE_INFINITY;
+
+  // xs[0], ys[0] is the start point, which has already been sent
+  private final double[] xs = new double[CAPACITY];
+  private final double[] ys = new double[CAPACITY];
+  private int n = 0;
+
+  private long segmentsIn = 0;
+  private long linesOut = 0;
+  private long arcsOut = 0;
+
+  /**
+   * @param sink receives the compressed path
+   * @param tolerance maximum deviation from the original poly-line
+   */
+  public PathCompressor(Sink sink, double tolerance)
+  {
+    this.sink = sink;
+    this.tolerance = tolerance;
+  }
+
+  public void setTolerance(double tolerance)
+  {
+    this.tolerance = tolerance;
+  }
+
+  public double getTolerance()
+  {
+    return tolerance;
+  }
+
+  /**
+   * If false, only collinear segments are merged
+   */
+  public void setFitArcs(boolean fitArcs)
+  {
+    this.fitArcs = fitArcs;
+  }
+
+  public boolean isFitArcs()
+  {
+    return fitArcs;
+  }
+
+  /**
+   * Arcs with a larger radius are not used (lines are used instead),
+   * to avoid precision problems on the machine
+   */
+  public void setMaxRadius(double maxRadius)
+  {
+    this.maxRadius = maxRadius;
+  }
+
+  /**
+   * True between begin() and flush()
+   */
+  public boolean isActive()
+  {
+    return n > 0;
+  }
+
+  /**
+   * Start a new path at the current position
+   */
+  public void begin(double x, double y) throws IOException
+  {
+    flush();
+    xs[0] = x;
+    ys[0] = y;
+    n = 1;
+  }
+
+  public void lineTo(double x, double y) throws IOException
+  {
+    if (n == 0)
+    {
+      throw new IllegalStateException("begin() must be called first");
+    }
+    segmentsIn++;
+    if (x == xs[n - 1] && y == ys[n - 1])
+    {
+      // zero length segments do not change the path
+      return;
+    }
+    xs[n] = x;
+    ys[n] = y;
+    n++;
+    if (n == CAPACITY)
+    {
+      process(false);
+    }
+  }
+
+  /**
+   * Send all pending segments to the sink and end the path
+   */
+  public void flush() throws IOException
+  {
+    if (n > 0)
+    {
+      process(true);
+      n = 0;
+    }
+  }
+
+  private void process(boolean all) throws IOException
+  {
+    int s = 0;
+    while (s < n - 1 && (all || n - 1 - s > MAX_RUN))
+    {
+      s = emitRun(s);
+    }
+    // keep the last sent point as start of the remaining path
+    int remaining = n - s;
+    System.arraycopy(xs, s, xs, 0, remaining);
+    System.arraycopy(ys, s, ys, 0, remaining);
+    n = remaining;
+  }
+
+  /**
+   * Emit the longest line or arc starting at point s
+   * @return index of the end point
+   */
+  private int emitRun(int s) throws IOException
+  {
+    int last = Math.min(n - 1, s + MAX_RUN);
+    int lineEnd = s + 1;
+    for (int e = s + 2; e <= last && lineFits(s, e); e++)
+    {
+      lineEnd = e;
+    }
+    int arcEnd = -1;
+    double arcI = 0;
+    double arcJ = 0;
+    boolean arcClockwise = false;
+    if (fitArcs && lineEnd < last)
+    {
+      for (int e = s + 3; e <= last; e++)
+      {
+        if (!fitArc(s, e))
+        {
+          break;
+        }
+        arcEnd = e;
+        arcI = fitCenterX - xs[s];
+        arcJ = fitCenterY - ys[s];
+        arcClockwise = fitClockwise;
+      }
+    }
+    if (arcEnd > lineEnd)
+    {
+      sink.arcTo(xs[arcEnd], ys[arcEnd], arcI, arcJ, arcClockwise);
+      arcsOut++;
+      return arcEnd;
+    }
+    sink.lineTo(xs[lineEnd], ys[lineEnd]);
+    linesOut++;
+    return lineEnd;
+  }
+
+  /**
+   * Are all points between s and e within the tolerance of the line s-e,
+   * visited in order?
+   */
+  private boolean lineFits(int s, int e)
+  {
+    double dx = xs[e] - xs[s];
+    double dy = ys[e] - ys[s];
+    double len2 = dx * dx + dy * dy;
+    if (len2 == 0)
+    {
+      return false;
+    }
+    double len = Math.sqrt(len2);
+    double slack = tolerance / len;
+    double previous = 0;
+    for (int i = s + 1; i < e; i++)
+    {
+      double px = xs[i] - xs[s];
+      double py = ys[i] - ys[s];
+      if (Math.abs(px * dy - py * dx) / len > tolerance)
+      {
+        return false;
+      }
+      double t = (px * dx + py * dy) / len2;
+      if (t < previous - slack || t > 1 + slack)
+      {
+        return false;
+      }
+      previous = Math.max(previous, t);
+    }
+    return true;
+  }
+
+  // result of fitArc()
+  private double fitCenterX;
+  private double fitCenterY;
+  private boolean fitClockwise;
+
+  /**
+   * Check if the circle through the points s, (s+e)/2 and e approximates
+   * all points between s and e, which must turn in one direction by less
+   * than a full circle.
+   */
+  private boolean fitArc(int s, int e)
+  {
+    int m = (s + e) / 2;
+    // relative to the start point for numerical stability
+    double bx = xs[m] - xs[s];
+    double by = ys[m] - ys[s];
+    double cx = xs[e] - xs[s];
+    double cy = ys[e] - ys[s];
+    double d = 2 * (bx * cy - by * cx);
+    if (d == 0)
+    {
+      return false;
+    }
+    double b2 = bx * bx + by * by;
+    double c2 = cx * cx + cy * cy;
+    double ux = (cy * b2 - by * c2) / d;
+    double uy = (bx * c2 - cx * b2) / d;
+    double r = Math.hypot(ux, uy);
+    if (r > maxRadius)
+    {
+      return false;
+    }
+    boolean counterClockwise = d > 0;
+    ux += xs[s];
+    uy += ys[s];
+    double sweep = 0;
+    for (int i = s; i < e; i++)
+    {
+      double v1x = xs[i] - ux;
+      double v1y = ys[i] - uy;
+      double v2x = xs[i + 1] - ux;
+      double v2y = ys[i + 1] - uy;
+      double angle = Math.atan2(v1x * v2y - v1y * v2x, v1x * v2x + v1y * v2y);
+      if (counterClockwise ? angle <= 0 : angle >= 0)
+      {
+        return false;
+      }
+      sweep += Math.abs(angle);
+      if (Math.abs(Math.hypot(v2x, v2y) - r) > tolerance)
+      {
+        return false;
+      }
+      // distance between the segment and the arc is largest at the midpoint
+      if (Math.abs(Math.hypot((v1x + v2x) / 2, (v1y + v2y) / 2) - r) > tolerance)
+      {
+        return false;
+      }
+    }
+    if (sweep >= 2 * Math.PI - 1e-3)
+    {
+      return false;
+    }
+    fitCenterX = ux;
+    fitCenterY = uy;
+    fitClockwise = !counterClockwise;
+    return true;
+  }
+
+  /**
+   * Number of segments passed to lineTo()
+   */
+  public long getSegmentsIn()
+  {
+    return segmentsIn;
+  }
+
+  public long getLinesOut()
+  {
+    return linesOut;
+  }
+
+  public long getArcsOut()
+  {
+    return arcsOut;
+  }
+
+  /**
+   * Ratio of input segments to output commands, e.g. 10 means that on average
+   * ten segments were replaced by one line or arc
+   */
+  public double getCompressionRatio()
+  {
+    long out = linesOut + arcsOut;
+    return out == 0 ? 1 : (double) segmentsIn / out;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(Locale.US, "PathCompressor: %d segments -> %d lines + %d arcs (ratio %.1f)",
+      segmentsIn, linesOut, arcsOut, getCompressionRatio());
+  }
+}
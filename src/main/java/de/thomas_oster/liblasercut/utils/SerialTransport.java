@@ -0,0 +1,698 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import purejavacomm.CommPort;
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PortInUseException;
+import purejavacomm.SerialPort;
+import purejavacomm.UnsupportedCommOperationException;
+
+/**
+ * Buffered, thread decoupled access to a serial port (or any other pair of
+ * streams), shared by the serial drivers.
+ *
+ * Writes are collected in a buffer. flush() only hands the buffer to a
+ * background thread and returns; everything written while that thread is
+ * busy with the port is sent with the next write call. This way a driver can
+ * flush after every command (so nothing is delayed) and still gets large
+ * writes when it produces commands faster than the port can take them.
+ *
+ * A second background thread reads from the port as soon as data arrives and
+ * queues it. Readers block until data is queued or their timeout expires,
+ * instead of polling the port with sleep().
+ *
+ * Closing one of the streams closes the transport, as for sockets.
+ */
+public class SerialTransport implements Closeable
+{
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+  private static final int OPEN_TIMEOUT = 2000;
+  /**
+   * Receive timeout of the port, so the reader thread notices close()
+   */
+  private static final int POLL_MILLIS = 100;
+  /**
+   * Received data which is never read (e.g. write-only protocols) is dropped
+   * beyond this size
+   */
+  private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+  private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+  private static final byte[] EOF = new byte[0];
+
+  private final Object port;
+  private final InputStream rawIn;
+  private final OutputStream rawOut;
+  private final Closeable closer;
+
+  // write side
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition dataReady = lock.newCondition();
+  private final Condition written = lock.newCondition();
+  // guarded by lock
+  private byte[] buffer;
+  private byte[] spare;
+  private int length = 0;
+  private boolean flushRequested = false;
+  private boolean writing = false;
+  private IOException writeFailure = null;
+  // written with lock held, also read by the reader thread
+  private volatile boolean closed = false;
+  private final Thread writer;
+
+  // read side
+  private final ConcurrentLinkedQueue<byte[]> received = new ConcurrentLinkedQueue<>();
+  private final Semaphore chunks = new Semaphore(0);
+  private final AtomicInteger queuedBytes = new AtomicInteger();
+  private volatile IOException readFailure = null;
+  private volatile int readTimeout = 0;
+  private final Thread reader;
+  // owned by the reading thread
+  private byte[] current = null;
+  private int currentPos = 0;
+
+  private volatile long writeCalls = 0;
+  private volatile long bytesWritten = 0;
+  private volatile long flushes = 0;
+  private volatile long bytesRead = 0;
+
+  /**
+   * @param port the underlying port, e.g. a purejavacomm CommPort
+   * @param in data from the device
+   * @param out data to the device
+   * @param closer closes the port
+   * @param bufferSize maximum number of bytes per write
+   */
+  public SerialTransport(Object port, InputStream in, OutputStream out, Closeable closer, int bufferSize)
+  {
+    this.port = port;
+    this.rawIn = in;
+    this.rawOut = out;
+    this.closer = closer;
+    this.buffer = new byte[bufferSize];
+    this.spare = new byte[bufferSize];
+    String name = "SerialTransport " + port;
+    writer = new Thread(this::writeLoop, name + " writer");
+    writer.setDaemon(true);
+    reader = new Thread(this::readLoop, name + " reader");
+    reader.setDaemon(true);
+    writer.start();
+    reader.start();
+  }
+
+  public SerialTransport(Object port, InputStream in, OutputStream out, Closeable closer)
+  {
+    this(port, in, out, closer, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Find a port by name. Accepts "/dev/ttyUSB0" as well as "ttyUSB0".
+   */
+  public static CommPortIdentifier findPort(String name) throws IOException
+  {
+    String shortName = name.startsWith("/dev/") ? name.substring(5) : name;
+    // CommPortIdentifier.getPortIdentifier(String) does not find all ports
+    // on all platforms, so we look for it ourselves.
+    Enumeration<CommPortIdentifier> en = CommPortIdentifier.getPortIdentifiers();
+    while (en.hasMoreElements())
+    {
+      CommPortIdentifier i = en.nextElement();
+      if (i.getName().equals(name) || i.getName().equals(shortName))
+      {
+        return i;
+      }
+    }
+    throw new IOException("No such port: " + name);
+  }
+
+  /**
+   * Open a serial port with 8 data bits, 1 stop bit, no parity and no flow
+   * control
+   * @param baudRate baud rate, or 0 to keep the current setting
+   */
+  public static SerialTransport open(CommPortIdentifier id, int baudRate) throws PortInUseException, IOException, UnsupportedCommOperationException
+  {
+    CommPort port = id.open("VisiCut", OPEN_TIMEOUT);
+    if (port == null)
+    {
+      throw new IOException("Could not open port '" + id.getName() + "'");
+    }
+    try
+    {
+      if (!(port instanceof SerialPort))
+      {
+        throw new IOException("Port '" + id.getName() + "' is not a serial port.");
+      }
+      SerialPort sp = (SerialPort) port;
+      if (baudRate > 0)
+      {
+        sp.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+        sp.setSerialPortParams(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+      }
+      sp.setDTR(true);
+      try
+      {
+        port.enableReceiveTimeout(POLL_MILLIS);
+      }
+      catch (UnsupportedCommOperationException e)
+      {
+        // the reader thread then only stops when the port is closed
+      }
+      return new SerialTransport(port, port.getInputStream(), port.getOutputStream(), port::close);
+    }
+    catch (IOException | UnsupportedCommOperationException | RuntimeException e)
+    {
+      port.close();
+      throw e;
+    }
+  }
+
+  public static SerialTransport open(String portName, int baudRate) throws PortInUseException, IOException, UnsupportedCommOperationException
+  {
+    return open(findPort(portName), baudRate);
+  }
+
+  /**
+   * The underlying port, e.g. a purejavacomm CommPort
+   */
+  public Object getPort()
+  {
+    return port;
+  }
+
+  private void writeLoop()
+  {
+    while (true)
+    {
+      byte[] data;
+      int count;
+      lock.lock();
+      try
+      {
+        while (!closed && (length == 0 || !flushRequested && length < buffer.length))
+        {
+          dataReady.await();
+        }
+        if (length == 0 || writeFailure != null)
+        {
+          // closed and drained
+          return;
+        }
+        data = buffer;
+        count = length;
+        buffer = spare;
+        spare = null;
+        length = 0;
+        flushRequested = false;
+        writing = true;
+        written.signalAll();
+      }
+      catch (InterruptedException e)
+      {
+        failWrite(new InterruptedIOException("Serial writer was interrupted"));
+        return;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      IOException failure = null;
+      try
+      {
+        rawOut.write(data, 0, count);
+        rawOut.flush();
+        writeCalls++;
+        bytesWritten += count;
+      }
+      catch (IOException e)
+      {
+        failure = e;
+      }
+      lock.lock();
+      try
+      {
+        spare = data;
+        writing = false;
+        written.signalAll();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      if (failure != null)
+      {
+        failWrite(failure);
+        return;
+      }
+    }
+  }
+
+  private void failWrite(IOException e)
+  {
+    lock.lock();
+    try
+    {
+      if (writeFailure == null)
+      {
+        writeFailure = e;
+      }
+      length = 0;
+      written.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  // call with lock held
+  private void checkWrite() throws IOException
+  {
+    if (writeFailure != null)
+    {
+      throw new IOException(writeFailure.getMessage(), writeFailure);
+    }
+    if (closed)
+    {
+      throw new IOException("Serial port is closed");
+    }
+  }
+
+  private void write(byte[] b, int off, int len) throws IOException
+  {
+    lock.lock();
+    try
+    {
+      checkWrite();
+      while (len > 0)
+      {
+        while (length == buffer.length && writeFailure == null)
+        {
+          dataReady.signal();
+          written.await();
+        }
+        checkWrite();
+        int n = Math.min(len, buffer.length - length);
+        System.arraycopy(b, off, buffer, length, n);
+        length += n;
+        off += n;
+        len -= n;
+        if (length == buffer.length)
+        {
+          dataReady.signal();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing to the serial port");
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hand the buffered data to the writer thread without waiting for it
+   */
+  public void flush() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      checkWrite();
+      if (length > 0)
+      {
+        flushes++;
+        flushRequested = true;
+        dataReady.signal();
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until all buffered data has been written to the port
+   * @throws IOException if writing failed
+   */
+  public void drain() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if (length > 0)
+      {
+        flushRequested = true;
+        dataReady.signal();
+      }
+      while ((length > 0 || writing) && writeFailure == null)
+      {
+        written.await();
+      }
+      if (writeFailure != null)
+      {
+        throw new IOException(writeFailure.getMessage(), writeFailure);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing to the serial port");
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void readLoop()
+  {
+    byte[] buf = new byte[4096];
+    try
+    {
+      while (!closed)
+      {
+        int n = rawIn.read(buf);
+        if (n < 0)
+        {
+          break;
+        }
+        if (n > 0)
+        {
+          byte[] chunk = new byte[n];
+          System.arraycopy(buf, 0, chunk, 0, n);
+          bytesRead += n;
+          received.offer(chunk);
+          chunks.release();
+          if (queuedBytes.addAndGet(n) > MAX_QUEUED_BYTES && chunks.tryAcquire())
+          {
+            byte[] dropped = received.poll();
+            queuedBytes.addAndGet(-dropped.length);
+          }
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      if (!closed)
+      {
+        readFailure = e;
+      }
+    }
+    received.offer(EOF);
+    chunks.release();
+  }
+
+  /**
+   * Timeout for reads from {@link #getInputStream()}
+   * @param millis timeout in milliseconds, 0 waits forever
+   */
+  public void setReadTimeout(int millis)
+  {
+    readTimeout = millis;
+  }
+
+  public int getReadTimeout()
+  {
+    return readTimeout;
+  }
+
+  /**
+   * Make sure there is unread data in current
+   * @return 1 if there is data, 0 on timeout, -1 at the end of the stream
+   */
+  private int fill(long timeoutMillis) throws IOException
+  {
+    while (current == null || (current != EOF && currentPos == current.length))
+    {
+      try
+      {
+        if (timeoutMillis <= 0)
+        {
+          chunks.acquire();
+        }
+        else if (!chunks.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+        {
+          return 0;
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading from the serial port");
+      }
+      current = received.poll();
+      currentPos = 0;
+      queuedBytes.addAndGet(-current.length);
+    }
+    if (current == EOF)
+    {
+      // stay at the end for further reads
+      if (readFailure != null)
+      {
+        throw new IOException(readFailure.getMessage(), readFailure);
+      }
+      return -1;
+    }
+    return 1;
+  }
+
+  /**
+   * Wait for data from the device and read what is available, up to len bytes.
+   * This is what a driver waiting for an acknowledgement needs: it returns
+   * as soon as the answer arrives.
+   * @param timeoutMillis maximum waiting time, 0 waits forever
+   * @return number of bytes read, 0 on timeout, -1 if the port was closed
+   */
+  public int read(byte[] b, int off, int len, long timeoutMillis) throws IOException
+  {
+    int state = fill(timeoutMillis);
+    if (state <= 0)
+    {
+      return state;
+    }
+    int n = Math.min(len, current.length - currentPos);
+    System.arraycopy(current, currentPos, b, off, n);
+    currentPos += n;
+    return n;
+  }
+
+  /**
+   * Discard all data received so far, e.g. stale answers of a previous job
+   */
+  public void discardInput()
+  {
+    if (current != EOF)
+    {
+      current = null;
+    }
+    while (current != EOF && chunks.tryAcquire())
+    {
+      byte[] c = received.poll();
+      queuedBytes.addAndGet(-c.length);
+      if (c == EOF)
+      {
+        current = EOF;
+      }
+    }
+  }
+
+  private final InputStream inputStream = new InputStream()
+  {
+    @Override
+    public int read() throws IOException
+    {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+      {
+        return 0;
+      }
+      int n = SerialTransport.this.read(b, off, len, readTimeout);
+      if (n == 0)
+      {
+        throw new InterruptedIOException("Timeout reading from the serial port");
+      }
+      return n;
+    }
+
+    @Override
+    public int available()
+    {
+      if (current != null && current != EOF && currentPos < current.length)
+      {
+        return current.length - currentPos;
+      }
+      byte[] next = received.peek();
+      return next == null ? 0 : next.length;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      SerialTransport.this.close();
+    }
+  };
+
+  private final OutputStream outputStream = new OutputStream()
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+      SerialTransport.this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      SerialTransport.this.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      SerialTransport.this.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      SerialTransport.this.close();
+    }
+  };
+
+  /**
+   * Data from the device. Only one thread may read at a time.
+   * Reads throw an InterruptedIOException after the read timeout.
+   */
+  public InputStream getInputStream()
+  {
+    return inputStream;
+  }
+
+  /**
+   * Data to the device. flush() does not wait, see {@link #drain()}.
+   */
+  public OutputStream getOutputStream()
+  {
+    return outputStream;
+  }
+
+  /**
+   * Send the buffered data, stop the background threads and close the port
+   */
+  @Override
+  public void close() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if (closed)
+      {
+        return;
+      }
+      closed = true;
+      dataReady.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    try
+    {
+      writer.join(CLOSE_TIMEOUT_MILLIS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if (writer.isAlive())
+    {
+      writer.interrupt();
+    }
+    try
+    {
+      closer.close();
+    }
+    finally
+    {
+      reader.interrupt();
+    }
+  }
+
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  /**
+   * Number of write calls to the port
+   */
+  public long getWriteCalls()
+  {
+    return writeCalls;
+  }
+
+  public long getBytesWritten()
+  {
+    return bytesWritten;
+  }
+
+  /**
+   * Number of flush() calls with pending data
+   */
+  public long getFlushes()
+  {
+    return flushes;
+  }
+
+  public long getBytesRead()
+  {
+    return bytesRead;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SerialTransport " + port + ": " + bytesWritten + " bytes in " + writeCalls + " writes ("
+      + flushes + " flushes), " + bytesRead + " bytes read";
+  }
+}
@@ -26,8 +26,9 @@ import java.awt.geom.PathIterator;
 
 /**
  * This class makes it possible to add java.awt.Shape Objects
- * to a VectorPart. The Shape will be converted to moveto and lineto
- * commands fitting as close as possible
+ * to a VectorPart. The Shape will be converted to moveto, lineto and
+ * curveto commands. Curves are converted to lines only for drivers which
+ * cannot cut them, see VectorPart#getCommands(LaserCutter).
  *
  * @author Thomas Oster <thomas.oster@rwth-aachen.de>
  */
@@ -36,23 +37,20 @@ public class ShapeConverter
 
   /**
    * Adds the given Shape to the given VectorPart by converting it to
-   * lineto and moveto commands, whose lines differs not more than
-   * n pixels from the original shape. n is usually 1, but depends on the
-   * LaserCutter used.
+   * moveto, lineto and curveto commands. Quadratic curves are converted
+   * to cubic ones.
    * 
    * @param shape the Shape to be added
    * @param vectorpart the Vectorpart the shape shall be added to
-   * @param cutter LaserCutter
+   * @param cutter LaserCutter, unused: curves are converted for the
+   * driver when the job is sent
    */
   public void addShape(Shape shape, VectorPart vectorpart, LaserCutter cutter)
   {
     AffineTransform scale = AffineTransform.getScaleInstance(1, 1);
-    double precision = 1;
-    if (cutter != null) // this "if" guard is only needed for compatibility - change to 'if (True)' after the deprecated addShape(Shape,VectorPart) interface has been removed
-    {
-      precision = cutter.getRequiredCurvePrecision();
-    }
-    PathIterator iter = shape.getPathIterator(scale, precision);
+    PathIterator iter = shape.getPathIterator(scale);
+    double x0 = 0;
+    double y0 = 0;
     double startx = 0;
     double starty = 0;
     int lastx = 0;
@@ -66,6 +64,8 @@ public class ShapeConverter
         vectorpart.moveto(test[0], test[1]);
         startx = test[0];
         starty = test[1];
+        x0 = startx;
+        y0 = starty;
         lastx = (int) startx;
         lasty = (int) starty;
       }
@@ -79,11 +79,44 @@ public class ShapeConverter
           vectorpart.lineto(x, y);
           lastx = (int) x;
           lasty = (int) y;
+          x0 = x;
+          y0 = y;
+        }
+      }
+      else if (result == PathIterator.SEG_QUADTO || result == PathIterator.SEG_CUBICTO)
+      {
+        if (result == PathIterator.SEG_QUADTO)
+        {
+          // the same curve as cubic: control points 2/3 of the way to the quadratic control point
+          test[4] = test[2];
+          test[5] = test[3];
+          test[2] = test[4] + 2.0 / 3 * (test[0] - test[4]);
+          test[3] = test[5] + 2.0 / 3 * (test[1] - test[5]);
+          test[0] = x0 + 2.0 / 3 * (test[0] - x0);
+          test[1] = y0 + 2.0 / 3 * (test[1] - y0);
+        }
+        // skip curves which are a single point after converting to integer, like lines
+        boolean point = true;
+        for (int i = 0; i < 6; i += 2)
+        {
+          point &= (int) test[i] == lastx && (int) test[i + 1] == lasty;
+        }
+        if (!point)
+        {
+          vectorpart.curveto(test[0], test[1], test[2], test[3], test[4], test[5]);
+          x0 = test[4];
+          y0 = test[5];
+          lastx = (int) x0;
+          lasty = (int) y0;
         }
       }
       else if (result == PathIterator.SEG_CLOSE)
       {
         vectorpart.lineto(startx, starty);
+        x0 = startx;
+        y0 = starty;
+        lastx = (int) startx;
+        lasty = (int) starty;
       }
       iter.next();
     }
@@ -16,49 +16,648 @@
   along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
 
  */
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
 package de.thomas_oster.liblasercut.utils;
 
 import de.thomas_oster.liblasercut.BlackWhiteRaster;
+import de.thomas_oster.liblasercut.RasterElement;
 import de.thomas_oster.liblasercut.TimeIntensiveOperation;
+import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * UNUSED????
- * @author oster
+ * Finds the outlines of the black areas of a 1 bit raster, e.g. to cut
+ * around an engraved sticker.
+ *
+ * The contours run along the pixel edges (between the pixels), so they
+ * enclose exactly the black pixels. Black pixels which only touch
+ * diagonally belong to the same area. Every area gives one outer contour
+ * and one contour per hole.
+ *
+ * The raster is scanned once, row by row, on the packed bytes. Every
+ * vertical edge found which does not belong to a contour yet starts a
+ * tracing. Large rasters are split into bands which are scanned in
+ * parallel. The traced edges are marked in a bitmap shared by all bands,
+ * and tracing stops at an edge marked by another band, which is where that
+ * band started tracing the same contour. So every edge is traced exactly
+ * once, also for contours crossing several bands. The pieces are joined
+ * afterwards, and every contour starts at its first vertical edge in scan
+ * order, so the result does not depend on the number of bands.
  */
 public class ShapeRecognizer extends TimeIntensiveOperation
 {
 
-  private enum Direction
+  /**
+   * A closed outline. The points are the corners, in pixel coordinates
+   * (x, y is the top left corner of pixel x, y), and the last point is
+   * connected to the first.
+   * Black is always on the right side, so outer contours run clockwise
+   * and holes counter-clockwise (with the y axis pointing down).
+   */
+  public static class Contour
+  {
+    private final int[] xy;
+    private final long area;
+    // the first vertical edge in scan order
+    private final long key;
+
+    /**
+     * @param xy the corners, which are not copied
+     */
+    Contour(int[] xy, long key)
+    {
+      this.xy = xy;
+      this.key = key;
+      int length = xy.length;
+      long sum = 0;
+      for (int i = 0; i < length; i += 2)
+      {
+        int j = (i + 2) % length;
+        sum += (long) xy[i] * xy[j + 1] - (long) xy[j] * xy[i + 1];
+      }
+      this.area = sum / 2;
+    }
+
+    /**
+     * Number of corners
+     */
+    public int size()
+    {
+      return xy.length / 2;
+    }
+
+    public int getX(int i)
+    {
+      return xy[2 * i];
+    }
+
+    public int getY(int i)
+    {
+      return xy[2 * i + 1];
+    }
+
+    public boolean isHole()
+    {
+      return area < 0;
+    }
+
+    /**
+     * Enclosed area in pixels
+     */
+    public long getArea()
+    {
+      return Math.abs(area);
+    }
+
+    @Override
+    public String toString()
+    {
+      return (isHole() ? "Hole" : "Contour") + " with " + size() + " corners, area " + getArea();
+    }
+  }
+
+  /**
+   * Bands are not made smaller than this, the overhead would be too large
+   */
+  private static final int MIN_BAND_ROWS = 256;
+
+  private static ExecutorService executor;
+
+  private static synchronized ExecutorService getExecutor()
+  {
+    if (executor == null)
+    {
+      int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+      ThreadPoolExecutor e = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "LibLaserCut contour tracing");
+        t.setDaemon(true);
+        return t;
+      });
+      e.allowCoreThreadTimeOut(true);
+      executor = e;
+    }
+    return executor;
+  }
+
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private long edgesTraced = 0;
+
+  /**
+   * Maximum number of bands traced in parallel. 1 traces in the calling thread.
+   */
+  public void setParallelism(int parallelism)
+  {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  public int getParallelism()
+  {
+    return parallelism;
+  }
+
+  /**
+   * Number of vertical edges followed by the last findContours call,
+   * which is the number of vertical edges of all contours found
+   */
+  long getEdgesTraced()
+  {
+    return edgesTraced;
+  }
+
+  private static final int EAST = 0;
+  private static final int SOUTH = 1;
+  private static final int WEST = 2;
+  private static final int NORTH = 3;
+  private static final int[] DX = {1, 0, -1, 0};
+  private static final int[] DY = {0, 1, 0, -1};
+
+  /**
+   * A part of a contour, from the vertical edge start to the vertical edge
+   * end, where the next piece starts (end is start for a whole contour)
+   */
+  private static class Piece
+  {
+    final int[] xy;
+    final long start;
+    final long end;
+    // the first vertical edge in scan order and the index in xy of the
+    // first corner after it
+    final long key;
+    final int keyIndex;
+    boolean joined = false;
+
+    Piece(int[] xy, int length, long start, long end, long key, int keyIndex)
+    {
+      this.xy = Arrays.copyOf(xy, length);
+      this.start = start;
+      this.end = end;
+      this.key = key;
+      this.keyIndex = keyIndex;
+    }
+  }
+
+  /**
+   * Traces the contours through the unmarked vertical edges in the rows
+   * y0 to y1 - 1
+   */
+  private static class Band implements Callable<List<Piece>>
+  {
+    private final byte[] data;
+    private final int stride;
+    private final int width;
+    private final int height;
+    private final boolean invert;
+    private final int y0;
+    private final int y1;
+    // vertical edges which are part of a traced piece, shared by all bands
+    private final AtomicLongArray visited;
+    // false if this is the only band, then the marks are not synchronized
+    private final boolean shared;
+    private int[] points = new int[64];
+    private int length;
+    private long edgesTraced = 0;
+
+    Band(RasterElement raster, boolean invert, int y0, int y1, AtomicLongArray visited, boolean shared)
+    {
+      this.data = raster.getImageData();
+      this.stride = (raster.getWidth() + 7) / 8;
+      this.width = raster.getWidth();
+      this.height = raster.getHeight();
+      this.invert = invert;
+      this.y0 = y0;
+      this.y1 = y1;
+      this.visited = visited;
+      this.shared = shared;
+    }
+
+    private boolean pixel(int x, int y)
+    {
+      if (x < 0 || y < 0 || x >= width || y >= height)
+      {
+        return false;
+      }
+      return ((data[y * stride + (x >> 3)] & (0x80 >>> (x & 7))) != 0) != invert;
+    }
+
+    /**
+     * 8 pixels of row y, with the padding bits cleared
+     */
+    private int rowByte(int y, int i)
+    {
+      int b = data[y * stride + i] & 0xff;
+      if (invert)
+      {
+        b = ~b & 0xff;
+        if (i == stride - 1 && (width & 7) != 0)
+        {
+          b &= 0xff00 >>> (width & 7);
+        }
+      }
+      return b;
+    }
+
+    /**
+     * Direction to continue at the corner vx, vy, keeping black on the right.
+     * Where two black pixels touch diagonally, turn left to keep them together.
+     */
+    private int outgoing(int vx, int vy, int incoming)
+    {
+      boolean tl = pixel(vx - 1, vy - 1);
+      boolean tr = pixel(vx, vy - 1);
+      boolean bl = pixel(vx - 1, vy);
+      boolean br = pixel(vx, vy);
+      if (tl == br && tr == bl && tl != tr)
+      {
+        return (incoming + 3) % 4;
+      }
+      if (br && !tr)
+      {
+        return EAST;
+      }
+      if (bl && !br)
+      {
+        return SOUTH;
+      }
+      if (tl && !bl)
+      {
+        return WEST;
+      }
+      return NORTH;
+    }
+
+    private long edgeKey(int vx, int y)
+    {
+      return (long) y * (width + 1) + vx;
+    }
+
+    private void addPoint(int x, int y)
+    {
+      if (length + 2 > points.length)
+      {
+        points = Arrays.copyOf(points, 2 * points.length);
+      }
+      points[length++] = x;
+      points[length++] = y;
+    }
+
+    /**
+     * Mark the edge as visited
+     * @return false if it was marked already
+     */
+    private boolean claim(long k)
+    {
+      int i = (int) (k >>> 6);
+      long bit = 1L << (k & 63);
+      if (!shared)
+      {
+        long old = visited.getPlain(i);
+        visited.setPlain(i, old | bit);
+        return (old & bit) == 0;
+      }
+      while (true)
+      {
+        long old = visited.get(i);
+        if ((old & bit) != 0)
+        {
+          return false;
+        }
+        if (visited.compareAndSet(i, old, old | bit))
+        {
+          return true;
+        }
+      }
+    }
+
+    private boolean isVisited(int vx, int y)
+    {
+      long k = edgeKey(vx, y);
+      long marks = shared ? visited.get((int) (k >>> 6)) : visited.getPlain((int) (k >>> 6));
+      return (marks & (1L << (k & 63))) != 0;
+    }
+
+    /**
+     * Trace the contour from the (claimed) vertical edge left of pixel vx, y
+     * until it is closed or reaches an edge claimed by another piece
+     */
+    private Piece trace(int vx, int y)
+    {
+      length = 0;
+      long start = edgeKey(vx, y);
+      long end = start;
+      long key = start;
+      int keyIndex = 0;
+      int startDirection = pixel(vx - 1, y) ? SOUTH : NORTH;
+      int sx = vx;
+      int sy = startDirection == SOUTH ? y : y + 1;
+      int x = sx;
+      int cy = sy;
+      int d = startDirection;
+      boolean first = true;
+      do
+      {
+        if (!first && (d == SOUTH || d == NORTH))
+        {
+          long k = edgeKey(x, d == SOUTH ? cy : cy - 1);
+          if (!claim(k))
+          {
+            // another piece starts here
+            end = k;
+            break;
+          }
+          edgesTraced++;
+          if (k < key)
+          {
+            key = k;
+            keyIndex = length;
+          }
+        }
+        first = false;
+        x += DX[d];
+        cy += DY[d];
+        int next = outgoing(x, cy, d);
+        if (next != d)
+        {
+          addPoint(x, cy);
+        }
+        d = next;
+      }
+      while (x != sx || cy != sy || d != startDirection);
+      return new Piece(points, length, start, end, key, keyIndex);
+    }
+
+    @Override
+    public List<Piece> call() throws InterruptedException
+    {
+      List<Piece> result = new ArrayList<>();
+      for (int y = y0; y < y1; y++)
+      {
+        int carry = 0;
+        for (int i = 0; i < stride; i++)
+        {
+          int b = rowByte(y, i);
+          // pixel x differs from pixel x - 1 => vertical edge at x
+          int edges = (b ^ ((b >>> 1) | (carry << 7))) & 0xff;
+          carry = b & 1;
+          while (edges != 0)
+          {
+            int bit = Integer.numberOfLeadingZeros(edges) - 24;
+            edges &= ~(0x80 >>> bit);
+            handleEdge(8 * i + bit, y, result);
+          }
+        }
+        if (carry != 0)
+        {
+          handleEdge(8 * stride, y, result);
+        }
+        if (Thread.currentThread().isInterrupted())
+        {
+          throw new InterruptedException();
+        }
+      }
+      return result;
+    }
+
+    private void handleEdge(int vx, int y, List<Piece> result)
+    {
+      if (!isVisited(vx, y) && claim(edgeKey(vx, y)))
+      {
+        edgesTraced++;
+        result.add(trace(vx, y));
+      }
+    }
+  }
+
+  /**
+   * Join the pieces to contours, starting each at its first vertical edge
+   * in scan order
+   */
+  private static List<Contour> join(List<Piece> pieces)
+  {
+    HashMap<Long, Piece> byStart = new HashMap<>();
+    for (Piece p : pieces)
+    {
+      if (p.end != p.start)
+      {
+        byStart.put(p.start, p);
+      }
+    }
+    List<Contour> result = new ArrayList<>();
+    int[] xy = new int[64];
+    for (Piece p : pieces)
+    {
+      if (p.joined)
+      {
+        continue;
+      }
+      if (p.end == p.start && p.keyIndex == 0)
+      {
+        // a whole contour, traced from its first edge
+        result.add(new Contour(p.xy, p.key));
+        continue;
+      }
+      int length = 0;
+      long key = Long.MAX_VALUE;
+      int keyIndex = 0;
+      Piece q = p;
+      do
+      {
+        q.joined = true;
+        if (length + q.xy.length > xy.length)
+        {
+          xy = Arrays.copyOf(xy, Math.max(2 * xy.length, length + q.xy.length));
+        }
+        System.arraycopy(q.xy, 0, xy, length, q.xy.length);
+        if (q.key < key)
+        {
+          key = q.key;
+          keyIndex = length + q.keyIndex;
+        }
+        length += q.xy.length;
+        q = q.end == q.start ? q : byStart.get(q.end);
+      }
+      while (q != p);
+      int[] rotated = new int[length];
+      System.arraycopy(xy, keyIndex, rotated, 0, length - keyIndex);
+      System.arraycopy(xy, 0, rotated, length - keyIndex, keyIndex);
+      result.add(new Contour(rotated, key));
+    }
+    result.sort(Comparator.comparingLong(c -> c.key));
+    return result;
+  }
+
+  /**
+   * Find all contours of the black areas (or the white areas, if invert is
+   * true) of a 1 bit raster. Pixels outside the raster count as white
+   * (as black if invert is true).
+   *
+   * @return the contours in the order of their top left edge
+   */
+  public List<Contour> findContours(RasterElement raster, boolean invert) throws InterruptedException
+  {
+    if (raster.getBitDepth() != 1 || raster.getSamplesPerPixel() != 1)
+    {
+      throw new IllegalArgumentException("only 1 bit rasters are supported");
+    }
+    int height = raster.getHeight();
+    int bands = Math.max(1, Math.min(parallelism, height / MIN_BAND_ROWS));
+    AtomicLongArray visited = new AtomicLongArray((int) (((long) height * (raster.getWidth() + 1) + 63) / 64));
+    List<Band> tasks = new ArrayList<>();
+    for (int i = 0; i < bands; i++)
+    {
+      tasks.add(new Band(raster, invert, (int) ((long) height * i / bands), (int) ((long) height * (i + 1) / bands), visited, bands > 1));
+    }
+    if (bands == 1)
+    {
+      List<Contour> result = join(tasks.get(0).call());
+      edgesTraced = tasks.get(0).edgesTraced;
+      setProgress(100);
+      return result;
+    }
+    List<Piece> pieces = new ArrayList<>();
+    List<Future<List<Piece>>> futures = new ArrayList<>();
+    for (Band b : tasks)
+    {
+      futures.add(getExecutor().submit(b));
+    }
+    try
+    {
+      for (int i = 0; i < bands; i++)
+      {
+        pieces.addAll(futures.get(i).get());
+        setProgress((100 * (i + 1)) / bands);
+      }
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException(e.getCause());
+    }
+    finally
+    {
+      for (Future<List<Piece>> f : futures)
+      {
+        f.cancel(true);
+      }
+    }
+    edgesTraced = 0;
+    for (Band b : tasks)
+    {
+      edgesTraced += b.edgesTraced;
+    }
+    return join(pieces);
+  }
+
+  public List<Contour> findContours(BlackWhiteRaster bwr) throws InterruptedException
+  {
+    return findContours(bwr.getRaster(), false);
+  }
+
+  /**
+   * Add the contours as closed paths to the VectorPart.
+   * One pixel of the raster is one unit of the VectorPart, so it should
+   * have the resolution of the raster.
+   *
+   * @param offsetX position of the top left corner of the raster
+   * @param offsetY position of the top left corner of the raster
+   * @param tolerance maximum deviation in pixels when merging segments,
+   * e.g. 0.5 to smooth stair steps, or 0 for the exact outlines
+   */
+  public static void addToVectorPart(List<Contour> contours, VectorPart vp, double offsetX, double offsetY, double tolerance)
   {
+    PathCompressor compressor = null;
+    if (tolerance > 0)
+    {
+      compressor = new PathCompressor(new PathCompressor.Sink()
+      {
+        @Override
+        public void lineTo(double x, double y)
+        {
+          vp.lineto(x, y);
+        }
 
-    east,
-    north_east,
-    north,
-    north_west,
-    west,
-    south_west,
-    south,
-    south_east
+        @Override
+        public void arcTo(double x, double y, double i, double j, boolean clockwise)
+        {
+          throw new UnsupportedOperationException("arcs are disabled");
+        }
+      }, tolerance);
+      compressor.setFitArcs(false);
+    }
+    for (Contour c : contours)
+    {
+      double x0 = offsetX + c.getX(0);
+      double y0 = offsetY + c.getY(0);
+      vp.moveto(x0, y0);
+      if (compressor == null)
+      {
+        for (int i = 1; i < c.size(); i++)
+        {
+          vp.lineto(offsetX + c.getX(i), offsetY + c.getY(i));
+        }
+        vp.lineto(x0, y0);
+        continue;
+      }
+      try
+      {
+        compressor.begin(x0, y0);
+        for (int i = 1; i < c.size(); i++)
+        {
+          compressor.lineTo(offsetX + c.getX(i), offsetY + c.getY(i));
+        }
+        compressor.lineTo(x0, y0);
+        compressor.flush();
+      }
+      catch (IOException e)
+      {
+        // the sink does not throw
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * A VectorPart cutting around all black areas and holes of the raster
+   *
+   * @param offset position of the top left corner of the raster
+   * @param tolerance see {@link #addToVectorPart}
+   */
+  public VectorPart createVectorPart(BlackWhiteRaster bwr, LaserProperty property, double resolution, Point offset, double tolerance) throws InterruptedException
+  {
+    VectorPart result = new VectorPart(property, resolution);
+    addToVectorPart(findContours(bwr), result, offset.x, offset.y, tolerance);
+    return result;
   }
-  private boolean outerBlack = false;
 
   /**
    * Tries to find the outer Shape which is visible
    * on the given bwr. The list of Points returned
    * corresponds to Points on the Shape in order
-   * to draw a line around.
+   * to draw a line around, ending with the first point.
+   *
+   * If the upper left corner is black, a white shape on black background
+   * is assumed. If there are several shapes, the largest one is used.
    * 
    * This method calls the progressChanged Method
    * of all ProgressListeners with values from 0
    * to 100 indicating the progress
    * 
+   * If the thread is interrupted, the interrupt flag is set again and
+   * the rectangle around the picture is returned.
+   * 
    * @return  a List of Points marking a line around the
    * recognized Shape
    */
@@ -67,22 +666,24 @@ public class ShapeRecognizer extends TimeIntensiveOperation
     int w = bwr.getWidth();
     int h = bwr.getHeight();
     List<Point> result = new LinkedList<>();
-    //if the upper left corner is black,
-    //we assume a white shape on black background
-    outerBlack = bwr.isBlack(0, 0);
-    //find the first point with inner color
-    Point current = null;
-    for (int y = 0; y < h; y++)
+    boolean outerBlack = w > 0 && h > 0 && bwr.isBlack(0, 0);
+    Contour largest = null;
+    try
     {
-      for (int x = 0; x < h; x++)
+      for (Contour c : findContours(bwr.getRaster(), outerBlack))
       {
-        if (bwr.isBlack(x, y) != outerBlack)
+        if (!c.isHole() && (largest == null || c.getArea() > largest.getArea()))
         {
-          current = new Point(x, y);
+          largest = c;
         }
       }
     }
-    if (current == null)
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      largest = null;
+    }
+    if (largest == null)
     {//picture completely black/white
       //return rectangle wrapping the picture
       result.add(new Point(0, 0));
@@ -92,39 +693,11 @@ public class ShapeRecognizer extends TimeIntensiveOperation
       result.add(new Point(0, 0));
       return result;
     }
-    Point first = current.clone();
-    Point before = null;
-    //iterate along the point always taking the most outer position
-    //until matching the first point?! or no more possibilities
-    while (current != null && current != first)
+    for (int i = 0; i < largest.size(); i++)
     {
-      result.add(current);
-      Point next = getFollower(bwr, current, before);
-      before = current;
-      current = next;
-    }
-    return null;
-  }
-  
-  private final Direction previous = Direction.west;
-
-  /**
-   * Returns the best follower in the bwr or null if
-   * only the before is an option This method has to be called
-   * iteratively
-   * 
-   * @param c The cuttent point whose follower is to determine
-   */
-  private Point getFollower(BlackWhiteRaster bwr, Point c, Point p)
-  {
-    double xdiff = p == null ? 1 : c.x - p.x;
-    double ydiff = p == null ? 0 : c.y - p.y;
-    if (bwr.isBlack((int) (c.x-ydiff), (int) (c.y+xdiff))==outerBlack){
-      return (new Point(c.x-ydiff, c.y-xdiff));
-    }
-    if (bwr.isBlack((int) (c.x+xdiff), (int) (c.y+xdiff))==outerBlack){
-      return (new Point(c.x-ydiff, c.y-xdiff));
+      result.add(new Point(largest.getX(i), largest.getY(i)));
     }
-    return null;
+    result.add(new Point(largest.getX(0), largest.getY(0)));
+    return result;
   }
 }
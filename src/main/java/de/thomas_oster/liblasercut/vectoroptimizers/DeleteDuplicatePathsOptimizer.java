@@ -42,6 +42,7 @@ public class DeleteDuplicatePathsOptimizer extends VectorOptimizer
     
     for(int i=0;i<e.size();i++)
     {
+      checkCancelled();
       for(int j=0;j<e.size();j++)
       {
         if(i!=j)
@@ -63,6 +64,7 @@ public class DeleteDuplicatePathsOptimizer extends VectorOptimizer
     }
     
     NearestVectorOptimizer vo = new NearestVectorOptimizer();
+    vo.setCancellationToken(getCancellationToken());
     result = vo.sort(e);
     
     return result;
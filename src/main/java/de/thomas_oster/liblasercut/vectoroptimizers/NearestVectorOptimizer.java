@@ -47,13 +47,14 @@ public class NearestVectorOptimizer extends VectorOptimizer
     // we could do this joining at the very end, when the paths are already
     // sorted nicely and we just need to compare if one end point is very close
     // to the previous start and all properties (laser power etc.) also match.)
-    e = OptimizerUtils.joinContiguousLoopElements(e, 0.9);
+    e = OptimizerUtils.joinContiguousLoopElements(e, 0.9, getCancellationToken());
 
     // Sort paths so that the gap between one endpoint and the next startpoint is minimized greedily.
     // Start at the first path.
     result.add(e.remove(0));
     while (!e.isEmpty())
     {
+      checkCancelled();
       Point end = result.get(result.size() - 1).getEnd();
       //find the start (or end) point nearest to the end point of the current path
       int next = 0;
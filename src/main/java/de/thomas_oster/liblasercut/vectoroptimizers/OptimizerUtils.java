@@ -19,6 +19,7 @@
 package de.thomas_oster.liblasercut.vectoroptimizers;
 
 import de.thomas_oster.liblasercut.properties.LaserProperty;
+import de.thomas_oster.liblasercut.CancellationToken;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer.Element;
 import java.util.ArrayList;
@@ -42,6 +43,16 @@ public class OptimizerUtils
    */
   public static ArrayList<Element> joinContiguousLoopElements(
     List<Element> input, double tolerance)
+  {
+    return joinContiguousLoopElements(input, tolerance, new CancellationToken());
+  }
+
+  /**
+   * @see #joinContiguousLoopElements(List, double)
+   * @param token checked once per path
+   */
+  public static ArrayList<Element> joinContiguousLoopElements(
+    List<Element> input, double tolerance, CancellationToken token)
   {
     // Group elements by property, so that
     // propToElements.get(property) == "list of all input[i] with input[i].prop == property"
@@ -85,6 +96,7 @@ public class OptimizerUtils
       }
       // sort by x-coordinate to allow for binary search
       Collections.sort(startAndEndPoints);
+      token.check();
       // The same list, but without nulling elements.
       // Used for binary search, because binary-searching a "skip-list" is inefficient.
       ArrayList<DirectedElement> originalStartAndEndPoints = new ArrayList<>(startAndEndPoints);
@@ -110,6 +122,7 @@ public class OptimizerUtils
         somethingChanged = false;
         for (Element current: elements)
         {
+          token.check();
           if (current == null)
           {
             // element was deleted
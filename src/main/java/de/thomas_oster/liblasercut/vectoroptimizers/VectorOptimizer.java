@@ -18,6 +18,8 @@
  */
 package de.thomas_oster.liblasercut.vectoroptimizers;
 
+import de.thomas_oster.liblasercut.CancellationToken;
+import de.thomas_oster.liblasercut.CurveFlattener;
 import de.thomas_oster.liblasercut.properties.LaserProperty;
 import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
@@ -52,6 +54,11 @@ public abstract class VectorOptimizer
      * List of moves. CachedEnd must be updated if moves is modified!
      */
     private final ArrayList<Point> moves = new ArrayList<>();
+    /**
+     * CURVETO or ARCTO command ending at the move with the same index,
+     * null for lines. Null if all moves are lines.
+     */
+    private ArrayList<VectorCommand> segments = null;
     private Point cachedEnd = null;
     
     // Temporary storage for use in sorting algorithms:
@@ -79,7 +86,35 @@ public abstract class VectorOptimizer
       {
         return false;//start point differs
       }
-      return this.moves.equals(e.moves);//move lists are different
+      if (!this.moves.equals(e.moves))
+      {
+        return false;//move lists are different
+      }
+      for (int i = 0; i < moves.size(); i++)
+      {
+        if (!sameSegment(getSegment(i), e.getSegment(i)))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean sameSegment(VectorCommand a, VectorCommand b)
+    {
+      if (a == null || b == null)
+      {
+        return a == b;
+      }
+      if (a.getType() != b.getType())
+      {
+        return false;
+      }
+      if (a.getType() == VectorCommand.CmdType.CURVETO)
+      {
+        return a.getX1() == b.getX1() && a.getY1() == b.getY1() && a.getX2() == b.getX2() && a.getY2() == b.getY2();
+      }
+      return a.getI() == b.getI() && a.getJ() == b.getJ() && a.isClockwise() == b.isClockwise();
     }
 
     /**
@@ -94,6 +129,18 @@ public abstract class VectorOptimizer
       startIndex = tmp;
 
       cachedEnd = start;
+      if (segments != null)
+      {
+        // the segment to a point becomes the segment from it
+        ArrayList<VectorCommand> reversed = new ArrayList<>(segments.size());
+        for (int i = moves.size() - 1; i >= 0; i--)
+        {
+          VectorCommand s = segments.get(i);
+          Point before = i == 0 ? start : moves.get(i - 1);
+          reversed.add(s == null ? null : s.reverse(before.x, before.y));
+        }
+        segments = reversed;
+      }
       if (!moves.isEmpty())
       {
         moves.add(0, start);
@@ -110,6 +157,27 @@ public abstract class VectorOptimizer
       return moves;
     }
 
+    /**
+     * The CURVETO or ARCTO command ending at getMoves().get(i),
+     * null for a line
+     */
+    VectorCommand getSegment(int i)
+    {
+      return segments == null ? null : segments.get(i);
+    }
+
+    private void ensureSegments()
+    {
+      if (segments == null)
+      {
+        segments = new ArrayList<>(moves.size() + 1);
+        for (int i = 0; i < moves.size(); i++)
+        {
+          segments.add(null);
+        }
+      }
+    }
+
     Point getEnd()
     {
       if (cachedEnd != null)
@@ -133,6 +201,14 @@ public abstract class VectorOptimizer
         throw new IllegalArgumentException("Cannot join paths with different properties");
       }
       // the following should be approximately true: (getEnd().equals(other.start));
+      if (segments != null || other.segments != null)
+      {
+        ensureSegments();
+        for (int i = 0; i < other.moves.size(); i++)
+        {
+          segments.add(other.getSegment(i));
+        }
+      }
       moves.addAll(other.moves);
       cachedEnd = other.getEnd();
       endIndex = other.endIndex;
@@ -140,6 +216,22 @@ public abstract class VectorOptimizer
     
     void addPoint(Point p)
     {
+      if (segments != null)
+      {
+        segments.add(null);
+      }
+      moves.add(p);
+      cachedEnd = p;
+    }
+
+    /**
+     * Add a CURVETO or ARCTO command
+     */
+    void addSegment(VectorCommand cmd)
+    {
+      ensureSegments();
+      segments.add(cmd);
+      Point p = new Point(cmd.getX(), cmd.getY());
       moves.add(p);
       cachedEnd = p;
     }
@@ -156,9 +248,19 @@ public abstract class VectorOptimizer
         return null;
       }
       Rectangle bb = new Rectangle(start.x, start.y, start.x, start.y);
-      for (Point p : moves)
+      for (int i = 0; i < moves.size(); i++)
       {
+        Point p = moves.get(i);
         bb.add(p);
+        VectorCommand s = getSegment(i);
+        if (s != null)
+        {
+          // curves may bulge out of the points
+          Point before = i == 0 ? start : moves.get(i - 1);
+          double[] b = CurveFlattener.getBounds(before.x, before.y, s);
+          bb.add(b[0], b[1]);
+          bb.add(b[2], b[3]);
+        }
       }
       return bb;
     }
@@ -210,6 +312,31 @@ public abstract class VectorOptimizer
     throw new IllegalArgumentException("Unknown Order Strategy: " + s);
   }
 
+  private CancellationToken cancellationToken = new CancellationToken();
+
+  /**
+   * Checked once per path by divide(), sort() and optimize().
+   * Cancelling it makes optimize() throw a CancellationException.
+   */
+  public void setCancellationToken(CancellationToken cancellationToken)
+  {
+    this.cancellationToken = cancellationToken;
+  }
+
+  public CancellationToken getCancellationToken()
+  {
+    return cancellationToken;
+  }
+
+  /**
+   * @throws java.util.concurrent.CancellationException if the token was
+   * cancelled or the thread was interrupted
+   */
+  protected void checkCancelled()
+  {
+    cancellationToken.check();
+  }
+
   protected List<Element> divide(VectorPart vp)
   {
     List<Element> result = new ArrayList<>();
@@ -217,17 +344,20 @@ public abstract class VectorOptimizer
     Point lastMove = null;
     LaserProperty lastProp = null;
     boolean stop = false;
-    for (VectorCommand cmd : vp.getCommandList())
+    for (VectorCommand cmd : vp.getNativeCommands())
     {
       switch (cmd.getType())
       {
         case MOVETO:
         {
+          checkCancelled();
           lastMove = new Point(cmd.getX(), cmd.getY());
           stop = true;
           break;
         }
         case LINETO:
+        case CURVETO:
+        case ARCTO:
         {
           if (stop)
           {
@@ -240,7 +370,14 @@ public abstract class VectorOptimizer
             cur.start = lastMove;
             cur.prop = lastProp;
           }
-          cur.addPoint(new Point(cmd.getX(), cmd.getY()));
+          if (cmd.getType() == VectorCommand.CmdType.LINETO)
+          {
+            cur.addPoint(new Point(cmd.getX(), cmd.getY()));
+          }
+          else
+          {
+            cur.addSegment(cmd);
+          }
           break;
         }
         case SETPROPERTY:
@@ -260,6 +397,12 @@ public abstract class VectorOptimizer
 
   protected abstract List<Element> sort(List<Element> e);
 
+  public VectorPart optimize(VectorPart vp, CancellationToken token)
+  {
+    setCancellationToken(token);
+    return optimize(vp);
+  }
+
   public VectorPart optimize(VectorPart vp)
   {
     List<Element> opt = this.sort(this.divide(vp));
@@ -267,15 +410,28 @@ public abstract class VectorOptimizer
     VectorPart result = new VectorPart(cp, vp.getDPI());
     for (Element e : opt)
     {
+      checkCancelled();
       if (!e.prop.equals(cp))
       {
         result.setProperty(e.prop);
         cp = e.prop;
       }
       result.moveto(e.start.x, e.start.y);
-      for (Point p : e.moves)
+      for (int i = 0; i < e.moves.size(); i++)
       {
-        result.lineto(p.x, p.y);
+        VectorCommand s = e.getSegment(i);
+        if (s == null)
+        {
+          result.lineto(e.moves.get(i).x, e.moves.get(i).y);
+        }
+        else if (s.getType() == VectorCommand.CmdType.CURVETO)
+        {
+          result.curveto(s.getX1(), s.getY1(), s.getX2(), s.getY2(), s.getX(), s.getY());
+        }
+        else
+        {
+          result.arcto(s.getX(), s.getY(), s.getI(), s.getJ(), s.isClockwise());
+        }
       }
     }
     return result;
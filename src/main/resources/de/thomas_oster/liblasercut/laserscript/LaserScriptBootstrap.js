@@ -27,6 +27,12 @@ function line(x, y)
   _instance.line(x,y);
 }
 
+// points: array of x and y coordinates, e.g. [x1, y1, x2, y2, ...]
+function polyline(points)
+{
+  _instance.polyline(points);
+}
+
 function get(property)
 {
   return _instance.get(property);
@@ -127,4 +127,66 @@ public class BlackWhiteRasterTest
       }
     }
   }
+
+  @Test
+  public void testRowRepresentation()
+  {
+    // width is not a multiple of 8
+    BlackWhiteRaster rows = new BlackWhiteRaster(203, 20);
+    BlackWhiteRaster bits = new BlackWhiteRaster(203, 20);
+    BlackWhiteRaster pixels = new BlackWhiteRaster(203, 20);
+    java.util.Random r = new java.util.Random(42);
+    boolean[] row = new boolean[203];
+    byte[] packed = new byte[26];
+    for (int y = 0; y < 20; y++)
+    {
+      java.util.Arrays.fill(packed, (byte) 0);
+      for (int x = 0; x < 203; x++)
+      {
+        row[x] = r.nextBoolean();
+        pixels.setBlack(x, y, row[x]);
+        if (row[x])
+        {
+          packed[x / 8] |= 0x80 >>> (x % 8);
+        }
+      }
+      rows.setBlackRow(y, row);
+      bits.setBlackRow(y, packed);
+    }
+    assertArrayEquals(pixels.getRaster().getImageData(), rows.getRaster().getImageData());
+    assertArrayEquals(pixels.getRaster().getImageData(), bits.getRaster().getImageData());
+  }
+
+  /**
+   * Dithering into a BlackWhiteRaster (written row by row) must give the
+   * same result as dithering in place
+   */
+  @Test
+  public void testDitheringOutput() throws InterruptedException
+  {
+    for (BlackWhiteRaster.DitherAlgorithm a : BlackWhiteRaster.DitherAlgorithm.values())
+    {
+      if (a == BlackWhiteRaster.DitherAlgorithm.RANDOM)
+      {
+        continue;
+      }
+      GreyRaster direct = new GreyRaster(101, 37);
+      for (int y = 0; y < direct.getHeight(); y++)
+      {
+        for (int x = 0; x < direct.getWidth(); x++)
+        {
+          direct.setGreyScale(x, y, (x * 255 / 100 + y * 7) % 256);
+        }
+      }
+      BlackWhiteRaster result = new BlackWhiteRaster(direct, a);
+      BlackWhiteRaster.getDitheringAlgorithm(a).ditherDirect(direct);
+      for (int y = 0; y < direct.getHeight(); y++)
+      {
+        for (int x = 0; x < direct.getWidth(); x++)
+        {
+          assertEquals(a + " at " + x + "," + y, direct.getGreyScale(x, y) == 0, result.isBlack(x, y));
+        }
+      }
+    }
+  }
 }
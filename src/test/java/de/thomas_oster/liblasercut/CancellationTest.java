@@ -0,0 +1,177 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.EpilogZing;
+import de.thomas_oster.liblasercut.drivers.FullSpectrumCutter;
+import de.thomas_oster.liblasercut.drivers.GenericGcodeDriver;
+import de.thomas_oster.liblasercut.drivers.LaserToolsTechnicsCutter;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.properties.PowerSpeedFocusFrequencyProperty;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Cancels large jobs while they are processed and measures how long it
+ * takes until the work stops
+ */
+public class CancellationTest
+{
+  // generous for slow build machines, usually a few milliseconds
+  private static final long MAX_ABORT_MILLIS = 1500;
+
+  private interface Task
+  {
+    void run() throws Exception;
+  }
+
+  private static long timeToAbort(CancellationToken token, Task task) throws InterruptedException
+  {
+    AtomicReference<Throwable> result = new AtomicReference<>();
+    Thread t = new Thread(() -> {
+      try
+      {
+        task.run();
+      }
+      catch (Throwable e)
+      {
+        result.set(e);
+      }
+    });
+    t.start();
+    Thread.sleep(200);
+    assertTrue("the job was too small to be cancelled", t.isAlive());
+    long start = System.nanoTime();
+    token.cancel();
+    t.join(30000);
+    long millis = (System.nanoTime() - start) / 1000000;
+    assertFalse("the job was not aborted", t.isAlive());
+    assertTrue("unexpected result: " + result.get(), result.get() instanceof CancellationException);
+    System.out.println(Thread.currentThread().getStackTrace()[2].getMethodName() + ": time to abort " + millis + " ms");
+    return millis;
+  }
+
+  /**
+   * Job with a random 1 bit raster covering most of the bed
+   */
+  private static LaserJob createRasterJob(LaserCutter lc)
+  {
+    double dpi = lc.getResolutions().get(lc.getResolutions().size() - 1);
+    int width = (int) Math.min(Util.mm2px(lc.getBedWidth() * 0.9, dpi), 6000);
+    int height = (int) Math.min(Util.mm2px(lc.getBedHeight() * 0.9, dpi), 6000);
+    RasterElement image = new RasterElement(width, height, 1);
+    new Random(1).nextBytes(image.getImageData());
+    LaserJob job = new LaserJob("raster", "raster", "test");
+    job.addPart(new RasterPart(new GreyRaster(image), lc.getLaserPropertyForRasterPart(), new Point(0, 0), dpi));
+    return job;
+  }
+
+  @Test(timeout = 60000)
+  public void testVectorOptimizer() throws Exception
+  {
+    VectorPart vp = new VectorPart(new PowerSpeedFocusFrequencyProperty(), 500);
+    Random r = new Random(1);
+    for (int i = 0; i < 100000; i++)
+    {
+      double x = r.nextInt(10000);
+      double y = r.nextInt(10000);
+      vp.moveto(x, y);
+      vp.lineto(x + 1 + r.nextInt(5), y + 10);
+    }
+    CancellationToken token = new CancellationToken();
+    VectorOptimizer o = VectorOptimizer.create(VectorOptimizer.OrderStrategy.NEAREST);
+    assertTrue(timeToAbort(token, () -> o.optimize(vp, token)) < MAX_ABORT_MILLIS);
+  }
+
+  @Test(timeout = 60000)
+  public void testRasterToVectorConversion() throws Exception
+  {
+    GenericGcodeDriver lc = new GenericGcodeDriver();
+    LaserJob job = createRasterJob(lc);
+    assertTrue(timeToAbort(job.getCancellationToken(), () -> lc.saveJob(OutputStream.nullOutputStream(), job)) < MAX_ABORT_MILLIS);
+  }
+
+  @Test(timeout = 60000)
+  public void testLaserToolsTechnics() throws Exception
+  {
+    LaserToolsTechnicsCutter lc = new LaserToolsTechnicsCutter();
+    LaserJob job = createRasterJob(lc);
+    assertTrue(timeToAbort(job.getCancellationToken(), () -> lc.saveJob(OutputStream.nullOutputStream(), job)) < MAX_ABORT_MILLIS);
+  }
+
+  @Test(timeout = 60000)
+  public void testEpilog() throws Exception
+  {
+    EpilogZing lc = new EpilogZing();
+    LaserJob job = createRasterJob(lc);
+    assertTrue(timeToAbort(job.getCancellationToken(), () -> lc.saveJob(OutputStream.nullOutputStream(), job)) < MAX_ABORT_MILLIS);
+  }
+
+  @Test(timeout = 60000)
+  public void testFullSpectrum() throws Exception
+  {
+    FullSpectrumCutter lc = new FullSpectrumCutter();
+    double dpi = lc.getResolutions().get(0);
+    VectorPart vp = new VectorPart(lc.getLaserPropertyForVectorPart(), dpi);
+    int w = (int) Util.mm2px(lc.getBedWidth() * 0.9, dpi);
+    int h = (int) Util.mm2px(lc.getBedHeight() * 0.9, dpi);
+    vp.moveto(0, 0);
+    for (int i = 0; i < 200000; i++)
+    {
+      vp.lineto((i % 2) * w, (i % 3) * h / 2);
+    }
+    LaserJob job = new LaserJob("vector", "vector", "test");
+    job.addPart(vp);
+    assertTrue(timeToAbort(job.getCancellationToken(), () -> lc.saveJob(OutputStream.nullOutputStream(), job)) < MAX_ABORT_MILLIS);
+  }
+
+  @Test
+  public void testInterruptCancels()
+  {
+    CancellationToken token = new CancellationToken();
+    assertFalse(token.isCancelled());
+    Thread.currentThread().interrupt();
+    try
+    {
+      token.check();
+      fail("interrupt was ignored");
+    }
+    catch (CancellationException e)
+    {
+      // expected
+    }
+    finally
+    {
+      Thread.interrupted();
+    }
+    int[] called = {0};
+    token.onCancel(() -> called[0]++);
+    token.cancel();
+    token.cancel();
+    assertEquals(1, called[0]);
+    token.onCancel(() -> called[0]++);
+    assertEquals(2, called[0]);
+  }
+}
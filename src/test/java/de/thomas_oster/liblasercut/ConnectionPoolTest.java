@@ -0,0 +1,100 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.Dummy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest
+{
+  private int closed = 0;
+
+  private ConnectionSession open(String key, String parameters)
+  {
+    return new ConnectionSession(key, parameters, null, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), () -> closed++);
+  }
+
+  @After
+  public void cleanup()
+  {
+    ConnectionPool.closeAll();
+  }
+
+  @Test
+  public void testReuse()
+  {
+    Dummy cutter = new Dummy();
+    cutter.setKeepConnectionOpen(true);
+    ConnectionSession s = open("serial://test", "baud=9600");
+    cutter.releaseSession(s);
+    assertEquals(1, ConnectionPool.getIdleCount());
+    // another instance of the driver (e.g. after editing the settings) takes over the connection
+    Dummy other = new Dummy();
+    other.setKeepConnectionOpen(true);
+    ConnectionSession resumed = other.resumeSession("serial://test", "baud=9600", ConnectionSession.WRITE_ONLY);
+    assertSame(s, resumed);
+    assertEquals(1, resumed.getUses());
+    assertEquals(0, ConnectionPool.getIdleCount());
+    assertEquals(0, closed);
+  }
+
+  @Test
+  public void testDeadOrChangedConnectionIsClosed()
+  {
+    Dummy cutter = new Dummy();
+    cutter.setKeepConnectionOpen(true);
+    cutter.releaseSession(open("serial://test", "baud=9600"));
+    assertNull(cutter.resumeSession("serial://test", "baud=9600", s -> false));
+    assertEquals(1, closed);
+
+    cutter.releaseSession(open("serial://test", "baud=9600"));
+    assertNull(cutter.resumeSession("serial://test", "baud=115200", ConnectionSession.WRITE_ONLY));
+    assertEquals(2, closed);
+
+    cutter.releaseSession(open("serial://test", "baud=9600"));
+    assertNull(cutter.resumeSession("serial://test", "baud=9600", s -> {
+      throw new java.io.IOException("timeout");
+    }));
+    assertEquals(3, closed);
+  }
+
+  @Test
+  public void testInvalidOrDisabledIsNotKept()
+  {
+    Dummy cutter = new Dummy();
+    cutter.setKeepConnectionOpen(true);
+    ConnectionSession s = open("tcp://test:23", "");
+    s.invalidate();
+    cutter.releaseSession(s);
+    assertEquals(1, closed);
+    assertEquals(0, ConnectionPool.getIdleCount());
+
+    cutter.releaseSession(open("tcp://test:23", ""));
+    cutter.setKeepConnectionOpen(false);
+    assertNull(cutter.resumeSession("tcp://test:23", "", ConnectionSession.WRITE_ONLY));
+    assertEquals(2, closed);
+    cutter.releaseSession(open("tcp://test:23", ""));
+    assertEquals(3, closed);
+    assertEquals(0, ConnectionPool.getIdleCount());
+  }
+}
@@ -0,0 +1,321 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.GenericGcodeDriver;
+import de.thomas_oster.liblasercut.properties.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.utils.ShapeConverter;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CurveFlattenerTest
+{
+  private static final double TOLERANCE = 0.5;
+
+  private static VectorPart createPart()
+  {
+    return new VectorPart(new PowerSpeedFocusProperty(), 500);
+  }
+
+  /**
+   * x, y of all MOVETO and LINETO commands
+   */
+  private static List<double[]> points(Iterable<VectorCommand> commands)
+  {
+    List<double[]> result = new ArrayList<>();
+    for (VectorCommand cmd : commands)
+    {
+      switch (cmd.getType())
+      {
+        case MOVETO:
+        case LINETO:
+          result.add(new double[]{cmd.getX(), cmd.getY()});
+          break;
+        case SETPROPERTY:
+          break;
+        default:
+          fail("not flattened: " + cmd.getType());
+      }
+    }
+    return result;
+  }
+
+  private static int count(Iterable<VectorCommand> commands)
+  {
+    int result = 0;
+    for (VectorCommand cmd : commands)
+    {
+      result++;
+    }
+    return result;
+  }
+
+  @Test
+  public void testCurveIsFlattenedWithinTolerance()
+  {
+    CubicCurve2D.Double curve = new CubicCurve2D.Double(10, 10, 300, -200, 100, 500, 600, 300);
+    VectorPart vp = createPart();
+    vp.moveto(curve.x1, curve.y1);
+    vp.curveto(curve.ctrlx1, curve.ctrly1, curve.ctrlx2, curve.ctrly2, curve.x2, curve.y2);
+    assertEquals(3, vp.getCommandCount());
+    List<double[]> points = points(vp.getCommands(false, false, TOLERANCE));
+    assertEquals(curve.x2, points.get(points.size() - 1)[0], 0);
+    assertEquals(curve.y2, points.get(points.size() - 1)[1], 0);
+    // every point of the curve is near the poly-line
+    for (int k = 0; k <= 1000; k++)
+    {
+      double t = k / 1000.0;
+      double s = 1 - t;
+      double x = s * s * s * curve.x1 + 3 * s * s * t * curve.ctrlx1 + 3 * s * t * t * curve.ctrlx2 + t * t * t * curve.x2;
+      double y = s * s * s * curve.y1 + 3 * s * s * t * curve.ctrly1 + 3 * s * t * t * curve.ctrly2 + t * t * t * curve.y2;
+      double best = Double.POSITIVE_INFINITY;
+      for (int i = 0; i + 1 < points.size(); i++)
+      {
+        best = Math.min(best, java.awt.geom.Line2D.ptSegDist(points.get(i)[0], points.get(i)[1], points.get(i + 1)[0], points.get(i + 1)[1], x, y));
+      }
+      assertTrue("distance " + best, best <= TOLERANCE + 1e-9);
+    }
+    // tight bounding box
+    Rectangle2D bounds = curve.getBounds2D();
+    assertTrue(vp.getMinY() < 10);
+    assertTrue(vp.getMinY() >= bounds.getMinY());
+    assertTrue(vp.getMaxY() > 300);
+    assertTrue(vp.getMaxY() <= bounds.getMaxY());
+  }
+
+  @Test
+  public void testArc()
+  {
+    VectorPart vp = createPart();
+    vp.moveto(200, 100);
+    // quarter circle around (100, 100), clockwise with the y axis pointing up
+    vp.arcto(100, 0, -100, 0, true);
+    assertEquals(100, vp.getMinX(), 1e-9);
+    assertEquals(200, vp.getMaxX(), 1e-9);
+    assertEquals(0, vp.getMinY(), 1e-9);
+    assertEquals(100, vp.getMaxY(), 1e-9);
+    List<double[]> points = points(vp.getCommands(false, false, TOLERANCE));
+    assertTrue(points.size() > 5);
+    for (double[] p : points)
+    {
+      assertEquals(100, Math.hypot(p[0] - 100, p[1] - 100), 1e-9);
+      assertTrue(p[0] >= 100 - 1e-9 && p[1] <= 100 + 1e-9);
+    }
+    // the same arc the other way around is the other three quarters
+    vp = createPart();
+    vp.moveto(200, 100);
+    vp.arcto(100, 0, -100, 0, false);
+    assertEquals(0, vp.getMinX(), 1e-9);
+    assertEquals(200, vp.getMaxY(), 1e-9);
+  }
+
+  @Test
+  public void testFullCircle()
+  {
+    VectorPart vp = createPart();
+    vp.moveto(150, 100);
+    vp.arcto(150, 100, -50, 0, false);
+    assertEquals(50, vp.getMinX(), 1e-9);
+    assertEquals(150, vp.getMaxX(), 1e-9);
+    assertEquals(50, vp.getMinY(), 1e-9);
+    assertEquals(150, vp.getMaxY(), 1e-9);
+    assertFalse(vp.isEmpty());
+    int lines = points(vp.getCommands()).size() - 1;
+    // chord height r * (1 - cos(pi / n)) <= 1
+    assertTrue(lines >= Math.PI / Math.acos(1 - 1.0 / 50));
+    assertTrue(lines < 30);
+  }
+
+  @Test
+  public void testDriverCapabilities()
+  {
+    VectorPart vp = createPart();
+    vp.moveto(0, 0);
+    vp.curveto(0, 100, 100, 100, 100, 0);
+    vp.arcto(200, 0, 50, 0, true);
+    GenericGcodeDriver gcode = new GenericGcodeDriver();
+    List<VectorCommand.CmdType> types = new ArrayList<>();
+    for (VectorCommand cmd : vp.getCommands(gcode))
+    {
+      types.add(cmd.getType());
+    }
+    assertTrue(gcode.canCutArcs());
+    assertFalse(gcode.canCutCurves());
+    assertTrue(types.contains(VectorCommand.CmdType.ARCTO));
+    assertFalse(types.contains(VectorCommand.CmdType.CURVETO));
+    // legacy iteration only sees lines
+    points(vp.getCommands());
+    assertEquals(4, count(vp.getNativeCommands()));
+    assertEquals(count(vp.getCommands()), vp.getCommandList().length);
+  }
+
+  @Test
+  public void testGcodeArcs() throws Exception
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    LaserJob job = new LaserJob("circles", "circles", "test");
+    VectorPart vp = new VectorPart(driver.getLaserPropertyForVectorPart(), 500);
+    for (int i = 0; i < 10; i++)
+    {
+      vp.moveto(1000 + 0.3 + 100 * i, 1000);
+      vp.arcto(1000 + 0.3 + 100 * i, 1000, -40, 0, i % 2 == 0);
+    }
+    job.addPart(vp);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    driver.saveJob(new PrintStream(result), job);
+    String gcode = result.toString();
+    int arcs = 0;
+    for (String line : gcode.split("\n"))
+    {
+      if (line.startsWith("G2 ") || line.startsWith("G3 "))
+      {
+        arcs++;
+      }
+    }
+    assertEquals(10, arcs);
+    // the machine is moved to the exact start point before the arc
+    assertTrue(gcode.contains("G1 X"));
+  }
+
+  @Test
+  public void testShapeConverterKeepsCurves()
+  {
+    VectorPart vp = createPart();
+    new ShapeConverter().addShape(new Ellipse2D.Double(100, 100, 400, 200), vp, new GenericGcodeDriver());
+    int curves = 0;
+    for (VectorCommand cmd : vp.getNativeCommands())
+    {
+      if (cmd.getType() == VectorCommand.CmdType.CURVETO)
+      {
+        curves++;
+      }
+    }
+    assertEquals(4, curves);
+    assertEquals(100, vp.getMinX(), 1e-6);
+    assertEquals(500, vp.getMaxX(), 1e-6);
+    assertEquals(300, vp.getMaxY(), 1e-6);
+    // the ellipse is flattened when the job is sent
+    for (double[] p : points(vp.getCommands()))
+    {
+      double nx = (p[0] - 300) / 200;
+      double ny = (p[1] - 200) / 100;
+      assertEquals(1, Math.hypot(nx, ny), 0.02);
+    }
+  }
+
+  @Test
+  public void testInstancedArcs()
+  {
+    VectorPart geometry = createPart();
+    geometry.moveto(100, 0);
+    geometry.arcto(100, 0, -100, 0, true);
+    InstancedVectorPart ip = new InstancedVectorPart(geometry);
+    ip.addPlacement(AffineTransform.getRotateInstance(1));
+    // an ellipse
+    ip.addPlacement(AffineTransform.getScaleInstance(2, 1));
+    List<VectorCommand.CmdType> types = new ArrayList<>();
+    for (VectorCommand cmd : ip.getNativeCommands())
+    {
+      types.add(cmd.getType());
+    }
+    assertEquals(VectorCommand.CmdType.ARCTO, types.get(2));
+    assertTrue(types.subList(3, types.size()).contains(VectorCommand.CmdType.CURVETO));
+    assertFalse(types.subList(3, types.size()).contains(VectorCommand.CmdType.ARCTO));
+    List<double[]> points = points(ip.getCommands());
+    boolean ellipse = false;
+    for (double[] p : points)
+    {
+      double r = Math.hypot(p[0], p[1]);
+      if (Math.abs(r - 100) > 1)
+      {
+        ellipse = true;
+        assertEquals(1, Math.hypot(p[0] / 200, p[1] / 100), 0.01);
+      }
+    }
+    assertTrue(ellipse);
+  }
+
+  @Test
+  public void testOptimizerKeepsCurves()
+  {
+    VectorPart vp = createPart();
+    vp.moveto(0, 0);
+    vp.lineto(10, 0);
+    vp.curveto(20, 10, 30, 10, 40, 0);
+    vp.arcto(60, 0, 10, 0, false);
+    vp.moveto(500, 500);
+    vp.lineto(600, 500);
+    for (VectorOptimizer.OrderStrategy s : VectorOptimizer.OrderStrategy.values())
+    {
+      VectorPart result = VectorOptimizer.create(s).optimize(vp);
+      List<VectorCommand.CmdType> types = new ArrayList<>();
+      for (VectorCommand cmd : result.getNativeCommands())
+      {
+        types.add(cmd.getType());
+      }
+      assertTrue(s.toString(), types.contains(VectorCommand.CmdType.CURVETO));
+      assertTrue(s.toString(), types.contains(VectorCommand.CmdType.ARCTO));
+      assertEquals(vp.getMinY(), result.getMinY(), 1e-9);
+      assertEquals(vp.getMaxY(), result.getMaxY(), 1e-9);
+    }
+  }
+
+  @Test
+  public void testReverse()
+  {
+    VectorCommand curve = new VectorCommand(VectorCommand.CmdType.CURVETO, 20, 10, 30, 10, 40, 0);
+    VectorCommand reversed = curve.reverse(10, 0);
+    assertEquals(10, reversed.getX(), 0);
+    assertEquals(30, reversed.getX1(), 0);
+    assertEquals(20, reversed.getX2(), 0);
+    VectorCommand arc = new VectorCommand(VectorCommand.CmdType.ARCTO, 60, 0, 10, 0, false);
+    reversed = arc.reverse(40, 0);
+    assertEquals(40, reversed.getX(), 0);
+    // center (50, 0) relative to (60, 0)
+    assertEquals(-10, reversed.getI(), 0);
+    assertTrue(reversed.isClockwise());
+    assertEquals(-CurveFlattener.getSweep(40, 0, arc), CurveFlattener.getSweep(60, 0, reversed), 1e-9);
+  }
+
+  @Test
+  public void benchmark()
+  {
+    VectorPart vp = createPart();
+    int circles = 2000;
+    for (int i = 0; i < circles; i++)
+    {
+      vp.moveto(1000 + 30 * (i % 50) + 200, 1000 + 30 * (i / 50));
+      vp.arcto(1000 + 30 * (i % 50) + 200, 1000 + 30 * (i / 50), -200, 0, true);
+    }
+    long start = System.nanoTime();
+    int lines = count(vp.getCommands(false, false, 0.2));
+    long millis = (System.nanoTime() - start) / 1000000;
+    System.out.println("CurveFlattener: " + vp.getCommandCount() + " commands stored, " + lines + " after flattening in " + millis + " ms");
+    assertTrue(lines > 20 * vp.getCommandCount());
+  }
+}
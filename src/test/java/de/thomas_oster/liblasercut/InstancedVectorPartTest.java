@@ -0,0 +1,209 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.EpilogZing;
+import de.thomas_oster.liblasercut.drivers.GenericGcodeDriver;
+import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InstancedVectorPartTest
+{
+  private static VectorPart createGeometry(LaserCutter cutter)
+  {
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    vp.lineto(100, 0);
+    vp.lineto(100, 50);
+    vp.lineto(0, 0);
+    vp.moveto(20, 10);
+    vp.lineto(30, 20);
+    return vp;
+  }
+
+  private static InstancedVectorPart createGrid(VectorPart geometry, int columns, int rows)
+  {
+    InstancedVectorPart ip = new InstancedVectorPart(geometry);
+    for (int y = 0; y < rows; y++)
+    {
+      for (int x = 0; x < columns; x++)
+      {
+        ip.addPlacement(200 + 150 * x, 300 + 80 * y);
+      }
+    }
+    return ip;
+  }
+
+  /**
+   * The same geometry without instancing
+   */
+  private static VectorPart expand(VectorPart geometry, List<AffineTransform> placements)
+  {
+    VectorCommand[] commands = geometry.getCommandList();
+    VectorPart result = new VectorPart(commands[0].getProperty(), geometry.getDPI());
+    double[] p = new double[2];
+    for (AffineTransform t : placements)
+    {
+      for (VectorCommand cmd : commands)
+      {
+        if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+        {
+          continue;
+        }
+        p[0] = cmd.getX();
+        p[1] = cmd.getY();
+        t.transform(p, 0, p, 0, 1);
+        result.linetoOrMoveto(p[0], p[1], cmd.getType() == VectorCommand.CmdType.LINETO);
+      }
+    }
+    return result;
+  }
+
+  private static void assertSameCommands(VectorPart expected, VectorPart actual)
+  {
+    Iterator<VectorCommand> it = actual.getCommands().iterator();
+    int count = 0;
+    for (VectorCommand e : expected.getCommands())
+    {
+      assertTrue(it.hasNext());
+      VectorCommand a = it.next();
+      assertEquals(e.getType(), a.getType());
+      if (e.getType() == VectorCommand.CmdType.SETPROPERTY)
+      {
+        assertSame(e.getProperty(), a.getProperty());
+      }
+      else
+      {
+        assertEquals(e.getX(), a.getX(), 1e-9);
+        assertEquals(e.getY(), a.getY(), 1e-9);
+      }
+      count++;
+    }
+    assertFalse(it.hasNext());
+    assertEquals(count, actual.getCommandCount());
+  }
+
+  @Test
+  public void testCommandsAreExpanded()
+  {
+    EpilogZing cutter = new EpilogZing();
+    VectorPart geometry = createGeometry(cutter);
+    InstancedVectorPart ip = createGrid(geometry, 4, 3);
+    assertSameCommands(expand(geometry, ip.getPlacements()), ip);
+    assertEquals(ip.getCommandCount(), ip.getCommandList().length);
+  }
+
+  @Test
+  public void testPropertyChangesAreKept()
+  {
+    EpilogZing cutter = new EpilogZing();
+    VectorPart geometry = createGeometry(cutter);
+    LaserProperty other = cutter.getLaserPropertyForVectorPart();
+    geometry.setProperty(other);
+    geometry.moveto(50, 50);
+    geometry.lineto(60, 60);
+    InstancedVectorPart ip = createGrid(geometry, 2, 1);
+    int properties = 0;
+    for (VectorCommand cmd : ip.getCommands())
+    {
+      if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+      {
+        properties++;
+      }
+    }
+    // initial, other, initial again for the second copy, other
+    assertEquals(4, properties);
+    assertEquals(ip.getCommandCount(), ip.getCommandList().length);
+  }
+
+  @Test
+  public void testBoundingBoxWithRotation()
+  {
+    EpilogZing cutter = new EpilogZing();
+    VectorPart geometry = createGeometry(cutter);
+    List<AffineTransform> placements = new ArrayList<>();
+    for (int i = 0; i < 8; i++)
+    {
+      AffineTransform t = AffineTransform.getTranslateInstance(500 + 10 * i, 400);
+      t.rotate(i * Math.PI / 7);
+      placements.add(t);
+    }
+    InstancedVectorPart ip = new InstancedVectorPart(geometry, placements);
+    VectorPart expanded = expand(geometry, placements);
+    assertFalse(ip.isTranslationOnly());
+    assertEquals(expanded.getMinX(), ip.getMinX(), 1e-9);
+    assertEquals(expanded.getMinY(), ip.getMinY(), 1e-9);
+    assertEquals(expanded.getMaxX(), ip.getMaxX(), 1e-9);
+    assertEquals(expanded.getMaxY(), ip.getMaxY(), 1e-9);
+  }
+
+  @Test
+  public void testApplyStartPointMovesPlacements()
+  {
+    EpilogZing cutter = new EpilogZing();
+    VectorPart geometry = createGeometry(cutter);
+    InstancedVectorPart ip = createGrid(geometry, 2, 2);
+    double minX = ip.getMinX();
+    LaserJob job = new LaserJob("test", "test", "test");
+    job.addPart(ip);
+    job.setStartPoint(Util.px2mm(100, 500), 0);
+    job.applyStartPoint();
+    assertEquals(minX - 100, ip.getMinX(), 1e-6);
+    // the shared geometry is not changed
+    assertEquals(0, geometry.getMinX(), 0);
+  }
+
+  @Test
+  public void testEstimateJobDuration()
+  {
+    EpilogZing cutter = new EpilogZing();
+    VectorPart geometry = createGeometry(cutter);
+    InstancedVectorPart ip = createGrid(geometry, 20, 20);
+    LaserJob instanced = new LaserJob("test", "test", "test");
+    instanced.addPart(ip);
+    LaserJob expanded = new LaserJob("test", "test", "test");
+    expanded.addPart(expand(geometry, ip.getPlacements()));
+    assertEquals(cutter.estimateJobDuration(expanded), cutter.estimateJobDuration(instanced), 1);
+  }
+
+  @Test
+  public void testDriverOutputIsIdentical() throws Exception
+  {
+    GenericGcodeDriver cutter = new GenericGcodeDriver();
+    VectorPart geometry = createGeometry(cutter);
+    InstancedVectorPart ip = createGrid(geometry, 5, 5);
+    LaserJob instanced = new LaserJob("test", "test", "test");
+    instanced.addPart(ip);
+    LaserJob expanded = new LaserJob("test", "test", "test");
+    expanded.addPart(expand(geometry, ip.getPlacements()));
+    ByteArrayOutputStream a = new ByteArrayOutputStream();
+    cutter.saveJob(new PrintStream(a), expanded);
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    cutter.saveJob(new PrintStream(b), instanced);
+    assertEquals(a.toString(), b.toString());
+  }
+}
@@ -0,0 +1,250 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.AllDriversTest;
+import de.thomas_oster.liblasercut.drivers.EpilogZing;
+import de.thomas_oster.liblasercut.drivers.FullSpectrumCutter;
+import de.thomas_oster.liblasercut.drivers.LaserToolsTechnicsCutter;
+import de.thomas_oster.liblasercut.dithering.FloydSteinberg;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class JobCacheTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static JobCache.Encoder counting(AtomicInteger calls, byte[] data, String warning)
+  {
+    return warnings -> {
+      calls.incrementAndGet();
+      warnings.add(warning);
+      return data;
+    };
+  }
+
+  @Test
+  public void testHitSkipsEncoding() throws Exception
+  {
+    JobCache cache = new JobCache(1024 * 1024);
+    AtomicInteger calls = new AtomicInteger();
+    List<String> warnings = new ArrayList<>();
+    byte[] first = cache.getOrEncode("a", warnings, counting(calls, new byte[]{1, 2, 3}, "w"));
+    byte[] second = cache.getOrEncode("a", warnings, counting(calls, new byte[]{4}, "w"));
+    assertEquals(1, calls.get());
+    assertArrayEquals(new byte[]{1, 2, 3}, second);
+    assertSame(first, second);
+    // the cached warnings are reported again
+    assertEquals(Arrays.asList("w", "w"), warnings);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception
+  {
+    JobCache cache = new JobCache(2500);
+    AtomicInteger calls = new AtomicInteger();
+    cache.getOrEncode("a", null, counting(calls, new byte[1000], "a"));
+    cache.getOrEncode("b", null, counting(calls, new byte[1000], "b"));
+    // "a" becomes the most recently used entry
+    cache.getOrEncode("a", null, counting(calls, new byte[1000], "a"));
+    cache.getOrEncode("c", null, counting(calls, new byte[1000], "c"));
+    assertEquals(3, calls.get());
+    assertEquals(2, cache.size());
+    assertTrue(cache.getMemoryBytes() <= 2500);
+    cache.getOrEncode("a", null, counting(calls, new byte[1000], "a"));
+    assertEquals(3, calls.get());
+    cache.getOrEncode("b", null, counting(calls, new byte[1000], "b"));
+    assertEquals(4, calls.get());
+  }
+
+  @Test
+  public void testDiskCacheSurvivesRestart() throws Exception
+  {
+    AtomicInteger calls = new AtomicInteger();
+    JobCache cache = new JobCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+    cache.getOrEncode("a", null, counting(calls, new byte[]{42, 43}, "warning"));
+
+    JobCache restarted = new JobCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+    List<String> warnings = new ArrayList<>();
+    byte[] data = restarted.getOrEncode("a", warnings, counting(calls, new byte[0], "other"));
+    assertEquals(1, calls.get());
+    assertArrayEquals(new byte[]{42, 43}, data);
+    assertEquals(Arrays.asList("warning"), warnings);
+    assertEquals(1, restarted.getDiskHits());
+  }
+
+  @Test
+  public void testFingerprintChanges() throws Exception
+  {
+    EpilogZing cutter = new EpilogZing();
+    AllDriversTest t = new AllDriversTest();
+    String fingerprint = JobFingerprint.of(t.generateDummyJob(cutter, false), cutter);
+    assertEquals(fingerprint, JobFingerprint.of(t.generateDummyJob(cutter, false), cutter));
+
+    LaserJob moved = t.generateDummyJob(cutter, false);
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(1, 1);
+    vp.lineto(2, 2);
+    moved.addPart(vp);
+    assertNotEquals(fingerprint, JobFingerprint.of(moved, cutter));
+
+    EpilogZing other = new EpilogZing();
+    other.setHostname("192.168.1.2");
+    assertNotEquals(fingerprint, JobFingerprint.of(t.generateDummyJob(other, false), other));
+  }
+
+  @Test
+  public void testUnknownPartIsNotCached() throws Exception
+  {
+    EpilogZing cutter = new EpilogZing();
+    LaserJob job = new AllDriversTest().generateDummyJob(cutter, false);
+    job.addPart(new JobPart()
+    {
+      public double getDPI() { return 500; }
+      public double getMinX() { return 0; }
+      public double getMinY() { return 0; }
+      public double getMaxX() { return 0; }
+      public double getMaxY() { return 0; }
+      public boolean isEmpty() { return true; }
+    });
+    assertNull(JobFingerprint.of(job, cutter));
+  }
+
+  @Test
+  public void testUnknownSettingIsNotCached() throws Exception
+  {
+    EpilogZing cutter = new EpilogZing()
+    {
+      @Override
+      public String[] getPropertyKeys()
+      {
+        String[] keys = Arrays.copyOf(super.getPropertyKeys(), super.getPropertyKeys().length + 1);
+        keys[keys.length - 1] = "Something";
+        return keys;
+      }
+
+      @Override
+      public Object getProperty(String attribute)
+      {
+        return "Something".equals(attribute) ? new Object() : super.getProperty(attribute);
+      }
+    };
+    assertNull(JobFingerprint.of(new AllDriversTest().generateDummyJob(cutter, false), cutter));
+    JobCache cache = new JobCache(16 * 1024 * 1024);
+    cutter.setJobCache(cache);
+    assertArrayEquals(save(cutter), save(cutter));
+    assertEquals(0, cache.getHits());
+  }
+
+  private static LaserJob ditheredJob(LaserCutter cutter, LazyDitheredRaster image)
+  {
+    LaserJob job = new LaserJob("dithered", "dithered", "test");
+    job.addPart(new RasterPart(image, cutter.getLaserPropertyForRasterPart(), new Point(0, 0), 500));
+    return job;
+  }
+
+  @Test
+  public void testLazyDitheredRasterIsNotDithered()
+  {
+    EpilogZing cutter = new EpilogZing();
+    GreyRaster grey = new GreyRaster(100, 100);
+    for (int y = 0; y < 100; y++)
+    {
+      for (int x = 0; x < 100; x++)
+      {
+        grey.setGreyScale(x, y, 2 * x + y / 2);
+      }
+    }
+    LazyDitheredRaster image = new LazyDitheredRaster(grey, new FloydSteinberg());
+    String fingerprint = JobFingerprint.of(ditheredJob(cutter, image), cutter);
+    assertNotNull(fingerprint);
+    assertEquals(0, image.getRowsDithered());
+    assertEquals(fingerprint, JobFingerprint.of(ditheredJob(cutter, new LazyDitheredRaster(grey, new FloydSteinberg())), cutter));
+
+    FloydSteinberg serpentine = new FloydSteinberg();
+    serpentine.setProperty(serpentine.getPropertyKeys()[0], true);
+    assertNotEquals(fingerprint, JobFingerprint.of(ditheredJob(cutter, new LazyDitheredRaster(grey, serpentine)), cutter));
+    assertNotEquals(fingerprint, JobFingerprint.of(ditheredJob(cutter, new LazyDitheredRaster(grey, new FloydSteinberg(), true)), cutter));
+    grey.setGreyScale(50, 50, 0);
+    assertNotEquals(fingerprint, JobFingerprint.of(ditheredJob(cutter, new LazyDitheredRaster(grey, new FloydSteinberg())), cutter));
+  }
+
+  private static byte[] save(LaserCutter cutter) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cutter.saveJob(out, new AllDriversTest().generateDummyJob(cutter, false));
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testCachedOutputIsIdentical() throws Exception
+  {
+    for (LaserCutter cutter : new LaserCutter[]{new EpilogZing(), new LaserToolsTechnicsCutter(), new FullSpectrumCutter()})
+    {
+      byte[] expected = save(cutter);
+      JobCache cache = new JobCache(16 * 1024 * 1024);
+      cutter.setJobCache(cache);
+      assertArrayEquals(cutter.getModelName(), expected, save(cutter));
+      assertArrayEquals(cutter.getModelName(), expected, save(cutter));
+      assertEquals(cutter.getModelName(), 1, cache.getHits());
+    }
+  }
+
+  @Test
+  public void testOptimizedVectorPartIsCached()
+  {
+    JobCache cache = new JobCache(1024 * 1024);
+    EpilogZing cutter = new EpilogZing();
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    for (int i = 0; i < 20; i++)
+    {
+      vp.moveto(1000 - 10 * i, i);
+      vp.lineto(1000 - 10 * i, i + 5);
+    }
+    VectorOptimizer optimizer = VectorOptimizer.create(VectorOptimizer.OrderStrategy.NEAREST);
+    VectorPart first = cache.optimize(optimizer, vp);
+    VectorPart second = cache.optimize(optimizer, vp);
+    assertNotSame(first, second);
+    assertEquals(1, cache.getHits());
+    assertEquals(first.getCommandList().length, second.getCommandList().length);
+    for (int i = 0; i < first.getCommandList().length; i++)
+    {
+      VectorCommand a = first.getCommandList()[i];
+      VectorCommand b = second.getCommandList()[i];
+      assertEquals(a.getType(), b.getType());
+      if (a.getType() != VectorCommand.CmdType.SETPROPERTY)
+      {
+        assertEquals(a.getX(), b.getX(), 0);
+        assertEquals(a.getY(), b.getY(), 0);
+      }
+    }
+  }
+}
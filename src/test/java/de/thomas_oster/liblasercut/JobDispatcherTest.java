@@ -0,0 +1,168 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.Dummy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JobDispatcherTest
+{
+  private static final String SETTING_RUNTIME = "Fake estimated run-time in seconds (-1 to disable)";
+
+  private static List<Dummy> createCutters(int count, int runtime)
+  {
+    List<Dummy> result = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+    {
+      Dummy d = new Dummy();
+      d.setProperty(SETTING_RUNTIME, runtime);
+      result.add(d);
+    }
+    return result;
+  }
+
+  private static LaserJob createJob(LaserCutter cutter, String name)
+  {
+    LaserJob job = new LaserJob(name, name, "test");
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    vp.lineto(100, 100);
+    job.addPart(vp);
+    return job;
+  }
+
+  /**
+   * Keeps the job running until the latch is counted down
+   */
+  private static ProgressListener waitFor(CountDownLatch latch)
+  {
+    return new ProgressListenerDummy()
+    {
+      @Override
+      public void taskChanged(Object source, String taskName)
+      {
+        if ("checking job".equals(taskName))
+        {
+          try
+          {
+            latch.await();
+          }
+          catch (InterruptedException e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    };
+  }
+
+  private static int[] assigned(JobDispatcher d)
+  {
+    return d.getStatistics().stream().mapToInt(JobDispatcher.CutterStatistics::getAssignedJobs).toArray();
+  }
+
+  @Test(timeout = 10000)
+  public void testDistribution() throws Exception
+  {
+    List<Dummy> cutters = createCutters(3, 60);
+    JobDispatcher d = new JobDispatcher(cutters);
+    CountDownLatch release = new CountDownLatch(1);
+    List<CompletableFuture<List<String>>> jobs = new ArrayList<>();
+    for (int i = 0; i < 7; i++)
+    {
+      jobs.add(d.dispatch(createJob(cutters.get(0), "job" + i), 0, waitFor(release)));
+    }
+    assertArrayEquals(new int[]{3, 2, 2}, assigned(d));
+    List<JobDispatcher.CutterStatistics> stats = d.getStatistics();
+    assertEquals(180, stats.get(0).getPendingSeconds());
+    assertEquals(120, stats.get(1).getEstimatedSeconds());
+    release.countDown();
+    CompletableFuture.allOf(jobs.toArray(new CompletableFuture[0])).get();
+    int completed = 0;
+    for (JobDispatcher.CutterStatistics s : d.getStatistics())
+    {
+      assertEquals(0, s.getPendingSeconds());
+      assertEquals(0, s.getFailedJobs());
+      assertTrue(s.getUtilisation() >= 0 && s.getUtilisation() <= 1);
+      completed += s.getCompletedJobs();
+    }
+    assertEquals(7, completed);
+    assertTrue(d.getThroughput() > 0);
+  }
+
+  @Test(timeout = 10000)
+  public void testEarliestCompletion() throws Exception
+  {
+    List<Dummy> cutters = createCutters(2, 60);
+    JobDispatcher d = new JobDispatcher(cutters);
+    CountDownLatch first = new CountDownLatch(1);
+    CountDownLatch second = new CountDownLatch(1);
+    CompletableFuture<List<String>> job1 = d.dispatch(createJob(cutters.get(0), "job1"), 0, waitFor(first));
+    CompletableFuture<List<String>> job2 = d.dispatch(createJob(cutters.get(0), "job2"), 0, waitFor(second));
+    assertArrayEquals(new int[]{1, 1}, assigned(d));
+    first.countDown();
+    job1.get();
+    // the first cutter is idle now, the second one is still busy
+    CompletableFuture<List<String>> job3 = d.dispatch(createJob(cutters.get(0), "job3"));
+    job3.get();
+    assertArrayEquals(new int[]{2, 1}, assigned(d));
+    second.countDown();
+    job2.get();
+  }
+
+  @Test(timeout = 10000)
+  public void testEstimatesAreCached() throws Exception
+  {
+    List<Dummy> cutters = createCutters(2, 42);
+    JobDispatcher d = new JobDispatcher(cutters);
+    List<LaserJob> jobs = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+    {
+      jobs.add(createJob(cutters.get(0), "job" + i));
+    }
+    CompletableFuture<Integer> estimate = d.estimate(jobs.get(0));
+    assertSame(estimate, d.estimate(jobs.get(0)));
+    assertEquals(42, (int) estimate.get());
+    List<CompletableFuture<List<String>>> results = d.dispatchAll(jobs);
+    CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get();
+    assertEquals(4 * 42, d.getStatistics().stream().mapToLong(JobDispatcher.CutterStatistics::getEstimatedSeconds).sum());
+  }
+
+  @Test(timeout = 10000)
+  public void testWithoutEstimates() throws Exception
+  {
+    List<Dummy> cutters = createCutters(2, -1);
+    JobDispatcher d = new JobDispatcher(cutters);
+    CountDownLatch release = new CountDownLatch(1);
+    List<CompletableFuture<List<String>>> jobs = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+    {
+      jobs.add(d.dispatch(createJob(cutters.get(0), "job" + i), 0, waitFor(release)));
+    }
+    assertEquals(-1, (int) d.estimate(createJob(cutters.get(0), "other")).get());
+    assertArrayEquals(new int[]{2, 2}, assigned(d));
+    release.countDown();
+    CompletableFuture.allOf(jobs.toArray(new CompletableFuture[0])).get();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.Dummy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JobQueueTest
+{
+  private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch blocking = new CountDownLatch(1);
+
+  private LaserJob createJob(Dummy cutter, String name, int lines)
+  {
+    LaserJob job = new LaserJob(name, name, "test");
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    for (int i = 0; i < lines; i++)
+    {
+      vp.lineto(i % 100, i % 50);
+    }
+    job.addPart(vp);
+    return job;
+  }
+
+  /**
+   * Records the start of the job
+   */
+  private ProgressListener listener(String name)
+  {
+    return new ProgressListenerDummy()
+    {
+      @Override
+      public void taskChanged(Object source, String taskName)
+      {
+        if ("checking job".equals(taskName))
+        {
+          started.add(name);
+        }
+      }
+    };
+  }
+
+  /**
+   * Keeps the queue busy until release is counted down
+   */
+  private ProgressListener blockingListener(String name)
+  {
+    return new ProgressListenerDummy()
+    {
+      @Override
+      public void taskChanged(Object source, String taskName)
+      {
+        if ("checking job".equals(taskName))
+        {
+          started.add(name);
+          blocking.countDown();
+          try
+          {
+            release.await();
+          }
+          catch (InterruptedException e)
+          {
+            throw new RuntimeException("interrupted", e);
+          }
+        }
+      }
+    };
+  }
+
+  @Test(timeout = 10000)
+  public void testPriorities() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    CompletableFuture<List<String>> first = cutter.submitJob(createJob(cutter, "first", 1), 0, blockingListener("first"));
+    blocking.await();
+    CompletableFuture<List<String>> low = cutter.submitJob(createJob(cutter, "low", 1), -1, listener("low"));
+    CompletableFuture<List<String>> high = cutter.submitJob(createJob(cutter, "high", 1), 10, listener("high"));
+    CompletableFuture<List<String>> normal1 = cutter.submitJob(createJob(cutter, "normal1", 1), 0, listener("normal1"));
+    CompletableFuture<List<String>> normal2 = cutter.submitJob(createJob(cutter, "normal2", 1), 0, listener("normal2"));
+    assertEquals(5, cutter.getJobQueue().size());
+    release.countDown();
+    CompletableFuture.allOf(first, low, high, normal1, normal2).get();
+    assertEquals(List.of("first", "high", "normal1", "normal2", "low"), started);
+    assertEquals(0, cutter.getJobQueue().size());
+    assertEquals(0, cutter.getJobQueue().getQueuedBytes());
+  }
+
+  @Test(timeout = 10000)
+  public void testCancel() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    CompletableFuture<List<String>> running = cutter.submitJob(createJob(cutter, "running", 1), 0, blockingListener("running"));
+    blocking.await();
+    CompletableFuture<List<String>> waiting = cutter.submitJob(createJob(cutter, "waiting", 1), 0, listener("waiting"));
+    CompletableFuture<List<String>> next = cutter.submitJob(createJob(cutter, "next", 1), 0, listener("next"));
+    assertTrue(waiting.cancel(true));
+    // interrupts the blocking listener
+    assertTrue(running.cancel(true));
+    next.get(5, TimeUnit.SECONDS);
+    assertEquals(List.of("running", "next"), started);
+    try
+    {
+      waiting.get();
+      fail("cancelled job completed");
+    }
+    catch (CancellationException e)
+    {
+      // expected
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCancelWaitsForDriver() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    ProgressListener ignoresInterrupt = new ProgressListenerDummy()
+    {
+      @Override
+      public void taskChanged(Object source, String taskName)
+      {
+        if ("checking job".equals(taskName))
+        {
+          blocking.countDown();
+          while (release.getCount() > 0)
+          {
+            try
+            {
+              release.await();
+            }
+            catch (InterruptedException e)
+            {
+              // e.g. a driver in a blocking write
+            }
+          }
+        }
+      }
+    };
+    CompletableFuture<List<String>> running = cutter.submitJob(createJob(cutter, "running", 1), 0, ignoresInterrupt);
+    blocking.await();
+    assertTrue(running.cancel(true));
+    Thread.sleep(100);
+    assertFalse("completed while the driver was still sending", running.isDone());
+    assertEquals(1, cutter.getJobQueue().size());
+    release.countDown();
+    try
+    {
+      running.get();
+      fail("cancelled job completed");
+    }
+    catch (CancellationException e)
+    {
+      // expected
+    }
+    assertTrue(running.isCancelled());
+  }
+
+  @Test(timeout = 10000)
+  public void testManyCutters() throws Exception
+  {
+    int cutters = 8;
+    CountDownLatch allStarted = new CountDownLatch(cutters);
+    List<CompletableFuture<List<String>>> jobs = new ArrayList<>();
+    for (int i = 0; i < cutters; i++)
+    {
+      Dummy cutter = new Dummy();
+      jobs.add(cutter.submitJob(createJob(cutter, "job" + i, 1), 0, new ProgressListenerDummy()
+      {
+        @Override
+        public void taskChanged(Object source, String taskName)
+        {
+          if ("checking job".equals(taskName))
+          {
+            allStarted.countDown();
+            try
+            {
+              release.await();
+            }
+            catch (InterruptedException e)
+            {
+              throw new RuntimeException("interrupted", e);
+            }
+          }
+        }
+      }));
+    }
+    // every cutter is sending while the others are still busy
+    assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    CompletableFuture.allOf(jobs.toArray(new CompletableFuture[0])).get();
+  }
+
+  @Test(timeout = 10000)
+  public void testResubmitCancelledJob() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    LaserJob job = createJob(cutter, "again", 1);
+    // e.g. a previous send was cancelled
+    job.getCancellationToken().cancel();
+    cutter.submitJob(job, 0, listener("again")).get(5, TimeUnit.SECONDS);
+    assertFalse(job.getCancellationToken().isCancelled());
+  }
+
+  @Test(timeout = 10000)
+  public void testMemoryLimit() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    LaserJob big = createJob(cutter, "big", 10000);
+    cutter.getJobQueue().setMaxQueuedBytes(JobQueue.estimateSize(big) + 1000);
+    CompletableFuture<List<String>> running = cutter.submitJob(createJob(cutter, "running", 1), 0, blockingListener("running"));
+    blocking.await();
+    // the job which is being sent does not count
+    CompletableFuture<List<String>> accepted = cutter.submitJob(big, 0, listener("big"));
+    CompletableFuture<List<String>> rejected = cutter.submitJob(createJob(cutter, "rejected", 10000), 0, listener("rejected"));
+    CompletableFuture<List<String>> small = cutter.submitJob(createJob(cutter, "small", 1), 0, listener("small"));
+    assertTrue(rejected.isCompletedExceptionally());
+    release.countDown();
+    CompletableFuture.allOf(running, accepted, small).get();
+    try
+    {
+      rejected.get();
+      fail("job was not rejected");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertEquals(List.of("running", "big", "small"), started);
+  }
+
+  @Test(timeout = 10000)
+  public void testErrorsAreReported() throws Exception
+  {
+    Dummy cutter = new Dummy();
+    LaserJob job = new LaserJob("wrong", "wrong", "test");
+    job.addPart(new VectorPart(cutter.getLaserPropertyForVectorPart(), 123));
+    try
+    {
+      cutter.submitJob(job).get();
+      fail("job with unsupported resolution was sent");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof IllegalJobException);
+    }
+  }
+}
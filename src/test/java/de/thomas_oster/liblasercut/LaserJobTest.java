@@ -0,0 +1,85 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.drivers.EpilogZing;
+import de.thomas_oster.liblasercut.platform.Util;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LaserJobTest
+{
+  private static LaserJob createJob(VectorPart vp)
+  {
+    LaserJob job = new LaserJob("test", "test", "test");
+    job.addPart(vp);
+    return job;
+  }
+
+  @Test
+  public void testApplyStartPointIsExact()
+  {
+    VectorPart vp = new VectorPart(new EpilogZing().getLaserPropertyForVectorPart(), 500);
+    vp.moveto(100, 200);
+    vp.lineto(300.25, 400.75);
+    VectorCommand[] original = vp.getCommandList();
+    LaserJob job = createJob(vp);
+    // 10.3 dots, not a whole number
+    job.setStartPoint(Util.px2mm(10.3, 500), Util.px2mm(20.6, 500));
+    job.applyStartPoint();
+
+    VectorCommand[] moved = vp.getCommandList();
+    assertEquals(89.7, moved[1].getX(), 1e-9);
+    assertEquals(179.4, moved[1].getY(), 1e-9);
+    assertEquals(289.95, moved[2].getX(), 1e-9);
+    assertEquals(380.15, moved[2].getY(), 1e-9);
+    assertEquals(89.7, vp.getMinX(), 1e-9);
+    assertEquals(380.15, vp.getMaxY(), 1e-9);
+    // the stored commands are not changed
+    assertEquals(100, original[1].getX(), 0);
+    assertEquals(300.25, original[2].getX(), 0);
+
+    // calling it again has no effect
+    job.applyStartPoint();
+    assertEquals(89.7, vp.getCommandList()[1].getX(), 1e-9);
+    assertEquals(-Util.px2mm(10.3, 500), job.getTransformedOriginX(), 1e-9);
+  }
+
+  @Test
+  public void testCommandsAddedAfterTranslateAreNotMoved()
+  {
+    VectorPart vp = new VectorPart(new EpilogZing().getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    vp.translate(5, -5);
+    vp.lineto(20, 10);
+    vp.translate(1, 1);
+    VectorCommand[] cmds = vp.getCommandList();
+    assertEquals(6, cmds[1].getX(), 0);
+    assertEquals(-4, cmds[1].getY(), 0);
+    assertEquals(21, cmds[2].getX(), 0);
+    assertEquals(11, cmds[2].getY(), 0);
+    // reading does not change the part
+    assertEquals(21, vp.getCommandList()[2].getX(), 0);
+    vp.lineto(30, 30);
+    assertEquals(30, vp.getCommandList()[3].getX(), 0);
+    assertEquals(6, vp.getMinX(), 0);
+    assertEquals(30, vp.getMaxX(), 0);
+    assertEquals(-4, vp.getMinY(), 0);
+  }
+}
@@ -0,0 +1,276 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.dithering.ErrorDiffusion;
+import de.thomas_oster.liblasercut.dithering.FloydSteinberg;
+import de.thomas_oster.liblasercut.dithering.JarvisJudiceNinke;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LazyDitheredRasterTest
+{
+  private static final int WIDTH = 203;
+  private static final int HEIGHT = 301;
+
+  private static GreyRaster testImage()
+  {
+    GreyRaster result = new GreyRaster(WIDTH, HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+    {
+      for (int x = 0; x < WIDTH; x++)
+      {
+        int grey = (255 * x) / WIDTH;
+        int dx = x - WIDTH / 2;
+        int dy = y - HEIGHT / 2;
+        if (dx * dx + dy * dy < 80 * 80)
+        {
+          grey = (255 * y) / HEIGHT;
+        }
+        else if (y < 20 || y > HEIGHT - 30)
+        {
+          // blank lines
+          grey = 255;
+        }
+        result.setGreyScale(x, y, grey);
+      }
+    }
+    return result;
+  }
+
+  private static GreyRaster flip(GreyscaleRaster image)
+  {
+    GreyRaster result = new GreyRaster(image.getWidth(), image.getHeight());
+    for (int y = 0; y < image.getHeight(); y++)
+    {
+      for (int x = 0; x < image.getWidth(); x++)
+      {
+        result.setGreyScale(x, image.getHeight() - 1 - y, image.getGreyScale(x, y));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The dithered image as dithered by the algorithm in advance
+   */
+  private static BlackWhiteRaster reference(ErrorDiffusion algorithm, boolean bottomUp) throws InterruptedException
+  {
+    if (!bottomUp)
+    {
+      return algorithm.clone().dither(testImage());
+    }
+    BlackWhiteRaster flipped = algorithm.clone().dither(flip(testImage()));
+    BlackWhiteRaster result = new BlackWhiteRaster(WIDTH, HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+    {
+      result.setBlackRow(HEIGHT - 1 - y, flipped.getRasterLine(y, null));
+    }
+    return result;
+  }
+
+  private static void assertRow(BlackWhiteRaster expected, LazyDitheredRaster lazy, int y)
+  {
+    assertArrayEquals("row " + y, expected.getRasterLine(y, null), lazy.getRasterLine(y, null));
+  }
+
+  @Test
+  public void testTopDown() throws InterruptedException
+  {
+    BlackWhiteRaster expected = reference(new JarvisJudiceNinke(), false);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new JarvisJudiceNinke());
+    for (int y = 0; y < HEIGHT; y++)
+    {
+      assertRow(expected, lazy, y);
+      // look at the previous and next row, like the drivers do
+      if (y > 0)
+      {
+        assertRow(expected, lazy, y - 1);
+      }
+      if (y + 1 < HEIGHT)
+      {
+        assertRow(expected, lazy, y + 1);
+      }
+    }
+    assertEquals(HEIGHT, lazy.getRowsDithered());
+  }
+
+  @Test
+  public void testBottomUp() throws InterruptedException
+  {
+    BlackWhiteRaster expected = reference(new FloydSteinberg(), true);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new FloydSteinberg(), true);
+    for (int y = HEIGHT - 1; y >= 0; y--)
+    {
+      assertRow(expected, lazy, y);
+    }
+    assertEquals(HEIGHT, lazy.getRowsDithered());
+  }
+
+  @Test
+  public void testOtherDirection() throws InterruptedException
+  {
+    BlackWhiteRaster expected = reference(new FloydSteinberg(), false);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new FloydSteinberg());
+    for (int y = HEIGHT - 1; y >= 0; y--)
+    {
+      assertRow(expected, lazy, y);
+    }
+    // once to the end, then every block again
+    assertTrue(lazy.getRowsDithered() <= 2 * HEIGHT);
+    // second pass
+    for (int y = 0; y < HEIGHT; y++)
+    {
+      assertRow(expected, lazy, y);
+    }
+  }
+
+  @Test
+  public void testBottomUpIsNotTheEagerResult() throws InterruptedException
+  {
+    BlackWhiteRaster eager = new FloydSteinberg().dither(testImage());
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new FloydSteinberg(), true);
+    boolean different = false;
+    for (int y = 0; y < HEIGHT; y++)
+    {
+      different |= !Arrays.equals(eager.getRasterLine(y, null), lazy.getRasterLine(y, null));
+    }
+    assertTrue(different);
+  }
+
+  @Test
+  public void testCheckpointsAreBounded() throws InterruptedException
+  {
+    int height = 64 * 100;
+    GreyRaster image = new GreyRaster(40, height);
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < 40; x++)
+      {
+        image.setGreyScale(x, y, (x * 6 + y) % 256);
+      }
+    }
+    BlackWhiteRaster expected = new FloydSteinberg().dither(image);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(image, new FloydSteinberg());
+    for (int y = 0; y < height; y++)
+    {
+      assertArrayEquals("row " + y, expected.getRasterLine(y, null), lazy.getRasterLine(y, null));
+    }
+    assertEquals(height, lazy.getRowsDithered());
+    for (int y = height - 1; y >= 0; y--)
+    {
+      assertArrayEquals("row " + y, expected.getRasterLine(y, null), lazy.getRasterLine(y, null));
+      assertTrue(lazy.getCheckpointCount() <= 16);
+    }
+    // the checkpoints get sparse away from the read position, so going
+    // back costs more than with a checkpoint for every block, but not
+    // a pass from the first row for every block
+    assertTrue(String.valueOf(lazy.getRowsDithered()), lazy.getRowsDithered() < 4 * height);
+  }
+
+  @Test
+  public void testRandomAccess() throws InterruptedException
+  {
+    BlackWhiteRaster expected = reference(new JarvisJudiceNinke(), true);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new JarvisJudiceNinke(), true);
+    java.util.Random r = new java.util.Random(1);
+    for (int i = 0; i < 1000; i++)
+    {
+      int x = r.nextInt(WIDTH);
+      int y = r.nextInt(HEIGHT);
+      assertEquals(expected.isBlack(x, y), lazy.isBlack(x, y));
+      assertEquals(expected.getGreyScale(x, y), lazy.getGreyScale(x, y));
+    }
+  }
+
+  private static List<String> build(RasterBuilder.PixelSource source)
+  {
+    List<String> result = new ArrayList<>();
+    RasterBuilder builder = new RasterBuilder(source, (properties, pixel) -> result.add("pixel " + pixel), 0, 0, 2);
+    for (VectorCommand cmd : builder)
+    {
+      result.add(cmd.getType() == VectorCommand.CmdType.SETPROPERTY ? "property" : cmd.getType() + " " + cmd.getX() + " " + cmd.getY());
+    }
+    return result;
+  }
+
+  @Test
+  public void testRasterBuilder() throws InterruptedException
+  {
+    BlackWhiteRaster expected = reference(new FloydSteinberg(), false);
+    LazyDitheredRaster lazy = new LazyDitheredRaster(testImage(), new FloydSteinberg());
+    assertEquals(build(expected.getRaster()), build(lazy));
+    assertTrue(lazy.getRowsDithered() <= 2 * HEIGHT);
+  }
+
+  /**
+   * Every driver must produce the same output for a lazily dithered image
+   * as for the image dithered in advance
+   */
+  @Test
+  public void testDrivers() throws Exception
+  {
+    for (Class<? extends LaserCutter> c : LibInfo.getSupportedDrivers())
+    {
+      for (boolean bottomUp : new boolean[]{false, true})
+      {
+        byte[][] results = new byte[2][];
+        for (int i = 0; i < 2; i++)
+        {
+          LaserCutter lc = c.getDeclaredConstructor().newInstance();
+          LaserProperty prop = lc.getLaserPropertyForRasterPart();
+          if (bottomUp && !Arrays.asList(prop.getPropertyKeys()).contains("bottom up"))
+          {
+            continue;
+          }
+          if (bottomUp)
+          {
+            prop.setProperty("bottom up", true);
+          }
+          double dpi = lc.getResolutions().get(lc.getResolutions().size() - 1);
+          GreyscaleRaster image = i == 0 ? reference(new FloydSteinberg(), bottomUp) : new LazyDitheredRaster(testImage(), new FloydSteinberg(), bottomUp);
+          LaserJob job = new LaserJob("test", "lazy", "test");
+          job.addPart(new RasterPart(image, prop, new Point(13, 37), dpi));
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          try
+          {
+            lc.saveJob(new PrintStream(out), job);
+          }
+          catch (UnsupportedOperationException | IllegalJobException e)
+          {
+            // driver cannot save jobs, or the image is too large for it
+            break;
+          }
+          results[i] = out.toByteArray();
+        }
+        if (results[0] != null)
+        {
+          assertArrayEquals(c.getSimpleName() + (bottomUp ? " bottom up" : ""), results[0], results[1]);
+        }
+      }
+    }
+  }
+}
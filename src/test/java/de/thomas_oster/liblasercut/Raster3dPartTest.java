@@ -0,0 +1,118 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.properties.AbstractLaserProperty;
+import de.thomas_oster.liblasercut.properties.LaserProperty;
+import de.thomas_oster.liblasercut.properties.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.utils.BufferedImageAdapter;
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class Raster3dPartTest
+{
+  private static Raster3dPart createPart(LaserProperty property)
+  {
+    BufferedImage img = new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY);
+    return new Raster3dPart(new BufferedImageAdapter(img), property, new Point(0, 0), 500);
+  }
+
+  private static PowerSpeedFocusProperty createProperty(int power)
+  {
+    PowerSpeedFocusProperty p = new PowerSpeedFocusProperty();
+    p.setPower(power);
+    p.setSpeed(50);
+    return p;
+  }
+
+  @Test
+  public void testPowerForColor()
+  {
+    Raster3dPart part = createPart(createProperty(80));
+    assertEquals(80, part.getPowerSpeedFocusPropertyForColor(0).getPower(), 0);
+    assertEquals(40, part.getPowerSpeedFocusPropertyForColor(127).getPower(), 0);
+    assertEquals(0, part.getPowerSpeedFocusPropertyForColor(255).getPower(), 0);
+    assertEquals(50, part.getPowerSpeedFocusPropertyForColor(127).getSpeed(), 0);
+  }
+
+  @Test
+  public void testEqualPropertiesAreShared()
+  {
+    Raster3dPart a = createPart(createProperty(80));
+    Raster3dPart b = createPart(createProperty(80));
+    assertSame(a.getSharedPropertyForColor(10), a.getSharedPropertyForColor(10));
+    assertSame(a.getSharedPropertyForColor(10), b.getSharedPropertyForColor(10));
+    // 254 and 255 both round down to 0%
+    assertSame(a.getSharedPropertyForColor(254), a.getSharedPropertyForColor(255));
+  }
+
+  @Test
+  public void testReturnedPropertyIsNotShared()
+  {
+    Raster3dPart a = createPart(createProperty(80));
+    Raster3dPart b = createPart(createProperty(80));
+    LaserProperty p = a.getPowerSpeedFocusPropertyForColor(0);
+    assertNotSame(p, a.getSharedPropertyForColor(0));
+    p.setPower(10);
+    assertEquals(80, a.getPowerSpeedFocusPropertyForColor(0).getPower(), 0);
+    assertEquals(80, b.getPowerSpeedFocusPropertyForColor(0).getPower(), 0);
+  }
+
+  @Test
+  public void testChangedPropertyIsUsed()
+  {
+    PowerSpeedFocusProperty property = createProperty(80);
+    Raster3dPart part = createPart(property);
+    assertEquals(80, part.getPowerSpeedFocusPropertyForColor(0).getPower(), 0);
+    property.setPower(60);
+    assertEquals(60, part.getPowerSpeedFocusPropertyForColor(0).getPower(), 0);
+  }
+
+  @Test
+  public void testSetPropertyUpdatesSharedProperties()
+  {
+    PowerSpeedFocusProperty property = createProperty(80);
+    Raster3dPart part = createPart(property);
+    assertEquals(80, part.getSharedPropertyForColor(0).getPower(), 0);
+    property.setPower(60);
+    part.setLaserProperty(property);
+    assertEquals(60, part.getSharedPropertyForColor(0).getPower(), 0);
+    part.setLaserProperty(createProperty(40));
+    assertEquals(40, part.getSharedPropertyForColor(0).getPower(), 0);
+    assertEquals(20, part.getSharedPropertyForColor(127).getPower(), 0);
+  }
+
+  @Test
+  public void testAbstractLaserPropertyHashIsUpdated()
+  {
+    AbstractLaserProperty a = new AbstractLaserProperty();
+    a.addProperty("power", 10f);
+    AbstractLaserProperty b = (AbstractLaserProperty) a.clone();
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    b.setProperty("power", 20f);
+    assertNotEquals(a, b);
+    assertNotEquals(a.hashCode(), b.hashCode());
+    b.setNumeric("power", 10);
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+  }
+}
@@ -0,0 +1,236 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.dithering;
+
+import de.thomas_oster.liblasercut.BlackWhiteRaster;
+import de.thomas_oster.liblasercut.GreyRaster;
+import de.thomas_oster.liblasercut.GreyscaleRaster;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ErrorDiffusionTest
+{
+  private static final DitheringAlgorithm[] ALGORITHMS = new DitheringAlgorithm[]{
+    new FloydSteinberg(), new JarvisJudiceNinke(), new Stucki(), new Atkinson(), new Sierra(), new Burkes()
+  };
+
+  /**
+   * Reference output of the test image (CRC32 of the raster data),
+   * in the order of ALGORITHMS
+   */
+  private static final long[] CHECKSUMS = new long[]{
+    0xbeca56baL, 0x646b6b0bL, 0x17e12e67L, 0xcc5f6531L, 0x9f4d84d0L, 0x8fcac61L
+  };
+
+  /**
+   * Deterministic test image with gradients, a circle and hard edges
+   */
+  private static GreyRaster testImage(int width, int height)
+  {
+    GreyRaster result = new GreyRaster(width, height);
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        int grey = (255 * x) / width;
+        int dx = x - width / 2;
+        int dy = y - height / 2;
+        if (dx * dx + dy * dy < height * height / 9)
+        {
+          grey = (255 * y) / height;
+        }
+        else if ((x / 16 + y / 16) % 5 == 0)
+        {
+          grey = 255 - grey;
+        }
+        result.setGreyScale(x, y, grey);
+      }
+    }
+    return result;
+  }
+
+  private static GreyRaster uniform(int width, int height, int grey)
+  {
+    GreyRaster result = new GreyRaster(width, height);
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        result.setGreyScale(x, y, grey);
+      }
+    }
+    return result;
+  }
+
+  private static long checksum(BlackWhiteRaster raster)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(raster.getRaster().getImageData());
+    return crc.getValue();
+  }
+
+  @Test
+  public void testChecksums() throws InterruptedException
+  {
+    for (int i = 0; i < ALGORITHMS.length; i++)
+    {
+      BlackWhiteRaster result = ALGORITHMS[i].clone().dither(testImage(203, 157));
+      assertEquals(ALGORITHMS[i].toString(), CHECKSUMS[i], checksum(result));
+    }
+  }
+
+  /**
+   * The Floyd-Steinberg implementation before the table-driven engine
+   */
+  private static boolean[][] classicFloydSteinberg(GreyscaleRaster src)
+  {
+    int width = src.getWidth();
+    int height = src.getHeight();
+    boolean[][] result = new boolean[height][width];
+    int[][] input = new int[width][2];
+    for (int x = 0; x < width; x++)
+    {
+      input[x][1] = src.getGreyScale(x, 0);
+    }
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        input[x][0] = input[x][1];
+        if (y + 1 < height)
+        {
+          input[x][1] = src.getGreyScale(x, y + 1);
+        }
+      }
+      for (int x = 0; x < width; x++)
+      {
+        result[y][x] = input[x][0] <= 127;
+        int error = input[x][0] - ((input[x][0] <= 127) ? 0 : 255);
+        if (x + 1 < width)
+        {
+          input[x + 1][0] = input[x + 1][0] + 7 * error / 16;
+          if (y + 1 < height)
+          {
+            input[x + 1][1] = input[x + 1][1] + 1 * error / 16;
+          }
+        }
+        if (y + 1 < height)
+        {
+          input[x][1] = input[x][1] + 5 * error / 16;
+          if (x > 0)
+          {
+            input[x - 1][1] = input[x - 1][1] + 3 * error / 16;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testFloydSteinbergIsUnchanged() throws InterruptedException
+  {
+    GreyRaster image = testImage(203, 157);
+    boolean[][] expected = classicFloydSteinberg(image);
+    BlackWhiteRaster result = new FloydSteinberg().dither(image);
+    for (int y = 0; y < image.getHeight(); y++)
+    {
+      for (int x = 0; x < image.getWidth(); x++)
+      {
+        assertEquals("at " + x + "," + y, expected[y][x], result.isBlack(x, y));
+      }
+    }
+  }
+
+  /**
+   * Writing packed bytes must give the same result as setting every pixel
+   */
+  @Test
+  public void testPackedOutputMatchesPixels() throws InterruptedException
+  {
+    for (DitheringAlgorithm algorithm : ALGORITHMS)
+    {
+      for (boolean serpentine : new boolean[]{true, false})
+      {
+        DitheringAlgorithm a = algorithm.clone();
+        a.setProperty("Serpentine scanning", serpentine);
+        BlackWhiteRaster packed = a.dither(testImage(203, 157));
+        GreyRaster direct = testImage(203, 157);
+        a.ditherDirect(direct);
+        for (int y = 0; y < direct.getHeight(); y++)
+        {
+          for (int x = 0; x < direct.getWidth(); x++)
+          {
+            assertEquals(a + " at " + x + "," + y, direct.getGreyScale(x, y) == 0, packed.isBlack(x, y));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testUniformGreyDensity() throws InterruptedException
+  {
+    for (DitheringAlgorithm algorithm : ALGORITHMS)
+    {
+      // Atkinson drops a quarter of the error, which clips dark and light tones
+      int[] greys = algorithm instanceof Atkinson ? new int[]{0, 128, 255} : new int[]{0, 32, 64, 128, 192, 255};
+      for (int grey : greys)
+      {
+        BlackWhiteRaster result = algorithm.clone().dither(uniform(256, 256, grey));
+        int black = 0;
+        for (int y = 0; y < result.getHeight(); y++)
+        {
+          for (int x = 0; x < result.getWidth(); x++)
+          {
+            black += result.isBlack(x, y) ? 1 : 0;
+          }
+        }
+        double expected = 1 - grey / 255.0;
+        assertEquals(algorithm + " at " + grey, expected, black / (256.0 * 256.0), 0.02);
+      }
+    }
+  }
+
+  @Test
+  public void testEquality()
+  {
+    assertEquals(new FloydSteinberg(), new FloydSteinberg());
+    assertNotEquals(new FloydSteinberg(), new Burkes());
+    DitheringAlgorithm straight = new Stucki();
+    straight.setProperty("Serpentine scanning", false);
+    assertNotEquals(new Stucki(), straight);
+    assertEquals(straight, straight.clone());
+  }
+
+  @Test
+  public void benchmark() throws InterruptedException
+  {
+    GreyscaleRaster image = testImage(2000, 1500);
+    for (DitheringAlgorithm algorithm : ALGORITHMS)
+    {
+      // warm up
+      algorithm.clone().dither(image);
+      long start = System.nanoTime();
+      algorithm.clone().dither(image);
+      System.out.println(algorithm + ": " + (System.nanoTime() - start) / 1000000 + " ms for 2000x1500 pixels");
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import de.thomas_oster.liblasercut.LaserJob;
+import de.thomas_oster.liblasercut.VectorPart;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FullSpectrumCutterTest
+{
+  /**
+   * The previous implementation of FullSpectrumCutter.line()
+   */
+  private static byte[] referenceLine(double x_start, double x_dest, double y_start, double y_dest, double power, double speed)
+  {
+    ByteArrayOutputStream lineCmds = new ByteArrayOutputStream();
+    double x_expected = 0;
+    double y_expected = 0;
+    int x = 0;
+    int y = 0;
+    double t_increment = 1d/2000d;
+    power = power * 255d / 100d;
+    x_dest = Math.round((x_dest-x_start)*1000);
+    y_dest = Math.round((y_dest-y_start)*1000);
+    double d = Math.sqrt(x_dest*x_dest + y_dest*y_dest);
+    if (d == 0d)
+    {
+      return new byte[0];
+    }
+    double speed_x = x_dest * speed/d;
+    double speed_y = y_dest * speed/d;
+    while (!((x_dest == x) & (y_dest == y)))
+    {
+      if (y == y_dest)
+        speed_y = 0d;
+      if (x == x_dest)
+        speed_x = 0d;
+      x_expected = x_expected + t_increment*speed_x;
+      y_expected = y_expected + t_increment*speed_y;
+      if (Math.abs(x_expected) > Math.abs(x_dest))
+        x_expected = x_dest;
+      if (Math.abs(y_expected) > Math.abs(y_dest))
+        y_expected = y_dest;
+      byte steps_x = (byte)(x_expected-x);
+      byte steps_y = (byte)(y_expected-y);
+      byte direction = 0;
+      if (steps_x > 0)
+        direction += 1;
+      if (steps_y > 0)
+        direction += 2;
+      lineCmds.write(direction);
+      lineCmds.write((byte)Math.abs(steps_x));
+      lineCmds.write((byte)Math.abs(steps_y));
+      lineCmds.write((byte)power);
+      x += steps_x;
+      y += steps_y;
+    }
+    return lineCmds.toByteArray();
+  }
+
+  @Test
+  public void testLineMatchesReference()
+  {
+    Random r = new Random(4711);
+    for (int i = 0; i < 2000; i++)
+    {
+      double xs = r.nextDouble() * 20;
+      double ys = r.nextDouble() * 12;
+      double xd = r.nextInt(4) == 0 ? xs : r.nextDouble() * 20;
+      double yd = r.nextInt(4) == 0 ? ys : r.nextDouble() * 12;
+      double power = r.nextDouble() * 100;
+      double speed = 1 + r.nextDouble() * 20000;
+      FullSpectrumCutter.CommandBuffer b = new FullSpectrumCutter.CommandBuffer(0);
+      b.put((byte) 1, (byte) 2, (byte) 3, (byte) 4);
+      FullSpectrumCutter.line(xs, xd, ys, yd, power, speed, b);
+      byte[] expected = referenceLine(xs, xd, ys, yd, power, speed);
+      assertEquals(4 + expected.length, b.size);
+      for (int k = 0; k < expected.length; k++)
+      {
+        assertEquals("segment " + i + " byte " + k, expected[k], b.data[4 + k]);
+      }
+    }
+  }
+
+  /**
+   * Back and forth over 10 inches, about 80 KB of commands per line
+   */
+  private static LaserJob createJob(FullSpectrumCutter cutter, int lines)
+  {
+    VectorPart vp = new VectorPart(cutter.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    for (int i = 0; i < lines; i++)
+    {
+      vp.lineto(i % 2 == 0 ? 5000 : 0, i);
+    }
+    LaserJob job = new LaserJob("test", "test", "test");
+    job.addPart(vp);
+    return job;
+  }
+
+  private static byte[] save(FullSpectrumCutter cutter, LaserJob job) throws Exception
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    cutter.saveJob(result, job);
+    return result.toByteArray();
+  }
+
+  @Test
+  public void testSubpackets() throws Exception
+  {
+    FullSpectrumCutter cutter = new FullSpectrumCutter();
+    byte[] packet = save(cutter, createJob(cutter, 10));
+    assertArrayEquals(packet, save(cutter, createJob(cutter, 10)));
+
+    ByteBuffer bb = ByteBuffer.wrap(packet, 1024, packet.length - 1024);
+    bb.order(ByteOrder.LITTLE_ENDIAN);
+    int subpackets = bb.getShort();
+    assertEquals(0, bb.getShort());
+    assertTrue(subpackets > 2);
+    Inflater inflater = new Inflater(true);
+    byte[] raw = new byte[0x40000];
+    for (int i = 0; i < subpackets; i++)
+    {
+      int size = bb.getShort() & 0xffff;
+      assertEquals(0, bb.getShort());
+      // raw deflate data and the adler32 checksum
+      inflater.reset();
+      inflater.setInput(packet, bb.position(), size);
+      int length = inflater.inflate(raw);
+      assertTrue(inflater.finished());
+      if (i < subpackets - 1)
+      {
+        assertEquals(0x40000, length);
+      }
+      if (i == 0)
+      {
+        assertArrayEquals(new byte[] {2, 0, 0, 0}, Arrays.copyOf(raw, 4));
+        assertEquals(subpackets - 1, raw[6]);
+      }
+      bb.position(bb.position() + size);
+    }
+    inflater.end();
+    assertEquals(packet.length, bb.position());
+  }
+
+  @Test
+  public void testDeflatersAreReleased() throws Exception
+  {
+    FullSpectrumCutter cutter = new FullSpectrumCutter();
+    int open = FullSpectrumCutter.openDeflaters.get();
+    for (int i = 0; i < 300; i++)
+    {
+      save(cutter, createJob(cutter, i % 10));
+      // the native memory of all Deflaters is released after each job
+      assertEquals(open, FullSpectrumCutter.openDeflaters.get());
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Liveness checks used before reusing a connection
+ */
+public class GcodeConnectionProbeTest
+{
+  /**
+   * Has some unread output of the previous job and answers
+   * once something has been sent
+   */
+  private static class FakeMachine extends Reader
+  {
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    private String stale;
+    private String answer;
+
+    FakeMachine(String stale, String answer)
+    {
+      this.stale = stale;
+      this.answer = answer;
+    }
+
+    @Override
+    public boolean ready()
+    {
+      return !stale.isEmpty();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+      String source;
+      if (!stale.isEmpty())
+      {
+        source = stale;
+      }
+      else if (sent.size() > 0 && !answer.isEmpty())
+      {
+        source = answer;
+      }
+      else
+      {
+        return -1;
+      }
+      int n = Math.min(len, source.length());
+      source.getChars(0, n, cbuf, off);
+      if (source == stale)
+      {
+        stale = stale.substring(n);
+      }
+      else
+      {
+        answer = answer.substring(n);
+      }
+      return n;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+  private boolean probe(GenericGcodeDriver driver, FakeMachine machine) throws IOException
+  {
+    driver.in = new BufferedReader(machine);
+    driver.out = new PrintStream(machine.sent, true, StandardCharsets.US_ASCII);
+    return driver.isConnectionAlive();
+  }
+
+  @Test
+  public void testGrblStatusReport() throws IOException
+  {
+    FakeMachine machine = new FakeMachine("ok\r\nok\r\n", "<Idle|MPos:0.000,0.000,0.000|FS:0,0>\r\n");
+    assertTrue(probe(new Grbl(), machine));
+    assertEquals("?", machine.sent.toString(StandardCharsets.US_ASCII));
+    assertFalse(probe(new Grbl(), new FakeMachine("ok\r\n", "")));
+  }
+
+  @Test
+  public void testMarlinFirmwareInfo() throws IOException
+  {
+    FakeMachine machine = new FakeMachine("ok\n", "FIRMWARE_NAME:Marlin 2.0\nCap:AUTOREPORT_TEMP:1\nok\n");
+    assertTrue(probe(new Marlin(), machine));
+    assertEquals("M115\r\n", machine.sent.toString(StandardCharsets.US_ASCII));
+    assertFalse(probe(new Marlin(), new FakeMachine("", "echo:Unknown command\n")));
+  }
+}
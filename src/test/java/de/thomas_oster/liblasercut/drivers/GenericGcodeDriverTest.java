@@ -0,0 +1,152 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import de.thomas_oster.liblasercut.LaserJob;
+import de.thomas_oster.liblasercut.ProgressListener;
+import de.thomas_oster.liblasercut.ProgressListenerDummy;
+import de.thomas_oster.liblasercut.VectorPart;
+import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.GCodeLineBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GenericGcodeDriverTest
+{
+
+  /**
+   * Run the G-code and return the end points of all G1 lines in mm,
+   * keeping X and Y (and the motion mode) if they are omitted
+   */
+  private static List<double[]> simulate(String gcode)
+  {
+    List<double[]> result = new ArrayList<>();
+    double x = Double.NaN;
+    double y = Double.NaN;
+    String motion = null;
+    for (String line : gcode.split("[\r\n]+"))
+    {
+      line = line.trim();
+      boolean hasXY = false;
+      for (String word : line.replaceAll("([A-Z])", " $1").trim().split("\\s+"))
+      {
+        if (word.isEmpty())
+        {
+          continue;
+        }
+        char c = word.charAt(0);
+        String value = word.substring(1);
+        if (c == 'G' && (value.equals("0") || value.equals("1")))
+        {
+          motion = word;
+        }
+        else if (c == 'X')
+        {
+          x = Double.parseDouble(value);
+          hasXY = true;
+        }
+        else if (c == 'Y')
+        {
+          y = Double.parseDouble(value);
+          hasXY = true;
+        }
+      }
+      if (hasXY && "G1".equals(motion))
+      {
+        result.add(new double[]{x, y});
+      }
+    }
+    return result;
+  }
+
+  private void checkMoveKeepsY(GenericGcodeDriver driver) throws Exception
+  {
+    driver.setOmitModalWords(true);
+    LaserJob job = new LaserJob("test", "test", "test");
+    VectorPart vp = new VectorPart(driver.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(100, 100);
+    vp.lineto(200, 50);
+    vp.moveto(0, 0);
+    // same Y as the previous line
+    vp.lineto(30, 50);
+    job.addPart(vp);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    driver.saveJob(new PrintStream(result), job);
+    List<double[]> lines = simulate(result.toString());
+    assertEquals(2, lines.size());
+    assertEquals(Util.px2mm(30, 500), lines.get(1)[0], 1e-3);
+    assertEquals(Util.px2mm(50, 500), lines.get(1)[1], 1e-3);
+  }
+
+  @Test
+  public void testOmittedYAfterMove() throws Exception
+  {
+    checkMoveKeepsY(new GenericGcodeDriver());
+    checkMoveKeepsY(new Grbl());
+  }
+
+  @Test
+  public void testCancelledSendDisconnects() throws Exception
+  {
+    List<String> calls = new ArrayList<>();
+    GenericGcodeDriver driver = new GenericGcodeDriver()
+    {
+      @Override
+      protected void connect(ProgressListener pl)
+      {
+        calls.add("connect");
+        out = new PrintStream(OutputStream.nullOutputStream());
+      }
+
+      @Override
+      protected void disconnect(String jobname)
+      {
+        calls.add("disconnect");
+      }
+
+      @Override
+      protected void sendLine(GCodeLineBuilder line)
+      {
+        throw new CancellationException("Job was cancelled");
+      }
+    };
+    driver.setWaitForOKafterEachLine(false);
+    LaserJob job = new LaserJob("test", "test", "test");
+    VectorPart vp = new VectorPart(driver.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(0, 0);
+    vp.lineto(100, 100);
+    job.addPart(vp);
+    try
+    {
+      driver.sendJob(job, new ProgressListenerDummy(), new ArrayList<>());
+      fail("cancellation was ignored");
+    }
+    catch (CancellationException e)
+    {
+      // expected
+    }
+    assertEquals(List.of("connect", "disconnect"), calls);
+  }
+}
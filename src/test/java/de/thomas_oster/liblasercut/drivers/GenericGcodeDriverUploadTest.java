@@ -0,0 +1,215 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import de.thomas_oster.liblasercut.LaserJob;
+import de.thomas_oster.liblasercut.ProgressListenerDummy;
+import de.thomas_oster.liblasercut.VectorPart;
+import de.thomas_oster.liblasercut.utils.GCodeLineBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Uploads jobs to a local HTTP server standing in for the machine
+ */
+public class GenericGcodeDriverUploadTest
+{
+  private HttpServer server;
+  private int status;
+  private Headers headers;
+  private byte[] body;
+  private boolean readBody = true;
+
+  @Before
+  public void startServer() throws IOException
+  {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      headers = exchange.getRequestHeaders();
+      if (readBody)
+      {
+        try (InputStream in = exchange.getRequestBody())
+        {
+          body = in.readAllBytes();
+        }
+      }
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer()
+  {
+    server.stop(0);
+  }
+
+  private String baseUrl()
+  {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  private GenericGcodeDriver createDriver(String uploadMethod)
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    driver.setUploadMethod(uploadMethod);
+    driver.setHttpUploadUrl(baseUrl() + "/upload");
+    driver.setHost("127.0.0.1:" + server.getAddress().getPort());
+    driver.setApiKey("secret");
+    driver.setAutoPlay(false);
+    return driver;
+  }
+
+  private byte[] expectedOutput(GenericGcodeDriver driver) throws Exception
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    driver.saveJob(new PrintStream(result), new AllDriversTest().generateDummyJob(driver, false));
+    return result.toByteArray();
+  }
+
+  private void send(GenericGcodeDriver driver) throws Exception
+  {
+    driver.sendJob(new AllDriversTest().generateDummyJob(driver, false), new ProgressListenerDummy(), new ArrayList<>());
+  }
+
+  @Test
+  public void testHttpUpload() throws Exception
+  {
+    status = 200;
+    GenericGcodeDriver driver = createDriver(GenericGcodeDriver.UPLOAD_METHOD_HTTP);
+    send(driver);
+    assertEquals("aaaa.gcode", headers.getFirst("X-Filename"));
+    assertEquals(Integer.toString(body.length), headers.getFirst("Content-Length"));
+    assertArrayEquals(expectedOutput(driver), body);
+  }
+
+  @Test
+  public void testStreamingCompressedHttpUpload() throws Exception
+  {
+    status = 200;
+    GenericGcodeDriver driver = createDriver(GenericGcodeDriver.UPLOAD_METHOD_HTTP);
+    driver.setStreamHttpUpload(true);
+    driver.setCompressHttpUpload(true);
+    send(driver);
+    assertEquals("chunked", headers.getFirst("Transfer-Encoding"));
+    assertEquals("gzip", headers.getFirst("Content-Encoding"));
+    byte[] uncompressed = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+    assertArrayEquals(expectedOutput(driver), uncompressed);
+  }
+
+  @Test
+  public void testStreamingOctoprintUpload() throws Exception
+  {
+    status = 201;
+    GenericGcodeDriver driver = createDriver(GenericGcodeDriver.UPLOAD_METHOD_OCTOPRINT);
+    driver.setStreamHttpUpload(true);
+    send(driver);
+    assertEquals("secret", headers.getFirst("X-Api-Key"));
+    assertEquals("chunked", headers.getFirst("Transfer-Encoding"));
+    String multipart = new String(body, StandardCharsets.ISO_8859_1);
+    assertTrue(multipart.contains("filename=\"aaaa.gcode\""));
+    assertTrue(multipart.contains(new String(expectedOutput(driver), StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void testGrblHalUploadSendsSize() throws Exception
+  {
+    status = 200;
+    GenericGcodeDriver driver = createDriver(GenericGcodeDriver.UPLOAD_METHOD_GRBLHAL);
+    // ignored, the size must be known before the upload
+    driver.setStreamHttpUpload(true);
+    send(driver);
+    byte[] expected = expectedOutput(driver);
+    String multipart = new String(body, StandardCharsets.ISO_8859_1);
+    // part headers, empty line, value
+    assertTrue(Pattern.compile("name=\"aaaa\\.gcodeS\"\r\n(?:[^\r\n]+\r\n)*\r\n" + expected.length + "\r\n").matcher(multipart).find());
+    assertTrue(multipart.contains(new String(expected, StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test(timeout = 20000)
+  public void testStreamingUploadErrorIsReported() throws Exception
+  {
+    status = 500;
+    GenericGcodeDriver driver = createDriver(GenericGcodeDriver.UPLOAD_METHOD_HTTP);
+    driver.setStreamHttpUpload(true);
+    try
+    {
+      send(driver);
+      fail("upload error was not reported");
+    }
+    catch (IOException e)
+    {
+      // expected
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testStreamingUploadErrorStopsGeneration() throws Exception
+  {
+    status = 500;
+    readBody = false;
+    int[] lines = new int[1];
+    GenericGcodeDriver driver = new GenericGcodeDriver()
+    {
+      @Override
+      protected void sendLine(GCodeLineBuilder line) throws IOException
+      {
+        lines[0]++;
+        super.sendLine(line);
+      }
+    };
+    driver.setUploadMethod(GenericGcodeDriver.UPLOAD_METHOD_HTTP);
+    driver.setHttpUploadUrl(baseUrl() + "/upload");
+    driver.setStreamHttpUpload(true);
+    LaserJob job = new LaserJob("large", "large", "test");
+    VectorPart vp = new VectorPart(driver.getLaserPropertyForVectorPart(), 500);
+    int total = 500000;
+    vp.moveto(0, 0);
+    for (int i = 0; i < total; i++)
+    {
+      vp.lineto(i % 1000, i % 997);
+    }
+    job.addPart(vp);
+    try
+    {
+      driver.sendJob(job, new ProgressListenerDummy(), new ArrayList<>());
+      fail("upload error was not reported");
+    }
+    catch (IOException e)
+    {
+      // expected
+    }
+    assertTrue("generated " + lines[0] + " lines", lines[0] < total / 2);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.usb4java.LibUsbException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class K40NanoDriverTest
+{
+  private static K40NanoDriver.MockUsb createMock(double busyRate, double rejectRate, int packetsInFlight)
+  {
+    K40NanoDriver.MockUsb usb = new K40NanoDriver.MockUsb(new Random(4711));
+    usb.setRealTime(false);
+    usb.setVerbose(false);
+    usb.setRates(busyRate, rejectRate);
+    usb.setPacketsInFlight(packetsInFlight);
+    return usb;
+  }
+
+  /**
+   * Cuts random lines through the mock device
+   */
+  private static K40NanoDriver.MockUsb run(K40NanoDriver.MockUsb mock)
+  {
+    K40NanoDriver driver = new K40NanoDriver();
+    driver.warnings = new ArrayList<>();
+    K40NanoDriver.K40Device device = driver.new K40Device();
+    device.open(driver.new K40Queue()
+    {
+      @Override
+      public void open()
+      {
+        usb = mock;
+        usb.open();
+      }
+    });
+    Random r = new Random(1);
+    for (int i = 0; i < 2000; i++)
+    {
+      device.setSpeed(10 + r.nextInt(100));
+      device.cut_absolute(r.nextInt(5000), r.nextInt(5000));
+      device.execute();
+    }
+    device.move_absolute(0, 0);
+    device.execute();
+    device.close();
+    return mock;
+  }
+
+  @Test
+  public void testBusyAndRejectedPackets()
+  {
+    byte[] expected = run(createMock(0, 0, 1)).getReceived();
+    assertTrue(expected.length > 10000);
+    assertEquals(0, expected.length % K40NanoDriver.K40Usb.PAYLOAD_LENGTH);
+
+    K40NanoDriver.MockUsb usb = run(createMock(0.2, 0.1, 1));
+    assertTrue(usb.getBusy() > 0);
+    assertTrue(usb.getRejected() > 0);
+    // every packet arrives once and in order
+    assertArrayEquals(expected, usb.getReceived());
+  }
+
+  @Test
+  public void testPacketsInFlight()
+  {
+    K40NanoDriver.MockUsb single = run(createMock(0, 0, 1));
+    K40NanoDriver.MockUsb batched = run(createMock(0, 0, 8));
+    assertArrayEquals(single.getReceived(), batched.getReceived());
+    assertFalse(batched.isFallback());
+    assertTrue(batched.getStatusRequests() < single.getStatusRequests() / 2);
+    assertTrue("packets/s: " + single.getPacketsPerSecond() + " vs. " + batched.getPacketsPerSecond(),
+      batched.getPacketsPerSecond() > 2 * single.getPacketsPerSecond());
+  }
+
+  @Test
+  public void testRejectionFallsBackToSinglePackets()
+  {
+    byte[] expected = run(createMock(0, 0, 1)).getReceived();
+    K40NanoDriver.MockUsb usb = run(createMock(0, 0.05, 8));
+    assertTrue(usb.isFallback());
+    assertTrue(usb.getRejected() > 0);
+    assertArrayEquals(expected, usb.getReceived());
+  }
+
+  @Test
+  public void testRejectionInsideBatch()
+  {
+    byte[] expected = run(createMock(0, 0, 1)).getReceived();
+    K40NanoDriver.MockUsb mock = createMock(0, 0, 8);
+    // the 4th packet of the second batch, the rest of it is dropped
+    mock.rejectPacket(11);
+    K40NanoDriver.MockUsb usb = run(mock);
+    assertTrue(usb.isFallback());
+    assertEquals(5, usb.getRejected());
+    assertArrayEquals(expected, usb.getReceived());
+  }
+
+  @Test(expected = LibUsbException.class)
+  public void testUnknownRejectionAborts()
+  {
+    K40NanoDriver.MockUsb mock = new K40NanoDriver.MockUsb(new Random(4711))
+    {
+      @Override
+      protected int accepted_packets()
+      {
+        return -1;
+      }
+    };
+    mock.setRealTime(false);
+    mock.setVerbose(false);
+    mock.setPacketsInFlight(8);
+    mock.rejectPacket(11);
+    run(mock);
+  }
+
+  @Test
+  public void testSpeedCodes()
+  {
+    K40NanoDriver.K40Device device = new K40NanoDriver().new K40Device();
+    device.setBoard("M2");
+    assertEquals("CV2371371005000246C", device.getSpeed(5));
+    assertEquals("CV1990332030000082", device.getSpeed(30));
+    assertEquals("V2242402G001", device.getSpeed(100, true));
+    device.setBoard("B2");
+    assertEquals("CV2370654150000006", device.getSpeed(150));
+  }
+
+  @Test
+  public void testSpeedCodeCacheKey()
+  {
+    K40NanoDriver.K40Device device = new K40NanoDriver().new K40Device();
+    device.setBoard("M2");
+    String code = device.getSpeed(30);
+    assertEquals(code, device.getSpeed(30));
+    device.setD_ratio(0.5);
+    assertNotEquals(code, device.getSpeed(30));
+    device.setD_ratio(0.2612);
+    assertEquals(code, device.getSpeed(30));
+    device.setBoard("B2");
+    assertEquals("CV2370654150000006", device.getSpeed(150));
+  }
+
+  @Test
+  public void testCollinearMovesAreMerged()
+  {
+    K40NanoDriver driver = new K40NanoDriver();
+    List<byte[]> elements = new ArrayList<>();
+    K40NanoDriver.K40Device device = driver.new K40Device();
+    device.open(driver.new K40Queue()
+    {
+      @Override
+      public void open()
+      {
+      }
+
+      @Override
+      public void add(byte[] element)
+      {
+        elements.add(element);
+      }
+
+      @Override
+      public void execute()
+      {
+      }
+
+      @Override
+      public void close()
+      {
+      }
+    });
+    device.setPower(1000);
+    for (int i = 1; i <= 10; i++)
+    {
+      device.cut_absolute(10 * i, 0);
+      device.execute();
+    }
+    for (int i = 1; i <= 10; i++)
+    {
+      device.cut_absolute(100 + 10 * i, 10 * i);
+      device.execute();
+    }
+    device.close();
+    StringBuilder egv = new StringBuilder();
+    for (byte[] e : elements)
+    {
+      egv.append(new String(e, StandardCharsets.US_ASCII));
+    }
+    // 100 to the right, then 100 diagonally
+    assertTrue(egv.toString(), egv.toString().contains("DB100M100FNSE-\n"));
+  }
+}
@@ -170,4 +170,169 @@ public class ScriptInterpreterTest
     });
     assertEquals(10, steps.size());
   }
+
+  /**
+   * Records all calls, with polyline as one step
+   */
+  private static class Recorder implements ScriptInterface
+  {
+    final List<String> steps = new LinkedList<>();
+    int points = 0;
+    // use the default implementation of polyline
+    boolean splitPolylines = false;
+
+    public void move(double x, double y)
+    {
+      steps.add("move (" + x + "," + y + ")");
+    }
+
+    public void line(double x, double y)
+    {
+      steps.add("line (" + x + "," + y + ")");
+      points++;
+    }
+
+    @Override
+    public void polyline(double[] xy)
+    {
+      if (splitPolylines)
+      {
+        ScriptInterface.super.polyline(xy);
+        return;
+      }
+      steps.add("polyline " + java.util.Arrays.toString(xy));
+      points += xy.length / 2;
+    }
+
+    public void set(String property, Object value)
+    {
+      steps.add("set (" + property + "," + value + ")");
+    }
+
+    public Object get(String property)
+    {
+      steps.add("get (" + property + ")");
+      return null;
+    }
+
+    public void echo(String text)
+    {
+      steps.add("echo (" + text + ")");
+    }
+
+    @Override
+    public String prompt(String title, String defaultValue)
+    {
+      return defaultValue;
+    }
+  }
+
+  @Test
+  public void testPolyline() throws Exception
+  {
+    Recorder r = new Recorder();
+    new ScriptInterpreter().execute("move(0, 0); line(1, 2); polyline([3.5, 4, 5, 6]); line(7, 8);", r);
+    assertEquals(java.util.Arrays.asList(
+      "move (0.0,0.0)",
+      "line (1.0,2.0)",
+      "polyline [3.5, 4.0, 5.0, 6.0]",
+      "line (7.0,8.0)"
+    ), r.steps);
+    // default implementation
+    VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 500d);
+    new ScriptInterpreter().execute("move(0, 0); polyline([10, 0, 10, 20, 0, 20]);", new VectorPartScriptInterface(vp, new AffineTransform()));
+    assertEquals(10, vp.getMaxX(), 1e-9);
+    assertEquals(20, vp.getMaxY(), 1e-9);
+    Recorder lines = new Recorder();
+    lines.splitPolylines = true;
+    new ScriptInterpreter().execute("polyline([1, 2, 3, 4]);", lines);
+    assertEquals(java.util.Arrays.asList("line (1.0,2.0)", "line (3.0,4.0)"), lines.steps);
+  }
+
+  @Test
+  public void testCompiledScriptsAreCached() throws Exception
+  {
+    ScriptInterpreter.clearCache();
+    ScriptInterpreter instance = new ScriptInterpreter();
+    instance.execute("move(1, 1);", new Recorder());
+    // bootstrap and script
+    assertEquals(2, ScriptInterpreter.getCacheSize());
+    instance.execute("move(1, 1);", new Recorder());
+    assertEquals(2, ScriptInterpreter.getCacheSize());
+    instance.execute("move(2, 2);", new Recorder());
+    assertEquals(3, ScriptInterpreter.getCacheSize());
+    instance.setOptimizationLevel(9);
+    Recorder r = new Recorder();
+    instance.execute("move(2, 2); for (var i = 0; i < 10; i++) { line(i, i * 2); }", r);
+    assertEquals(10, r.points);
+    try
+    {
+      instance.setOptimizationLevel(42);
+      fail("invalid level accepted");
+    }
+    catch (IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+
+  /**
+   * Scripts must not see or change anything of previous scripts
+   */
+  @Test
+  public void testScriptsAreIsolated() throws Exception
+  {
+    ScriptInterpreter instance = new ScriptInterpreter();
+    instance.execute("var leaked = 42; move(0, 0);", new Recorder());
+    try
+    {
+      instance.execute("Math.max = function() { return 0; };", new Recorder());
+      fail("standard objects could be changed");
+    }
+    catch (ScriptException e)
+    {
+      // expected, the shared scope is sealed
+    }
+    Recorder r = new Recorder();
+    instance.execute("echo(typeof leaked); echo(Math.max(1, 2));", r);
+    assertEquals(java.util.Arrays.asList("echo (undefined)", "echo (2)"), r.steps);
+  }
+
+  /**
+   * A class used by an unsandboxed script must not become accessible
+   * for sandboxed scripts
+   */
+  @Test
+  public void testSandboxAfterUnsandboxedScript() throws Exception
+  {
+    ScriptInterpreter instance = new ScriptInterpreter();
+    Recorder r = new Recorder();
+    instance.execute("echo(new java.io.File('testfile').getName());", r, false);
+    assertEquals(java.util.Arrays.asList("echo (testfile)"), r.steps);
+    testSecurity();
+  }
+
+  @Test
+  public void benchmark() throws Exception
+  {
+    ScriptInterpreter small = new ScriptInterpreter();
+    small.execute("move(0, 0); line(10, 10);", new Recorder());
+    long t = System.nanoTime();
+    for (int i = 0; i < 200; i++)
+    {
+      small.execute("move(0, 0); line(10, 10);", new Recorder());
+    }
+    System.out.println("LaserScript: " + (System.nanoTime() - t) / 200000 + " us per run of a small script");
+    String script = "move(0, 0); for (var i = 0; i < 200000; i++) { line(i % 1000, i / 1000); }";
+    for (int level : new int[]{-1, 9})
+    {
+      ScriptInterpreter instance = new ScriptInterpreter();
+      instance.setOptimizationLevel(level);
+      VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 500d);
+      long start = System.nanoTime();
+      instance.execute(script, new VectorPartScriptInterface(vp, new AffineTransform()));
+      System.out.println("LaserScript optimization level " + level + ": 200000 lines in " + (System.nanoTime() - start) / 1000000 + " ms");
+      assertEquals(999, vp.getMaxX(), 1e-9);
+    }
+  }
 }
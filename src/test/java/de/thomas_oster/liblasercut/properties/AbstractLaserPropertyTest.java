@@ -0,0 +1,284 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.properties;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import static org.junit.Assert.*;
+
+public class AbstractLaserPropertyTest
+{
+  private static AbstractLaserProperty create()
+  {
+    AbstractLaserProperty p = new AbstractLaserProperty();
+    p.addPropertyRanged("power", 1000, 0, 1000);
+    p.addPropertyRanged("mm per second", 30f, 0.4f, 240f);
+    p.addPropertySpecific("mode", "fast", "slow");
+    p.addProperty("enabled", true);
+    return p;
+  }
+
+  /**
+   * A property as saved by VisiCut with XStream before the values were
+   * stored in slots
+   */
+  private static final String OLD_XML =
+    "<de.thomas__oster.liblasercut.properties.AbstractLaserProperty>\n"
+    + "  <properties>\n"
+    + "    <entry><string>power</string><int>1000</int></entry>\n"
+    + "    <entry><string>power_minimum</string><int>0</int></entry>\n"
+    + "    <entry><string>power_maximum</string><int>1000</int></entry>\n"
+    + "    <entry><string>mm per second</string><float>30.0</float></entry>\n"
+    + "    <entry><string>mm per second_minimum</string><float>0.4</float></entry>\n"
+    + "    <entry><string>mm per second_maximum</string><float>240.0</float></entry>\n"
+    + "    <entry><string>mode</string><string>fast</string></entry>\n"
+    + "    <entry><string>mode_values</string><object-array><string>fast</string><string>slow</string></object-array></entry>\n"
+    + "    <entry><string>enabled</string><boolean>true</boolean></entry>\n"
+    + "  </properties>\n"
+    + "</de.thomas__oster.liblasercut.properties.AbstractLaserProperty>\n";
+
+  private static Object decode(Element e)
+  {
+    String text = e.getTextContent();
+    switch (e.getTagName())
+    {
+      case "string":
+        return text;
+      case "int":
+        return Integer.valueOf(text);
+      case "float":
+        return Float.valueOf(text);
+      case "double":
+        return Double.valueOf(text);
+      case "boolean":
+        return Boolean.valueOf(text);
+      case "object-array":
+        return children(e).stream().map(AbstractLaserPropertyTest::decode).toArray();
+      default:
+        throw new IllegalArgumentException(e.getTagName());
+    }
+  }
+
+  private static String encode(Object value)
+  {
+    if (value instanceof Object[])
+    {
+      StringBuilder result = new StringBuilder("<object-array>");
+      for (Object o : (Object[]) value)
+      {
+        result.append(encode(o));
+      }
+      return result.append("</object-array>").toString();
+    }
+    String tag = value instanceof Integer ? "int" : value.getClass().getSimpleName().toLowerCase();
+    return "<" + tag + ">" + value + "</" + tag + ">";
+  }
+
+  private static List<Element> children(Node n)
+  {
+    List<Element> result = new ArrayList<>();
+    for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling())
+    {
+      if (c instanceof Element)
+      {
+        result.add((Element) c);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the XML like XStream's reflection converter: the object is
+   * created without calling a constructor, the fields are set and
+   * readResolve() is called
+   */
+  private static AbstractLaserProperty fromXml(String xml) throws Exception
+  {
+    Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+      .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).getDocumentElement();
+    Map<String, Object> map = new HashMap<>();
+    for (Element entry : children(children(root).get(0)))
+    {
+      map.put((String) decode(children(entry).get(0)), decode(children(entry).get(1)));
+    }
+    Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+    unsafeField.setAccessible(true);
+    Object unsafe = unsafeField.get(null);
+    Object p = unsafe.getClass().getMethod("allocateInstance", Class.class).invoke(unsafe, AbstractLaserProperty.class);
+    Field properties = AbstractLaserProperty.class.getDeclaredField("properties");
+    properties.setAccessible(true);
+    properties.set(p, map);
+    Method readResolve = AbstractLaserProperty.class.getDeclaredMethod("readResolve");
+    readResolve.setAccessible(true);
+    return (AbstractLaserProperty) readResolve.invoke(p);
+  }
+
+  /**
+   * Saves like XStream: writeReplace() is called and all fields which are
+   * not transient are written
+   */
+  @SuppressWarnings("unchecked")
+  private static String toXml(AbstractLaserProperty p) throws Exception
+  {
+    Method writeReplace = AbstractLaserProperty.class.getDeclaredMethod("writeReplace");
+    writeReplace.setAccessible(true);
+    Object saved = writeReplace.invoke(p);
+    List<String> fields = new ArrayList<>();
+    for (Field f : AbstractLaserProperty.class.getDeclaredFields())
+    {
+      if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers()))
+      {
+        fields.add(f.getName());
+      }
+    }
+    assertEquals(List.of("properties"), fields);
+    Field properties = AbstractLaserProperty.class.getDeclaredField("properties");
+    properties.setAccessible(true);
+    StringBuilder xml = new StringBuilder("<de.thomas__oster.liblasercut.properties.AbstractLaserProperty>\n  <properties>\n");
+    for (Map.Entry<String, Object> e : new TreeMap<>((Map<String, Object>) properties.get(saved)).entrySet())
+    {
+      xml.append("    <entry>").append(encode(e.getKey())).append(encode(e.getValue())).append("</entry>\n");
+    }
+    return xml.append("  </properties>\n</de.thomas__oster.liblasercut.properties.AbstractLaserProperty>\n").toString();
+  }
+
+  @Test
+  public void testOldSettingsFileRoundTrip() throws Exception
+  {
+    AbstractLaserProperty p = fromXml(OLD_XML);
+    assertEquals(create(), p);
+    assertEquals(1000, p.getPower(), 0);
+    assertEquals(0.4f, p.getMinimumValue("mm per second"));
+    assertArrayEquals(new Object[]{"fast", "slow"}, p.getPossibleValues("mode"));
+    assertEquals(true, p.getProperty("enabled"));
+
+    String xml = toXml(p);
+    assertTrue(xml, xml.contains("<entry><string>mode_values</string><object-array><string>fast</string><string>slow</string></object-array></entry>"));
+    assertEquals(p, fromXml(xml));
+    assertEquals(create(), fromXml(toXml(create())));
+    // saving does not change the property
+    assertEquals(create(), p);
+  }
+
+  @Test
+  public void testUnusedSchemasAreCollected()
+  {
+    AbstractLaserProperty kept = new AbstractLaserProperty();
+    kept.addPropertyRanged("power", 0, 0, -1);
+    for (int round = 0; round < 10; round++)
+    {
+      for (int i = 0; i < 1000; i++)
+      {
+        // e.g. a range read from the device settings
+        new AbstractLaserProperty().addPropertyRanged("power", 0, 0, round * 1000 + i);
+      }
+      System.gc();
+    }
+    assertTrue("cached schemas: " + PropertySchema.EMPTY.getDerivedCount(), PropertySchema.EMPTY.getDerivedCount() < 5000);
+    // still shared while in use
+    AbstractLaserProperty p = new AbstractLaserProperty();
+    p.addPropertyRanged("power", 0, 0, -1);
+    assertSame(kept.getSchema(), p.getSchema());
+  }
+
+  @Test
+  public void testValuesKeepTheirType()
+  {
+    AbstractLaserProperty p = create();
+    assertEquals(1000, p.getProperty("power"));
+    assertEquals(30f, p.getProperty("mm per second"));
+    assertEquals("fast", p.getProperty("mode"));
+    assertEquals(true, p.getProperty("enabled"));
+    assertNull(p.getProperty("unknown"));
+    assertArrayEquals(new String[]{"power", "mm per second", "mode", "enabled"}, p.getPropertyKeys());
+    assertEquals(0.4f, p.getMinimumValue("mm per second"));
+    assertEquals(240f, p.getProperty("mm per second_maximum"));
+    assertArrayEquals(new Object[]{"fast", "slow"}, p.getPossibleValues("mode"));
+    assertEquals(1000, p.getPower(), 0);
+    assertEquals(0, p.getSpeed(), 0);
+
+    p.setProperty("power", 500.5);
+    assertEquals(500.5, p.getProperty("power"));
+    assertEquals(Integer.valueOf(1000), p.getMaximumValue("power"));
+    p.setNumeric("power", 20);
+    assertEquals(20.0, p.getDouble("power"), 0);
+    assertNull(p.getInteger("power"));
+  }
+
+  @Test
+  public void testSchemaIsShared()
+  {
+    AbstractLaserProperty a = create();
+    AbstractLaserProperty b = create();
+    assertSame(a.getSchema(), b.getSchema());
+    assertSame(a.getSchema(), ((AbstractLaserProperty) a.clone()).getSchema());
+    // changing a value does not change the schema
+    b.setProperty("power", 10);
+    assertSame(a.getSchema(), b.getSchema());
+    assertNotEquals(a, b);
+    b.setPower(1000);
+    assertEquals(a, b);
+  }
+
+  @Test
+  public void testEqualityIgnoresOrder()
+  {
+    AbstractLaserProperty a = new AbstractLaserProperty();
+    a.addProperty("power", 10);
+    a.addProperty("speed", 20f);
+    AbstractLaserProperty b = new AbstractLaserProperty();
+    b.addProperty("speed", 20f);
+    b.addProperty("power", 10);
+    assertNotSame(a.getSchema(), b.getSchema());
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    b.addProperty("power", 10f);
+    assertNotEquals(a, b);
+  }
+
+  @Test
+  public void testTypedAccess()
+  {
+    AbstractLaserProperty p = new AbstractLaserProperty();
+    p.setInt("pixel", 5);
+    assertEquals(5, p.getInt("pixel", -1));
+    assertEquals(Integer.valueOf(5), p.getProperty("pixel"));
+    assertEquals(-1, p.getInt("other", -1));
+    int slot = p.getSchema().indexOf("pixel");
+    assertEquals(5, p.getNumeric(slot), 0);
+    p.setProperty("pixel", "text");
+    assertEquals(-1, p.getInt("pixel", -1));
+    assertEquals("text", p.getString("pixel"));
+    AbstractLaserProperty q = new AbstractLaserProperty();
+    q.setProperty("pixel", "text");
+    assertEquals(q, p);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsyncLineWriterTest
+{
+  @Test
+  public void testOrderAndContent() throws IOException
+  {
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    StringBuilder expected = new StringBuilder();
+    AsyncLineWriter w = new AsyncLineWriter(4, (line, length, ack) -> received.write(line, 0, length));
+    w.start("test");
+    for (int i = 0; i < 1000; i++)
+    {
+      // some lines are longer than the initial slot size
+      String line = "G1 X" + i + (i % 7 == 0 ? " ; " + "x".repeat(200) : "") + "\n";
+      expected.append(line);
+      byte[] b = line.getBytes(StandardCharsets.US_ASCII);
+      w.write(b, 0, b.length, false);
+    }
+    w.finish();
+    assertEquals(expected.toString(), received.toString(StandardCharsets.US_ASCII));
+    assertEquals(1000, w.getLinesWritten());
+  }
+
+  @Test
+  public void testSlowSinkStallsProducer() throws IOException
+  {
+    AsyncLineWriter w = new AsyncLineWriter(2, (line, length, ack) -> {
+      try
+      {
+        Thread.sleep(2);
+      }
+      catch (InterruptedException e)
+      {
+        throw new IOException(e);
+      }
+    });
+    w.start("test");
+    byte[] b = "G0\n".getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < 20; i++)
+    {
+      w.write(b, 0, b.length, true);
+    }
+    w.finish();
+    assertTrue(w.getProducerStalls() > 0);
+  }
+
+  @Test(expected = IOException.class)
+  public void testSinkErrorIsReported() throws IOException
+  {
+    AsyncLineWriter w = new AsyncLineWriter(2, (line, length, ack) -> {
+      throw new IOException("Lasercutter did not respond 'ok'");
+    });
+    w.start("test");
+    byte[] b = "G0\n".getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < 20; i++)
+    {
+      w.write(b, 0, b.length, true);
+    }
+    w.finish();
+  }
+
+  @Test(timeout = 10000)
+  public void testAbortStopsThread() throws Exception
+  {
+    AsyncLineWriter w = new AsyncLineWriter(2, (line, length, ack) -> {
+      try
+      {
+        Thread.sleep(1000);
+      }
+      catch (InterruptedException e)
+      {
+        throw new IOException(e);
+      }
+    });
+    w.start("test");
+    byte[] b = "G0\n".getBytes(StandardCharsets.US_ASCII);
+    w.write(b, 0, b.length, true);
+    w.abort();
+    // the sleeping sink is interrupted
+    assertTrue(w.join(5000));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GCodeLineBuilderTest
+{
+  private static String decimalFormat(double value, int digits)
+  {
+    DecimalFormat f = (DecimalFormat) NumberFormat.getNumberInstance(Locale.US);
+    f.applyPattern("###.##");
+    f.setMaximumFractionDigits(digits);
+    return f.format(value);
+  }
+
+  private void check(GCodeLineBuilder b, double value, int digits)
+  {
+    assertEquals("value " + value, decimalFormat(value, digits), b.begin("").appendDecimal(value, digits).toString());
+    assertEquals("value " + value, String.format(Locale.US, "%." + digits + "f", value), b.begin("").appendFixed(value, digits).toString());
+  }
+
+  @Test
+  public void testSameAsDecimalFormatAndStringFormat()
+  {
+    GCodeLineBuilder b = new GCodeLineBuilder();
+    double[] special = {0, -0.0, 0.5, -1e-7, 5e-7, 0.125, 0.135, 1.005, 2.675, 1e20, -1e20, Double.NaN, 25.4, 4503599627370495.5};
+    for (double v : special)
+    {
+      for (int d = 0; d < 10; d++)
+      {
+        check(b, v, d);
+      }
+    }
+    Random r = new Random(42);
+    for (int i = 0; i < 50000; i++)
+    {
+      double v;
+      switch (i % 4)
+      {
+        case 0: v = r.nextDouble() * 1000; break;
+        // exact decimal ties
+        case 1: v = (r.nextInt(200000) - 100000 + 0.5) / Math.pow(10, r.nextInt(7)); break;
+        // exact binary ties
+        case 2: v = r.nextInt(100000) / 1024.0 - 40; break;
+        // typical px -> mm conversions
+        default: v = r.nextInt(100000) * 25.4 / 500; break;
+      }
+      check(b, v, r.nextInt(10));
+    }
+  }
+
+  @Test
+  public void testWords()
+  {
+    GCodeLineBuilder b = new GCodeLineBuilder();
+    b.begin("G1").word('X', 25.4, 6).word('Y', -0.5, 6).word('S', 1, 3).word('F', 1200).end("\n");
+    assertEquals("G1 X25.4 Y-0.5 S1 F1200\n", b.toString());
+    b.setCompact(true);
+    b.begin("G0 ").wordFixed('X', 1.5, 6).word('S', 0).end("\r");
+    assertEquals("G0X1.500000S0\r", b.toString());
+  }
+}
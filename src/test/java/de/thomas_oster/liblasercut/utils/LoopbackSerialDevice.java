@@ -0,0 +1,218 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for a device on a serial port (like a pseudo terminal): lines
+ * written by the host are passed to a {@link Responder}, whose answers can
+ * be read back.
+ *
+ * Each write call blocks for a fixed latency plus the transfer time at the
+ * configured baud rate, like a USB-serial adapter, which transfers at most
+ * one packet per millisecond. This is what makes many small writes slow.
+ */
+public class LoopbackSerialDevice
+{
+  public interface Responder
+  {
+    /**
+     * @param line received line without line end
+     * @return answer including the line end, or null
+     */
+    String respond(String line);
+  }
+
+  private final Responder responder;
+  private final LinkedBlockingQueue<byte[]> answers = new LinkedBlockingQueue<>();
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+  private volatile boolean closed = false;
+  private long writeLatencyNanos = 0;
+  private int baudRate = 0;
+
+  private volatile long writeCalls = 0;
+  private volatile long bytesReceived = 0;
+  private volatile long linesReceived = 0;
+
+  public LoopbackSerialDevice(Responder responder)
+  {
+    this.responder = responder;
+  }
+
+  /**
+   * Time each write call blocks, independent of its size
+   */
+  public void setWriteLatencyMicros(long micros)
+  {
+    this.writeLatencyNanos = micros * 1000;
+  }
+
+  /**
+   * Simulated transfer rate (10 bits per byte), 0 for unlimited
+   */
+  public void setBaudRate(int baudRate)
+  {
+    this.baudRate = baudRate;
+  }
+
+  private final OutputStream hostOut = new OutputStream()
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      if (closed)
+      {
+        throw new IOException("Device is closed");
+      }
+      long nanos = writeLatencyNanos + (baudRate > 0 ? len * 10L * 1000000000L / baudRate : 0);
+      long end = System.nanoTime() + nanos;
+      while (System.nanoTime() < end)
+      {
+        LockSupport.parkNanos(end - System.nanoTime());
+      }
+      writeCalls++;
+      bytesReceived += len;
+      for (int i = off; i < off + len; i++)
+      {
+        if (b[i] == '\n')
+        {
+          linesReceived++;
+          String answer = responder.respond(new String(line.toByteArray(), StandardCharsets.US_ASCII));
+          line.reset();
+          if (answer != null)
+          {
+            answers.add(answer.getBytes(StandardCharsets.US_ASCII));
+          }
+        }
+        else if (b[i] != '\r')
+        {
+          line.write(b[i]);
+        }
+      }
+    }
+  };
+
+  private final InputStream hostIn = new InputStream()
+  {
+    private byte[] chunk = null;
+    private int pos = 0;
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] b = new byte[1];
+      int n;
+      while ((n = read(b, 0, 1)) == 0)
+      {
+        // poll again
+      }
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    /**
+     * Returns 0 if nothing arrives within 100ms, like a serial port with a
+     * receive timeout
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (chunk == null || pos == chunk.length)
+      {
+        try
+        {
+          chunk = answers.poll(100, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return -1;
+        }
+        pos = 0;
+        if (chunk == null)
+        {
+          return closed ? -1 : 0;
+        }
+      }
+      int n = Math.min(len, chunk.length - pos);
+      System.arraycopy(chunk, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  };
+
+  /**
+   * Send data to the host without a request, e.g. a status message
+   */
+  public void sendToHost(String data)
+  {
+    answers.add(data.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Connect a transport to this device
+   */
+  public SerialTransport open()
+  {
+    return new SerialTransport(this, hostIn, hostOut, this::close);
+  }
+
+  public OutputStream getHostOutputStream()
+  {
+    return hostOut;
+  }
+
+  public InputStream getHostInputStream()
+  {
+    return hostIn;
+  }
+
+  public void close()
+  {
+    closed = true;
+  }
+
+  public long getWriteCalls()
+  {
+    return writeCalls;
+  }
+
+  public long getBytesReceived()
+  {
+    return bytesReceived;
+  }
+
+  public long getLinesReceived()
+  {
+    return linesReceived;
+  }
+}
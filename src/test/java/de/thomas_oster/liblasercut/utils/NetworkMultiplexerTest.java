@@ -0,0 +1,407 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import de.thomas_oster.liblasercut.drivers.Ruida;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NetworkMultiplexerTest
+{
+  private static final int MACHINES = 12;
+
+  private final List<AutoCloseable> resources = new ArrayList<>();
+
+  @After
+  public void closeResources() throws Exception
+  {
+    for (AutoCloseable r : resources)
+    {
+      r.close();
+    }
+  }
+
+  private static byte[] ascii(String s)
+  {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Networked GRBL: greets, answers "?" with the status and everything
+   * else with "ok"
+   * @return port
+   */
+  private int startGrbl() throws IOException
+  {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    resources.add(server);
+    Thread t = new Thread(() -> {
+      try (Socket s = server.accept())
+      {
+        OutputStream out = s.getOutputStream();
+        out.write(ascii("\r\nGrbl 1.1h ['$' for help]\r\n"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+        int lines = 0;
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+          if (line.equals("?"))
+          {
+            out.write(ascii("<Idle|MPos:0.000,0.000,0.000|Ln:" + lines + ">\r\n"));
+          }
+          else
+          {
+            lines++;
+            out.write(ascii("ok\r\n"));
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        // closed by the test
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+    return server.getLocalPort();
+  }
+
+  /**
+   * Ruida controller: checks the checksum of each datagram and answers with
+   * ACK (or a checksum error if corrupt is set)
+   */
+  private DatagramSocket startRuida(ByteArrayOutputStream payload, boolean corrupt) throws IOException
+  {
+    DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    resources.add(socket);
+    Thread t = new Thread(() -> {
+      byte[] buf = new byte[2048];
+      try
+      {
+        while (true)
+        {
+          DatagramPacket p = new DatagramPacket(buf, buf.length);
+          socket.receive(p);
+          int sum = 0;
+          for (int i = 2; i < p.getLength(); i++)
+          {
+            sum += buf[i] & 0xff;
+          }
+          boolean ok = !corrupt && ((buf[0] & 0xff) << 8 | (buf[1] & 0xff)) == (sum & 0xffff);
+          if (ok)
+          {
+            synchronized (payload)
+            {
+              payload.write(buf, 2, p.getLength() - 2);
+            }
+          }
+          byte[] answer = {ok ? (byte) 0xc6 : (byte) 0x46};
+          socket.send(new DatagramPacket(answer, 1, p.getSocketAddress()));
+        }
+      }
+      catch (IOException e)
+      {
+        // closed by the test
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+    return socket;
+  }
+
+  private NetworkMultiplexer createMultiplexer() throws IOException
+  {
+    NetworkMultiplexer m = new NetworkMultiplexer();
+    resources.add(m);
+    return m;
+  }
+
+  /**
+   * Send the lines one by one, each waiting for "ok"
+   */
+  private static CompletableFuture<Void> stream(NetworkMultiplexer.Connection c, int line, int count)
+  {
+    if (line == count)
+    {
+      return CompletableFuture.completedFuture(null);
+    }
+    return c.request(ascii("G1 X" + line + " Y" + line), 5000).thenCompose(answer -> {
+      assertEquals("ok", new String(answer, StandardCharsets.US_ASCII));
+      return stream(c, line + 1, count);
+    });
+  }
+
+  @Test(timeout = 30000)
+  public void testManyGrblMachinesOnOneThread() throws Exception
+  {
+    NetworkMultiplexer m = createMultiplexer();
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    List<NetworkMultiplexer.Connection> connections = new ArrayList<>();
+    List<CompletableFuture<Void>> jobs = new ArrayList<>();
+    List<CompletableFuture<String>> greetings = new ArrayList<>();
+    for (int i = 0; i < MACHINES; i++)
+    {
+      CompletableFuture<String> greeting = new CompletableFuture<>();
+      greetings.add(greeting);
+      NetworkMultiplexer.Connection c = m.connectTcp("127.0.0.1", startGrbl(), 2000, NetworkMultiplexer.LINES, new NetworkMultiplexer.Handler()
+      {
+        @Override
+        public void received(NetworkMultiplexer.Connection c, byte[] message)
+        {
+          threads.add(Thread.currentThread());
+          greeting.complete(new String(message, StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void poll(NetworkMultiplexer.Connection c)
+        {
+          threads.add(Thread.currentThread());
+          c.request(ascii("?"), 5000).thenAccept(status -> c.setAttachment(new String(status, StandardCharsets.US_ASCII)));
+        }
+      });
+      connections.add(c);
+    }
+    for (int i = 0; i < MACHINES; i++)
+    {
+      NetworkMultiplexer.Connection c = connections.get(i);
+      assertTrue(greetings.get(i).get().startsWith("Grbl 1.1h"));
+      jobs.add(stream(c, 0, 200));
+    }
+    CompletableFuture.allOf(jobs.toArray(new CompletableFuture[0])).get();
+    for (NetworkMultiplexer.Connection c : connections)
+    {
+      c.setPollInterval(10);
+    }
+    for (NetworkMultiplexer.Connection c : connections)
+    {
+      while (!String.valueOf(c.getAttachment()).endsWith("|Ln:200>"))
+      {
+        Thread.sleep(5);
+      }
+      // greeting, 200 "ok" and at least one status
+      assertTrue(c.getMessagesReceived() >= 202);
+    }
+    assertEquals(MACHINES, m.getConnectionCount());
+    assertEquals(1, threads.size());
+    for (NetworkMultiplexer.Connection c : connections)
+    {
+      c.close();
+    }
+    assertEquals(0, m.getConnectionCount());
+  }
+
+  @Test(timeout = 30000)
+  public void testRuidaUpload() throws Exception
+  {
+    NetworkMultiplexer m = createMultiplexer();
+    byte[] data = new byte[5000];
+    new Random(1).nextBytes(data);
+    List<ByteArrayOutputStream> payloads = new ArrayList<>();
+    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+    {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      payloads.add(payload);
+      DatagramSocket ruida = startRuida(payload, false);
+      NetworkMultiplexer.Connection c = m.openUdp("127.0.0.1", ruida.getLocalPort(), 0, Ruida.DATAGRAM_FRAMING, new NetworkMultiplexer.Handler() {});
+      uploads.add(Ruida.upload(c, data));
+    }
+    CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).get();
+    for (ByteArrayOutputStream payload : payloads)
+    {
+      synchronized (payload)
+      {
+        assertArrayEquals(data, payload.toByteArray());
+      }
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testRuidaChecksumError() throws Exception
+  {
+    NetworkMultiplexer m = createMultiplexer();
+    DatagramSocket ruida = startRuida(new ByteArrayOutputStream(), true);
+    NetworkMultiplexer.Connection c = m.openUdp("127.0.0.1", ruida.getLocalPort(), 0, Ruida.DATAGRAM_FRAMING, new NetworkMultiplexer.Handler() {});
+    try
+    {
+      Ruida.upload(c, new byte[100]).get();
+      fail("checksum error was not reported");
+    }
+    catch (ExecutionException e)
+    {
+      assertEquals("checksum error", e.getCause().getMessage());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testRequestTimeoutClosesConnection() throws Exception
+  {
+    ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    resources.add(silent);
+    NetworkMultiplexer m = createMultiplexer();
+    CompletableFuture<IOException> closed = new CompletableFuture<>();
+    NetworkMultiplexer.Connection c = m.connectTcp("127.0.0.1", silent.getLocalPort(), 2000, NetworkMultiplexer.LINES, new NetworkMultiplexer.Handler()
+    {
+      @Override
+      public void closed(NetworkMultiplexer.Connection c, IOException cause)
+      {
+        closed.complete(cause);
+      }
+    });
+    c.whenConnected().get();
+    try
+    {
+      c.request(ascii("?"), 100).get();
+      fail("request did not time out");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof SocketTimeoutException);
+    }
+    assertTrue(closed.get(5, TimeUnit.SECONDS) instanceof SocketTimeoutException);
+    assertTrue(c.isClosed());
+  }
+
+  @Test(timeout = 30000)
+  public void testConnectFailure() throws Exception
+  {
+    int port;
+    try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+    {
+      port = s.getLocalPort();
+    }
+    NetworkMultiplexer m = createMultiplexer();
+    NetworkMultiplexer.Connection c = m.connectTcp("127.0.0.1", port, 2000, NetworkMultiplexer.LINES, new NetworkMultiplexer.Handler() {});
+    try
+    {
+      c.whenConnected().get();
+      fail("connected to a closed port");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testCloseFailsQueuedTasks() throws Exception
+  {
+    NetworkMultiplexer m = createMultiplexer();
+    NetworkMultiplexer.Connection c = m.openUdp("127.0.0.1", 9, 0, NetworkMultiplexer.RAW, new NetworkMultiplexer.Handler() {});
+    CountDownLatch queued = new CountDownLatch(1);
+    m.execute(() -> {
+      try
+      {
+        queued.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      m.close();
+    });
+    CompletableFuture<Void> task = m.execute(() -> fail("task run after close"));
+    CompletableFuture<byte[]> answer = c.request(ascii("?"), 0);
+    queued.countDown();
+    try
+    {
+      task.get();
+      fail("queued task was not rejected");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    try
+    {
+      answer.get();
+      fail("request did not fail");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+    assertTrue(c.isClosed());
+    assertEquals(0, m.getConnectionCount());
+    try
+    {
+      m.execute(() -> fail("task run after close"));
+      fail("task was not rejected");
+    }
+    catch (RejectedExecutionException e)
+    {
+      // expected
+    }
+    try
+    {
+      c.request(ascii("?"), 0).get();
+      fail("request did not fail");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+    try
+    {
+      m.openUdp("127.0.0.1", 9, 0, NetworkMultiplexer.RAW, new NetworkMultiplexer.Handler() {});
+      fail("connection opened after close");
+    }
+    catch (ClosedChannelException e)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testLineFraming() throws IOException
+  {
+    ByteBuffer b = ByteBuffer.wrap(ascii("ok\r\n\r\n<Idle>\nok"));
+    assertEquals("ok", new String(NetworkMultiplexer.LINES.decode(b), StandardCharsets.US_ASCII));
+    assertEquals("<Idle>", new String(NetworkMultiplexer.LINES.decode(b), StandardCharsets.US_ASCII));
+    assertNull(NetworkMultiplexer.LINES.decode(b));
+    assertEquals("ok", new String(b.array(), b.position(), b.remaining(), StandardCharsets.US_ASCII));
+    assertEquals(Arrays.toString(ascii("G0\n")), Arrays.toString(NetworkMultiplexer.LINES.encode(ascii("G0")).array()));
+  }
+}
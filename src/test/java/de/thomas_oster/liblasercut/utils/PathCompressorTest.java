@@ -0,0 +1,186 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PathCompressorTest
+{
+  private static final double TOLERANCE = 0.5;
+
+  /**
+   * Records the compressed path, re-flattening arcs into short segments
+   */
+  private static class Recorder implements PathCompressor.Sink
+  {
+    List<Point2D.Double> points = new ArrayList<>();
+    int commands = 0;
+
+    Recorder(double x, double y)
+    {
+      points.add(new Point2D.Double(x, y));
+    }
+
+    @Override
+    public void lineTo(double x, double y)
+    {
+      points.add(new Point2D.Double(x, y));
+      commands++;
+    }
+
+    @Override
+    public void arcTo(double x, double y, double i, double j, boolean clockwise)
+    {
+      Point2D.Double start = points.get(points.size() - 1);
+      double cx = start.x + i;
+      double cy = start.y + j;
+      double r = Math.hypot(i, j);
+      assertEquals("end point must be on the circle", r, Math.hypot(x - cx, y - cy), 1e-6);
+      double a0 = Math.atan2(start.y - cy, start.x - cx);
+      double sweep = Math.atan2(y - cy, x - cx) - a0;
+      if (clockwise && sweep > 0)
+      {
+        sweep -= 2 * Math.PI;
+      }
+      else if (!clockwise && sweep < 0)
+      {
+        sweep += 2 * Math.PI;
+      }
+      int steps = 1000;
+      for (int k = 1; k <= steps; k++)
+      {
+        double a = a0 + sweep * k / steps;
+        points.add(new Point2D.Double(cx + r * Math.cos(a), cy + r * Math.sin(a)));
+      }
+      commands++;
+    }
+  }
+
+  private static double distanceToPolyline(Point2D.Double p, List<Point2D.Double> line)
+  {
+    double best = Double.POSITIVE_INFINITY;
+    for (int i = 0; i + 1 < line.size(); i++)
+    {
+      Point2D.Double a = line.get(i);
+      Point2D.Double b = line.get(i + 1);
+      best = Math.min(best, java.awt.geom.Line2D.ptSegDist(a.x, a.y, b.x, b.y, p.x, p.y));
+    }
+    return best;
+  }
+
+  private static List<Point2D.Double> flatten(java.awt.Shape s, double flatness)
+  {
+    List<Point2D.Double> result = new ArrayList<>();
+    double[] c = new double[6];
+    for (PathIterator it = s.getPathIterator(null, flatness); !it.isDone(); it.next())
+    {
+      if (it.currentSegment(c) != PathIterator.SEG_CLOSE)
+      {
+        result.add(new Point2D.Double(c[0], c[1]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compress the poly-line, re-flatten the result and check that both
+   * deviate by at most the tolerance
+   * @return compression ratio
+   */
+  private double compressAndCompare(List<Point2D.Double> input) throws IOException
+  {
+    Recorder r = new Recorder(input.get(0).x, input.get(0).y);
+    PathCompressor c = new PathCompressor(r, TOLERANCE);
+    c.begin(input.get(0).x, input.get(0).y);
+    for (Point2D.Double p : input.subList(1, input.size()))
+    {
+      c.lineTo(p.x, p.y);
+    }
+    c.flush();
+    assertEquals(0, input.get(input.size() - 1).distance(r.points.get(r.points.size() - 1)), 1e-9);
+    for (Point2D.Double p : input)
+    {
+      assertTrue(distanceToPolyline(p, r.points) <= TOLERANCE + 1e-3);
+    }
+    for (Point2D.Double p : r.points)
+    {
+      assertTrue(distanceToPolyline(p, input) <= TOLERANCE + 1e-3);
+    }
+    assertEquals(r.commands, c.getLinesOut() + c.getArcsOut());
+    return c.getCompressionRatio();
+  }
+
+  @Test
+  public void testCircle() throws IOException
+  {
+    List<Point2D.Double> circle = flatten(new Ellipse2D.Double(100, 100, 400, 400), 0.01);
+    double ratio = compressAndCompare(circle);
+    assertTrue("ratio was " + ratio, ratio > 20);
+  }
+
+  @Test
+  public void testCollinear() throws IOException
+  {
+    List<Point2D.Double> line = new ArrayList<>();
+    for (int i = 0; i <= 1000; i++)
+    {
+      line.add(new Point2D.Double(i, 2 * i));
+    }
+    for (int i = 1; i <= 1000; i++)
+    {
+      line.add(new Point2D.Double(1000 - i, 2000));
+    }
+    double ratio = compressAndCompare(line);
+    // runs are limited to 256 segments
+    assertEquals(2000.0 / 8, ratio, 1e-9);
+  }
+
+  @Test
+  public void testCurvesAndCorners() throws IOException
+  {
+    Path2D.Double p = new Path2D.Double();
+    p.moveTo(0, 0);
+    p.append(new CubicCurve2D.Double(0, 0, 300, -200, 100, 500, 600, 300), true);
+    p.lineTo(600, 0);
+    p.lineTo(700, 10);
+    p.append(new CubicCurve2D.Double(700, 10, 900, 300, 1000, -300, 1200, 0), true);
+    double ratio = compressAndCompare(flatten(p, 0.05));
+    assertTrue("ratio was " + ratio, ratio > 5);
+  }
+
+  @Test
+  public void testZigZagIsNotMerged() throws IOException
+  {
+    List<Point2D.Double> zigzag = new ArrayList<>();
+    for (int i = 0; i <= 100; i++)
+    {
+      zigzag.add(new Point2D.Double(10 * i, (i % 2) * 10));
+    }
+    assertEquals(1, compressAndCompare(zigzag), 1e-9);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SerialTransportTest
+{
+  private static final int LINES = 300;
+  private static final String LINE = "G1 X123.456 Y789.012 F3000";
+
+  @Test(timeout = 30000)
+  public void testWritesAreCoalesced() throws IOException
+  {
+    // flush after every line, directly to the port
+    LoopbackSerialDevice direct = new LoopbackSerialDevice(line -> null);
+    direct.setWriteLatencyMicros(1000);
+    PrintStream out = new PrintStream(direct.getHostOutputStream(), true, StandardCharsets.US_ASCII);
+    long start = System.nanoTime();
+    for (int i = 0; i < LINES; i++)
+    {
+      out.print(LINE + "\n");
+    }
+    long directNanos = System.nanoTime() - start;
+    assertTrue(direct.getWriteCalls() >= LINES);
+
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> null);
+    device.setWriteLatencyMicros(1000);
+    try (SerialTransport t = device.open())
+    {
+      out = new PrintStream(t.getOutputStream(), true, StandardCharsets.US_ASCII);
+      start = System.nanoTime();
+      for (int i = 0; i < LINES; i++)
+      {
+        out.print(LINE + "\n");
+      }
+      t.drain();
+      long transportNanos = System.nanoTime() - start;
+      assertEquals(LINES, device.getLinesReceived());
+      assertEquals(LINES * (LINE.length() + 1), device.getBytesReceived());
+      assertTrue(t.getFlushes() >= LINES);
+      assertTrue("writes: " + device.getWriteCalls(), device.getWriteCalls() < LINES / 10);
+      assertTrue(transportNanos < directNanos);
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testLargeWritesAreSplit() throws IOException
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> null);
+    byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = (byte) (i % 100 == 99 ? '\n' : 'A' + i % 26);
+    }
+    try (SerialTransport t = new SerialTransport(device, device.getHostInputStream(), device.getHostOutputStream(), device::close, 4096))
+    {
+      t.getOutputStream().write(data);
+      t.drain();
+      assertEquals(data.length, device.getBytesReceived());
+      assertEquals(data.length / 100, device.getLinesReceived());
+      assertEquals((data.length + 4095) / 4096, device.getWriteCalls());
+    }
+  }
+
+  /**
+   * Each command waits for the answer. With the old sleep polling (100ms per
+   * try) this would take more than a minute.
+   */
+  @Test(timeout = 20000)
+  public void testAckRoundTrips() throws IOException
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> line.isEmpty() ? null : "ok\n");
+    device.setWriteLatencyMicros(100);
+    try (SerialTransport t = device.open())
+    {
+      t.setReadTimeout(5000);
+      PrintStream out = new PrintStream(t.getOutputStream(), true, StandardCharsets.US_ASCII);
+      BufferedReader in = new BufferedReader(new InputStreamReader(t.getInputStream(), StandardCharsets.US_ASCII));
+      for (int i = 0; i < 1000; i++)
+      {
+        out.print(LINE + "\n");
+        assertEquals("ok", in.readLine());
+      }
+      assertEquals(1000, device.getLinesReceived());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testAcknowledgementByte() throws IOException
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> "\t");
+    try (SerialTransport t = device.open())
+    {
+      byte[] answer = new byte[128];
+      assertEquals(0, t.read(answer, 0, answer.length, 50));
+      OutputStream out = t.getOutputStream();
+      out.write("A\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      assertEquals(1, t.read(answer, 0, answer.length, 5000));
+      assertEquals(0x09, answer[0]);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testReadTimeout() throws IOException
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> null);
+    try (SerialTransport t = device.open())
+    {
+      t.setReadTimeout(50);
+      try
+      {
+        t.getInputStream().read();
+        fail("read did not time out");
+      }
+      catch (InterruptedIOException e)
+      {
+        // expected
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testDiscardInput() throws Exception
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> "ok\n");
+    try (SerialTransport t = device.open())
+    {
+      device.sendToHost("stale answer\n");
+      while (t.getInputStream().available() == 0)
+      {
+        Thread.sleep(1);
+      }
+      t.discardInput();
+      assertEquals(0, t.getInputStream().available());
+      t.getOutputStream().write("M115\n".getBytes(StandardCharsets.US_ASCII));
+      t.flush();
+      BufferedReader in = new BufferedReader(new InputStreamReader(t.getInputStream(), StandardCharsets.US_ASCII));
+      assertEquals("ok", in.readLine());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCloseSendsPendingData() throws IOException
+  {
+    LoopbackSerialDevice device = new LoopbackSerialDevice(line -> null);
+    SerialTransport t = device.open();
+    t.getOutputStream().write((LINE + "\n").getBytes(StandardCharsets.US_ASCII));
+    t.close();
+    assertEquals(1, device.getLinesReceived());
+    assertTrue(t.isClosed());
+    // the reader thread ends the input
+    assertEquals(-1, t.getInputStream().read());
+    try
+    {
+      t.getOutputStream().write(1);
+      fail("write after close");
+    }
+    catch (IOException e)
+    {
+      // expected
+    }
+  }
+}
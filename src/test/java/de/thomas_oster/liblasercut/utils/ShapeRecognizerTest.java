@@ -0,0 +1,355 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import de.thomas_oster.liblasercut.BlackWhiteRaster;
+import de.thomas_oster.liblasercut.VectorCommand;
+import de.thomas_oster.liblasercut.VectorPart;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.properties.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.utils.ShapeRecognizer.Contour;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShapeRecognizerTest
+{
+
+  private static BlackWhiteRaster raster(String... rows)
+  {
+    BlackWhiteRaster result = new BlackWhiteRaster(rows[0].length(), rows.length);
+    for (int y = 0; y < rows.length; y++)
+    {
+      for (int x = 0; x < rows[y].length(); x++)
+      {
+        result.setBlack(x, y, rows[y].charAt(x) == '#');
+      }
+    }
+    return result;
+  }
+
+  private static List<Contour> trace(BlackWhiteRaster bwr, int parallelism) throws InterruptedException
+  {
+    ShapeRecognizer r = new ShapeRecognizer();
+    r.setParallelism(parallelism);
+    return r.findContours(bwr);
+  }
+
+  /**
+   * Area of the outer contours minus the holes must be the number of black pixels
+   */
+  private static void assertAreaMatches(BlackWhiteRaster bwr, List<Contour> contours)
+  {
+    long black = 0;
+    for (int y = 0; y < bwr.getHeight(); y++)
+    {
+      for (int x = 0; x < bwr.getWidth(); x++)
+      {
+        if (bwr.isBlack(x, y))
+        {
+          black++;
+        }
+      }
+    }
+    long area = 0;
+    for (Contour c : contours)
+    {
+      area += c.isHole() ? -c.getArea() : c.getArea();
+    }
+    assertEquals(black, area);
+  }
+
+  @Test
+  public void testSinglePixel() throws InterruptedException
+  {
+    List<Contour> contours = trace(raster(
+      "...",
+      ".#.",
+      "..."), 1);
+    assertEquals(1, contours.size());
+    Contour c = contours.get(0);
+    assertEquals(4, c.size());
+    assertEquals(1, c.getArea());
+    assertFalse(c.isHole());
+    for (int i = 0; i < 4; i++)
+    {
+      assertTrue(c.getX(i) == 1 || c.getX(i) == 2);
+      assertTrue(c.getY(i) == 1 || c.getY(i) == 2);
+    }
+  }
+
+  @Test
+  public void testRingWithHole() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = raster(
+      "#####",
+      "#...#",
+      "#...#",
+      "#####");
+    List<Contour> contours = trace(bwr, 1);
+    assertEquals(2, contours.size());
+    assertFalse(contours.get(0).isHole());
+    assertEquals(20, contours.get(0).getArea());
+    assertTrue(contours.get(1).isHole());
+    assertEquals(6, contours.get(1).getArea());
+    assertAreaMatches(bwr, contours);
+  }
+
+  @Test
+  public void testDiagonalPixelsAreConnected() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = raster(
+      "#...",
+      ".#..",
+      "..#.",
+      ".#.#");
+    List<Contour> contours = trace(bwr, 1);
+    assertEquals(1, contours.size());
+    assertAreaMatches(bwr, contours);
+  }
+
+  @Test
+  public void testSeparateShapes() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = raster(
+      "##.......##",
+      "##..###..##",
+      "....#.#....",
+      "....###...#");
+    List<Contour> contours = trace(bwr, 1);
+    // 4 shapes and one hole
+    assertEquals(5, contours.size());
+    assertAreaMatches(bwr, contours);
+  }
+
+  @Test
+  public void testWidthNotMultipleOf8() throws InterruptedException
+  {
+    // black up to the right border, white padding bits must be ignored
+    BlackWhiteRaster bwr = raster(
+      "..........#",
+      "...........",
+      "##########.");
+    List<Contour> contours = trace(bwr, 1);
+    assertEquals(2, contours.size());
+    assertAreaMatches(bwr, contours);
+  }
+
+  @Test
+  public void testOuterShape()
+  {
+    ShapeRecognizer r = new ShapeRecognizer();
+    List<Point> shape = r.getOuterShape(raster(
+      ".....",
+      ".###.",
+      ".#...",
+      "....."));
+    assertEquals(shape.get(0), shape.get(shape.size() - 1));
+    // L shape with 6 corners
+    assertEquals(7, shape.size());
+    // white shape on black background
+    shape = r.getOuterShape(raster(
+      "#####",
+      "#..##",
+      "#####"));
+    assertEquals(5, shape.size());
+    // no shape: the whole picture
+    shape = r.getOuterShape(raster(
+      "...",
+      "..."));
+    assertEquals(new Point(3, 2), shape.get(2));
+  }
+
+  @Test
+  public void testOuterShapeKeepsInterrupt()
+  {
+    Thread.currentThread().interrupt();
+    List<Point> shape = new ShapeRecognizer().getOuterShape(raster(
+      ".....",
+      ".###.",
+      "....."));
+    assertTrue("interrupt flag was cleared", Thread.interrupted());
+    // the whole picture
+    assertEquals(5, shape.size());
+    assertEquals(new Point(5, 3), shape.get(2));
+  }
+
+  private static BlackWhiteRaster randomBlobs(int w, int h, long seed)
+  {
+    BlackWhiteRaster bwr = new BlackWhiteRaster(w, h);
+    Random r = new Random(seed);
+    for (int i = 0; i < w * h / 400; i++)
+    {
+      int cx = r.nextInt(w);
+      int cy = r.nextInt(h);
+      int radius = 2 + r.nextInt(30);
+      for (int y = Math.max(0, cy - radius); y < Math.min(h, cy + radius); y++)
+      {
+        for (int x = Math.max(0, cx - radius); x < Math.min(w, cx + radius); x++)
+        {
+          int dx = x - cx;
+          int dy = y - cy;
+          if (dx * dx + dy * dy < radius * radius)
+          {
+            bwr.setBlack(x, y, !bwr.isBlack(x, y));
+          }
+        }
+      }
+    }
+    return bwr;
+  }
+
+  @Test
+  public void testParallelEqualsSequential() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = randomBlobs(1003, 1500, 1);
+    List<Contour> sequential = trace(bwr, 1);
+    List<Contour> parallel = trace(bwr, 4);
+    assertEquals(sequential.size(), parallel.size());
+    for (int i = 0; i < sequential.size(); i++)
+    {
+      Contour a = sequential.get(i);
+      Contour b = parallel.get(i);
+      assertEquals(a.size(), b.size());
+      for (int k = 0; k < a.size(); k++)
+      {
+        assertEquals(a.getX(k), b.getX(k));
+        assertEquals(a.getY(k), b.getY(k));
+      }
+    }
+    assertAreaMatches(bwr, parallel);
+  }
+
+  @Test
+  public void testEveryEdgeIsTracedOnce() throws InterruptedException
+  {
+    // large blobs, so many contours cross the band borders
+    BlackWhiteRaster bwr = new BlackWhiteRaster(600, 1200);
+    for (int y = 0; y < 1200; y++)
+    {
+      for (int x = 0; x < 600; x++)
+      {
+        int dx = x % 200 - 100;
+        int dy = y % 400 - 200;
+        bwr.setBlack(x, y, dx * dx + dy * dy / 4 < 90 * 90 && (x + y) % 7 != 0);
+      }
+    }
+    ShapeRecognizer r = new ShapeRecognizer();
+    r.setParallelism(4);
+    List<Contour> contours = r.findContours(bwr);
+    long edges = 0;
+    for (Contour c : contours)
+    {
+      for (int i = 0; i < c.size(); i++)
+      {
+        edges += Math.abs(c.getY((i + 1) % c.size()) - c.getY(i));
+      }
+    }
+    assertEquals(edges, r.getEdgesTraced());
+    assertEquals(trace(bwr, 1).size(), contours.size());
+    assertAreaMatches(bwr, contours);
+  }
+
+  @Test
+  public void testVectorPart() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = raster(
+      "....",
+      ".##.",
+      ".##.",
+      "....");
+    VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 500);
+    ShapeRecognizer.addToVectorPart(trace(bwr, 1), vp, 10, 20, 0);
+    assertEquals(11, vp.getMinX(), 0);
+    assertEquals(13, vp.getMaxX(), 0);
+    assertEquals(21, vp.getMinY(), 0);
+    assertEquals(23, vp.getMaxY(), 0);
+    VectorCommand[] commands = vp.getCommandList();
+    VectorCommand first = null;
+    VectorCommand last = null;
+    for (VectorCommand c : commands)
+    {
+      if (c.getType() == VectorCommand.CmdType.MOVETO)
+      {
+        first = c;
+      }
+      else if (c.getType() == VectorCommand.CmdType.LINETO)
+      {
+        last = c;
+      }
+    }
+    // closed
+    assertEquals(first.getX(), last.getX(), 0);
+    assertEquals(first.getY(), last.getY(), 0);
+  }
+
+  private static int lineCount(VectorPart vp)
+  {
+    int result = 0;
+    for (VectorCommand c : vp.getCommandList())
+    {
+      if (c.getType() == VectorCommand.CmdType.LINETO)
+      {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testSimplification() throws InterruptedException
+  {
+    int size = 200;
+    BlackWhiteRaster bwr = new BlackWhiteRaster(size, size);
+    for (int y = 0; y < size; y++)
+    {
+      for (int x = 0; x < size; x++)
+      {
+        double dx = x - size / 2 + 0.5;
+        double dy = y - size / 2 + 0.5;
+        bwr.setBlack(x, y, dx * dx + dy * dy < 80 * 80);
+      }
+    }
+    List<Contour> contours = trace(bwr, 1);
+    assertEquals(1, contours.size());
+    VectorPart exact = new VectorPart(new PowerSpeedFocusProperty(), 500);
+    ShapeRecognizer.addToVectorPart(contours, exact, 0, 0, 0);
+    VectorPart simplified = new VectorPart(new PowerSpeedFocusProperty(), 500);
+    ShapeRecognizer.addToVectorPart(contours, simplified, 0, 0, 1);
+    assertTrue(lineCount(simplified) * 2 < lineCount(exact));
+    assertEquals(exact.getMinX(), simplified.getMinX(), 1);
+    assertEquals(exact.getMaxY(), simplified.getMaxY(), 1);
+  }
+
+  @Test
+  public void benchmark() throws InterruptedException
+  {
+    BlackWhiteRaster bwr = randomBlobs(6000, 4000, 2);
+    for (int parallelism : new int[]{1, Runtime.getRuntime().availableProcessors()})
+    {
+      // warm up
+      trace(bwr, parallelism);
+      long start = System.nanoTime();
+      List<Contour> contours = trace(bwr, parallelism);
+      long millis = (System.nanoTime() - start) / 1000000;
+      System.out.println("ShapeRecognizer, " + parallelism + " thread(s): " + contours.size() + " contours in " + millis + " ms");
+    }
+  }
+}